@@ -22,6 +22,7 @@ package org.carapaceproxy;
 import org.carapaceproxy.server.certiticates.DynamicCertificatesManager;
 import io.netty.handler.codec.http.HttpRequest;
 import java.util.Map;
+import org.carapaceproxy.client.ConnectionsManagerStats;
 import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.configstore.ConfigurationStore;
 import org.carapaceproxy.server.RequestHandler;
@@ -40,6 +41,19 @@ public abstract class EndpointMapper {
 
     public abstract MapResult map(HttpRequest request, String userId, String sessionId, BackendHealthManager backendHealthManager, RequestHandler requestHandler);
 
+    /**
+     * Maps again a request to another backend, after a failure of the backend
+     * of the previous result, before any response has been received.
+     *
+     * @param request
+     * @param previous the result of the previous mapping
+     * @param backendHealthManager
+     * @return the new result, null if no other backend can serve the request
+     */
+    public MapResult mapRetry(HttpRequest request, MapResult previous, BackendHealthManager backendHealthManager) {
+        return null;
+    }
+
     public MapResult mapDefaultInternalError(HttpRequest request, String routeid) {
         return MapResult.INTERNAL_ERROR(routeid);
     }
@@ -57,4 +71,21 @@ public abstract class EndpointMapper {
     public void setDynamicCertificateManager(DynamicCertificatesManager manager) {
     }
 
+    /**
+     * Live stats about the endpoints, useful in order to balance the load.
+     *
+     * @param stats
+     */
+    public void setConnectionsManagerStats(ConnectionsManagerStats stats) {
+    }
+
+    /**
+     * Health of the backends, useful in order to ramp up the traffic to
+     * recovered backends.
+     *
+     * @param backendHealthManager
+     */
+    public void setBackendHealthManager(BackendHealthManager backendHealthManager) {
+    }
+
 }
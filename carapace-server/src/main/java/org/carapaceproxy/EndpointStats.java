@@ -19,22 +19,30 @@
  */
 package org.carapaceproxy;
 
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import org.carapaceproxy.client.EndpointKey;
+import org.carapaceproxy.utils.CoarseClock;
+import org.carapaceproxy.utils.LatencyHistogram;
 
 /**
- * Stats about an endpoint
+ * Stats about an endpoint. Stats are updated by every worker thread on every
+ * request, so counters are striped and lastActivity is written only once per
+ * {@link CoarseClock} tick.
  *
  * @author enrico.olivelli
  */
 public class EndpointStats {
 
-    private final AtomicInteger openConnections = new AtomicInteger();
-    private final AtomicInteger activeConnections = new AtomicInteger();
-    private final AtomicInteger totalConnections = new AtomicInteger();
-    private final AtomicInteger totalRequests = new AtomicInteger();
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder totalConnections = new LongAdder();
+    private final LongAdder totalRequests = new LongAdder();
     private final AtomicLong lastActivity = new AtomicLong();
+    private final AtomicLong recentTotalTime = new AtomicLong();
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram totalTime = new LatencyHistogram();
     private final EndpointKey key;
 
     public EndpointStats(EndpointKey key) {
@@ -45,22 +53,85 @@ public class EndpointStats {
         return lastActivity;
     }
 
-    public AtomicInteger getTotalRequests() {
+    /**
+     * Records an activity on the endpoint, using the coarse clock.
+     */
+    public void activityDone() {
+        long now = CoarseClock.currentTimeMillis();
+        if (lastActivity.get() != now) {
+            lastActivity.lazySet(now);
+        }
+    }
+
+    public LongAdder getTotalRequests() {
         return totalRequests;
     }
 
-    public AtomicInteger getOpenConnections() {
+    public LongAdder getOpenConnections() {
         return openConnections;
     }
 
-    public AtomicInteger getActiveConnections() {
+    public LongAdder getActiveConnections() {
         return activeConnections;
     }
 
-    public AtomicInteger getTotalConnections() {
+    public LongAdder getTotalConnections() {
         return totalConnections;
     }
 
+    /**
+     * Time to establish a connection, in microseconds.
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * Time from sending the request to receiving the response headers, in
+     * microseconds.
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    /**
+     * Time from sending the request to receiving the whole response, in
+     * microseconds.
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * Records the total time of a request, in microseconds.
+     *
+     * @param micros
+     * @see #getRecentTotalTime()
+     */
+    public void recordTotalTime(long micros) {
+        totalTime.recordValue(micros);
+        // exponentially weighted moving average, updates may be lost under
+        // contention, this is only an estimate for load balancing
+        long current = recentTotalTime.get();
+        recentTotalTime.lazySet(current == 0 ? micros : current + ((micros - current) >> 3));
+    }
+
+    /**
+     * Moving average of the total time of the most recent requests, in
+     * microseconds.
+     *
+     * @return the average, 0 if no request has been recorded
+     */
+    public long getRecentTotalTime() {
+        return recentTotalTime.get();
+    }
+
     public EndpointKey getKey() {
         return key;
     }
@@ -19,6 +19,15 @@
  */
 package org.carapaceproxy;
 
+import java.util.Collections;
+import java.util.List;
+import org.carapaceproxy.server.config.CompressionConfiguration;
+
+/**
+ * How to handle a request. The results may be shared among requests, they
+ * must not be modified after they have been returned by an
+ * {@link EndpointMapper}.
+ */
 public class MapResult {
 
     public static final String NO_ROUTE = "-";
@@ -29,12 +38,27 @@ public class MapResult {
     public final String routeid;
     public int errorcode;
     public String resource;
+    private final int stuckRequestTimeout;
+    private final int maxRetries;
+    private final List<String> backendCandidates;
+    private final int backendCandidateIndex;
+    private final CompressionConfiguration compression;
 
     public MapResult(String host, int port, Action action, String routeid) {
+        this(host, port, action, routeid, 0, 0, null, null, 0);
+    }
+
+    public MapResult(String host, int port, Action action, String routeid, int stuckRequestTimeout, int maxRetries,
+            CompressionConfiguration compression, List<String> backendCandidates, int backendCandidateIndex) {
         this.host = host;
         this.port = port;
         this.action = action;
         this.routeid = routeid;
+        this.stuckRequestTimeout = stuckRequestTimeout;
+        this.maxRetries = maxRetries;
+        this.compression = compression;
+        this.backendCandidates = backendCandidates != null ? Collections.unmodifiableList(backendCandidates) : null;
+        this.backendCandidateIndex = backendCandidateIndex;
     }
 
     public static MapResult NOT_FOUND(String routeid) {
@@ -63,6 +87,45 @@ public class MapResult {
         return this;
     }
 
+    public int getStuckRequestTimeout() {
+        return stuckRequestTimeout;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Compression to apply to the responses
+     *
+     * @return the configuration of the route, null if the responses must be
+     * sent as they are
+     */
+    public CompressionConfiguration getCompression() {
+        return compression;
+    }
+
+    /**
+     * All the backends which have been considered for the request, in order
+     * of preference.
+     *
+     * @return a read-only list of backend ids, null if the result is not
+     * about a backend
+     * @see #getBackendCandidateIndex()
+     */
+    public List<String> getBackendCandidates() {
+        return backendCandidates;
+    }
+
+    /**
+     * Position of the chosen backend in {@link #getBackendCandidates()}
+     *
+     * @return the index
+     */
+    public int getBackendCandidateIndex() {
+        return backendCandidateIndex;
+    }
+
     @Override
     public String toString() {
         return "MapResult{" + "host=" + host + ", port=" + port + ", action=" + action + ", errorcode=" + errorcode + ", resource=" + resource + '}';
@@ -31,6 +31,7 @@ import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.server.HttpProxyServer;
 import org.carapaceproxy.server.backends.BackendHealthManager;
 import org.carapaceproxy.server.backends.BackendHealthStatus;
+import org.carapaceproxy.utils.LatencyHistogram;
 import org.carapaceproxy.utils.StringUtils;
 
 /**
@@ -52,6 +53,9 @@ public class BackendsResource {
         private long openConnections;
         private long totalRequests;
         private long lastActivityTs;
+        private LatencyBean connectTime;
+        private LatencyBean timeToFirstByte;
+        private LatencyBean totalTime;
 
         private boolean isAvailable;
         private boolean reportedAsUnreachable;
@@ -77,6 +81,18 @@ public class BackendsResource {
             return lastActivityTs;
         }
 
+        public LatencyBean getConnectTime() {
+            return connectTime;
+        }
+
+        public LatencyBean getTimeToFirstByte() {
+            return timeToFirstByte;
+        }
+
+        public LatencyBean getTotalTime() {
+            return totalTime;
+        }
+
         public String getHost() {
             return host;
         }
@@ -111,6 +127,62 @@ public class BackendsResource {
 
     }
 
+    /**
+     * Latency distribution since the start of the process, all of the values
+     * are in microseconds. The percentile gauges of the stats cover only the
+     * recent values, see {@link LatencyHistogram#recentSnapshot()}.
+     */
+    public static final class LatencyBean {
+
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        public LatencyBean(LatencyHistogram histogram) {
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            this.count = snapshot.getCount();
+            this.mean = snapshot.getMean();
+            this.p50 = snapshot.getValueAtPercentile(50);
+            this.p90 = snapshot.getValueAtPercentile(90);
+            this.p99 = snapshot.getValueAtPercentile(99);
+            this.p999 = snapshot.getValueAtPercentile(99.9);
+            this.max = snapshot.getMax();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+    }
+
     @GET
     public Map<String, BackendBean> getAll() {
         HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
@@ -128,6 +200,9 @@ public class BackendsResource {
                 bean.openConnections = epstats.getOpenConnections().longValue();
                 bean.totalRequests = epstats.getTotalRequests().longValue();
                 bean.lastActivityTs = epstats.getLastActivity().longValue();
+                bean.connectTime = new LatencyBean(epstats.getConnectTime());
+                bean.timeToFirstByte = new LatencyBean(epstats.getTimeToFirstByte());
+                bean.totalTime = new LatencyBean(epstats.getTotalTime());
             }
             BackendHealthStatus bhs = bb.getValue();
             if (bhs != null) {
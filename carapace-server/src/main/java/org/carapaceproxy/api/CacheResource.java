@@ -19,13 +19,19 @@
  */
 package org.carapaceproxy.api;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import javax.servlet.ServletContext;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import org.carapaceproxy.server.HttpProxyServer;
 import org.carapaceproxy.server.cache.CacheStats;
 import org.carapaceproxy.server.cache.ContentsCache;
@@ -54,6 +60,96 @@ public class CacheResource {
         return res;
     }
 
+    /**
+     * Removes the contents of a host, the contents whose URI starts with a
+     * prefix or the contents whose URI matches a regular expression. Without
+     * a host the prefix or the expression apply to all the hosts.
+     *
+     * @param host the value of the Host header of the requests
+     * @param prefix
+     * @param regex matched against the whole URI, including the query string
+     * @return the number of removed contents
+     */
+    @Path("/invalidate")
+    @GET
+    public Map<String, Object> invalidate(@QueryParam("host") String host,
+            @QueryParam("prefix") String prefix, @QueryParam("regex") String regex) {
+        HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
+        ContentsCache cache = server.getCache();
+        Map<String, Object> res = new HashMap<>();
+        int removed;
+        if (prefix != null && regex != null) {
+            res.put("result", "error");
+            res.put("error", "prefix and regex cannot be used together");
+            return res;
+        } else if (prefix != null) {
+            removed = cache.invalidatePrefix(host, prefix);
+        } else if (regex != null) {
+            try {
+                removed = cache.invalidateMatching(host, Pattern.compile(regex));
+            } catch (PatternSyntaxException err) {
+                res.put("result", "error");
+                res.put("error", err.getMessage());
+                return res;
+            }
+        } else if (host != null) {
+            removed = cache.invalidateHost(host);
+        } else {
+            res.put("result", "error");
+            res.put("error", "host, prefix or regex are required, use /flush in order to remove all the contents");
+            return res;
+        }
+        res.put("result", "ok");
+        res.put("removed", removed);
+        res.put("cachesize", cache.getCacheSize());
+        return res;
+    }
+
+    /**
+     * Removes many contents at once. Each line of the body is the URL of a
+     * content, like "example.com/index.html?a=b", with an optional http:// or
+     * https:// scheme; a line which starts with '/' applies to all the
+     * hosts. All the methods and variants of the contents are removed.
+     *
+     * @param urls the URLs, one per line
+     * @return the number of removed contents
+     */
+    @Path("/purge")
+    @Consumes(value = "text/plain")
+    @POST
+    public Map<String, Object> purge(String urls) {
+        HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
+        ContentsCache cache = server.getCache();
+        int requested = 0;
+        int removed = 0;
+        if (urls != null) {
+            for (String line : urls.split("\n")) {
+                String url = line.trim();
+                if (url.startsWith("http://")) {
+                    url = url.substring("http://".length());
+                } else if (url.startsWith("https://")) {
+                    url = url.substring("https://".length());
+                }
+                if (url.isEmpty()) {
+                    continue;
+                }
+                requested++;
+                int slash = url.indexOf('/');
+                if (slash < 0) {
+                    removed += cache.invalidateUri(url, "/");
+                } else {
+                    removed += cache.invalidateUri(slash > 0 ? url.substring(0, slash) : null, url.substring(slash));
+                }
+            }
+        }
+        Map<String, Object> res = new HashMap<>();
+        res.put("result", "ok");
+        res.put("requested", requested);
+        res.put("removed", removed);
+        res.put("cachesize", cache.getCacheSize());
+        return res;
+    }
+
     @Path("/info")
     @GET
     public Map<String, Object> info() {
@@ -69,6 +165,12 @@ public class CacheResource {
         res.put("directMemoryUsed", stats.getDirectMemoryUsed());
         res.put("heapMemoryUsed", stats.getHeapMemoryUsed());
         res.put("totalMemoryUsed", stats.getTotalMemoryUsed());
+        res.put("diskHits", stats.getDiskHits());
+        res.put("diskUsed", stats.getDiskUsed());
+        res.put("negativeHits", stats.getNegativeHits());
+        res.put("negativeCached", stats.getNegativeCached());
+        res.put("indexedContents", cache.getIndexedContents());
+        res.put("partitions", cache.getPartitionsInfo());
         return res;
     }
     
@@ -79,4 +181,32 @@ public class CacheResource {
         ContentsCache cache = server.getCache();
         return cache.inspectCache();
     }
+
+    @Path("/snapshot")
+    @GET
+    public Map<String, Object> snapshot() {
+        HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
+        ContentsCache cache = server.getCache();
+        Map<String, Object> res = new HashMap<>();
+        try {
+            int entries = cache.writeSnapshot();
+            res.put("result", "ok");
+            res.put("entries", entries);
+        } catch (IOException | RuntimeException err) {
+            res.put("result", "error");
+            res.put("error", err.toString());
+        }
+        res.putAll(cache.getSnapshotInfo());
+        return res;
+    }
+
+    @Path("/snapshot/info")
+    @GET
+    public Map<String, Object> snapshotInfo() {
+        HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
+        ContentsCache cache = server.getCache();
+        Map<String, Object> res = new HashMap<>(cache.getSnapshotInfo());
+        res.put("result", "ok");
+        return res;
+    }
 }
@@ -50,14 +50,19 @@ public class ListenersResource {
         private final boolean ocps;
         private final String sslCiphers;
         private final String defaultCertificate;
+        private final int writeBufferLowWaterMark;
+        private final int writeBufferHighWaterMark;
 
-        public ListenerBean(String host, int port, boolean ssl, boolean ocps, String sslCiphers, String defaultCertificate) {
+        public ListenerBean(String host, int port, boolean ssl, boolean ocps, String sslCiphers, String defaultCertificate,
+                int writeBufferLowWaterMark, int writeBufferHighWaterMark) {
             this.host = host;
             this.port = port;
             this.ssl = ssl;
             this.ocps = ocps;
             this.sslCiphers = sslCiphers;
             this.defaultCertificate = defaultCertificate;
+            this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+            this.writeBufferHighWaterMark = writeBufferHighWaterMark;
         }
 
         public String getHost() {
@@ -84,6 +89,14 @@ public class ListenersResource {
             return defaultCertificate;
         }
 
+        public int getWriteBufferLowWaterMark() {
+            return writeBufferLowWaterMark;
+        }
+
+        public int getWriteBufferHighWaterMark() {
+            return writeBufferHighWaterMark;
+        }
+
     }
 
     @GET
@@ -99,7 +112,9 @@ public class ListenersResource {
                     listener.isSsl(),
                     listener.isOcps(),
                     listener.getSslCiphers(),
-                    listener.getDefaultCertificate()
+                    listener.getDefaultCertificate(),
+                    listener.getWriteBufferLowWaterMark(),
+                    listener.getWriteBufferHighWaterMark()
             );
             EndpointKey ek = EndpointKey.make(listener.getHost(), listener.getPort());
             res.put(ek.toBackendId(), lisBean);
@@ -19,6 +19,8 @@
  */
 package org.carapaceproxy.client;
 
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
 import org.carapaceproxy.server.RuntimeServerConfiguration;
 
 /**
@@ -30,7 +32,11 @@ public interface ConnectionsManager extends AutoCloseable {
 
     /**
      * Obtain a connection to the requested endpoint. Connections are pooled, so
-     * the returned object MUST be returned to the pool
+     * the returned object MUST be returned to the pool.
+     * <p>
+     * This method blocks until a connection is available, so it MUST NOT be
+     * called from a Netty event loop, use {@link #getConnectionAsync(org.carapaceproxy.client.EndpointKey)
+     * } instead.
      *
      * @param key
      * @return
@@ -38,6 +44,37 @@ public interface ConnectionsManager extends AutoCloseable {
      */
     EndpointConnection getConnection(EndpointKey key) throws EndpointNotAvailableException;
 
+    /**
+     * Obtain a connection to the requested endpoint without blocking. If no
+     * connection is available the request waits in a queue dedicated to the
+     * endpoint and the future is completed as soon as a connection is returned
+     * to the pool or a new connection has been established. The future fails
+     * with an {@link EndpointNotAvailableException} if no connection can be
+     * obtained in time.
+     * <p>
+     * Listeners of the returned future are notified on the thread which
+     * completes it, that is usually not the thread of the caller.
+     *
+     * @param key
+     * @return
+     */
+    Future<EndpointConnection> getConnectionAsync(EndpointKey key);
+
+    /**
+     * Obtain a connection to the requested endpoint without blocking, on
+     * behalf of a client served by the given event loop. Implementations may
+     * bind the connection to the same event loop, in order to relay data
+     * between client and endpoint without switching threads.
+     *
+     * @param key
+     * @param eventLoop the event loop which is serving the client
+     * @return
+     * @see #getConnectionAsync(org.carapaceproxy.client.EndpointKey)
+     */
+    default Future<EndpointConnection> getConnectionAsync(EndpointKey key, EventLoop eventLoop) {
+        return getConnectionAsync(key);
+    }
+
     void start();
 
     @Override
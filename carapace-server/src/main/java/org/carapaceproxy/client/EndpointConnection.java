@@ -40,8 +40,39 @@ public interface EndpointConnection {
 
     public void release(boolean error, RequestHandler handler);
 
+    /**
+     * Sends the last part of the request. The connection takes ownership of
+     * the message, which will be released.
+     *
+     * @param msg
+     * @param handler
+     */
     public void sendLastHttpContent(LastHttpContent msg, RequestHandler handler);
 
+    /**
+     * Sends a part of the request. The connection takes ownership of the
+     * message, which will be released.
+     *
+     * @param httpContent
+     * @param handler
+     */
     public void sendChunk(HttpContent httpContent, RequestHandler handler);
 
+    /**
+     * Stops/resumes reading from the endpoint. This is used in order to not
+     * read the response faster than the client is able to consume it.
+     * Connections are always returned to the pool with auto-read enabled.
+     *
+     * @param autoRead
+     */
+    public void setAutoRead(boolean autoRead);
+
+    /**
+     * Checks whether the data written to the endpoint is below the write
+     * buffer high water mark.
+     *
+     * @return true if it is possible to write more data without queuing it
+     */
+    public boolean isWritable();
+
 }
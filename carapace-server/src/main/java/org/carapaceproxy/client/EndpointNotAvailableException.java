@@ -26,6 +26,10 @@ package org.carapaceproxy.client;
  */
 public class EndpointNotAvailableException extends Exception {
 
+    public EndpointNotAvailableException(String message) {
+        super(message);
+    }
+
     public EndpointNotAvailableException(Throwable cause) {
         super(cause);
     }
@@ -20,19 +20,23 @@
 package org.carapaceproxy.client.impl;
 
 import com.google.common.annotations.VisibleForTesting;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.epoll.EpollEventLoopGroup;
-import java.util.ArrayList;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
 import java.util.Collections;
-import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 import org.carapaceproxy.EndpointStats;
 import org.carapaceproxy.client.ConnectionsManager;
@@ -43,14 +47,10 @@ import org.carapaceproxy.client.EndpointNotAvailableException;
 import org.carapaceproxy.server.RuntimeServerConfiguration;
 import org.carapaceproxy.server.RequestHandler;
 import org.carapaceproxy.server.backends.BackendHealthManager;
+import org.carapaceproxy.utils.LatencyHistogram;
 import org.apache.bookkeeper.stats.Counter;
+import org.apache.bookkeeper.stats.Gauge;
 import org.apache.bookkeeper.stats.StatsLogger;
-import org.apache.commons.pool2.KeyedPooledObjectFactory;
-import org.apache.commons.pool2.PooledObject;
-import org.apache.commons.pool2.impl.DefaultPooledObject;
-import org.apache.commons.pool2.impl.DefaultPooledObjectInfo;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 
 /**
  * Implementation of the {@link ConnectionsManager} component
@@ -59,79 +59,63 @@ import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
  */
 public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable {
 
-    private final GenericKeyedObjectPool<EndpointKey, EndpointConnectionImpl> connections;
-    private int idleTimeout;
-    private int stuckRequestTimeout;
-    private int connectTimeout;
+    private final ConcurrentHashMap<EndpointKey, EndpointConnectionsPool> connections = new ConcurrentHashMap<>();
+    // pools bound to the event loops which are serving clients, see eventLoopAffinity
+    private final ConcurrentHashMap<EventLoop, ConcurrentHashMap<EndpointKey, EndpointConnectionsPool>> eventLoopsConnections = new ConcurrentHashMap<>();
+    private volatile boolean eventLoopAffinity;
+    private volatile int idleTimeout;
+    private volatile int stuckRequestTimeout;
+    private volatile int connectTimeout;
+    private volatile int maxConnectionsPerEndpoint;
     private final ConcurrentHashMap<EndpointKey, EndpointStats> endpointsStats = new ConcurrentHashMap<>();
     private final EventLoopGroup group;
 
-    private ScheduledFuture<?> stuckRequestsReaperFuture;
-    private ConcurrentHashMap<Long, RequestHandler> pendingRequests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, StuckRequestTimeout> pendingRequests = new ConcurrentHashMap<>();
 
     final StatsLogger mainLogger;
     final BackendHealthManager backendHealthManager;
-    final ScheduledExecutorService scheduler;
+    final HashedWheelTimer stuckRequestsTimer;
     final Counter pendingRequestsStat;
     final Counter stuckRequestsStat;
 
-    void returnConnection(EndpointConnectionImpl con) {
-//        LOG.log(Level.SEVERE, "returnConnection:" + con);
-        connections.returnObject(con.getKey(), con);
-    }
-
     public int getConnectTimeout() {
         return connectTimeout;
     }
 
-    private final class ConnectionsFactory implements KeyedPooledObjectFactory<EndpointKey, EndpointConnectionImpl> {
-
-        @Override
-        public PooledObject<EndpointConnectionImpl> makeObject(EndpointKey k) throws Exception {
-            EndpointStats endpointstats = endpointsStats.computeIfAbsent(k, EndpointStats::new);
-            EndpointConnectionImpl con = new EndpointConnectionImpl(k, ConnectionsManagerImpl.this, endpointstats);
-            LOG.log(Level.INFO, "opened new connection {0}", new Object[]{con});
-            return new DefaultPooledObject<>(con);
-        }
-
-        @Override
-        public void destroyObject(EndpointKey k, PooledObject<EndpointConnectionImpl> po) throws Exception {
-            LOG.log(Level.INFO, "destroy con {0} {1}", new Object[]{k, po.getObject()});
-            po.getObject().destroy();
-        }
-
-        @Override
-        public boolean validateObject(EndpointKey k, PooledObject<EndpointConnectionImpl> po) {
-            boolean valid = po.getObject().isValid();
-            if (!valid) {
-                LOG.log(Level.INFO, "validateObject {0} {1}-> {2}", new Object[]{k, po.getObject(), valid});
-            }
-            return valid;
-        }
-
-        @Override
-        public void activateObject(EndpointKey k, PooledObject<EndpointConnectionImpl> po) throws Exception {
-//            LOG.log(Level.INFO, "activateObject {0} {1}", new Object[]{k, po.getObject()});
-        }
-
-        @Override
-        public void passivateObject(EndpointKey k, PooledObject<EndpointConnectionImpl> po) throws Exception {
-//            LOG.log(Level.INFO, "passivateObject {0} {1}", new Object[]{k, po.getObject()});
-        }
-
+    int getMaxConnectionsPerEndpoint() {
+        return maxConnectionsPerEndpoint;
     }
 
+    /**
+     * Starts tracking a request which has been sent to an endpoint. A timeout
+     * is armed on the {@link #stuckRequestsTimer}, every activity on the
+     * request only updates its lastActivity and the timeout is re-armed
+     * lazily when it expires.
+     *
+     * @param handler
+     */
     void registerPendingRequest(RequestHandler handler) {
-        pendingRequests.put(handler.getId(), handler);
-        pendingRequestsStat.inc();
+        int timeout = handler.getStuckRequestTimeout();
+        if (timeout <= 0) {
+            timeout = stuckRequestTimeout;
+        }
+        StuckRequestTimeout stuckRequestTimeout = new StuckRequestTimeout(handler, timeout);
+        StuckRequestTimeout prev = pendingRequests.put(handler.getId(), stuckRequestTimeout);
+        if (prev != null) {
+            prev.cancel();
+        } else {
+            pendingRequestsStat.inc();
+        }
+        stuckRequestTimeout.schedule(timeout);
     }
 
     void unregisterPendingRequest(RequestHandler clientSidePeerHandler) {
         if (clientSidePeerHandler == null) {
             return;
         }
-        RequestHandler removed = pendingRequests.remove(clientSidePeerHandler.getId());
+        StuckRequestTimeout removed = pendingRequests.remove(clientSidePeerHandler.getId());
         if (removed != null) {
+            removed.cancel();
             pendingRequestsStat.dec();
         }
     }
@@ -139,29 +123,51 @@ public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable
     @VisibleForTesting
     public Counter getPendingRequestsStat() {
         return pendingRequestsStat;
-    }        
+    }
+
+    private final class StuckRequestTimeout implements TimerTask {
+
+        private final RequestHandler requestHandler;
+        private final int stuckRequestTimeout;
+        private volatile Timeout timeout;
+
+        StuckRequestTimeout(RequestHandler requestHandler, int stuckRequestTimeout) {
+            this.requestHandler = requestHandler;
+            this.stuckRequestTimeout = stuckRequestTimeout;
+        }
+
+        void schedule(long delay) {
+            timeout = stuckRequestsTimer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+        }
 
-    private class RequestHandlerChecker implements Runnable {
+        void cancel() {
+            Timeout _timeout = timeout;
+            if (_timeout != null) {
+                _timeout.cancel();
+            }
+        }
 
         @Override
-        public void run() {
+        public void run(Timeout t) {
+            if (pendingRequests.get(requestHandler.getId()) != this) {
+                return;
+            }
             long now = System.currentTimeMillis();
-            List<RequestHandler> toRemove = new ArrayList<>();
-            for (Map.Entry<Long, RequestHandler> entry : pendingRequests.entrySet()) {
-                RequestHandler requestHandler = entry.getValue();
-                requestHandler.failIfStuck(now, stuckRequestTimeout, () -> {
-                    EndpointConnection connectionToEndpoint = requestHandler.getConnectionToEndpoint();
-                    if (connectionToEndpoint != null) {
-                        backendHealthManager.reportBackendUnreachable(
-                            connectionToEndpoint.getKey().toBackendId(), now, 
-                            "a request to " + requestHandler.getUri() + " for user " + requestHandler.getUserId() + " appears stuck");
-                    }
-                    stuckRequestsStat.inc();
-                    toRemove.add(entry.getValue());
-                });
+            long remaining = requestHandler.getLastActivity() + stuckRequestTimeout - now;
+            if (remaining > 0) {
+                // some activity happened in the meantime
+                schedule(remaining);
+                return;
             }
-            toRemove.forEach(r -> {
-                unregisterPendingRequest(r);
+            requestHandler.failIfStuck(now, stuckRequestTimeout, () -> {
+                EndpointConnection connectionToEndpoint = requestHandler.getConnectionToEndpoint();
+                if (connectionToEndpoint != null) {
+                    backendHealthManager.reportBackendUnreachable(
+                            connectionToEndpoint.getKey().toBackendId(), now,
+                            "a request to " + requestHandler.getUri() + " for user " + requestHandler.getUserId() + " appears stuck");
+                }
+                stuckRequestsStat.inc();
+                unregisterPendingRequest(requestHandler);
             });
         }
 
@@ -169,36 +175,21 @@ public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable
 
     @Override
     public final void applyNewConfiguration(RuntimeServerConfiguration configuration) {
-        int oldIdleTimeout = this.idleTimeout;
         this.idleTimeout = configuration.getIdleTimeout();
         this.stuckRequestTimeout = configuration.getStuckRequestTimeout();
         this.connectTimeout = configuration.getConnectTimeout();
-        int maxConnectionsPerEndpoint = configuration.getMaxConnectionsPerEndpoint();
-        connections.setMaxTotalPerKey(maxConnectionsPerEndpoint);
-        connections.setMaxIdlePerKey(maxConnectionsPerEndpoint);
-
-        if (this.stuckRequestsReaperFuture != null && (oldIdleTimeout != idleTimeout)) {
-            this.stuckRequestsReaperFuture.cancel(false);
-            LOG.log(Level.INFO, "Re-scheduling stuckRequestsReaper with period (idleTimeout/4):" + (idleTimeout / 4) + " ms");
-            this.stuckRequestsReaperFuture
-                    = this.scheduler.scheduleWithFixedDelay(new RequestHandlerChecker(), idleTimeout / 4, idleTimeout / 4, TimeUnit.MILLISECONDS);
-        }
-
+        this.maxConnectionsPerEndpoint = configuration.getMaxConnectionsPerEndpoint();
+        this.eventLoopAffinity = configuration.isEventLoopAffinity();
+        // pending requests keep their timeout, new requests will use the new one
     }
 
     public ConnectionsManagerImpl(RuntimeServerConfiguration configuration, StatsLogger statsLogger, BackendHealthManager backendHealthManager) {
         this.mainLogger = statsLogger.scope("outbound");
         this.pendingRequestsStat = mainLogger.getCounter("pendingrequests");
         this.stuckRequestsStat = mainLogger.getCounter("stuckrequests");
-        this.scheduler = Executors.newSingleThreadScheduledExecutor();
-
-        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
-        config.setTestOnReturn(true);
-        config.setTestOnBorrow(true);
-        config.setTestWhileIdle(true);
-        config.setBlockWhenExhausted(true);
-        group = new EpollEventLoopGroup();
-        connections = new GenericKeyedObjectPool<>(new ConnectionsFactory(), config);
+        this.stuckRequestsTimer = new HashedWheelTimer(new DefaultThreadFactory("stuck-requests-timer", true),
+                STUCK_REQUESTS_TIMER_TICK, TimeUnit.MILLISECONDS);
+        this.group = new EpollEventLoopGroup();
         this.backendHealthManager = backendHealthManager;
         applyNewConfiguration(configuration);
     }
@@ -209,46 +200,120 @@ public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable
 
     @Override
     public EndpointConnection getConnection(EndpointKey key) throws EndpointNotAvailableException {
+        Promise<EndpointConnection> promise = GlobalEventExecutor.INSTANCE.newPromise();
         try {
-            EndpointConnection result = connections.borrowObject(key, connectTimeout * 2);
-            result.setIdleTimeout(idleTimeout);
-            return result;
-        } catch (NoSuchElementException ex) {
-            throw new EndpointNotAvailableException("Too many connections to " + key + " and/or cannot create a new connection", ex);
-        } catch (Exception ex) {
+            return acquire(key, promise).get(connectTimeout * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            promise.cancel(false);
             throw new EndpointNotAvailableException(ex);
+        } catch (TimeoutException ex) {
+            promise.cancel(false);
+            throw new EndpointNotAvailableException("Too many connections to " + key + " and/or cannot create a new connection", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof EndpointNotAvailableException) {
+                throw (EndpointNotAvailableException) ex.getCause();
+            }
+            throw new EndpointNotAvailableException(ex.getCause());
         }
     }
-    private static final Logger LOG = Logger.getLogger(ConnectionsManagerImpl.class
-            .getName());
 
     @Override
-    public void start() {
-        LOG.log(Level.INFO, "Scheduling stuckRequestsReaper with period (idleTimeout/4):" + (idleTimeout / 4) + " ms");
-        this.stuckRequestsReaperFuture
-                = this.scheduler.scheduleWithFixedDelay(new RequestHandlerChecker(), idleTimeout / 4, idleTimeout / 4, TimeUnit.MILLISECONDS);
+    public Future<EndpointConnection> getConnectionAsync(EndpointKey key) {
+        return acquire(key, ImmediateEventExecutor.INSTANCE.newPromise());
     }
 
+    /**
+     * If eventLoopAffinity is enabled the connection will be registered on the
+     * same event loop which is serving the client: every event loop has its
+     * own pool of connections to each endpoint, and the listeners of the
+     * returned future are notified on the event loop itself.
+     *
+     * @param key
+     * @param eventLoop
+     * @return
+     */
     @Override
-    public void close() {
-        if (stuckRequestsReaperFuture != null) {
-            stuckRequestsReaperFuture.cancel(true);
+    public Future<EndpointConnection> getConnectionAsync(EndpointKey key, EventLoop eventLoop) {
+        // backend channels are Epoll channels, they can be registered only on Epoll event loops
+        if (!eventLoopAffinity || eventLoop == null || !(eventLoop.parent() instanceof EpollEventLoopGroup)) {
+            return getConnectionAsync(key);
+        }
+        ConcurrentHashMap<EndpointKey, EndpointConnectionsPool> pools = eventLoopsConnections.get(eventLoop);
+        if (pools == null) {
+            pools = eventLoopsConnections.computeIfAbsent(eventLoop, l -> new ConcurrentHashMap<>());
+        }
+        EndpointConnectionsPool pool = pools.get(key);
+        if (pool == null) {
+            pool = pools.computeIfAbsent(key,
+                    k -> new EndpointConnectionsPool(k, eventLoop, this, getEndpointStats(k)));
+        }
+        return pool.acquire(eventLoop.newPromise());
+    }
+
+    private EndpointStats getEndpointStats(EndpointKey key) {
+        EndpointStats endpointStats = endpointsStats.get(key);
+        if (endpointStats != null) {
+            return endpointStats;
         }
-        scheduler.shutdown();
-        Map<String, List<DefaultPooledObjectInfo>> all = connections.listAllObjects();
-        LOG.fine("[POOL] numIdle: " + connections.getNumIdle() + " numActive: " + connections.getNumActive());
-        connections.clear();
-        LOG.fine("[POOL] numIdle: " + connections.getNumIdle() + " numActive: " + connections.getNumActive());
+        return endpointsStats.computeIfAbsent(key, k -> {
+            EndpointStats res = new EndpointStats(k);
+            StatsLogger endpointStatsLogger = mainLogger.scope(k.getHost() + "_" + k.getPort());
+            registerLatencyGauges(endpointStatsLogger, "connect_time", res.getConnectTime());
+            registerLatencyGauges(endpointStatsLogger, "ttfb", res.getTimeToFirstByte());
+            registerLatencyGauges(endpointStatsLogger, "total_time", res.getTotalTime());
+            return res;
+        });
+    }
 
-        all.forEach((key, value) -> {
-            LOG.fine("[POOL] " + key + " -> " + value.size() + " connections");
+    private static void registerLatencyGauges(StatsLogger statsLogger, String name, LatencyHistogram histogram) {
+        registerLatencyGauge(statsLogger, name + "_p50_us", histogram, 50);
+        registerLatencyGauge(statsLogger, name + "_p99_us", histogram, 99);
+        registerLatencyGauge(statsLogger, name + "_p999_us", histogram, 99.9);
+    }
 
-            for (DefaultPooledObjectInfo info : value) {
-                LOG.fine("[POOL] " + key + " -> " + info.getPooledObjectToString());
+    private static void registerLatencyGauge(StatsLogger statsLogger, String name, LatencyHistogram histogram, double percentile) {
+        statsLogger.registerGauge(name, new Gauge<Long>() {
+            @Override
+            public Long getDefaultValue() {
+                return 0L;
+            }
+
+            @Override
+            public Long getSample() {
+                // the tail latency of the last minutes, not of the whole life of the process
+                return histogram.recentSnapshot().getValueAtPercentile(percentile);
             }
         });
+    }
 
-        connections.close();
+    private Future<EndpointConnection> acquire(EndpointKey key, Promise<EndpointConnection> promise) {
+        EndpointConnectionsPool pool = connections.computeIfAbsent(key,
+                k -> new EndpointConnectionsPool(k, group, this, getEndpointStats(k)));
+        return pool.acquire(promise);
+    }
+
+    private static final Logger LOG = Logger.getLogger(ConnectionsManagerImpl.class
+            .getName());
+
+    private static final int STUCK_REQUESTS_TIMER_TICK = 10; // ms
+
+    @Override
+    public void start() {
+        stuckRequestsTimer.start();
+    }
+
+    @Override
+    public void close() {
+        stuckRequestsTimer.stop();
+        connections.values().forEach(pool -> {
+            LOG.fine("[POOL] " + pool);
+            pool.close();
+        });
+        eventLoopsConnections.values().forEach(pools -> pools.values().forEach(pool -> {
+            LOG.fine("[POOL] " + pool);
+            pool.close();
+        }));
         group.shutdownGracefully();
     }
 
@@ -257,6 +322,12 @@ public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable
         public Map<EndpointKey, EndpointStats> getEndpoints() {
             return Collections.unmodifiableMap(endpointsStats);
         }
+
+        @Override
+        public EndpointStats getEndpointStats(EndpointKey key) {
+            // used on the hot path by load aware backend selectors
+            return endpointsStats.get(key);
+        }
     };
 
     @Override
@@ -264,13 +335,11 @@ public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable
         return stats;
     }
 
-    @VisibleForTesting
     public int getIdleTimeout() {
         return idleTimeout;
     }
 
-    @VisibleForTesting
-    public ScheduledFuture<?> getStuckRequestsReaperFuture() {
-        return stuckRequestsReaperFuture;
+    public int getStuckRequestTimeout() {
+        return stuckRequestTimeout;
     }
 }
@@ -28,19 +28,18 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.timeout.ReadTimeoutHandler;
 import io.netty.handler.timeout.WriteTimeoutHandler;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -53,6 +52,7 @@ import org.carapaceproxy.EndpointStats;
 import org.carapaceproxy.client.EndpointConnection;
 import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.server.RequestHandler;
+import org.carapaceproxy.utils.CoarseClock;
 
 public class EndpointConnectionImpl implements EndpointConnection {
 
@@ -62,17 +62,20 @@ public class EndpointConnectionImpl implements EndpointConnection {
 
     private final long id = IDGENERATOR.incrementAndGet();
     private final ConnectionsManagerImpl parent;
+    private final EndpointConnectionsPool pool;
     private final EndpointKey key;
     private final EndpointStats endpointstats;
     private final AtomicBoolean closed = new AtomicBoolean();
     private final AtomicBoolean active = new AtomicBoolean();
     private int idleTimeout = 500_000;
 
+    private final ChannelFuture connectFuture;
     private final Channel channelToEndpoint;
 
     private AtomicReference<ConnectionState> state = new AtomicReference<>(ConnectionState.IDLE);
     private volatile boolean valid;
     private volatile RequestHandler clientSidePeerHandler;
+    private volatile long requestStartTs;
 
     // stats
     private final StatsLogger endpointStatsLogger;
@@ -88,15 +91,16 @@ public class EndpointConnectionImpl implements EndpointConnection {
     }
 
     /**
-     * Creates and return always a "CONNECTED" connection. This constructor will
-     * block until the backend is connected
+     * Creates a new connection and starts connecting to the backend. This
+     * constructor does not block, the connection can be used only after
+     * {@link #getConnectFuture() } completes successfully
      *
      * @param key
+     * @param pool the pool which owns the connection
      * @param parent
      * @param endpointstats
-     * @throws IOException
      */
-    public EndpointConnectionImpl(EndpointKey key, ConnectionsManagerImpl parent, EndpointStats endpointstats) throws IOException {
+    EndpointConnectionImpl(EndpointKey key, EndpointConnectionsPool pool, ConnectionsManagerImpl parent, EndpointStats endpointstats) {
         this.endpointStatsLogger = parent.mainLogger.scope(key.getHost() + "_" + key.getPort());
         this.connectionStats = endpointStatsLogger.getOpStatsLogger("connections");
         this.openConnectionsStats = endpointStatsLogger.getCounter("openconnections");
@@ -104,15 +108,17 @@ public class EndpointConnectionImpl implements EndpointConnection {
         this.requestsStats = endpointStatsLogger.getCounter("requests");
         this.key = key;
         this.parent = parent;
+        this.pool = pool;
         this.valid = true;
         this.endpointstats = endpointstats;
         activityDone();
 
         long now = System.nanoTime();
         Bootstrap b = new Bootstrap();
-        b.group(parent.getGroup())
+        b.group(pool.getGroup())
                 .channel(EpollSocketChannel.class)
                 .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, parent.getConnectTimeout())
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     public void initChannel(SocketChannel ch) throws Exception {
@@ -123,48 +129,34 @@ public class EndpointConnectionImpl implements EndpointConnection {
                     }
                 });
 
-        final ChannelFuture connectFuture = b.connect(key.getHost(), key.getPort());
-
+        connectFuture = b.connect(key.getHost(), key.getPort());
+        channelToEndpoint = connectFuture.channel();
         connectFuture.addListener((Future<Void> future) -> {
             if (future.isSuccess()) {
-                endpointstats.getTotalConnections().incrementAndGet();
-                endpointstats.getOpenConnections().incrementAndGet();
+                long connectTime = System.nanoTime() - now;
+                endpointstats.getTotalConnections().increment();
+                endpointstats.getOpenConnections().increment();
+                endpointstats.getConnectTime().recordValue(TimeUnit.NANOSECONDS.toMicros(connectTime));
                 openConnectionsStats.inc();
-                connectionStats.registerSuccessfulEvent(System.nanoTime() - now, TimeUnit.NANOSECONDS);
+                connectionStats.registerSuccessfulEvent(connectTime, TimeUnit.NANOSECONDS);
+                channelToEndpoint
+                        .closeFuture()
+                        .addListener((Future<? super Void> closeFuture) -> {
+                            LOG.log(Level.FINE, "channel closed to {0}", key);
+                            endpointstats.getOpenConnections().decrement();
+                            openConnectionsStats.dec();
+                        });
             } else {
+                invalidate();
                 connectionStats.registerFailedEvent(System.nanoTime() - now, TimeUnit.NANOSECONDS);
                 LOG.log(Level.INFO, "connect failed to " + key, future.cause());
                 parent.backendHealthManager.reportBackendUnreachable(key.toBackendId(), System.currentTimeMillis(), "connection failed");
             }
         });
-        try {
-            connectFuture.get(parent.getConnectTimeout(), TimeUnit.MILLISECONDS);
-        } catch (InterruptedException err) {
-            throw new IOException(err);
-        } catch (ExecutionException err) {
-            LOG.log(Level.INFO, "cannot create a valid connection to " + key, err.getCause());
-            if (err.getCause() instanceof IOException) {
-                throw (IOException) err.getCause();
-            } else {
-                throw new IOException(err.getCause());
-            }
-        } catch (TimeoutException err) {
-            LOG.log(Level.INFO, "timed out creating a valid connection to " + key, err);
-            throw new IOException(err);
-        }
-        if (!valid) {
-            throw new IOException("Cannot connect to " + key);
-        }
-
-        channelToEndpoint = connectFuture.channel();
-        channelToEndpoint
-                .closeFuture()
-                .addListener((Future<? super Void> future) -> {
-                    LOG.log(Level.FINE, "channel closed to {0}", key);
-                    endpointstats.getOpenConnections().decrementAndGet();
-                    openConnectionsStats.dec();
-                });
+    }
 
+    ChannelFuture getConnectFuture() {
+        return connectFuture;
     }
 
     @Override
@@ -184,9 +176,10 @@ public class EndpointConnectionImpl implements EndpointConnection {
         }
 
         this.clientSidePeerHandler = clientSidePeerHandler;
-        endpointstats.getActiveConnections().incrementAndGet();
+        this.requestStartTs = System.nanoTime();
+        endpointstats.getActiveConnections().increment();
         activeConnectionsStats.inc();
-        endpointstats.getTotalRequests().incrementAndGet();
+        endpointstats.getTotalRequests().increment();
         requestsStats.inc();
 
         parent.registerPendingRequest(clientSidePeerHandler);
@@ -218,6 +211,7 @@ public class EndpointConnectionImpl implements EndpointConnection {
         if (!channelToEndpoint.isOpen() || !valid) {
             invalidate();
             LOG.log(Level.SEVERE, "continueRequest {0} to {1} . skip to invalid connection to endpoint {2}", new Object[]{msg, channelToEndpoint, this.key});
+            msg.release();
             clientSidePeerHandler.errorSendingRequest(this, new IOException("endpoint died"));
             return;
         }
@@ -249,6 +243,7 @@ public class EndpointConnectionImpl implements EndpointConnection {
             invalidate();
             LOG.log(Level.SEVERE, "continueRequest {0} to {1} . skip to invalid connection to endpoint {2}", new Object[]{msg, channelToEndpoint, this.key});
             state.compareAndSet(ConnectionState.REQUEST_SENT, ConnectionState.RELEASABLE);
+            msg.release();
             clientSidePeerHandler.errorSendingRequest(this, new IOException("endpoint died"));
             return;
         }
@@ -288,11 +283,23 @@ public class EndpointConnectionImpl implements EndpointConnection {
 
         if (close) {
             destroy();
+        } else {
+            setAutoRead(true);
         }
-        parent.returnConnection(this);
+        pool.release(this);
 
     }
 
+    @Override
+    public void setAutoRead(boolean autoRead) {
+        channelToEndpoint.config().setAutoRead(autoRead);
+    }
+
+    @Override
+    public boolean isWritable() {
+        return channelToEndpoint.isWritable();
+    }
+
     void destroy() {
         invalidate();
         if (!closed.compareAndSet(false, true)) {
@@ -305,13 +312,13 @@ public class EndpointConnectionImpl implements EndpointConnection {
 
     boolean isValid() {
         return valid
-                && (System.currentTimeMillis() - endpointstats.getLastActivity().longValue() <= idleTimeout)
+                && (CoarseClock.currentTimeMillis() - endpointstats.getLastActivity().longValue() <= idleTimeout)
                 && channelToEndpoint.isOpen();
     }
 
     private void connectionDeactivated() {
         if (active.compareAndSet(true, false)) {
-            endpointstats.getActiveConnections().decrementAndGet();
+            endpointstats.getActiveConnections().decrement();
             activeConnectionsStats.dec();
             parent.unregisterPendingRequest(clientSidePeerHandler);
             clientSidePeerHandler = null;
@@ -330,15 +337,17 @@ public class EndpointConnectionImpl implements EndpointConnection {
                 LOG.log(Level.INFO, "swallow content {0}: {1}, disconnected client", new Object[]{msg.getClass(), msg});
                 return;
             }
-            if (msg instanceof HttpContent) {
-                HttpContent f = (HttpContent) msg;
-                _clientSidePeerHandler.receivedFromRemote(f.copy(),
-                        EndpointConnectionImpl.this);
-            } else if (msg instanceof DefaultHttpResponse) {
-                DefaultHttpResponse f = (DefaultHttpResponse) msg;
-                // DefaultHttpResponse has no "copy" method
-                _clientSidePeerHandler.receivedFromRemote(
-                        new DefaultHttpResponse(f.protocolVersion(), f.status(), f.headers()),
+            if (msg instanceof HttpResponse) {
+                endpointstats.getTimeToFirstByte().recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - requestStartTs));
+            }
+            if (msg instanceof LastHttpContent) {
+                endpointstats.recordTotalTime(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - requestStartTs));
+            }
+            if (msg instanceof HttpContent || msg instanceof HttpResponse) {
+                // pass-through: the buffers are not copied, the client side
+                // handler takes ownership of the message (and of its buffers),
+                // as SimpleChannelInboundHandler releases it when we return
+                _clientSidePeerHandler.receivedFromRemote(ReferenceCountUtil.retain(msg),
                         EndpointConnectionImpl.this);
             } else {
                 LOG.log(Level.SEVERE, "unknown message type " + msg.getClass() + ": " + msg);
@@ -354,6 +363,15 @@ public class EndpointConnectionImpl implements EndpointConnection {
             }
         }
 
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            RequestHandler _clientSidePeerHandler = clientSidePeerHandler;
+            if (_clientSidePeerHandler != null && ctx.channel().isWritable()) {
+                _clientSidePeerHandler.endpointWritable();
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
             LOG.log(Level.SEVERE, "I/O error on endpoint " + key, cause);
@@ -382,7 +400,7 @@ public class EndpointConnectionImpl implements EndpointConnection {
     }
 
     private void activityDone() {
-        endpointstats.getLastActivity().set(System.currentTimeMillis());
+        endpointstats.activityDone();
     }
 
     private void invalidate() {
@@ -0,0 +1,258 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.client.impl;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.carapaceproxy.EndpointStats;
+import org.carapaceproxy.client.EndpointConnection;
+import org.carapaceproxy.client.EndpointKey;
+import org.carapaceproxy.client.EndpointNotAvailableException;
+
+/**
+ * Pool of connections to a single endpoint. Borrowing a connection never
+ * blocks: when the pool is exhausted the request is queued and it will be
+ * served as soon as a connection is returned to the pool or a new connection
+ * has been established.
+ *
+ * @author enrico.olivelli
+ */
+class EndpointConnectionsPool {
+
+    private static final Logger LOG = Logger.getLogger(EndpointConnectionsPool.class.getName());
+
+    private final EndpointKey key;
+    private final EventLoopGroup group;
+    private final ConnectionsManagerImpl parent;
+    private final EndpointStats endpointStats;
+
+    // guarded by this
+    private final Deque<EndpointConnectionImpl> idleConnections = new ArrayDeque<>();
+    private final Deque<Promise<EndpointConnection>> waiters = new ArrayDeque<>();
+    private int numConnections; // idle + borrowed + connecting
+    private boolean closed;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param key
+     * @param group the group on which connections will be registered, this
+     * is the only event loop of the group when event loop affinity is enabled
+     * @param parent
+     * @param endpointStats
+     */
+    EndpointConnectionsPool(EndpointKey key, EventLoopGroup group, ConnectionsManagerImpl parent, EndpointStats endpointStats) {
+        this.key = key;
+        this.group = group;
+        this.parent = parent;
+        this.endpointStats = endpointStats;
+    }
+
+    /**
+     * Borrows a connection. The given promise will be completed with a
+     * connected {@link EndpointConnection} or failed with an
+     * {@link EndpointNotAvailableException}.
+     *
+     * @param promise
+     * @return the same promise
+     */
+    Future<EndpointConnection> acquire(Promise<EndpointConnection> promise) {
+        EndpointConnectionImpl idle;
+        boolean connect = false;
+        synchronized (this) {
+            if (closed) {
+                return promise.setFailure(new EndpointNotAvailableException("Connections pool to " + key + " is closed"));
+            }
+            while ((idle = idleConnections.pollFirst()) != null) {
+                if (idle.isValid()) {
+                    break;
+                }
+                discard(idle);
+            }
+            if (idle == null) {
+                if (numConnections < parent.getMaxConnectionsPerEndpoint()) {
+                    numConnections++;
+                    connect = true;
+                } else {
+                    waiters.addLast(promise);
+                }
+            }
+        }
+        if (idle != null) {
+            handOver(idle, promise);
+        } else if (connect) {
+            openConnection(promise);
+        } else {
+            scheduleWaitTimeout(promise);
+        }
+        return promise;
+    }
+
+    /**
+     * Returns a connection to the pool. The connection is handed over to the
+     * first waiter, if any.
+     *
+     * @param con
+     */
+    void release(EndpointConnectionImpl con) {
+        Promise<EndpointConnection> waiter;
+        boolean connect = false;
+        synchronized (this) {
+            if (!closed && con.isValid() && numConnections <= parent.getMaxConnectionsPerEndpoint()) {
+                waiter = pollWaiter();
+                if (waiter == null) {
+                    idleConnections.addFirst(con);
+                    return;
+                }
+            } else {
+                discard(con);
+                waiter = pollWaiter();
+                if (waiter != null) {
+                    // replace the discarded connection
+                    numConnections++;
+                    connect = true;
+                }
+            }
+        }
+        if (connect) {
+            openConnection(waiter);
+        } else if (waiter != null) {
+            handOver(con, waiter);
+        }
+    }
+
+    void close() {
+        List<Promise<EndpointConnection>> toFail;
+        synchronized (this) {
+            closed = true;
+            EndpointConnectionImpl idle;
+            while ((idle = idleConnections.pollFirst()) != null) {
+                discard(idle);
+            }
+            toFail = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        toFail.forEach(p -> p.tryFailure(new EndpointNotAvailableException("Connections pool to " + key + " is closed")));
+    }
+
+    EventLoopGroup getGroup() {
+        return group;
+    }
+
+    synchronized int getNumIdle() {
+        return idleConnections.size();
+    }
+
+    synchronized int getNumConnections() {
+        return numConnections;
+    }
+
+    synchronized int getNumWaiters() {
+        return waiters.size();
+    }
+
+    private void openConnection(Promise<EndpointConnection> promise) {
+        EndpointConnectionImpl con;
+        try {
+            con = new EndpointConnectionImpl(key, this, parent, endpointStats);
+        } catch (RuntimeException err) {
+            LOG.log(Level.SEVERE, "cannot create a new connection to " + key, err);
+            connectionFailed(promise, err);
+            return;
+        }
+        LOG.log(Level.INFO, "opening new connection {0}", con);
+        con.getConnectFuture().addListener((Future<? super Void> future) -> {
+            if (future.isSuccess()) {
+                handOver(con, promise);
+            } else {
+                con.destroy();
+                connectionFailed(promise, future.cause());
+            }
+        });
+    }
+
+    private void connectionFailed(Promise<EndpointConnection> promise, Throwable cause) {
+        Promise<EndpointConnection> waiter;
+        synchronized (this) {
+            numConnections--;
+            waiter = pollWaiter();
+            if (waiter != null) {
+                // give every waiter its own chance to connect
+                numConnections++;
+            }
+        }
+        promise.tryFailure(new EndpointNotAvailableException("Cannot connect to " + key, cause));
+        if (waiter != null) {
+            openConnection(waiter);
+        }
+    }
+
+    private void handOver(EndpointConnectionImpl con, Promise<EndpointConnection> promise) {
+        con.setIdleTimeout(parent.getIdleTimeout());
+        if (!promise.trySuccess(con)) {
+            // the waiter gave up (timeout), keep the connection
+            release(con);
+        }
+    }
+
+    private void scheduleWaitTimeout(Promise<EndpointConnection> promise) {
+        int timeout = parent.getConnectTimeout() * 2;
+        ScheduledFuture<?> timeoutFuture = group.schedule(() -> {
+            synchronized (this) {
+                waiters.remove(promise);
+            }
+            promise.tryFailure(new EndpointNotAvailableException("Too many connections to " + key + " and/or cannot create a new connection"));
+        }, timeout, TimeUnit.MILLISECONDS);
+        promise.addListener(f -> timeoutFuture.cancel(false));
+    }
+
+    // guarded by this
+    private Promise<EndpointConnection> pollWaiter() {
+        Promise<EndpointConnection> waiter;
+        while ((waiter = waiters.pollFirst()) != null) {
+            if (!waiter.isDone()) {
+                return waiter;
+            }
+        }
+        return null;
+    }
+
+    // guarded by this
+    private void discard(EndpointConnectionImpl con) {
+        LOG.log(Level.INFO, "destroy con {0} {1}", new Object[]{key, con});
+        numConnections--;
+        con.destroy();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EndpointConnectionsPool{" + "key=" + key + ", numConnections=" + numConnections + ", numIdle=" + idleConnections.size() + ", numWaiters=" + waiters.size() + '}';
+    }
+
+}
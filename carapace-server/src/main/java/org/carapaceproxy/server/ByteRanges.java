@@ -0,0 +1,214 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import org.carapaceproxy.server.cache.ContentsCache;
+
+/**
+ * Byte ranges of the contents served from the cache, as slices of the cached
+ * body. https://tools.ietf.org/html/rfc7233
+ *
+ * @author enrico.olivelli
+ */
+final class ByteRanges {
+
+    private static final String BYTES_UNIT = "bytes=";
+    // requests with more ranges are served with the whole content
+    // https://tools.ietf.org/html/rfc7233#section-6.1
+    static final int MAX_RANGES = 16;
+
+    private ByteRanges() {
+    }
+
+    /**
+     * The ranges requested by the client for a cached content.
+     *
+     * @param request
+     * @param payload the cached content
+     * @param length the length of the cached body
+     * @return the first and last position of each range, an empty list if no
+     * range is satisfiable, null if the whole content has to be served
+     */
+    static List<long[]> getRanges(HttpRequest request, ContentsCache.ContentPayload payload, long length) {
+        if (!HttpMethod.GET.equals(request.method())) {
+            return null;
+        }
+        HttpHeaders headers = request.headers();
+        String range = headers.get(HttpHeaderNames.RANGE);
+        if (range == null || !isIfRangeMatching(headers.get(HttpHeaderNames.IF_RANGE), payload)) {
+            return null;
+        }
+        return parse(range, length);
+    }
+
+    /**
+     * The ranges are served only if the content is the one the client already
+     * has a part of, otherwise the whole content is served.
+     * https://tools.ietf.org/html/rfc7233#section-3.2
+     *
+     * @param ifRange
+     * @param payload
+     * @return
+     */
+    private static boolean isIfRangeMatching(String ifRange, ContentsCache.ContentPayload payload) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) {
+            // weak entity tags never match
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(payload.getEtag());
+        }
+        Date date = DateFormatter.parseHttpDate(ifRange);
+        return date != null && payload.getLastModified() > 0 && date.getTime() == payload.getLastModified();
+    }
+
+    /**
+     * Parses the value of a Range header.
+     *
+     * @param header
+     * @param length the length of the content
+     * @return the first and last position of each range, an empty list if no
+     * range is satisfiable, null if the header is not valid and has to be
+     * ignored
+     */
+    static List<long[]> parse(String header, long length) {
+        if (!header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // the last bytes of the content
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = suffix > 0 ? length - 1 : -1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (first < 0 || last < first) {
+                        return null;
+                    }
+                }
+            } catch (NumberFormatException err) {
+                return null;
+            }
+            if (first >= length || last < first) {
+                // not satisfiable, the other ranges may be
+                continue;
+            }
+            ranges.add(new long[]{first, Math.min(last, length - 1)});
+        }
+        return ranges;
+    }
+
+    /**
+     * Builds the partial response, with one slice of the body for every range.
+     *
+     * @param cached the cached response
+     * @param headers the headers of the whole response
+     * @param content the whole body, this method takes ownership of it
+     * @param ranges the satisfiable ranges, if empty the response tells the
+     * client that its ranges are not satisfiable
+     * @return
+     */
+    static FullHttpResponse buildResponse(HttpResponse cached, HttpHeaders headers, ByteBuf content, List<long[]> ranges) {
+        int length = content.readableBytes();
+        try {
+            if (ranges.isEmpty()) {
+                FullHttpResponse response = new DefaultFullHttpResponse(cached.protocolVersion(),
+                        HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, Unpooled.EMPTY_BUFFER);
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + length);
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+                return response;
+            }
+            HttpHeaders partialHeaders = headers.copy();
+            partialHeaders.remove(HttpHeaderNames.TRANSFER_ENCODING);
+            ByteBuf body;
+            if (ranges.size() == 1) {
+                long[] range = ranges.get(0);
+                body = content.retainedSlice(content.readerIndex() + (int) range[0], (int) (range[1] - range[0] + 1));
+                partialHeaders.set(HttpHeaderNames.CONTENT_RANGE, contentRange(range, length));
+            } else {
+                // https://tools.ietf.org/html/rfc7233#appendix-A
+                String boundary = "CARAPACE_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+                String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE);
+                CompositeByteBuf parts = Unpooled.compositeBuffer(ranges.size() * 2 + 1);
+                for (long[] range : ranges) {
+                    String partHeaders = "\r\n--" + boundary + "\r\n"
+                            + (contentType != null ? HttpHeaderNames.CONTENT_TYPE + ": " + contentType + "\r\n" : "")
+                            + HttpHeaderNames.CONTENT_RANGE + ": " + contentRange(range, length) + "\r\n\r\n";
+                    parts.addComponent(true, Unpooled.copiedBuffer(partHeaders, StandardCharsets.US_ASCII));
+                    parts.addComponent(true, content.retainedSlice(content.readerIndex() + (int) range[0], (int) (range[1] - range[0] + 1)));
+                }
+                parts.addComponent(true, Unpooled.copiedBuffer("\r\n--" + boundary + "--\r\n", StandardCharsets.US_ASCII));
+                body = parts;
+                partialHeaders.remove(HttpHeaderNames.CONTENT_RANGE);
+                partialHeaders.set(HttpHeaderNames.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+            }
+            partialHeaders.set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+            return new DefaultFullHttpResponse(cached.protocolVersion(), HttpResponseStatus.PARTIAL_CONTENT,
+                    body, partialHeaders, new DefaultHttpHeaders());
+        } finally {
+            content.release();
+        }
+    }
+
+    private static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+}
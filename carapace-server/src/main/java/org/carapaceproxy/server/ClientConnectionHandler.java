@@ -61,6 +61,7 @@ public class ClientConnectionHandler extends SimpleChannelInboundHandler<Object>
     volatile Boolean keepAlive;
     volatile boolean refuseOtherRequests;
     private final List<RequestHandler> pendingRequests = new CopyOnWriteArrayList<>();
+    private volatile RequestHandler waitingForWritability;
     final Runnable onClientDisconnected;
 
     public ClientConnectionHandler(
@@ -103,6 +104,16 @@ public class ClientConnectionHandler extends SimpleChannelInboundHandler<Object>
         ctx.flush();
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        RequestHandler request = waitingForWritability;
+        if (request != null && ctx.channel().isWritable()) {
+            waitingForWritability = null;
+            request.clientWritable();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         super.exceptionCaught(ctx, cause);
@@ -178,6 +189,16 @@ public class ClientConnectionHandler extends SimpleChannelInboundHandler<Object>
         return "ClientConnectionHandler{" + id + ",ka=" + keepAlive + '}';
     }
 
+    /**
+     * The given request will be notified as soon as the client will be able
+     * to receive more data.
+     *
+     * @param request
+     */
+    void waitForWritability(RequestHandler request) {
+        waitingForWritability = request;
+    }
+
     void addPendingRequest(RequestHandler request) {
         pendingRequests.add(request);
     }
@@ -111,6 +111,8 @@ public class HttpProxyServer implements AutoCloseable {
         this.dynamicCertificateManager = new DynamicCertificatesManager();
         if (mapper != null) {
             mapper.setDynamicCertificateManager(dynamicCertificateManager);
+            mapper.setConnectionsManagerStats(connectionsManager.getStats());
+            mapper.setBackendHealthManager(backendHealthManager);
         }
     }
 
@@ -437,6 +439,8 @@ public class HttpProxyServer implements AutoCloseable {
             RuntimeServerConfiguration newConfiguration = buildValidConfiguration(storeWithConfig);
             EndpointMapper newMapper = buildMapper(newConfiguration.getMapperClassname(), storeWithConfig);
             newMapper.setDynamicCertificateManager(this.dynamicCertificateManager);
+            newMapper.setConnectionsManagerStats(this.connectionsManager.getStats());
+            newMapper.setBackendHealthManager(this.backendHealthManager);
             UserRealm newRealm = buildRealm(newConfiguration.getUserRealmClassname(), storeWithConfig);
 
             this.filters = buildFilters(newConfiguration);
@@ -468,6 +472,8 @@ public class HttpProxyServer implements AutoCloseable {
         this.mapper = mapper;
         if (mapper != null) {
             mapper.setDynamicCertificateManager(dynamicCertificateManager);
+            mapper.setConnectionsManagerStats(connectionsManager.getStats());
+            mapper.setBackendHealthManager(backendHealthManager);
         }
     }
 
@@ -26,28 +26,35 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.DecoderResult;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
-import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpStatusClass.SERVER_ERROR;
 import static io.netty.handler.codec.http.HttpStatusClass.SUCCESS;
 import io.netty.handler.codec.http.HttpUtil;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
@@ -55,11 +62,11 @@ import java.util.logging.Logger;
 import org.carapaceproxy.MapResult;
 import org.carapaceproxy.client.EndpointConnection;
 import org.carapaceproxy.client.EndpointKey;
-import org.carapaceproxy.client.EndpointNotAvailableException;
 import org.carapaceproxy.client.impl.EndpointConnectionImpl;
 import static org.carapaceproxy.server.StaticContentsManager.DEFAULT_INTERNAL_SERVER_ERROR;
 import org.carapaceproxy.server.backends.BackendHealthManager;
 import org.carapaceproxy.server.cache.ContentsCache;
+import org.carapaceproxy.server.config.CompressionConfiguration;
 import org.carapaceproxy.server.filters.UrlEncodedQueryString;
 import org.apache.bookkeeper.stats.Counter;
 import org.apache.bookkeeper.stats.StatsLogger;
@@ -91,7 +98,43 @@ public class RequestHandler {
     private long backendStartTs = 0;
     private volatile long lastActivity;
     private volatile boolean headerSent = false;
+    private boolean waitingForConnection;
+    // the connection to which the request could not be written, the
+    // contents received from the client are not sent to it anymore
+    private volatile EndpointConnection failedConnection;
+    private final List<HttpContent> pendingRequestContents = new ArrayList<>(1);
     private UrlEncodedQueryString queryString;
+    private int retries;
+    private boolean clientRequestCompleted;
+    private volatile boolean responseReceived;
+    // copies of the contents sent to the endpoint, in order to replay the
+    // request on another backend, guarded by itself
+    private final List<HttpContent> replayableContents = new ArrayList<>(1);
+    private long replayableBytes;
+    private boolean replayable = true;
+    private static final long MAX_REPLAYABLE_BYTES = 64 * 1024;
+    // the response to another request for the same content which this
+    // request is waiting for, accessed only on the event loop of the client
+    private ContentsCache.ContentReceiver followedResponse;
+    private CacheFollower cacheFollower;
+    private ScheduledFuture<?> followTimeout;
+    private final List<HttpObject> followedContents = new ArrayList<>(1);
+    private boolean followedResponseStarted;
+    private boolean followedResponseWritten;
+    private boolean coalesced;
+    // an expired content, which can be served if the backends fail
+    private ContentsCache.ContentSender staleContent;
+    private volatile boolean staleContentServed;
+    // the conditional request which refreshes the expired content served to
+    // the client, or the request for the whole content after a range request
+    // which missed the cache: the response of the backend goes only to the cache
+    private HttpRequest revalidationRequest;
+    private ContentsCache.ContentKey revalidationKey;
+    // the backend served a part of a content which is not in cache
+    private boolean fetchFullContent;
+    // gzip encoder of the response of the endpoint, accessed only when
+    // receiving from the endpoint
+    private ResponseCompressor responseCompressor;
 
     public RequestHandler(long id, HttpRequest request, List<RequestFilter> filters, StatsLogger logger,
             ClientConnectionHandler parent, ChannelHandlerContext channelToClient, Runnable onRequestFinished,
@@ -128,12 +171,22 @@ public class RequestHandler {
         return backendStartTs;
     }
 
-    long getLastActivity() {
+    public long getLastActivity() {
         return lastActivity;
     }
 
+    /**
+     * Stuck request timeout configured on the route.
+     *
+     * @return the timeout in milliseconds, 0 means the default one
+     */
+    public int getStuckRequestTimeout() {
+        MapResult _action = action;
+        return _action != null ? _action.getStuckRequestTimeout() : 0;
+    }
+
     boolean isServedFromCache() {
-        return cacheSender != null;
+        return cacheSender != null || coalesced;
     }
 
     InetSocketAddress getRemoteAddress() {
@@ -202,37 +255,21 @@ public class RequestHandler {
             case ACME_CHALLENGE:
                 return;
             case PROXY:
-                try {
-//                    LOG.log(Level.SEVERE, "TIME"+TIME_TRACKER.incrementAndGet()+" start " + this + " thread " + Thread.currentThread().getName());
-                    EndpointConnection connection = connectionToClient.connectionsManager.getConnection(new EndpointKey(action.host, action.port));
-                    connectionToEndpoint.set(connection);
-                    connection.sendRequest(request, this);
-                } catch (EndpointNotAvailableException err) {
-                    fireRequestFinished();
-                    LOG.log(Level.INFO, "{0} error on endpoint {1}: {2}", new Object[]{this, action, err});
-                    return;
-                }
-                return;
             case CACHE:
-                try {
-//                    LOG.log(Level.SEVERE, "TIME"+TIME_TRACKER.incrementAndGet()+" startc " + this + " thread " + Thread.currentThread().getName());
-                    cacheSender = connectionToClient.cache.serveFromCache(this);
-                    if (cacheSender != null) {
+                if (action.action == MapResult.Action.CACHE) {
+                    ContentsCache.ContentSender cached = connectionToClient.cache.serveFromCache(this);
+                    if (cached != null && cached.isServable()) {
+                        cacheSender = cached;
                         return;
                     }
-                    EndpointConnection connection = connectionToClient.connectionsManager.getConnection(new EndpointKey(action.host, action.port));
-                    connectionToEndpoint.set(connection);
-                    cacheReceiver = connectionToClient.cache.startCachingResponse(request);
-                    if (cacheReceiver != null) {
-                        // https://tools.ietf.org/html/rfc7234#section-4.3.4
-                        cleanRequestFromCacheValidators(request);
+                    // an expired content is still useful if the backends fail
+                    staleContent = cached;
+                    if (followPendingResponse()) {
+                        return;
                     }
-                    connection.sendRequest(request, this);
-                } catch (EndpointNotAvailableException err) {
-                    fireRequestFinished();
-                    LOG.log(Level.INFO, "{0} error on endpoint {1}: {2}", new Object[]{this, action, err});
-                    return;
+                    startCachingResponse();
                 }
+                connectToEndpoint();
                 return;
 
             default:
@@ -241,6 +278,323 @@ public class RequestHandler {
 
     }
 
+    private void startCachingResponse() {
+        cacheReceiver = connectionToClient.cache.startCachingResponse(request);
+        if (cacheReceiver != null) {
+            String ifRange = request.headers().get(HttpHeaderNames.IF_RANGE);
+            // https://tools.ietf.org/html/rfc7234#section-4.3.4
+            cleanRequestFromCacheValidators(request);
+            if (ifRange != null && request.headers().contains(HttpHeaderNames.RANGE)) {
+                // the client must not receive a part of another version
+                request.headers().set(HttpHeaderNames.IF_RANGE, ifRange);
+            }
+        }
+    }
+
+    private void abortCacheReceiver() {
+        ContentsCache.ContentReceiver receiver = cacheReceiver;
+        if (receiver != null) {
+            // requests following this one will fall back to the backends
+            receiver.abort();
+            cacheReceiver = null;
+        }
+    }
+
+    /**
+     * Waits for the response to another request for the same content, which
+     * is being received from a backend, instead of sending the request to a
+     * backend.
+     *
+     * @return true if this request is following another one
+     */
+    private boolean followPendingResponse() {
+        CacheFollower follower = new CacheFollower();
+        ContentsCache.ContentReceiver followed = connectionToClient.cache.followPendingResponse(this, follower);
+        if (followed == null) {
+            return false;
+        }
+        followedResponse = followed;
+        cacheFollower = follower;
+        coalesced = true;
+        // the contents from the client are kept, as they must be sent to a
+        // backend if the followed request fails
+        waitingForConnection = true;
+        followTimeout = channelToClient.executor().schedule(() -> followTimeoutExpired(follower),
+                connectionToClient.cache.getCoalescingTimeout(), TimeUnit.MILLISECONDS);
+        LOG.log(Level.FINER, "{0} following the pending response for {1}", new Object[]{this, uri});
+        return true;
+    }
+
+    private final class CacheFollower implements ContentsCache.ContentFollower {
+
+        @Override
+        public void chunkAvailable(HttpObject msg) {
+            channelToClient.executor().execute(() -> followedChunkAvailable(this, msg));
+        }
+
+        @Override
+        public void leaderFailed() {
+            channelToClient.executor().execute(() -> followedResponseFailed(this));
+        }
+
+        @Override
+        public HttpRequest getRequest() {
+            return request;
+        }
+    }
+
+    private void followedChunkAvailable(CacheFollower follower, HttpObject msg) {
+        if (cacheFollower != follower) {
+            // not following anymore
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        followedResponseStarted = true;
+        lastActivity = System.currentTimeMillis();
+        if (!clientRequestCompleted) {
+            // the response must not be sent before the whole request
+            followedContents.add(msg);
+            return;
+        }
+        writeFollowedChunk(msg);
+    }
+
+    private void writeFollowedContents() {
+        List<HttpObject> contents = new ArrayList<>(followedContents);
+        followedContents.clear();
+        for (HttpObject msg : contents) {
+            writeFollowedChunk(msg);
+        }
+    }
+
+    private void writeFollowedChunk(HttpObject msg) {
+        followedResponseWritten = true;
+        boolean isLastHttpContent = msg instanceof LastHttpContent;
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            cleanResponseForCachedData(response);
+            long contentLength = HttpUtil.getContentLength(response, -1);
+            String transferEncoding = response.headers().get(HttpHeaderNames.TRANSFER_ENCODING);
+            if (contentLength < 0 && !"chunked".equals(transferEncoding)) {
+                connectionToClient.keepAlive = false;
+            }
+        }
+        if (isLastHttpContent) {
+            stopFollowing();
+            waitingForConnection = false;
+            releasePendingRequestContents();
+        }
+        channelToClient.writeAndFlush(msg).addListener((Future<? super Void> future) -> {
+            if (msg instanceof HttpResponse) {
+                headerSent = true;
+            }
+            if (isLastHttpContent || !future.isSuccess()) {
+                if (isLastHttpContent) {
+                    lastHttpContentSent();
+                } else {
+                    stopFollowing();
+                }
+                fireRequestFinished();
+                if (!connectionToClient.isKeepAlive() || !future.isSuccess()) {
+                    connectionToClient.refuseOtherRequests = true;
+                    channelToClient.close();
+                }
+            }
+        });
+    }
+
+    private void followedResponseFailed(CacheFollower follower) {
+        if (cacheFollower != follower) {
+            return;
+        }
+        stopFollowing();
+        if (followedResponseWritten) {
+            // part of the response has already been sent to the client
+            LOG.log(Level.INFO, "{0} the followed response for {1} failed", new Object[]{this, uri});
+            serveInternalErrorMessage(true);
+            return;
+        }
+        fallbackFromFollowing();
+    }
+
+    private void followTimeoutExpired(CacheFollower follower) {
+        if (cacheFollower != follower || followedResponseStarted) {
+            return;
+        }
+        if (!followedResponse.unfollow(follower)) {
+            // the followed response has been completed or failed meanwhile
+            return;
+        }
+        LOG.log(Level.INFO, "{0} timed out waiting for the pending response for {1}", new Object[]{this, uri});
+        stopFollowing();
+        fallbackFromFollowing();
+    }
+
+    private void fallbackFromFollowing() {
+        coalesced = false;
+        followedResponseStarted = false;
+        startCachingResponse();
+        connectToEndpoint();
+    }
+
+    private void stopFollowing() {
+        ContentsCache.ContentReceiver followed = followedResponse;
+        if (followed != null) {
+            followed.unfollow(cacheFollower);
+        }
+        followedResponse = null;
+        cacheFollower = null;
+        if (followTimeout != null) {
+            followTimeout.cancel(false);
+            followTimeout = null;
+        }
+        for (HttpObject msg : followedContents) {
+            ReferenceCountUtil.release(msg);
+        }
+        followedContents.clear();
+    }
+
+    private void releasePendingRequestContents() {
+        for (HttpContent content : pendingRequestContents) {
+            content.release();
+        }
+        pendingRequestContents.clear();
+    }
+
+    private void connectToEndpoint() {
+//        LOG.log(Level.SEVERE, "TIME"+TIME_TRACKER.incrementAndGet()+" start " + this + " thread " + Thread.currentThread().getName());
+        waitingForConnection = true;
+        EndpointKey key = new EndpointKey(action.host, action.port);
+        connectionToClient.connectionsManager.getConnectionAsync(key, channelToClient.channel().eventLoop())
+                .addListener((Future<EndpointConnection> future) -> {
+                    // without event loop affinity the connection is obtained
+                    // on a thread which is not the one which is serving the client
+                    EventExecutor executor = channelToClient.executor();
+                    if (executor.inEventLoop()) {
+                        connectionToEndpointAvailable(future);
+                    } else {
+                        executor.execute(() -> connectionToEndpointAvailable(future));
+                    }
+                });
+    }
+
+    private void connectionToEndpointAvailable(Future<EndpointConnection> future) {
+        waitingForConnection = false;
+        if (!future.isSuccess()) {
+            LOG.log(Level.INFO, "{0} error on endpoint {1}: {2}", new Object[]{this, action, future.cause()});
+            // nothing has been sent to the endpoint, all of the contents are still pending
+            if (retryOnAnotherBackend(false)) {
+                return;
+            }
+            abortCacheReceiver();
+            fireRequestFinished();
+            boolean clientRequestFinished = false;
+            for (HttpContent content : pendingRequestContents) {
+                clientRequestFinished |= content instanceof LastHttpContent;
+                content.release();
+            }
+            pendingRequestContents.clear();
+            if (clientRequestFinished) {
+                sendServiceNotAvailable();
+            }
+            return;
+        }
+        EndpointConnection connection = future.getNow();
+        connectionToEndpoint.set(connection);
+        connection.sendRequest(revalidationRequest != null ? revalidationRequest : request, this);
+        // send the contents received from the client while waiting for the connection
+        for (HttpContent content : pendingRequestContents) {
+            sendContentToEndpoint(connection, content);
+        }
+        pendingRequestContents.clear();
+    }
+
+    private void sendContentToEndpoint(EndpointConnection connection, HttpContent content) {
+        keepForReplay(content);
+        if (connection == failedConnection) {
+            // the retry, if any, will replay the content
+            content.release();
+            return;
+        }
+        if (content instanceof LastHttpContent) {
+            connection.sendLastHttpContent((LastHttpContent) content, this);
+        } else {
+            connection.sendChunk(content, this);
+        }
+    }
+
+    private void keepForReplay(HttpContent content) {
+        synchronized (replayableContents) {
+            if (!replayable) {
+                return;
+            }
+            replayableBytes += content.content().readableBytes();
+            if (responseReceived || retries >= action.getMaxRetries() || replayableBytes > MAX_REPLAYABLE_BYTES) {
+                discardReplayableContents();
+                return;
+            }
+            // the copy shares the buffer, but not the indexes, with the
+            // original which is consumed by the write
+            replayableContents.add(content.retainedDuplicate());
+        }
+    }
+
+    private void discardReplayableContents() {
+        synchronized (replayableContents) {
+            replayable = false;
+            for (HttpContent content : replayableContents) {
+                content.release();
+            }
+            replayableContents.clear();
+        }
+    }
+
+    private boolean isIdempotent() {
+        HttpMethod method = request.method();
+        return HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method);
+    }
+
+    /**
+     * Sends the request to the next candidate backend, replaying the contents
+     * already sent to the failed one. It must be called on the event loop of
+     * the client.
+     *
+     * @param requestSent true if the failed backend may have received part of
+     * the request
+     * @return true if the request has been sent to another backend
+     */
+    private boolean retryOnAnotherBackend(boolean requestSent) {
+        if (retries >= action.getMaxRetries() || responseReceived || headerSent) {
+            return false;
+        }
+        if (requestSent && !isIdempotent() && !clientRequestCompleted) {
+            // the backend may have started to process a partial request
+            return false;
+        }
+        synchronized (replayableContents) {
+            if (!replayable) {
+                return false;
+            }
+        }
+        MapResult next = connectionToClient.mapper.mapRetry(request, action, backendHealthManager);
+        if (next == null) {
+            return false;
+        }
+        retries++;
+        LOG.log(Level.INFO, "{0} retrying {1} on {2}:{3}, attempt {4}", new Object[]{this, uri, next.host, next.port, retries});
+        action = next;
+        synchronized (replayableContents) {
+            // the contents already sent go before the ones still pending
+            pendingRequestContents.addAll(0, replayableContents);
+            replayableContents.clear();
+            replayableBytes = 0;
+        }
+        // nothing has been received yet, the cache receiver (and the requests
+        // following this one) will get the response of the next backend
+        connectToEndpoint();
+        return true;
+    }
+
     void continueClientRequest(HttpContent httpContent) {
         if (cacheSender != null) {
             LOG.log(Level.SEVERE, "{0} swallow chunk {1}, I am serving a cache content {2}", new Object[]{this, httpContent, cacheReceiver});
@@ -257,12 +611,24 @@ public class RequestHandler {
                 break;
             case PROXY:
             case CACHE:
+                if (waitingForConnection) {
+                    pendingRequestContents.add(httpContent.retain());
+                    return;
+                }
                 EndpointConnection connection = connectionToEndpoint.get();
                 if (connection == null) {
                     LOG.log(Level.INFO, "{0} swallow continued content {1}. Not connected", new Object[]{this, httpContent});
                     return;
                 }
-                connection.sendChunk(httpContent.retain(), this);
+                sendContentToEndpoint(connection, httpContent.retain());
+                if (connection != failedConnection && !connection.isWritable()) {
+                    // the endpoint is slower than the client, stop reading
+                    // from the client until the endpoint drains its buffer
+                    channelToClient.channel().config().setAutoRead(false);
+                    if (connection.isWritable()) {
+                        endpointWritable();
+                    }
+                }
                 break;
             default:
                 throw new IllegalStateException("not yet implemented action: " + action.action);
@@ -276,8 +642,13 @@ public class RequestHandler {
     void clientRequestFinished(LastHttpContent trailer) {
 
         if (cacheSender != null) {
-            serveFromCache();
-            return;
+            if (serveFromCache(true)) {
+                return;
+            }
+            // go to the backend as if it was a miss
+            cacheSender = null;
+            startCachingResponse();
+            connectToEndpoint();
         }
 
         if (action == null) {
@@ -308,11 +679,25 @@ public class RequestHandler {
             }
             case CACHE:
             case PROXY: {
+                clientRequestCompleted = true;
+                if (staleContentServed) {
+                    // the backend already failed
+                    serveStaleContentAfterError();
+                    break;
+                }
+                if (waitingForConnection) {
+                    pendingRequestContents.add(trailer.retain());
+                    if (cacheFollower != null) {
+                        // the followed response may be already available
+                        writeFollowedContents();
+                    }
+                    break;
+                }
                 EndpointConnection connection = connectionToEndpoint.get();
                 if (connection == null) {
                     sendServiceNotAvailable();
                 } else {
-                    connection.sendLastHttpContent(trailer.copy(), this);
+                    sendContentToEndpoint(connection, trailer.retain());
                 }
                 break;
             }
@@ -351,6 +736,12 @@ public class RequestHandler {
     }
 
     private void serveInternalErrorMessage(boolean forceClose) {
+        discardReplayableContents();
+        abortCacheReceiver();
+        stopFollowing();
+        if (revalidationFailed() || staleContentServed || (!responseReceived && serveStaleContent())) {
+            return;
+        }
         MapResult fromDefault = connectionToClient.mapper.mapDefaultInternalError(request, action.routeid);
         int code = 0;
         String resource = null;
@@ -479,6 +870,16 @@ public class RequestHandler {
     }
 
     private void sendServiceNotAvailable() {
+        discardReplayableContents();
+        abortCacheReceiver();
+        stopFollowing();
+        if (revalidationFailed() || staleContentServed || (!responseReceived && serveStaleContent())) {
+            return;
+        }
+        writeServiceNotAvailable();
+    }
+
+    private void writeServiceNotAvailable() {
 //        LOG.info(this + " sendServiceNotAvailable due to " + cause + " to " + ctx);
         FullHttpResponse response
                 = connectionToClient.staticContentsManager.buildResponse(500, DEFAULT_INTERNAL_SERVER_ERROR);
@@ -530,28 +931,71 @@ public class RequestHandler {
     }
 
     public boolean errorSendingRequest(EndpointConnectionImpl connection, Throwable cause) {
-        boolean ok = releaseConnectionToEndpoint(true, connection);
-        if (ok) {
+        boolean current = connectionToEndpoint.get() == connection;
+        failedConnection = connection;
+        // always deferred: the contents which are being sent to the failed
+        // connection must be collected for the replay before retrying
+        channelToClient.executor().execute(() -> {
+            if (!releaseConnectionToEndpoint(true, connection)) {
+                return;
+            }
+            if (retryOnAnotherBackend(true)) {
+                connectionToClient.mapper.endpointFailed(connection.getKey(), cause);
+                return;
+            }
             connectionToClient.errorSendingRequest(this, connection, channelToClient, cause);
             sendServiceNotAvailable();
-        }
-        return ok;
-
+        });
+        return current;
     }
 
-    public void receivedFromRemote(HttpObject msg, EndpointConnection connection) {
+    public void receivedFromRemote(HttpObject received, EndpointConnection connection) {
         if (backendStartTs == 0) {
             backendStartTs = System.currentTimeMillis();
         }
+        if (!responseReceived) {
+            // the request cannot be retried anymore
+            responseReceived = true;
+            discardReplayableContents();
+        }
+        if (revalidationRequest != null) {
+            revalidationResponseReceived(received, connection);
+            return;
+        }
+        if (staleContentServed) {
+            // the client has been served with the expired content
+            discardResponse(received, connection);
+            return;
+        }
+        if (received instanceof HttpResponse && staleContent != null
+                && ((HttpResponse) received).status().codeClass() == SERVER_ERROR
+                && staleContent.isUsableOnError()) {
+            // the error can arrive before the whole request of the client has
+            // been read, the expired content is served on its event loop
+            staleContentServed = true;
+            abortCacheReceiver();
+            discardResponse(received, connection);
+            channelToClient.executor().execute(this::serveStaleContentAfterError);
+            return;
+        }
         if (connectionToClient == null) {
             // client no more connected
+            ReferenceCountUtil.release(received);
+            releaseResponseCompressor();
             if (cacheReceiver != null) {
                 cacheReceiver.abort();
             }
             releaseConnectionToEndpoint(true, connection);
             return;
         }
+        if (received instanceof HttpResponse && action.action == MapResult.Action.CACHE
+                && HttpResponseStatus.PARTIAL_CONTENT.equals(((HttpResponse) received).status())) {
+            fetchFullContent = true;
+        }
+        HttpObject msg = compressResponse(received);
         if (cacheReceiver != null) {
+            // the receiver does not take ownership of msg, it must be done
+            // before writing to the client, as the write will release msg
             cacheReceiver.receivedFromRemote(msg);
             if (msg instanceof HttpResponse) {
                 HttpResponse httpMessage = (HttpResponse) msg;
@@ -571,6 +1015,8 @@ public class RequestHandler {
                 boolean isOpen = channelToClient.channel().isOpen();
                 LOG.log(Level.FINE, this + " bad error writing to client, isOpen " + isOpen, future.cause());
                 returnConnection = true;
+                // the response will not be completed
+                abortCacheReceiver();
             }
             if (msg instanceof HttpResponse) {
                 headerSent = true;
@@ -590,15 +1036,51 @@ public class RequestHandler {
                 connectionToClient.refuseOtherRequests = true;
                 channelToClient.close();
             }
-            if (returnConnection) {
-                releaseConnectionToEndpoint(!keepAlive1, connection);
+            if (returnConnection && releaseConnectionToEndpoint(!keepAlive1, connection)
+                    && fetchFullContent && future.isSuccess()) {
+                fetchFullContentInBackground();
             }
         });
+        if (!(msg instanceof LastHttpContent) && !channelToClient.channel().isWritable()) {
+            // the client is slower than the endpoint, stop reading from the
+            // endpoint until the client drains its buffer
+            connection.setAutoRead(false);
+            connectionToClient.waitForWritability(this);
+            if (channelToClient.channel().isWritable()) {
+                clientWritable();
+            }
+        }
+    }
+
+    /**
+     * The client is able to receive more data, resume reading from the
+     * endpoint.
+     */
+    void clientWritable() {
+        EndpointConnection connection = connectionToEndpoint.get();
+        if (connection != null) {
+            connection.setAutoRead(true);
+        }
+    }
+
+    /**
+     * The endpoint is able to receive more data, resume reading from the
+     * client.
+     */
+    public void endpointWritable() {
+        if (revalidationRequest == null) {
+            channelToClient.channel().config().setAutoRead(true);
+        }
     }
 
     private boolean releaseConnectionToEndpoint(boolean forceClose, EndpointConnection current) {
         if (connectionToEndpoint.compareAndSet(current, null)) {
             fireRequestFinished();
+            if (revalidationRequest == null) {
+                // a background revalidation never stops reading from the
+                // client, which may be serving another request meanwhile
+                channelToClient.channel().config().setAutoRead(true);
+            }
             if (current != null) {
                 // return the connection the pool
 //            LOG.log(Level.INFO, this + " release connection {0}, forceClose {1}", new Object[]{connectionToEndpoint, forceClose});
@@ -623,70 +1105,272 @@ public class RequestHandler {
         return HttpUtil.isKeepAlive(request);
     }
 
-    public void serveFromCache() {
+    /**
+     * Sends the cached response to the client, with a single write.
+     *
+     * @param revalidate if an expired content has to be revalidated once it
+     * has been written to the client
+     * @return false if the cached content has been evicted meanwhile
+     */
+    private boolean serveFromCache(boolean revalidate) {
         ContentsCache.ContentPayload payload = cacheSender.getCached();
-        sendCachedChunk(payload, 0);
-    }
-
-    private void sendCachedChunk(ContentsCache.ContentPayload payload, int i) {
-        int size = payload.getChunks().size();
-        HttpObject object = payload.getChunks().get(i);
-        boolean notModified;
-        boolean isLastHttpContent = object instanceof LastHttpContent;
-        if (object instanceof HttpResponse) {
-
-            HttpHeaders requestHeaders = request.headers();
-            long ifModifiedSince = requestHeaders.getTimeMillis(HttpHeaderNames.IF_MODIFIED_SINCE, -1);
-            if (ifModifiedSince != -1 && payload.getLastModified() > 0 && ifModifiedSince >= payload.getLastModified()) {
-                HttpHeaders newHeaders = new DefaultHttpHeaders();
-                newHeaders.set("Last-Modified", new java.util.Date(payload.getLastModified()));
-                newHeaders.set("Expires", new java.util.Date(payload.getExpiresTs()));
-                newHeaders.add("X-Cached", "yes; ts=" + payload.getCreationTs());
-                FullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, HttpResponseStatus.NOT_MODIFIED,
-                        Unpooled.EMPTY_BUFFER, newHeaders, new DefaultHttpHeaders());
-                object = resp;
-                notModified = true;
+        HttpResponse cachedResponse = payload.getResponse();
+        HttpHeaders requestHeaders = request.headers();
+        long ifModifiedSince = requestHeaders.getTimeMillis(HttpHeaderNames.IF_MODIFIED_SINCE, -1);
+        FullHttpResponse response;
+        if (ifModifiedSince != -1 && payload.getLastModified() > 0 && ifModifiedSince >= payload.getLastModified()) {
+            HttpHeaders newHeaders = new DefaultHttpHeaders();
+            newHeaders.set("Last-Modified", new java.util.Date(payload.getLastModified()));
+            newHeaders.set("Expires", new java.util.Date(payload.getExpiresTs()));
+            newHeaders.add("X-Cached", "yes; ts=" + payload.getCreationTs());
+            response = new DefaultFullHttpResponse(HTTP_1_1, HttpResponseStatus.NOT_MODIFIED,
+                    Unpooled.EMPTY_BUFFER, newHeaders, new DefaultHttpHeaders());
+        } else {
+            // the body is shared with the other hits, nothing is copied
+            ByteBuf content = payload.retainedContent();
+            if (content == null) {
+                LOG.log(Level.FINE, "{0} cached content for {1} evicted while serving it", new Object[]{this, uri});
+                return false;
+            }
+            // the headers are prepared by the cache once and never modified
+            HttpHeaders headers = cacheSender.getResponseHeaders(cachedResponse);
+            List<long[]> ranges = HttpResponseStatus.OK.equals(cachedResponse.status())
+                    ? ByteRanges.getRanges(request, payload, content.readableBytes()) : null;
+            if (ranges != null) {
+                response = ByteRanges.buildResponse(cachedResponse, headers, content, ranges);
             } else {
-                HttpResponse resp = (HttpResponse) object;
-                HttpHeaders headers = new DefaultHttpHeaders();
-                headers.add(resp.headers());
-                headers.remove(HttpHeaderNames.EXPIRES);
-                headers.remove(HttpHeaderNames.ACCEPT_RANGES);
-                headers.remove(HttpHeaderNames.ETAG);
-                headers.add("X-Cached", "yes; ts=" + payload.getCreationTs());
-                headers.add("Expires", new java.util.Date(payload.getExpiresTs()));
-
-                object = new DefaultHttpResponse(resp.protocolVersion(), resp.status(), headers);
-                long contentLength = HttpUtil.getContentLength(resp, -1);
-                String transferEncoding = resp.headers().get(HttpHeaderNames.TRANSFER_ENCODING);
+                response = new DefaultFullHttpResponse(cachedResponse.protocolVersion(), cachedResponse.status(),
+                        content, headers, payload.getTrailingHeaders());
+                long contentLength = HttpUtil.getContentLength(cachedResponse, -1);
+                String transferEncoding = cachedResponse.headers().get(HttpHeaderNames.TRANSFER_ENCODING);
                 if (contentLength < 0 && !"chunked".equals(transferEncoding)) {
                     connectionToClient.keepAlive = false;
-                    LOG.log(Level.SEVERE, uri + " response without contentLength{0} and with Transfer-Encoding {1}. keepalive will be disabled " + resp, new Object[]{contentLength, transferEncoding});
+                    LOG.log(Level.SEVERE, uri + " response without contentLength{0} and with Transfer-Encoding {1}. keepalive will be disabled " + cachedResponse, new Object[]{contentLength, transferEncoding});
                 }
-                notModified = false;
             }
-        } else {
-            object = ContentsCache.cloneHttpObject(object);
-            notModified = false;
         }
-        HttpObject _object = object;
 
-        channelToClient.writeAndFlush(_object)
+        channelToClient.writeAndFlush(response)
                 .addListener((g) -> {
-                    if (isLastHttpContent || notModified) {
-                        lastHttpContentSent();
-                        boolean keepAlive1 = connectionToClient.isKeepAlive();
-                        if (!keepAlive1) {
-                            connectionToClient.refuseOtherRequests = true;
-                            channelToClient.close();
-                        }
+                    lastHttpContentSent();
+                    boolean keepAlive1 = connectionToClient.isKeepAlive();
+                    if (!keepAlive1) {
+                        connectionToClient.refuseOtherRequests = true;
+                        channelToClient.close();
                     }
-                    if (i + 1 < size && g.isSuccess() && !notModified) {
-                        sendCachedChunk(payload, i + 1);
-                    } else {
-                        fireRequestFinished();
+                    fireRequestFinished();
+                    if (revalidate && g.isSuccess() && cacheSender.isStale()) {
+                        revalidateInBackground();
                     }
                 });
+        return true;
+    }
+
+    /**
+     * Sends to the backend a conditional request for the expired content
+     * which has just been served, in order to refresh it.
+     */
+    private void revalidateInBackground() {
+        ContentsCache.ContentKey key = cacheSender.getKey();
+        if (!connectionToClient.cache.startRevalidation(key)) {
+            // another request is revalidating the same content
+            return;
+        }
+        ContentsCache.ContentPayload payload = cacheSender.getCached();
+        HttpRequest conditional = buildBackgroundRequest(request.method());
+        HttpHeaders headers = conditional.headers();
+        // https://tools.ietf.org/html/rfc7234#section-4.3.1
+        if (payload.getEtag() != null) {
+            headers.set(HttpHeaderNames.IF_NONE_MATCH, payload.getEtag());
+        }
+        if (payload.getLastModified() > 0) {
+            headers.set(HttpHeaderNames.IF_MODIFIED_SINCE, new java.util.Date(payload.getLastModified()));
+        }
+        revalidationRequest = conditional;
+        revalidationKey = key;
+        LOG.log(Level.FINER, "{0} revalidating {1}", new Object[]{this, uri});
+        pendingRequestContents.add(LastHttpContent.EMPTY_LAST_CONTENT);
+        connectToEndpoint();
+    }
+
+    /**
+     * Sends to the backend a request for the whole content, after a range
+     * request which missed the cache has been served, in order to cache it.
+     */
+    private void fetchFullContentInBackground() {
+        fetchFullContent = false;
+        HttpRequest fetch = buildBackgroundRequest(HttpMethod.GET);
+        ContentsCache.ContentKey key = connectionToClient.cache.startFullContentFetch(fetch);
+        if (key == null) {
+            // not cachable, or another request is fetching the same content
+            return;
+        }
+        revalidationRequest = fetch;
+        revalidationKey = key;
+        LOG.log(Level.FINER, "{0} fetching the whole content of {1}", new Object[]{this, uri});
+        pendingRequestContents.add(LastHttpContent.EMPTY_LAST_CONTENT);
+        connectToEndpoint();
+    }
+
+    /**
+     * A request for the whole content requested by the client, without any
+     * validator of the client and without body.
+     *
+     * @param method
+     * @return
+     */
+    private HttpRequest buildBackgroundRequest(HttpMethod method) {
+        HttpRequest background = new DefaultHttpRequest(request.protocolVersion(), method, request.uri(),
+                request.headers().copy());
+        cleanRequestFromCacheValidators(background);
+        HttpHeaders headers = background.headers();
+        headers.remove(HttpHeaderNames.RANGE);
+        headers.remove(HttpHeaderNames.CONTENT_LENGTH);
+        headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+        return background;
+    }
+
+    private void revalidationResponseReceived(HttpObject received, EndpointConnection connection) {
+        // the cache must store the same form which is sent to the clients
+        HttpObject msg = compressResponse(received);
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            if (HttpResponseStatus.NOT_MODIFIED.equals(response.status())) {
+                connectionToClient.cache.notModified(revalidationKey, response);
+            } else if (response.status().codeClass() != SERVER_ERROR) {
+                // the content has been modified, the new one replaces the
+                // expired one
+                cacheReceiver = connectionToClient.cache.startCachingResponse(revalidationRequest);
+            }
+        }
+        ContentsCache.ContentReceiver receiver = cacheReceiver;
+        if (receiver != null) {
+            receiver.receivedFromRemote(msg);
+        }
+        ReferenceCountUtil.release(msg);
+        if (msg instanceof LastHttpContent) {
+            cacheReceiver = null;
+            releaseConnectionToEndpoint(false, connection);
+            finishRevalidation();
+        }
+    }
+
+    /**
+     * Compresses the response of the endpoint, when the route allows it and
+     * the client accepts it.
+     *
+     * @param msg the object received from the endpoint, this method takes
+     * ownership of it
+     * @return the object to send to the client and to the cache
+     */
+    private HttpObject compressResponse(HttpObject msg) {
+        if (msg instanceof HttpResponse) {
+            releaseResponseCompressor();
+            HttpResponse response = (HttpResponse) msg;
+            CompressionConfiguration compression = action.getCompression();
+            if (ResponseCompressor.isCompressible(compression, request, response)) {
+                ResponseCompressor.addVaryAcceptEncoding(response.headers());
+                if (ResponseCompressor.acceptsGzip(request)) {
+                    responseCompressor = new ResponseCompressor(compression.getLevel());
+                    responseCompressor.compressHeaders(response);
+                }
+            }
+            return msg;
+        }
+        ResponseCompressor compressor = responseCompressor;
+        if (compressor == null || !(msg instanceof HttpContent)) {
+            return msg;
+        }
+        HttpContent compressed = compressor.compress((HttpContent) msg);
+        if (msg instanceof LastHttpContent) {
+            responseCompressor = null;
+        }
+        return compressed;
+    }
+
+    private void releaseResponseCompressor() {
+        ResponseCompressor compressor = responseCompressor;
+        if (compressor != null) {
+            responseCompressor = null;
+            compressor.release();
+        }
+    }
+
+    private void finishRevalidation() {
+        if (revalidationRequest != null) {
+            revalidationRequest = null;
+            connectionToClient.cache.revalidationFinished(revalidationKey);
+            revalidationKey = null;
+        }
+    }
+
+    /**
+     * The response to the client has already been sent when a background
+     * revalidation fails, the expired content will be revalidated again.
+     *
+     * @return true if this request was revalidating a content
+     */
+    private boolean revalidationFailed() {
+        if (revalidationRequest == null) {
+            return false;
+        }
+        LOG.log(Level.INFO, "{0} revalidation of {1} failed", new Object[]{this, uri});
+        finishRevalidation();
+        return true;
+    }
+
+    /**
+     * Serves the expired content in place of an error of the backends.
+     * https://tools.ietf.org/html/rfc5861#section-4
+     *
+     * @return true if the client has been served
+     */
+    private boolean serveStaleContent() {
+        ContentsCache.ContentSender stale = staleContent;
+        if (stale == null || !clientRequestCompleted || followedResponseWritten) {
+            return false;
+        }
+        staleContent = null;
+        if (!stale.isUsableOnError()) {
+            return false;
+        }
+        cacheSender = stale;
+        if (!serveFromCache(false)) {
+            cacheSender = null;
+            return false;
+        }
+        staleContentServed = true;
+        LOG.log(Level.INFO, "{0} serving the expired content for {1} in place of an error", new Object[]{this, uri});
+        return true;
+    }
+
+    /**
+     * Serves the expired content in place of the error response of the
+     * backend, once the request of the client is complete. Runs on the event
+     * loop of the client, both when the error is received and at the end of
+     * the request, whichever comes last actually serves the content.
+     */
+    private void serveStaleContentAfterError() {
+        ContentsCache.ContentSender stale = staleContent;
+        if (stale == null || !clientRequestCompleted) {
+            return;
+        }
+        staleContent = null;
+        cacheSender = stale;
+        if (!serveFromCache(false)) {
+            // the rest of the error response is discarded anyway
+            cacheSender = null;
+            writeServiceNotAvailable();
+            return;
+        }
+        LOG.log(Level.INFO, "{0} serving the expired content for {1} in place of an error", new Object[]{this, uri});
+    }
+
+    private void discardResponse(HttpObject msg, EndpointConnection connection) {
+        ReferenceCountUtil.release(msg);
+        if (msg instanceof LastHttpContent) {
+            releaseConnectionToEndpoint(false, connection);
+        }
     }
 
     private void cleanRequestFromCacheValidators(HttpRequest request) {
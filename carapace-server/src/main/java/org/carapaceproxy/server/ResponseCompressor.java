@@ -0,0 +1,219 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.util.List;
+import org.carapaceproxy.server.cache.ContentsCache;
+import org.carapaceproxy.server.config.CompressionConfiguration;
+
+/**
+ * Gzip compression of the response sent by a backend. The compressed
+ * response goes both to the client and to the cache, so cache hits are served
+ * already compressed to the clients which accept it.
+ *
+ * @author enrico.olivelli
+ */
+class ResponseCompressor {
+
+    private static final String GZIP = "gzip";
+
+    private final EmbeddedChannel encoder;
+
+    ResponseCompressor(int level) {
+        this.encoder = new EmbeddedChannel(ZlibCodecFactory.newZlibEncoder(ZlibWrapper.GZIP, level));
+    }
+
+    /**
+     * Checks whether the response can be compressed, regardless of the
+     * client. Such a response varies on the Accept-Encoding header of the
+     * request.
+     *
+     * @param config the compression configuration of the route, null if
+     * disabled
+     * @param request
+     * @param response
+     * @return true if the response can be compressed
+     */
+    static boolean isCompressible(CompressionConfiguration config, HttpRequest request, HttpResponse response) {
+        if (config == null
+                || response instanceof FullHttpResponse
+                || HttpMethod.HEAD.equals(request.method())
+                || !HttpResponseStatus.OK.equals(response.status())) {
+            return false;
+        }
+        HttpHeaders headers = response.headers();
+        String contentEncoding = headers.get(HttpHeaderNames.CONTENT_ENCODING);
+        if (contentEncoding != null && !HttpHeaderValues.IDENTITY.contentEqualsIgnoreCase(contentEncoding.trim())) {
+            return false;
+        }
+        if (ContentsCache.hasCacheControlDirective(headers, "no-transform")) {
+            return false;
+        }
+        if (!config.isCompressible(headers.get(HttpHeaderNames.CONTENT_TYPE))) {
+            return false;
+        }
+        long contentLength = HttpUtil.getContentLength(response, -1L);
+        return contentLength < 0 || contentLength >= config.getMinSize();
+    }
+
+    /**
+     * Checks whether the response can be sent compressed to the client. The
+     * compressed response is streamed with the chunked transfer encoding,
+     * which requires HTTP/1.1.
+     *
+     * @param request the request of the client
+     * @return true if the client accepts a gzip encoded response
+     */
+    static boolean acceptsGzip(HttpRequest request) {
+        if (!HttpVersion.HTTP_1_1.equals(request.protocolVersion())) {
+            return false;
+        }
+        for (String value : request.headers().getAll(HttpHeaderNames.ACCEPT_ENCODING)) {
+            for (String token : value.split(",")) {
+                String coding = token;
+                float q = 1;
+                int semicolon = token.indexOf(';');
+                if (semicolon >= 0) {
+                    coding = token.substring(0, semicolon);
+                    String param = token.substring(semicolon + 1).trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            q = Float.parseFloat(param.substring(2).trim());
+                        } catch (NumberFormatException err) {
+                            q = 0;
+                        }
+                    }
+                }
+                coding = coding.trim();
+                if (q > 0 && (GZIP.equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding) || "*".equals(coding))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Declares that the response depends on the Accept-Encoding header, so
+     * that the cache keeps the compressed and the uncompressed forms apart.
+     *
+     * @param headers headers of the response
+     */
+    static void addVaryAcceptEncoding(HttpHeaders headers) {
+        List<String> vary = ContentsCache.getVaryHeaders(headers);
+        if (vary == null || vary.contains(HttpHeaderNames.ACCEPT_ENCODING.toString())) {
+            return;
+        }
+        headers.add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+    }
+
+    /**
+     * Turns the headers of the response into the ones of the compressed
+     * response.
+     *
+     * @param response
+     */
+    void compressHeaders(HttpResponse response) {
+        HttpHeaders headers = response.headers();
+        headers.set(HttpHeaderNames.CONTENT_ENCODING, GZIP);
+        headers.remove(HttpHeaderNames.CONTENT_LENGTH);
+        headers.remove(HttpHeaderNames.ACCEPT_RANGES);
+        headers.set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        String etag = headers.get(HttpHeaderNames.ETAG);
+        if (etag != null && !etag.startsWith("W/")) {
+            // the compressed body is not byte-per-byte the one of the backend
+            headers.set(HttpHeaderNames.ETAG, "W/" + etag);
+        }
+    }
+
+    /**
+     * Compresses a chunk of the response.
+     *
+     * @param content the chunk, this method takes ownership of it
+     * @return the compressed chunk, the trailing headers are copied from the
+     * last chunk
+     */
+    HttpContent compress(HttpContent content) {
+        ByteBuf data = content.content();
+        if (data.isReadable()) {
+            encoder.writeOutbound(data.retain());
+        }
+        if (content instanceof LastHttpContent) {
+            encoder.finish();
+            LastHttpContent last = new DefaultLastHttpContent(readOutput());
+            last.trailingHeaders().set(((LastHttpContent) content).trailingHeaders());
+            ReferenceCountUtil.release(content);
+            return last;
+        } else {
+            ReferenceCountUtil.release(content);
+            return new DefaultHttpContent(readOutput());
+        }
+    }
+
+    private ByteBuf readOutput() {
+        ByteBuf result = null;
+        ByteBuf buf;
+        while ((buf = encoder.readOutbound()) != null) {
+            if (!buf.isReadable()) {
+                buf.release();
+            } else if (result == null) {
+                result = buf;
+            } else {
+                if (!(result instanceof CompositeByteBuf)) {
+                    CompositeByteBuf composite = Unpooled.compositeBuffer();
+                    composite.addComponent(true, result);
+                    result = composite;
+                }
+                ((CompositeByteBuf) result).addComponent(true, buf);
+            }
+        }
+        return result != null ? result : Unpooled.EMPTY_BUFFER;
+    }
+
+    /**
+     * Releases the resources of the encoder, the response will not be
+     * completed.
+     */
+    void release() {
+        encoder.finishAndReleaseAll();
+    }
+
+}
@@ -22,15 +22,20 @@ package org.carapaceproxy.server;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.carapaceproxy.configstore.ConfigurationStore;
 import static org.carapaceproxy.configstore.ConfigurationStoreUtils.getClassname;
 import static org.carapaceproxy.configstore.ConfigurationStoreUtils.getInt;
 import static org.carapaceproxy.configstore.ConfigurationStoreUtils.getLong;
+import org.carapaceproxy.server.config.CachePartitionConfiguration;
 import org.carapaceproxy.server.config.ConfigurationNotValidException;
 import org.carapaceproxy.server.config.NetworkListenerConfiguration;
 import org.carapaceproxy.server.config.RequestFilterConfiguration;
@@ -51,12 +56,25 @@ public class RuntimeServerConfiguration {
     private final List<NetworkListenerConfiguration> listeners = new ArrayList<>();
     private final Map<String, SSLCertificateConfiguration> certificates = new HashMap<>();
     private final List<RequestFilterConfiguration> requestFilters = new ArrayList<>();
+    private final List<CachePartitionConfiguration> cachePartitions = new ArrayList<>();
     private int maxConnectionsPerEndpoint = 10;
     private int idleTimeout = 60000;
     private int stuckRequestTimeout = 120000;
     private int connectTimeout = 10000;
+    private boolean eventLoopAffinity = false;
     private long cacheMaxSize = 0;
     private long cacheMaxFileSize = 0;
+    private long cacheCoalescingTimeout = 5000;
+    private long cacheStaleWhileRevalidate = 0;
+    private long cacheStaleIfError = 0;
+    private boolean cacheRangeFetchFull = false;
+    private final Map<Integer, Long> cacheNegativeTtls = new TreeMap<>();
+    private long cacheDiskMaxSize = 0;
+    private long cacheDiskMaxFileSize = 0;
+    private long cacheDiskSegmentSize = 64 * 1024 * 1024;
+    private String cacheDiskPath = "cache";
+    private long cacheSnapshotMaxSize = 0;
+    private String cacheSnapshotPath = "cache.snapshot";
     private String mapperClassname;
     private String accessLogPath = "access.log";
     private String accessLogTimestampFormat = "yyyy-MM-dd HH:mm:ss.SSS";
@@ -168,6 +186,14 @@ public class RuntimeServerConfiguration {
         this.connectTimeout = connectTimeout;
     }
 
+    public boolean isEventLoopAffinity() {
+        return eventLoopAffinity;
+    }
+
+    public void setEventLoopAffinity(boolean eventLoopAffinity) {
+        this.eventLoopAffinity = eventLoopAffinity;
+    }
+
     public long getCacheMaxSize() {
         return cacheMaxSize;
     }
@@ -184,6 +210,109 @@ public class RuntimeServerConfiguration {
         this.cacheMaxFileSize = cacheMaxFileSize;
     }
 
+    public long getCacheCoalescingTimeout() {
+        return cacheCoalescingTimeout;
+    }
+
+    public void setCacheCoalescingTimeout(long cacheCoalescingTimeout) {
+        this.cacheCoalescingTimeout = cacheCoalescingTimeout;
+    }
+
+    public long getCacheStaleWhileRevalidate() {
+        return cacheStaleWhileRevalidate;
+    }
+
+    public void setCacheStaleWhileRevalidate(long cacheStaleWhileRevalidate) {
+        this.cacheStaleWhileRevalidate = cacheStaleWhileRevalidate;
+    }
+
+    public long getCacheStaleIfError() {
+        return cacheStaleIfError;
+    }
+
+    public void setCacheStaleIfError(long cacheStaleIfError) {
+        this.cacheStaleIfError = cacheStaleIfError;
+    }
+
+    public boolean isCacheRangeFetchFull() {
+        return cacheRangeFetchFull;
+    }
+
+    public void setCacheRangeFetchFull(boolean cacheRangeFetchFull) {
+        this.cacheRangeFetchFull = cacheRangeFetchFull;
+    }
+
+    /**
+     * Time to live of the error responses which are cached, by status code.
+     *
+     * @return
+     */
+    public Map<Integer, Long> getCacheNegativeTtls() {
+        return Collections.unmodifiableMap(cacheNegativeTtls);
+    }
+
+    public void setCacheNegativeTtl(int status, long ttl) throws ConfigurationNotValidException {
+        if (status != 404 && status != 410 && (status < 500 || status > 599)) {
+            throw new ConfigurationNotValidException("Invalid status " + status + " for cache.negative.ttl, only 404, 410 and 5xx are allowed");
+        }
+        if (ttl < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + ttl + "' for cache.negative.ttl." + status);
+        }
+        if (ttl == 0) {
+            cacheNegativeTtls.remove(status);
+        } else {
+            cacheNegativeTtls.put(status, ttl);
+        }
+    }
+
+    public long getCacheDiskMaxSize() {
+        return cacheDiskMaxSize;
+    }
+
+    public void setCacheDiskMaxSize(long cacheDiskMaxSize) {
+        this.cacheDiskMaxSize = cacheDiskMaxSize;
+    }
+
+    public long getCacheDiskMaxFileSize() {
+        return cacheDiskMaxFileSize;
+    }
+
+    public void setCacheDiskMaxFileSize(long cacheDiskMaxFileSize) {
+        this.cacheDiskMaxFileSize = cacheDiskMaxFileSize;
+    }
+
+    public long getCacheDiskSegmentSize() {
+        return cacheDiskSegmentSize;
+    }
+
+    public void setCacheDiskSegmentSize(long cacheDiskSegmentSize) {
+        this.cacheDiskSegmentSize = cacheDiskSegmentSize;
+    }
+
+    public String getCacheDiskPath() {
+        return cacheDiskPath;
+    }
+
+    public void setCacheDiskPath(String cacheDiskPath) {
+        this.cacheDiskPath = cacheDiskPath;
+    }
+
+    public long getCacheSnapshotMaxSize() {
+        return cacheSnapshotMaxSize;
+    }
+
+    public void setCacheSnapshotMaxSize(long cacheSnapshotMaxSize) {
+        this.cacheSnapshotMaxSize = cacheSnapshotMaxSize;
+    }
+
+    public String getCacheSnapshotPath() {
+        return cacheSnapshotPath;
+    }
+
+    public void setCacheSnapshotPath(String cacheSnapshotPath) {
+        this.cacheSnapshotPath = cacheSnapshotPath;
+    }
+
     public long getDynamicCertificateManagerPeriod() {
         return dynamicCertificateManagerPeriod;
     }
@@ -201,18 +330,79 @@ public class RuntimeServerConfiguration {
         }
         this.stuckRequestTimeout = getInt("connectionsmanager.stuckrequesttimeout", stuckRequestTimeout, properties);
         this.connectTimeout = getInt("connectionsmanager.connecttimeout", connectTimeout, properties);
+        this.eventLoopAffinity = Boolean.parseBoolean(properties.getProperty("connectionsmanager.eventloopaffinity", eventLoopAffinity + ""));
         LOG.info("connectionsmanager.maxconnectionsperendpoint=" + maxConnectionsPerEndpoint);
         LOG.info("connectionsmanager.idletimeout=" + idleTimeout);
         LOG.info("connectionsmanager.stuckrequesttimeout=" + stuckRequestTimeout);
         LOG.info("connectionsmanager.connecttimeout=" + connectTimeout);
+        LOG.info("connectionsmanager.eventloopaffinity=" + eventLoopAffinity);
 
         this.mapperClassname = getClassname("mapper.class", StandardEndpointMapper.class.getName(), properties);
         LOG.log(Level.INFO, "mapper.class={0}", this.mapperClassname);
         
         this.cacheMaxSize = getLong("cache.maxsize", cacheMaxSize, properties);
         this.cacheMaxFileSize = getLong("cache.maxfilesize", cacheMaxFileSize, properties);
+        this.cacheCoalescingTimeout = getLong("cache.coalescing.timeout", cacheCoalescingTimeout, properties);
+        if (this.cacheCoalescingTimeout < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheCoalescingTimeout + "' for cache.coalescing.timeout");
+        }
         LOG.info("cache.maxsize=" + cacheMaxSize);
         LOG.info("cache.maxfilesize=" + cacheMaxFileSize);
+        LOG.info("cache.coalescing.timeout=" + cacheCoalescingTimeout);
+        this.cacheStaleWhileRevalidate = getLong("cache.stale.whilerevalidate", cacheStaleWhileRevalidate, properties);
+        if (this.cacheStaleWhileRevalidate < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheStaleWhileRevalidate + "' for cache.stale.whilerevalidate");
+        }
+        this.cacheStaleIfError = getLong("cache.stale.iferror", cacheStaleIfError, properties);
+        if (this.cacheStaleIfError < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheStaleIfError + "' for cache.stale.iferror");
+        }
+        LOG.info("cache.stale.whilerevalidate=" + cacheStaleWhileRevalidate);
+        LOG.info("cache.stale.iferror=" + cacheStaleIfError);
+        this.cacheRangeFetchFull = Boolean.parseBoolean(properties.getProperty("cache.range.fetchfull", cacheRangeFetchFull + ""));
+        LOG.info("cache.range.fetchfull=" + cacheRangeFetchFull);
+        Map<String, String> negativeTtls = new HashMap<>();
+        properties.forEach("cache.negative.ttl.", negativeTtls::put);
+        for (Map.Entry<String, String> negativeTtl : negativeTtls.entrySet()) {
+            try {
+                setCacheNegativeTtl(Integer.parseInt(negativeTtl.getKey()), Long.parseLong(negativeTtl.getValue().trim()));
+            } catch (NumberFormatException err) {
+                throw new ConfigurationNotValidException("Invalid cache.negative.ttl." + negativeTtl.getKey() + "=" + negativeTtl.getValue());
+            }
+        }
+        LOG.info("cache.negative.ttl=" + cacheNegativeTtls);
+        this.cacheDiskMaxSize = getLong("cache.disk.maxsize", cacheDiskMaxSize, properties);
+        this.cacheDiskMaxFileSize = getLong("cache.disk.maxfilesize", cacheDiskMaxFileSize, properties);
+        this.cacheDiskSegmentSize = getLong("cache.disk.segmentsize", cacheDiskSegmentSize, properties);
+        this.cacheDiskPath = properties.getProperty("cache.disk.path", cacheDiskPath);
+        if (this.cacheDiskSegmentSize <= 0 || this.cacheDiskSegmentSize > Integer.MAX_VALUE) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheDiskSegmentSize + "' for cache.disk.segmentsize");
+        }
+        if (this.cacheDiskMaxSize > 0) {
+            // the active segment is always allocated in full
+            if (this.cacheDiskMaxSize < 2 * this.cacheDiskSegmentSize) {
+                throw new ConfigurationNotValidException("Invalid value '" + this.cacheDiskMaxSize + "' for cache.disk.maxsize,"
+                        + " it must be at least twice cache.disk.segmentsize (" + this.cacheDiskSegmentSize + ")");
+            }
+            if (this.cacheDiskMaxSize % this.cacheDiskSegmentSize != 0) {
+                LOG.warning("cache.disk.maxsize=" + cacheDiskMaxSize + " is not a multiple of cache.disk.segmentsize,"
+                        + " the disk cache will use at most " + (cacheDiskMaxSize / cacheDiskSegmentSize * cacheDiskSegmentSize) + " bytes");
+            }
+        }
+        LOG.info("cache.disk.maxsize=" + cacheDiskMaxSize);
+        LOG.info("cache.disk.maxfilesize=" + cacheDiskMaxFileSize);
+        LOG.info("cache.disk.segmentsize=" + cacheDiskSegmentSize);
+        LOG.info("cache.disk.path=" + cacheDiskPath);
+        this.cacheSnapshotMaxSize = getLong("cache.snapshot.maxsize", cacheSnapshotMaxSize, properties);
+        if (this.cacheSnapshotMaxSize < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheSnapshotMaxSize + "' for cache.snapshot.maxsize");
+        }
+        this.cacheSnapshotPath = properties.getProperty("cache.snapshot.path", cacheSnapshotPath);
+        LOG.info("cache.snapshot.maxsize=" + cacheSnapshotMaxSize);
+        LOG.info("cache.snapshot.path=" + cacheSnapshotPath);
+        for (int i = 0; i < 100; i++) {
+            tryConfigureCachePartition(i, properties);
+        }
 
         this.accessLogPath = properties.getProperty("accesslog.path", accessLogPath);
         this.accessLogTimestampFormat = properties.getProperty("accesslog.format.timestamp", accessLogTimestampFormat);
@@ -283,9 +473,17 @@ public class RuntimeServerConfiguration {
             String trustStorePassword = properties.getProperty(prefix + "ssltruststorepassword", "");
             String sslciphers = properties.getProperty(prefix + "sslciphers", "");
             String defautlSslCertificate = properties.getProperty(prefix + "defaultcertificate", "*");
+            int writeBufferLowWaterMark = getInt(prefix + "writebufferlowwatermark", NetworkListenerConfiguration.DEFAULT_WRITE_BUFFER_LOW_WATER_MARK, properties);
+            int writeBufferHighWaterMark = getInt(prefix + "writebufferhighwatermark", NetworkListenerConfiguration.DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK, properties);
+            if (writeBufferLowWaterMark <= 0 || writeBufferHighWaterMark < writeBufferLowWaterMark) {
+                throw new ConfigurationNotValidException("Invalid write buffer water marks for listener " + host + ":" + port
+                        + ", " + prefix + "writebufferlowwatermark=" + writeBufferLowWaterMark
+                        + ", " + prefix + "writebufferhighwatermark=" + writeBufferHighWaterMark);
+            }
             NetworkListenerConfiguration config = new NetworkListenerConfiguration(host,
                     port, ssl, ocps, sslciphers, defautlSslCertificate,
-                    trustStoreFile, trustStorePassword);
+                    trustStoreFile, trustStorePassword,
+                    writeBufferLowWaterMark, writeBufferHighWaterMark);
             this.addListener(config);
 
         }
@@ -310,6 +508,64 @@ public class RuntimeServerConfiguration {
         this.addRequestFilter(config);
     }
 
+    private void tryConfigureCachePartition(int i, ConfigurationStore properties) throws ConfigurationNotValidException {
+        String prefix = "cache.partition." + i + ".";
+        String id = properties.getProperty(prefix + "id", "").trim();
+        if (id.isEmpty()) {
+            return;
+        }
+        if (!id.matches("[a-zA-Z0-9_]+")) {
+            throw new ConfigurationNotValidException("Invalid value '" + id + "' for " + prefix + "id, only letters, digits and '_' are allowed");
+        }
+        Set<String> hosts = new HashSet<>();
+        for (String host : properties.getProperty(prefix + "hosts", "").split(",")) {
+            if (!host.trim().isEmpty()) {
+                hosts.add(host);
+            }
+        }
+        if (hosts.isEmpty()) {
+            throw new ConfigurationNotValidException("Invalid value for " + prefix + "hosts, at least one host is required for partition " + id);
+        }
+        long maxSize = getLong(prefix + "maxsize", 0, properties);
+        if (maxSize <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + maxSize + "' for " + prefix + "maxsize");
+        }
+        String evictionPolicy = properties.getProperty(prefix + "evictionpolicy", "overflow").trim();
+        boolean overflow;
+        switch (evictionPolicy) {
+            case "overflow":
+                overflow = true;
+                break;
+            case "drop":
+                overflow = false;
+                break;
+            default:
+                throw new ConfigurationNotValidException("Invalid value '" + evictionPolicy + "' for " + prefix + "evictionpolicy, only overflow and drop are allowed");
+        }
+        LOG.log(Level.INFO, "configure cache partition {0}id={1}, hosts={2}, maxsize={3}, evictionpolicy={4}",
+                new Object[]{prefix, id, hosts, maxSize, evictionPolicy});
+        addCachePartition(new CachePartitionConfiguration(id, hosts, maxSize, overflow));
+    }
+
+    public void addCachePartition(CachePartitionConfiguration partition) throws ConfigurationNotValidException {
+        for (CachePartitionConfiguration other : cachePartitions) {
+            if (other.getId().equals(partition.getId())) {
+                throw new ConfigurationNotValidException("cache partition " + partition.getId() + " already configured");
+            }
+            for (String host : partition.getHosts()) {
+                if (other.getHosts().contains(host)) {
+                    throw new ConfigurationNotValidException("host " + host + " of cache partition " + partition.getId()
+                            + " already belongs to cache partition " + other.getId());
+                }
+            }
+        }
+        cachePartitions.add(partition);
+    }
+
+    public List<CachePartitionConfiguration> getCachePartitions() {
+        return cachePartitions;
+    }
+
        public void addListener(NetworkListenerConfiguration listener) throws ConfigurationNotValidException {
         if (listener.isSsl() && !certificates.containsKey(listener.getDefaultCertificate())) {
             throw new ConfigurationNotValidException("listener " + listener.getHost() + ":" + listener.getPort() + ", ssl=" + listener.isSsl() + ", default certificate " + listener.getDefaultCertificate() + " not configured");
@@ -197,6 +197,18 @@ public class BackendHealthManager implements Runnable {
         return backend != null && backend.isAvailable();
     }
 
+    /**
+     * When the backend has been reported as reachable again after having been
+     * unreachable
+     *
+     * @param id
+     * @return the timestamp, 0 if the backend has never been unreachable
+     */
+    public long getReachableSince(String id) {
+        BackendHealthStatus backend = backends.get(id);
+        return backend == null ? 0 : backend.getReportedAsReachableTs();
+    }
+
     public void reloadConfiguration(RuntimeServerConfiguration newConfiguration) {
         if (this.connectTimeout != newConfiguration.getConnectTimeout()) {
             this.connectTimeout = newConfiguration.getConnectTimeout();
@@ -35,6 +35,7 @@ public class BackendHealthStatus {
 
     private volatile boolean reportedAsUnreachable;
     private long reportedAsUnreachableTs;
+    private volatile long reportedAsReachableTs;
 
     private long lastProbeTs;
     private boolean lastProbeSuccess;
@@ -94,7 +95,18 @@ public class BackendHealthStatus {
         reportedAsUnreachable = true;
     }
 
+    /**
+     * When the backend has been reported as reachable again after having been
+     * unreachable
+     *
+     * @return the timestamp, 0 if the backend has never been unreachable
+     */
+    public long getReportedAsReachableTs() {
+        return reportedAsReachableTs;
+    }
+
     void reportAsReachable() {
+        reportedAsReachableTs = System.currentTimeMillis();
         reportedAsUnreachable = false;
         reportedAsUnreachableTs = 0;
     }
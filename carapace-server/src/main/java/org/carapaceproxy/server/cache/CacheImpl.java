@@ -54,12 +54,36 @@ interface CacheImpl {
     public void put(ContentKey key, ContentPayload payload);
 
     /**
-     * Gets an element from cache if presents and updates the stats
+     * Gets an element from cache if presents and updates the stats.
+     * Expired elements are returned until they are useful as stale contents
      * @param key
      * @return Cached element or null if key was not found in cache
      */
     public ContentPayload get(ContentKey key);
 
+    /**
+     * Gets an element from cache, with its contents, without updating the
+     * stats and the hits of the element
+     * @param key
+     * @return Cached element or null if key was not found in cache
+     */
+    public ContentPayload peek(ContentKey key);
+
+    /**
+     * Checks whether an element is in cache, without touching it
+     * @param key
+     * @return true if the key is in cache, even if expired
+     */
+    public boolean contains(ContentKey key);
+
+    /**
+     * Extends the validity of an element, after it has been revalidated
+     * @param key
+     * @param expiresTs the new expiration time
+     * @return false if the key was not found in cache
+     */
+    public boolean refresh(ContentKey key, long expiresTs);
+
     /**
      * Removes an element from cache, frees its resources and updates the stats
      * 
@@ -71,6 +95,15 @@ interface CacheImpl {
      */
     public void remove(ContentKey key);
     
+    /**
+     * Applies new limits to the live cache, without dropping its contents.
+     * The elements exceeding the new maximum size are evicted as usual
+     * @param maxSize maximum memory used by the contents, 0 for no limit
+     * @param maxFileSize maximum size of a content kept in memory, 0 for no
+     * limit
+     */
+    public void resize(long maxSize, long maxFileSize);
+
     /**
      * Tries to force eviction on cache
      */
@@ -91,6 +124,18 @@ interface CacheImpl {
         public void accept(ContentKey key, ContentPayload payload);
     } 
     
+    interface RemovedEntriesSink {
+        public void removed(ContentKey key);
+    }
+
+    /**
+     * Sets the sink notified when an element leaves this cache, for any
+     * reason but being replaced by a new value. It can be notified from any
+     * thread, even after the removal has been completed
+     * @param sink 
+     */
+    public void setRemovedEntriesSink(RemovedEntriesSink sink);
+
     /**
      * Calls "sink" for every current element in cache
      * @param sink 
@@ -0,0 +1,343 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+
+/**
+ * Secondary index of the cached contents, by host and then by the segments
+ * of the path of the URI, in order to find the contents to invalidate without
+ * scanning the whole cache.
+ * <p>
+ * The index follows the cache: every time a key is added to or removed from
+ * the cache the index is updated, checking whether the key is still in the
+ * cache while holding the lock of its host, so that the outcome does not
+ * depend on the order of concurrent notifications. Updates of different
+ * hosts do not contend.
+ *
+ * @author enrico.olivelli
+ */
+final class CacheIndex {
+
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * The contents of a host, its tree is guarded by the host itself. An
+     * empty host is retired from the index, the updates which find it
+     * retired start again with a new one.
+     */
+    private static final class Host {
+
+        final Node root;
+        int size;
+        boolean retired;
+
+        Host(String name) {
+            this.root = new Node(null, name);
+        }
+    }
+
+    private static final class Node {
+
+        final Node parent;
+        final String name;
+        Map<String, Node> children;
+        // keys whose path ends at this node, all methods, variants and
+        // query strings
+        Set<ContentKey> keys;
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        Node child(String name) {
+            return children != null ? children.get(name) : null;
+        }
+
+        boolean isEmpty() {
+            return (keys == null || keys.isEmpty()) && (children == null || children.isEmpty());
+        }
+    }
+
+    /**
+     * Aligns the index with the cache, for a key which has been added to or
+     * removed from the cache
+     *
+     * @param key
+     * @param cache
+     */
+    void update(ContentKey key, CacheImpl cache) {
+        Host host = hosts.get(key.host);
+        if (host == null && !cache.contains(key)) {
+            // a concurrent add will find the key removed from the cache
+            return;
+        }
+        while (true) {
+            if (host == null) {
+                host = hosts.computeIfAbsent(key.host, Host::new);
+            }
+            synchronized (host) {
+                if (!host.retired) {
+                    if (cache.contains(key)) {
+                        add(host, key);
+                    } else {
+                        remove(host, key);
+                    }
+                    if (host.size == 0) {
+                        retire(host);
+                    }
+                    return;
+                }
+            }
+            host = null;
+        }
+    }
+
+    private void add(Host host, ContentKey key) {
+        Node node = host.root;
+        for (String segment : segments(path(key.uri))) {
+            Node child = node.child(segment);
+            if (child == null) {
+                if (node.children == null) {
+                    node.children = new HashMap<>();
+                }
+                child = new Node(node, segment);
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        if (node.keys == null) {
+            node.keys = new HashSet<>();
+        }
+        if (node.keys.add(key)) {
+            host.size++;
+            size.incrementAndGet();
+        }
+    }
+
+    private void remove(Host host, ContentKey key) {
+        Node node = findNode(host.root, segments(path(key.uri)));
+        if (node == null || node.keys == null || !node.keys.remove(key)) {
+            return;
+        }
+        host.size--;
+        size.decrementAndGet();
+        // drop the branch which is not used anymore
+        while (node.parent != null && node.isEmpty()) {
+            node.parent.children.remove(node.name);
+            node = node.parent;
+        }
+    }
+
+    // called while holding the lock of the host
+    private void retire(Host host) {
+        host.retired = true;
+        size.addAndGet(-host.size);
+        host.size = 0;
+        hosts.remove(host.root.name, host);
+    }
+
+    void clear() {
+        for (Host host : hosts.values()) {
+            synchronized (host) {
+                if (!host.retired) {
+                    retire(host);
+                }
+            }
+        }
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Finds all the contents of a host
+     *
+     * @param host the value of the Host header
+     * @return the keys
+     */
+    List<ContentKey> findByHost(String host) {
+        List<ContentKey> result = new ArrayList<>();
+        Host root = hosts.get(host);
+        if (root != null) {
+            synchronized (root) {
+                collect(root.root, null, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds all the contents of a URI, for all methods and variants
+     *
+     * @param host the value of the Host header, null for all the hosts
+     * @param uri the URI, including the query string
+     * @return the keys
+     */
+    List<ContentKey> findByUri(String host, String uri) {
+        List<ContentKey> result = new ArrayList<>();
+        List<String> segments = segments(path(uri));
+        for (Host root : roots(host)) {
+            synchronized (root) {
+                Node node = findNode(root.root, segments);
+                if (node != null && node.keys != null) {
+                    for (ContentKey key : node.keys) {
+                        if (key.uri.equals(uri)) {
+                            result.add(key);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the contents whose URI starts with a prefix, visiting only the
+     * branches which can match it
+     *
+     * @param host the value of the Host header, null for all the hosts
+     * @param prefix the prefix of the URI
+     * @return the keys
+     */
+    List<ContentKey> findByPrefix(String host, String prefix) {
+        List<ContentKey> result = new ArrayList<>();
+        String path = path(prefix);
+        List<String> segments = segments(path);
+        // the last segment of the prefix can be a part of a name
+        String partial = segments.remove(segments.size() - 1);
+        boolean withQueryString = path.length() < prefix.length();
+        for (Host root : roots(host)) {
+            synchronized (root) {
+                Node node = findNode(root.root, segments);
+                if (node == null || node.children == null) {
+                    continue;
+                }
+                if (withQueryString) {
+                    Node child = node.child(partial);
+                    if (child != null && child.keys != null) {
+                        for (ContentKey key : child.keys) {
+                            if (key.uri.startsWith(prefix)) {
+                                result.add(key);
+                            }
+                        }
+                    }
+                    continue;
+                }
+                for (Node child : node.children.values()) {
+                    if (child.name.startsWith(partial)) {
+                        collect(child, prefix, result);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the contents whose URI matches a regular expression, this
+     * requires to visit all the contents of the host
+     *
+     * @param host the value of the Host header, null for all the hosts
+     * @param pattern matched against the whole URI, including the query
+     * string
+     * @return the keys
+     */
+    List<ContentKey> findByPattern(String host, Pattern pattern) {
+        List<ContentKey> candidates = new ArrayList<>();
+        for (Host root : roots(host)) {
+            synchronized (root) {
+                collect(root.root, null, candidates);
+            }
+        }
+        List<ContentKey> result = new ArrayList<>();
+        for (ContentKey key : candidates) {
+            if (pattern.matcher(key.uri).matches()) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    private List<Host> roots(String host) {
+        if (host == null) {
+            return new ArrayList<>(hosts.values());
+        }
+        Host root = hosts.get(host);
+        return root != null ? Collections.singletonList(root) : Collections.emptyList();
+    }
+
+    private static Node findNode(Node node, List<String> segments) {
+        for (int i = 0; i < segments.size() && node != null; i++) {
+            node = node.child(segments.get(i));
+        }
+        return node;
+    }
+
+    private static void collect(Node node, String prefix, List<ContentKey> result) {
+        if (node.keys != null) {
+            for (ContentKey key : node.keys) {
+                if (prefix == null || key.uri.startsWith(prefix)) {
+                    result.add(key);
+                }
+            }
+        }
+        if (node.children != null) {
+            for (Node child : node.children.values()) {
+                collect(child, prefix, result);
+            }
+        }
+    }
+
+    private static String path(String uri) {
+        int pos = uri.indexOf('?');
+        return pos >= 0 ? uri.substring(0, pos) : uri;
+    }
+
+    /**
+     * Splits a path on '/', "/a/b" gives "", "a", "b" and "/a/" gives "",
+     * "a", "".
+     */
+    private static List<String> segments(String path) {
+        List<String> result = new ArrayList<>();
+        int start = 0;
+        int pos;
+        while ((pos = path.indexOf('/', start)) >= 0) {
+            result.add(path.substring(start, pos));
+            start = pos + 1;
+        }
+        result.add(path.substring(start));
+        return result;
+    }
+
+}
@@ -19,6 +19,12 @@
  */
 package org.carapaceproxy.server.cache;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import org.carapaceproxy.server.config.CachePartitionConfiguration;
+
 /**
  * Configuration for the ContentsCache
  *
@@ -28,10 +34,32 @@ public class CacheRuntimeConfiguration {
 
     private final long cacheMaxSize;
     private final long cacheMaxFileSize;
+    private final long cacheDiskMaxSize;
+    private final long cacheDiskMaxFileSize;
+    private final long cacheDiskSegmentSize;
+    private final String cacheDiskPath;
+    private final List<CachePartitionConfiguration> partitions;
 
     public CacheRuntimeConfiguration(long cacheMaxSize, long cacheMaxFileSize) {
+        this(cacheMaxSize, cacheMaxFileSize, 0, 0, 0, null);
+    }
+
+    public CacheRuntimeConfiguration(long cacheMaxSize, long cacheMaxFileSize,
+            long cacheDiskMaxSize, long cacheDiskMaxFileSize, long cacheDiskSegmentSize, String cacheDiskPath) {
+        this(cacheMaxSize, cacheMaxFileSize, cacheDiskMaxSize, cacheDiskMaxFileSize, cacheDiskSegmentSize, cacheDiskPath,
+                Collections.emptyList());
+    }
+
+    public CacheRuntimeConfiguration(long cacheMaxSize, long cacheMaxFileSize,
+            long cacheDiskMaxSize, long cacheDiskMaxFileSize, long cacheDiskSegmentSize, String cacheDiskPath,
+            List<CachePartitionConfiguration> partitions) {
         this.cacheMaxSize = cacheMaxSize;
         this.cacheMaxFileSize = cacheMaxFileSize;
+        this.cacheDiskMaxSize = cacheDiskMaxSize;
+        this.cacheDiskMaxFileSize = cacheDiskMaxFileSize;
+        this.cacheDiskSegmentSize = cacheDiskSegmentSize;
+        this.cacheDiskPath = cacheDiskPath;
+        this.partitions = Collections.unmodifiableList(new ArrayList<>(partitions));
     }
 
     @Override
@@ -39,6 +67,11 @@ public class CacheRuntimeConfiguration {
         int hash = 3;
         hash = 79 * hash + (int) (this.cacheMaxSize ^ (this.cacheMaxSize >>> 32));
         hash = 79 * hash + (int) (this.cacheMaxFileSize ^ (this.cacheMaxFileSize >>> 32));
+        hash = 79 * hash + (int) (this.cacheDiskMaxSize ^ (this.cacheDiskMaxSize >>> 32));
+        hash = 79 * hash + (int) (this.cacheDiskMaxFileSize ^ (this.cacheDiskMaxFileSize >>> 32));
+        hash = 79 * hash + (int) (this.cacheDiskSegmentSize ^ (this.cacheDiskSegmentSize >>> 32));
+        hash = 79 * hash + Objects.hashCode(this.cacheDiskPath);
+        hash = 79 * hash + Objects.hashCode(this.partitions);
         return hash;
     }
 
@@ -60,9 +93,40 @@ public class CacheRuntimeConfiguration {
         if (this.cacheMaxFileSize != other.cacheMaxFileSize) {
             return false;
         }
+        if (this.cacheDiskMaxSize != other.cacheDiskMaxSize) {
+            return false;
+        }
+        if (this.cacheDiskMaxFileSize != other.cacheDiskMaxFileSize) {
+            return false;
+        }
+        if (this.cacheDiskSegmentSize != other.cacheDiskSegmentSize) {
+            return false;
+        }
+        if (!Objects.equals(this.cacheDiskPath, other.cacheDiskPath)) {
+            return false;
+        }
+        if (!Objects.equals(this.partitions, other.partitions)) {
+            return false;
+        }
         return true;
     }
 
+    /**
+     * Checks whether a cache built with this configuration can switch to the
+     * other one without being rebuilt, that is whether only the memory limits
+     * are different.
+     *
+     * @param other
+     * @return
+     */
+    public boolean isResizableTo(CacheRuntimeConfiguration other) {
+        return this.cacheDiskMaxSize == other.cacheDiskMaxSize
+                && this.cacheDiskMaxFileSize == other.cacheDiskMaxFileSize
+                && this.cacheDiskSegmentSize == other.cacheDiskSegmentSize
+                && Objects.equals(this.cacheDiskPath, other.cacheDiskPath)
+                && Objects.equals(this.partitions, other.partitions);
+    }
+
     public long getCacheMaxSize() {
         return cacheMaxSize;
     }
@@ -71,4 +135,28 @@ public class CacheRuntimeConfiguration {
         return cacheMaxFileSize;
     }
 
+    public long getCacheDiskMaxSize() {
+        return cacheDiskMaxSize;
+    }
+
+    public long getCacheDiskMaxFileSize() {
+        return cacheDiskMaxFileSize;
+    }
+
+    public long getCacheDiskSegmentSize() {
+        return cacheDiskSegmentSize;
+    }
+
+    public String getCacheDiskPath() {
+        return cacheDiskPath;
+    }
+
+    public List<CachePartitionConfiguration> getPartitions() {
+        return partitions;
+    }
+
+    public boolean isDiskCacheEnabled() {
+        return cacheDiskMaxSize > 0;
+    }
+
 }
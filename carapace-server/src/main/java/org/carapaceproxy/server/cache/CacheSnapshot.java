@@ -0,0 +1,283 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+
+/**
+ * A file with a copy of the hottest contents of the cache, written when the
+ * server stops and reloaded when it starts again, so that the backends do not
+ * take the whole load after a restart.
+ * <p>
+ * The file is a sequence of records, each one with the key, the metadata, the
+ * headers and the body of a content. It is written to a temporary file which
+ * replaces the previous snapshot only when it is complete.
+ *
+ * @author enrico.olivelli
+ */
+final class CacheSnapshot {
+
+    private static final int MAGIC = 0xCA4ACE02;
+    private static final int VERSION = 1;
+    private static final int ENTRY = 1;
+    private static final int END = 0;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CacheSnapshot() {
+    }
+
+    static final class Writer implements Closeable {
+
+        private final File file;
+        private final File tmpFile;
+        private final DataOutputStream out;
+        private int entries;
+        private long size;
+        private boolean committed;
+
+        Writer(File file, long creationTs) throws IOException {
+            this.file = file;
+            this.tmpFile = new File(file.getPath() + ".tmp");
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (directory != null) {
+                directory.mkdirs();
+            }
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(creationTs);
+        }
+
+        /**
+         * Appends a content to the snapshot.
+         *
+         * @param key
+         * @param payload
+         * @return false if the content has been evicted meanwhile
+         * @throws IOException
+         */
+        boolean append(ContentKey key, ContentPayload payload) throws IOException {
+            if (payload.response == null) {
+                return false;
+            }
+            ByteBuf body = payload.retainedContent();
+            if (body == null) {
+                return false;
+            }
+            try {
+                out.writeByte(ENTRY);
+                writeString(key.method);
+                writeString(key.host);
+                writeString(key.uri);
+                writeString(key.variant);
+                out.writeLong(payload.creationTs);
+                out.writeLong(payload.expiresTs);
+                out.writeLong(payload.lastModified);
+                out.writeLong(payload.staleWhileRevalidate);
+                out.writeLong(payload.staleIfError);
+                out.writeLong(payload.maxAge);
+                out.writeInt(payload.hits);
+                writeString(payload.etag);
+                byte[] header = DiskCacheImpl.encodeHeader(payload.response);
+                out.writeInt(header.length);
+                out.write(header);
+                HttpHeaders trailingHeaders = payload.trailingHeaders;
+                out.writeInt(trailingHeaders.size());
+                for (Map.Entry<String, String> h : trailingHeaders) {
+                    writeString(h.getKey());
+                    writeString(h.getValue());
+                }
+                int bodyLength = body.readableBytes();
+                out.writeInt(bodyLength);
+                body.getBytes(body.readerIndex(), out, bodyLength);
+                entries++;
+                size += header.length + bodyLength;
+                return true;
+            } finally {
+                body.release();
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        int getEntries() {
+            return entries;
+        }
+
+        /**
+         * Size of the headers and of the bodies of the contents.
+         *
+         * @return
+         */
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * Replaces the previous snapshot with this one.
+         *
+         * @throws IOException
+         */
+        void commit() throws IOException {
+            out.writeByte(END);
+            out.close();
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+        }
+    }
+
+    static final class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final long creationTs;
+        private ContentKey key;
+        private ContentPayload payload;
+
+        Reader(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            try {
+                int magic = in.readInt();
+                int version = in.readInt();
+                if (magic != MAGIC || version != VERSION) {
+                    throw new IOException("bad cache snapshot " + file.getAbsolutePath() + ", magic " + magic + ", version " + version);
+                }
+                this.creationTs = in.readLong();
+            } catch (IOException err) {
+                in.close();
+                throw err;
+            }
+        }
+
+        long getCreationTs() {
+            return creationTs;
+        }
+
+        /**
+         * Reads the next content. The caller takes ownership of the body of the
+         * payload.
+         *
+         * @return false if there are no more contents
+         * @throws IOException
+         */
+        boolean next() throws IOException {
+            key = null;
+            payload = null;
+            if (in.readByte() != ENTRY) {
+                return false;
+            }
+            ContentKey _key = new ContentKey(readString(), readString(), readString(), readString());
+            ContentPayload _payload = new ContentPayload(in.readLong());
+            _payload.expiresTs = in.readLong();
+            _payload.lastModified = in.readLong();
+            _payload.staleWhileRevalidate = in.readLong();
+            _payload.staleIfError = in.readLong();
+            _payload.maxAge = in.readLong();
+            _payload.hits = in.readInt();
+            _payload.etag = readString();
+            byte[] header = new byte[in.readInt()];
+            in.readFully(header);
+            _payload.response = DiskCacheImpl.decodeHeader(ByteBuffer.wrap(header));
+            int trailers = in.readInt();
+            if (trailers > 0) {
+                HttpHeaders trailingHeaders = new DefaultHttpHeaders(false);
+                for (int i = 0; i < trailers; i++) {
+                    trailingHeaders.add(readString(), readString());
+                }
+                _payload.trailingHeaders = trailingHeaders;
+            }
+            int bodyLength = in.readInt();
+            ByteBuf body = ByteBufAllocator.DEFAULT.directBuffer(bodyLength, bodyLength);
+            try {
+                while (body.readableBytes() < bodyLength) {
+                    if (body.writeBytes(in, bodyLength - body.readableBytes()) < 0) {
+                        throw new EOFException("truncated cache snapshot");
+                    }
+                }
+            } catch (IOException err) {
+                body.release();
+                throw err;
+            }
+            _payload.content = body;
+            _payload.directSize = body.capacity();
+            key = _key;
+            payload = _payload;
+            return true;
+        }
+
+        private String readString() throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        ContentKey getKey() {
+            return key;
+        }
+
+        ContentPayload getPayload() {
+            return payload;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
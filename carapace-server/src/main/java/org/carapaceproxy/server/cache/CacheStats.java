@@ -19,29 +19,84 @@
  */
 package org.carapaceproxy.server.cache;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.bookkeeper.stats.Counter;
 import org.apache.bookkeeper.stats.StatsLogger;
 
 /**
- * Overall statistics about cache
+ * Overall statistics about cache, with the statistics of each partition
  */
 public class CacheStats {
 
+    private final StatsLogger cacheScope;
+    // the overall stats, for the stats of a partition
+    private final CacheStats parent;
     private final Counter hits;
     private final Counter misses;
     private final Counter directMemoryUsed;
     private final Counter heapMemoryUsed;
     private final Counter totalMemoryUsed;
+    private final Counter diskHits;
+    private final Counter diskUsed;
+    private final Counter overflows;
+    private final Counter negativeHits;
+    private final Counter negativeCached;
+    private final Map<String, CacheStats> partitions = new ConcurrentHashMap<>();
 
     public CacheStats(StatsLogger cacheScope) {
+        this(cacheScope, null);
+    }
+
+    private CacheStats(StatsLogger cacheScope, CacheStats parent) {
+        this.cacheScope = cacheScope;
+        this.parent = parent;
         this.hits = cacheScope.getCounter("hits");
         this.misses = cacheScope.getCounter("misses");
         this.directMemoryUsed = cacheScope.getCounter("directMemoryUsed");
         this.heapMemoryUsed = cacheScope.getCounter("heapMemoryUsed");
         this.totalMemoryUsed = cacheScope.getCounter("totalMemoryUsed");
+        this.diskHits = cacheScope.getCounter("diskHits");
+        this.diskUsed = cacheScope.getCounter("diskUsed");
+        this.overflows = cacheScope.getCounter("overflows");
+        this.negativeHits = cacheScope.getCounter("negativeHits");
+        this.negativeCached = cacheScope.getCounter("negativeCached");
+    }
+
+    /**
+     * The stats of a partition, which are counted in these stats as well.
+     * They are kept when the partition is reconfigured.
+     *
+     * @param id
+     * @return
+     */
+    public CacheStats getPartition(String id) {
+        return partitions.computeIfAbsent(id, name -> new CacheStats(cacheScope.scope("partition").scope(name), this));
+    }
+
+    public Map<String, CacheStats> getPartitions() {
+        return Collections.unmodifiableMap(partitions);
     }
 
     public void update(boolean hit) {
+        countLookup(hit);
+        if (parent != null) {
+            parent.update(hit);
+        }
+    }
+
+    /**
+     * A lookup of a content of a partition which has been done in the shared
+     * cache, which already counted it in the overall stats.
+     *
+     * @param hit
+     */
+    public void overflowLookup(boolean hit) {
+        countLookup(hit);
+    }
+
+    private void countLookup(boolean hit) {
         if (hit) {
             hits.inc();
         } else {
@@ -53,12 +108,52 @@ public class CacheStats {
         directMemoryUsed.add(direct);
         heapMemoryUsed.add(heap);
         totalMemoryUsed.add(total);
+        if (parent != null) {
+            parent.cached(heap, direct, total);
+        }
     }
 
     public void released(long heap, long direct, long total) {
         directMemoryUsed.add(-direct);
         heapMemoryUsed.add(-heap);
         totalMemoryUsed.add(-total);
+        if (parent != null) {
+            parent.released(heap, direct, total);
+        }
+    }
+
+    /**
+     * A content evicted from a partition has been moved to the shared cache.
+     */
+    public void overflowed() {
+        overflows.inc();
+    }
+
+    /**
+     * An error response has been served from the cache, it is counted in the
+     * hits as well.
+     */
+    public void negativeHit() {
+        negativeHits.inc();
+    }
+
+    /**
+     * An error response has been stored in the cache.
+     */
+    public void negativeCached() {
+        negativeCached.inc();
+    }
+
+    public void diskHit() {
+        diskHits.inc();
+    }
+
+    public void diskCached(long size) {
+        diskUsed.add(size);
+    }
+
+    public void diskReleased(long size) {
+        diskUsed.add(-size);
     }
 
     public long getDirectMemoryUsed() {
@@ -81,4 +176,24 @@ public class CacheStats {
         return misses.get();
     }
 
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getDiskUsed() {
+        return diskUsed.get();
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getNegativeCached() {
+        return negativeCached.get();
+    }
+
 }
@@ -29,6 +29,7 @@ import static com.github.benmanes.caffeine.cache.RemovalCause.EXPLICIT;
 import static com.github.benmanes.caffeine.cache.RemovalCause.REPLACED;
 import static com.github.benmanes.caffeine.cache.RemovalCause.SIZE;
 import com.github.benmanes.caffeine.cache.RemovalListener;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -52,6 +53,7 @@ class CaffeineCacheImpl implements CacheImpl {
     
     private boolean verbose = false;
     private volatile RemovalListener removalListener;
+    private volatile RemovedEntriesSink removedEntriesSink;
 
     public CaffeineCacheImpl(CacheStats stats, long cacheMaxSize, Logger logger) {
         this.stats = stats;
@@ -65,11 +67,13 @@ class CaffeineCacheImpl implements CacheImpl {
                 public long expireAfterCreate(ContentKey key, ContentPayload payload, long currentTime) {
                     // WARNING: provided current time is completely misleading, as stated in the doc. 
                     // System.currentTimeMillis() should be used instead.
-                    return (payload.expiresTs - System.currentTimeMillis()) * 1_000_000; // In nanos
+                    // expired contents are kept as long as they can be served as stale
+                    return (payload.getRetentionTs() - System.currentTimeMillis()) * 1_000_000; // In nanos
                 }
                 @Override
                 public long expireAfterUpdate(ContentKey key, ContentPayload payload, long currentTime, long currentDuration) {
-                    return currentDuration;
+                    // the new payload replaces the old one, with its own expiration
+                    return expireAfterCreate(key, payload, currentTime);
                 }
                 @Override
                 public long expireAfterRead(ContentKey key, ContentPayload payload, long currentTime, long currentDuration) {
@@ -110,6 +114,10 @@ class CaffeineCacheImpl implements CacheImpl {
                     removalListener.onRemoval(key, payload, cause);
                 }
                 release(key, payload);
+                RemovedEntriesSink sink = removedEntriesSink;
+                if (sink != null && cause != REPLACED) {
+                    sink.removed(key);
+                }
             })
             .build();
     }
@@ -118,6 +126,11 @@ class CaffeineCacheImpl implements CacheImpl {
         this.removalListener = listener;
     }
     
+    @Override
+    public void setRemovedEntriesSink(RemovedEntriesSink sink) {
+        this.removedEntriesSink = sink;
+    }
+
     @Override
     public void setVerbose(boolean verbose) {
         this.verbose = verbose;
@@ -146,13 +159,50 @@ class CaffeineCacheImpl implements CacheImpl {
 
     @Override
     public ContentPayload get(ContentKey key) {
+        ContentPayload cached = getIfNotExpired(key);
+        // a content which is usable only in place of an error is a miss
+        stats.update(cached != null && cached.isServable(System.currentTimeMillis()));
+        return cached;
+    }
+
+    @Override
+    public ContentPayload peek(ContentKey key) {
+        return cache.getIfPresent(key);
+    }
+
+    @Override
+    public boolean contains(ContentKey key) {
+        return cache.asMap().containsKey(key);
+    }
+
+    @Override
+    public boolean refresh(ContentKey key, long expiresTs) {
+        ContentPayload cached = cache.getIfPresent(key);
+        if (cached == null) {
+            return false;
+        }
+        cached.refresh(expiresTs);
+        cache.policy().expireVariably().ifPresent(policy -> {
+            policy.setExpiresAfter(key, cached.getRetentionTs() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        });
+        logger.log(Level.FINE, "content {0} revalidated, expires at {1}", new Object[]{key.uri, new java.util.Date(expiresTs)});
+        return true;
+    }
+
+    /**
+     * Gets an element from cache without updating the hits/misses stats.
+     * Expired elements are returned until they are useful as stale contents
+     *
+     * @param key
+     * @return Cached element or null if key was not found in cache
+     */
+    ContentPayload getIfNotExpired(ContentKey key) {
         ContentPayload cached = cache.getIfPresent(key);
-        if (cached != null && cached.expiresTs < System.currentTimeMillis()) {
+        if (cached != null && cached.getRetentionTs() < System.currentTimeMillis()) {
             logger.log(Level.FINE, "expiring content {0}, expired at {1}", new Object[]{key.uri, new java.util.Date(cached.expiresTs)});
             cache.invalidate(key);
             cached = null;
         }
-        stats.update(cached != null);
         if (cached != null) {
             cached.hits++;
         }
@@ -171,6 +221,15 @@ class CaffeineCacheImpl implements CacheImpl {
         cache.invalidate(key);
     }
 
+    @Override
+    public void resize(long maxSize, long maxFileSize) {
+        // the size of each content is checked before putting it in cache
+        cache.policy().eviction().ifPresent(eviction -> {
+            eviction.setMaximum(maxSize > 0 ? maxSize : Long.MAX_VALUE);
+        });
+        logger.log(Level.INFO, "cache resized to {0} bytes", maxSize);
+    }
+
     @Override
     public void evict() {
         cache.cleanUp();
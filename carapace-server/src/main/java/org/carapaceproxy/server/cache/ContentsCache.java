@@ -19,31 +19,48 @@
  */
 package org.carapaceproxy.server.cache;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.annotations.VisibleForTesting;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufHolder;
 import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.DefaultLastHttpContent;
-import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import static io.netty.handler.codec.http.HttpStatusClass.REDIRECTION;
+import static io.netty.handler.codec.http.HttpStatusClass.SUCCESS;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.util.ReferenceCountUtil;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import org.carapaceproxy.server.RequestHandler;
 import org.carapaceproxy.server.RuntimeServerConfiguration;
 import org.apache.bookkeeper.stats.Counter;
@@ -60,39 +77,284 @@ public class ContentsCache {
 
     private final CacheStats stats;
     private final Counter noCacheRequests;
+    private final Counter coalescedRequests;
+    private final Counter revalidations;
+    private final Counter notModifiedRevalidations;
+    private final Counter rangeFetches;
     private final ScheduledExecutorService threadPool;
-    private CacheRuntimeConfiguration currentConfiguration;
+    private volatile CacheRuntimeConfiguration currentConfiguration;
+    // responses which are being received from the backends, concurrent
+    // misses on the same content follow them instead of hitting the backends
+    private final ConcurrentHashMap<ContentKey, ContentReceiver> pendingResponses = new ConcurrentHashMap<>();
+    private volatile long coalescingTimeout;
+    // expired contents which are being revalidated by a background request
+    private final Set<ContentKey> pendingRevalidations = ConcurrentHashMap.newKeySet();
+    private volatile long staleWhileRevalidate;
+    private volatile long staleIfError;
+    // the whole content is fetched in background after a range request which
+    // missed the cache
+    private volatile boolean rangeFetchFull;
+    // error responses are cached only if they have a time to live
+    private volatile Map<Integer, Long> negativeTtls;
+    // the request headers which select the variant of a content, from the
+    // Vary header of its response, by primary key. Contents which are cachable
+    // only thanks to an explicit expiration are registered as well, with no
+    // headers, otherwise they are not even looked up
+    private final Cache<ContentKey, List<String>> varyHeaders = Caffeine.newBuilder()
+            .maximumSize(MAX_VARY_HEADERS_ENTRIES)
+            .build();
+    // contents by host and path, for targeted invalidations
+    private final CacheIndex index = new CacheIndex();
+    // hottest contents saved at shutdown and reloaded at startup
+    private volatile long snapshotMaxSize;
+    private volatile File snapshotFile;
+    private volatile boolean snapshotLoading;
+    private volatile long lastSnapshotTs;
+    private volatile int lastSnapshotEntries;
+    private volatile long lastSnapshotSize;
+    private volatile long lastLoadTs;
+    private volatile int lastLoadedEntries;
 
     static final long DEFAULT_TTL = 1000 * 60 * 60;
+    private static final int DEFAULT_INITIAL_BODY_CAPACITY = 8 * 1024;
+    private static final long MAX_INITIAL_BODY_CAPACITY = 1024 * 1024;
+    private static final long MAX_VARY_HEADERS_ENTRIES = 100_000;
 
     public ContentsCache(StatsLogger mainLogger, RuntimeServerConfiguration currentConfiguration) {
         StatsLogger cacheScope = mainLogger.scope("cache");
         this.stats = new CacheStats(cacheScope);
         this.noCacheRequests = cacheScope.getCounter("nocacherequests");
+        this.coalescedRequests = cacheScope.getCounter("coalescedrequests");
+        this.revalidations = cacheScope.getCounter("revalidations");
+        this.notModifiedRevalidations = cacheScope.getCounter("notmodifiedrevalidations");
+        this.rangeFetches = cacheScope.getCounter("rangefetches");
         this.threadPool = Executors.newSingleThreadScheduledExecutor();
 
-        this.currentConfiguration = new CacheRuntimeConfiguration(currentConfiguration.getCacheMaxSize(), currentConfiguration.getCacheMaxFileSize());
+        this.currentConfiguration = buildCacheConfiguration(currentConfiguration);
+        this.coalescingTimeout = currentConfiguration.getCacheCoalescingTimeout();
+        this.staleWhileRevalidate = currentConfiguration.getCacheStaleWhileRevalidate();
+        this.staleIfError = currentConfiguration.getCacheStaleIfError();
+        this.rangeFetchFull = currentConfiguration.isCacheRangeFetchFull();
+        this.negativeTtls = currentConfiguration.getCacheNegativeTtls();
+        this.snapshotMaxSize = currentConfiguration.getCacheSnapshotMaxSize();
+        this.snapshotFile = new File(currentConfiguration.getCacheSnapshotPath());
 
-        this.cache = new CaffeineCacheImpl(stats, currentConfiguration.getCacheMaxSize(), LOG);
+        this.cache = buildCache(this.currentConfiguration);
+    }
+
+    private static CacheRuntimeConfiguration buildCacheConfiguration(RuntimeServerConfiguration configuration) {
+        return new CacheRuntimeConfiguration(configuration.getCacheMaxSize(), configuration.getCacheMaxFileSize(),
+                configuration.getCacheDiskMaxSize(), configuration.getCacheDiskMaxFileSize(),
+                configuration.getCacheDiskSegmentSize(), configuration.getCacheDiskPath(),
+                configuration.getCachePartitions());
+    }
+
+    private CacheImpl buildCache(CacheRuntimeConfiguration configuration) {
+        CacheImpl result = buildCacheImpl(configuration);
+        // notifications from a replaced cache are checked against the
+        // current one
+        result.setRemovedEntriesSink(key -> index.update(key, cache));
+        return result;
+    }
+
+    private CacheImpl buildCacheImpl(CacheRuntimeConfiguration configuration) {
+        CacheImpl shared = buildSharedCacheImpl(configuration);
+        if (configuration.getPartitions().isEmpty()) {
+            return shared;
+        }
+        long memoryMaxFileSize = shared instanceof TieredCacheImpl ? configuration.getCacheMaxFileSize() : 0;
+        return new PartitionedCacheImpl(configuration.getPartitions(), shared, stats, memoryMaxFileSize, LOG);
+    }
+
+    private CacheImpl buildSharedCacheImpl(CacheRuntimeConfiguration configuration) {
+        CaffeineCacheImpl memory = new CaffeineCacheImpl(stats, configuration.getCacheMaxSize(), LOG);
+        if (!configuration.isDiskCacheEnabled()) {
+            return memory;
+        }
+        try {
+            DiskCacheImpl disk = new DiskCacheImpl(stats, new File(configuration.getCacheDiskPath()),
+                    configuration.getCacheDiskMaxSize(), configuration.getCacheDiskSegmentSize(),
+                    configuration.getCacheDiskMaxFileSize(), LOG);
+            return new TieredCacheImpl(memory, disk, stats, configuration.getCacheMaxFileSize(), LOG);
+        } catch (IOException err) {
+            LOG.log(Level.SEVERE, "Cannot start the disk cache, contents will be kept only in memory", err);
+            return memory;
+        }
+    }
+
+    /**
+     * Maximum size of a cachable object, taking into account the disk tier
+     *
+     * @return the size in bytes, 0 for no limit
+     */
+    private long getMaxCachableFileSize() {
+        long maxFileSize = currentConfiguration.getCacheMaxFileSize();
+        CacheImpl _cache = cache;
+        if (_cache instanceof PartitionedCacheImpl) {
+            _cache = ((PartitionedCacheImpl) _cache).getShared();
+        }
+        if (maxFileSize > 0 && _cache instanceof TieredCacheImpl) {
+            return Math.max(maxFileSize, ((TieredCacheImpl) _cache).getDisk().getMaxFileSize());
+        }
+        return maxFileSize;
     }
 
     public void start() {
+        if (snapshotMaxSize > 0 && snapshotFile.isFile()) {
+            // the cache is usable meanwhile, it is just colder
+            snapshotLoading = true;
+            this.threadPool.submit(this::loadSnapshot);
+        }
         this.threadPool.scheduleWithFixedDelay(new Evictor(), 1, 1, TimeUnit.MINUTES);
     }
 
     public void close() {
+        boolean loadingSnapshot = snapshotLoading;
         this.threadPool.shutdownNow();
         try {
             this.threadPool.awaitTermination(1, TimeUnit.MINUTES);
         } catch (InterruptedException exit) {
             Thread.currentThread().interrupt();
         }
+        if (loadingSnapshot) {
+            LOG.log(Level.INFO, "Cache snapshot {0} not completely loaded, keeping it", snapshotFile.getAbsolutePath());
+        } else if (snapshotMaxSize > 0) {
+            try {
+                writeSnapshot();
+            } catch (IOException | RuntimeException err) {
+                LOG.log(Level.SEVERE, "Cannot write cache snapshot " + snapshotFile.getAbsolutePath(), err);
+            }
+        }
         this.cache.close();
     }
 
+    /**
+     * Saves the hottest contents to the snapshot file, replacing the previous
+     * one. Contents are ranked by their hits per minute since they have been
+     * cached, so that recent contents are not beaten by old ones which
+     * collected hits in the past, up to the maximum size of the snapshot.
+     *
+     * @return the number of contents saved
+     * @throws IOException
+     */
+    public synchronized int writeSnapshot() throws IOException {
+        long maxSize = snapshotMaxSize;
+        File file = snapshotFile;
+        if (maxSize <= 0) {
+            throw new IllegalStateException("cache snapshots are disabled, see cache.snapshot.maxsize");
+        }
+        long now = System.currentTimeMillis();
+        List<SnapshotCandidate> candidates = new ArrayList<>();
+        this.cache.inspectCache((key, payload) -> {
+            if (payload.getRetentionTs() > now) {
+                candidates.add(new SnapshotCandidate(key, payload, now));
+            }
+        });
+        candidates.sort(null);
+        long size = 0;
+        try (CacheSnapshot.Writer writer = new CacheSnapshot.Writer(file, now)) {
+            for (SnapshotCandidate candidate : candidates) {
+                if (size + candidate.size > maxSize) {
+                    // smaller contents may still fit
+                    continue;
+                }
+                ContentPayload payload = this.cache.peek(candidate.key);
+                if (payload != null && writer.append(candidate.key, payload)) {
+                    size += candidate.size;
+                }
+            }
+            writer.commit();
+            lastSnapshotTs = now;
+            lastSnapshotEntries = writer.getEntries();
+            lastSnapshotSize = writer.getSize();
+        }
+        LOG.log(Level.INFO, "Saved {0} of {1} contents to cache snapshot {2}, {3} bytes",
+                new Object[]{lastSnapshotEntries, candidates.size(), file.getAbsolutePath(), lastSnapshotSize});
+        return lastSnapshotEntries;
+    }
+
+    /**
+     * Reloads the contents of the snapshot file. Expired contents and contents
+     * which have been cached again since the start are skipped.
+     *
+     * @return the number of contents loaded
+     */
+    @VisibleForTesting
+    int loadSnapshot() {
+        File file = snapshotFile;
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        int skipped = 0;
+        try (CacheSnapshot.Reader reader = new CacheSnapshot.Reader(file)) {
+            while (!Thread.currentThread().isInterrupted() && reader.next()) {
+                ContentKey key = reader.getKey();
+                ContentPayload payload = reader.getPayload();
+                List<String> names = getVaryHeaders(payload.response.headers());
+                if (payload.getRetentionTs() < now || names == null || this.cache.peek(key) != null) {
+                    payload.clear();
+                    skipped++;
+                    continue;
+                }
+                registerVariant(new ContentKey(key.method, key.host, key.uri), names);
+                this.cache.put(key, payload);
+                index.update(key, this.cache);
+                loaded++;
+            }
+        } catch (IOException | RuntimeException err) {
+            LOG.log(Level.SEVERE, "Cannot load cache snapshot " + file.getAbsolutePath(), err);
+        } finally {
+            snapshotLoading = false;
+        }
+        lastLoadTs = now;
+        lastLoadedEntries = loaded;
+        LOG.log(Level.INFO, "Loaded {0} contents from cache snapshot {1}, skipped {2} expired or already cached",
+                new Object[]{loaded, file.getAbsolutePath(), skipped});
+        return loaded;
+    }
+
+    public Map<String, Object> getSnapshotInfo() {
+        File file = snapshotFile;
+        Map<String, Object> info = new HashMap<>();
+        info.put("enabled", snapshotMaxSize > 0);
+        info.put("path", file.getAbsolutePath());
+        info.put("maxSize", snapshotMaxSize);
+        info.put("exists", file.isFile());
+        info.put("fileSize", file.length());
+        info.put("fileLastModified", file.lastModified());
+        info.put("loading", snapshotLoading);
+        info.put("lastSnapshotTs", lastSnapshotTs);
+        info.put("lastSnapshotEntries", lastSnapshotEntries);
+        info.put("lastSnapshotSize", lastSnapshotSize);
+        info.put("lastLoadTs", lastLoadTs);
+        info.put("lastLoadedEntries", lastLoadedEntries);
+        return info;
+    }
+
+    private static final class SnapshotCandidate implements Comparable<SnapshotCandidate> {
+
+        private final ContentKey key;
+        private final long size;
+        private final long creationTs;
+        private final double rank;
+
+        private SnapshotCandidate(ContentKey key, ContentPayload payload, long now) {
+            this.key = key;
+            this.size = payload.heapSize + payload.directSize + payload.diskSize;
+            this.creationTs = payload.creationTs;
+            this.rank = payload.hits * 60_000d / (Math.max(0, now - payload.creationTs) + 60_000);
+        }
+
+        @Override
+        public int compareTo(SnapshotCandidate other) {
+            int res = Double.compare(other.rank, rank);
+            return res != 0 ? res : Long.compare(other.creationTs, creationTs);
+        }
+    }
+
     private boolean isContentLengthCachable(long contentLength) {
-        if (currentConfiguration.getCacheMaxFileSize() > 0
-                && contentLength > currentConfiguration.getCacheMaxFileSize()) {
+        long maxFileSize = getMaxCachableFileSize();
+        if (maxFileSize > 0
+                && contentLength > maxFileSize) {
             return false;
         } else {
             return true;
@@ -100,13 +362,14 @@ public class ContentsCache {
     }
 
     private boolean isContentLengthCachable(HttpHeaders headers) {
-        if (currentConfiguration.getCacheMaxFileSize() <= 0) {
+        long maxFileSize = getMaxCachableFileSize();
+        if (maxFileSize <= 0) {
             return true;
         }
         try {
             long contentLength = Integer.parseInt(headers.get(HttpHeaderNames.CONTENT_LENGTH, "-1"));
             if (contentLength > 0) {
-                return contentLength <= currentConfiguration.getCacheMaxFileSize();
+                return contentLength <= maxFileSize;
             } else {
                 return true;
             }
@@ -117,20 +380,25 @@ public class ContentsCache {
 
     private boolean isCachable(HttpResponse response) {
         HttpHeaders headers = response.headers();
-        if (headers.contains(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE, false)
-                || headers.contains(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE, false)
+        if (hasCacheControlDirective(headers, HttpHeaderValues.NO_CACHE.toString())
+                || hasCacheControlDirective(headers, HttpHeaderValues.NO_STORE.toString())
+                || hasCacheControlDirective(headers, HttpHeaderValues.PRIVATE.toString())
                 || headers.contains(HttpHeaderNames.PRAGMA, HttpHeaderValues.NO_CACHE, false)
+                || getVaryHeaders(headers) == null
                 || !isContentLengthCachable(headers)) {
-            // never cache Pragma: no-cache, Cache-Control: nostore/no-cache
+            // never cache Pragma: no-cache, Cache-Control: nostore/no-cache/private, Vary: *
             LOG.log(Level.FINER, "not cachable {0}", response);
             return false;
         }
         switch (response.status().codeClass()) {
             case SUCCESS:
-                return true;
+                // a part of the content cannot be served in place of the whole
+                return !HttpResponseStatus.PARTIAL_CONTENT.equals(response.status());
+            case CLIENT_ERROR:
+            case SERVER_ERROR:
+                return getNegativeTtl(response.status()) > 0;
             case REDIRECTION:
             case INFORMATIONAL:
-            case SERVER_ERROR:
             case UNKNOWN:
             default:
                 return false;
@@ -138,6 +406,17 @@ public class ContentsCache {
 
     }
 
+    /**
+     * Error responses are cached for a short time, in order not to hit the
+     * backends with the same misses again and again.
+     *
+     * @param status
+     * @return the time to live of the response, 0 if it must not be cached
+     */
+    private long getNegativeTtl(HttpResponseStatus status) {
+        return negativeTtls.getOrDefault(status.code(), 0L);
+    }
+
     private boolean isCachable(HttpRequest request, boolean registerNoCacheStat) {
         switch (request.method().name()) {
             case "GET":
@@ -155,35 +434,93 @@ public class ContentsCache {
             }
             return false;
         }
-        String uri = request.uri();
-        String queryString = "";
+        return true;
+    }
+
+    /**
+     * Contents which can be cached even if the backend does not tell for how
+     * long, see {@link #DEFAULT_TTL}. Data with a query string is cached only
+     * if the backend sets an explicit expiration, unless it is an image or a
+     * script or css.
+     *
+     * @param uri
+     * @return
+     */
+    static boolean isCachableByDefault(String uri) {
         int question = uri.indexOf('?');
-        if (question > 0) {
-            queryString = uri.substring(question + 1);
-            uri = uri.substring(0, question);
-        }
-        if (!queryString.isEmpty()) {
-            // never cache data with a query string, unless it is an image or a script or css
-            int dot = uri.lastIndexOf('.');
-            String extension = "";
-            if (dot >= 0) {
-                extension = uri.substring(dot + 1);
-            }
-            switch (extension) {
-                case "png":
-                case "gif":
-                case "jpg":
-                case "jpeg":
-                case "js":
-                case "css":
-                case "woff2":
-                    return true;
-                default:
-                    return false;
-            }
+        if (question < 0) {
+            return true;
+        }
+        uri = uri.substring(0, question);
+        int dot = uri.lastIndexOf('.');
+        String extension = "";
+        if (dot >= 0) {
+            extension = uri.substring(dot + 1);
         }
+        switch (extension) {
+            case "png":
+            case "gif":
+            case "jpg":
+            case "jpeg":
+            case "js":
+            case "css":
+            case "woff2":
+                return true;
+            default:
+                return false;
+        }
+    }
 
-        return true;
+    /**
+     * The key under which the content requested by the client may be cached.
+     *
+     * @param request
+     * @return the key, or null if the content cannot be in cache
+     */
+    private ContentKey buildKey(HttpRequest request) {
+        ContentKey key = new ContentKey(request);
+        List<String> names = varyHeaders.getIfPresent(key);
+        if (names == null) {
+            return isCachableByDefault(key.uri) ? key : null;
+        }
+        if (names.isEmpty()) {
+            return key;
+        }
+        return key.withVariant(computeVariant(request.headers(), names));
+    }
+
+    /**
+     * Range requests are served from the cache. On a miss they are sent to the
+     * backends as they are: a partial response is not cached, and it cannot be
+     * followed by the other requests.
+     *
+     * @param request
+     * @return
+     */
+    private static boolean isRangeRequest(HttpRequest request) {
+        return request.headers().contains(HttpHeaderNames.RANGE);
+    }
+
+    /**
+     * Reserves the background fetch of the whole content, after a range
+     * request which missed the cache, so that the next range requests are
+     * served from the cache. Only one request at a time fetches the same
+     * content, as for revalidations.
+     *
+     * @param request the request for the whole content
+     * @return the key of the content, null if it must not be fetched
+     * @see #revalidationFinished(ContentKey)
+     */
+    public ContentKey startFullContentFetch(HttpRequest request) {
+        if (!rangeFetchFull || !isCachable(request, false)) {
+            return null;
+        }
+        ContentKey key = buildKey(request);
+        if (key == null || cache.contains(key) || !pendingRevalidations.add(key)) {
+            return null;
+        }
+        rangeFetches.inc();
+        return key;
     }
 
     @VisibleForTesting
@@ -195,8 +532,68 @@ public class ContentsCache {
         if (!isCachable(request, true)) {
             return null;
         }
-        return new ContentReceiver(new ContentKey(request));
+        ContentKey key = buildKey(request);
+        ContentReceiver receiver = new ContentReceiver(request, key != null ? key : new ContentKey(request));
+        if (coalescingTimeout > 0 && key != null && !isRangeRequest(request)) {
+            // the first miss becomes the leader, the others will follow it
+            pendingResponses.compute(receiver.key, (k, current) -> {
+                return current == null || isExpired(current, System.currentTimeMillis()) ? receiver : current;
+            });
+        }
+        return receiver;
+    }
+
+    /**
+     * Attaches the request to the response for the same content which is
+     * being received from a backend, if any.
+     *
+     * @param handler
+     * @param follower
+     * @return the receiver of the followed response, null if there is not
+     * any response to follow
+     */
+    public ContentReceiver followPendingResponse(RequestHandler handler, ContentFollower follower) {
+        if (coalescingTimeout <= 0 || !isCachable(handler.getRequest(), false)
+                || isRangeRequest(handler.getRequest())) {
+            // the response to follow is the whole content
+            return null;
+        }
+        ContentKey key = buildKey(handler.getRequest());
+        if (key == null) {
+            return null;
+        }
+        ContentReceiver leader = pendingResponses.get(key);
+        if (leader == null) {
+            return null;
+        }
+        if (isExpired(leader, System.currentTimeMillis())) {
+            // the leader is too slow, let the next miss take its place
+            pendingResponses.remove(key, leader);
+            return null;
+        }
+        if (!leader.follow(follower)) {
+            return null;
+        }
+        coalescedRequests.inc();
+        return leader;
+    }
+
+    public long getCoalescingTimeout() {
+        return coalescingTimeout;
+    }
+
+    @VisibleForTesting
+    int getPendingResponsesCount() {
+        return pendingResponses.size();
+    }
+
+    private boolean isExpired(ContentReceiver receiver, long now) {
+        return now - receiver.startTs >= coalescingTimeout;
+    }
 
+    private void evictPendingResponses() {
+        long now = System.currentTimeMillis();
+        pendingResponses.values().removeIf(receiver -> isExpired(receiver, now));
     }
 
     public final long computeDefaultExpireDate() {
@@ -205,7 +602,90 @@ public class ContentsCache {
 
     public int clear() {
         LOG.info("clearing cache");
-        return this.cache.clear();
+        varyHeaders.invalidateAll();
+        int size = this.cache.clear();
+        index.clear();
+        return size;
+    }
+
+    /**
+     * Removes all the contents of a host
+     *
+     * @param host the value of the Host header
+     * @return the number of removed contents
+     */
+    public int invalidateHost(String host) {
+        LOG.log(Level.INFO, "invalidating contents of host {0}", host);
+        return invalidate(index.findByHost(host));
+    }
+
+    /**
+     * Removes all the methods and variants of a content
+     *
+     * @param host the value of the Host header, null for all the hosts
+     * @param uri the URI, including the query string
+     * @return the number of removed contents
+     */
+    public int invalidateUri(String host, String uri) {
+        LOG.log(Level.FINE, "invalidating {0} of host {1}", new Object[]{uri, host});
+        return invalidate(index.findByUri(host, uri));
+    }
+
+    /**
+     * Removes the contents whose URI starts with a prefix
+     *
+     * @param host the value of the Host header, null for all the hosts
+     * @param prefix
+     * @return the number of removed contents
+     */
+    public int invalidatePrefix(String host, String prefix) {
+        LOG.log(Level.INFO, "invalidating contents with prefix {0} of host {1}", new Object[]{prefix, host});
+        return invalidate(index.findByPrefix(host, prefix));
+    }
+
+    /**
+     * Removes the contents whose URI, including the query string, matches a
+     * regular expression
+     *
+     * @param host the value of the Host header, null for all the hosts
+     * @param pattern
+     * @return the number of removed contents
+     */
+    public int invalidateMatching(String host, Pattern pattern) {
+        LOG.log(Level.INFO, "invalidating contents matching {0} of host {1}", new Object[]{pattern, host});
+        return invalidate(index.findByPattern(host, pattern));
+    }
+
+    private int invalidate(List<ContentKey> keys) {
+        CacheImpl _cache = cache;
+        for (ContentKey key : keys) {
+            _cache.remove(key);
+            index.update(key, _cache);
+        }
+        return keys.size();
+    }
+
+    /**
+     * Number of contents known by the index used for invalidations, it
+     * should be the same as {@link #getCacheSize() }
+     *
+     * @return the number of contents
+     */
+    public int getIndexedContents() {
+        return index.size();
+    }
+
+    /**
+     * Configuration, occupation and stats of the partitions of the cache.
+     *
+     * @return the info by partition id, empty if the cache is not partitioned
+     */
+    public Map<String, Map<String, Object>> getPartitionsInfo() {
+        CacheImpl _cache = cache;
+        if (_cache instanceof PartitionedCacheImpl) {
+            return ((PartitionedCacheImpl) _cache).getPartitionsInfo();
+        }
+        return Collections.emptyMap();
     }
 
     public List<Map<String, Object>> inspectCache() {
@@ -215,9 +695,11 @@ public class ContentsCache {
             entry.put("method", key.method);
             entry.put("host", key.host);
             entry.put("uri", key.uri);
+            entry.put("variant", key.variant);
             entry.put("cacheKey", key.composeKey());
             entry.put("heapSize", payload.heapSize);
             entry.put("directSize", payload.directSize);
+            entry.put("diskSize", payload.diskSize);
             entry.put("totalSize", key.getMemUsage() + payload.getMemUsage());
             entry.put("creationTs", payload.creationTs);
             entry.put("expiresTs", payload.expiresTs);
@@ -228,29 +710,53 @@ public class ContentsCache {
     }
 
     public void reloadConfiguration(RuntimeServerConfiguration newConfiguration) {
-        CacheRuntimeConfiguration newCacheConfiguration = new CacheRuntimeConfiguration(
-                newConfiguration.getCacheMaxSize(), newConfiguration.getCacheMaxFileSize());
+        this.coalescingTimeout = newConfiguration.getCacheCoalescingTimeout();
+        if (coalescingTimeout <= 0) {
+            pendingResponses.clear();
+        }
+        this.staleWhileRevalidate = newConfiguration.getCacheStaleWhileRevalidate();
+        this.staleIfError = newConfiguration.getCacheStaleIfError();
+        this.rangeFetchFull = newConfiguration.isCacheRangeFetchFull();
+        this.negativeTtls = newConfiguration.getCacheNegativeTtls();
+        this.snapshotMaxSize = newConfiguration.getCacheSnapshotMaxSize();
+        this.snapshotFile = new File(newConfiguration.getCacheSnapshotPath());
+        CacheRuntimeConfiguration newCacheConfiguration = buildCacheConfiguration(newConfiguration);
         if (newCacheConfiguration.equals(currentConfiguration)) {
             LOG.info("Cache configuration not changed during hot reload");
             return;
         }
 
+        if (currentConfiguration.isResizableTo(newCacheConfiguration)) {
+            // the contents are kept, the contents bigger than the new limit are
+            // dropped when they are requested
+            LOG.info("Cache size changed during hot reload, resizing");
+            currentConfiguration = newCacheConfiguration;
+            cache.resize(newCacheConfiguration.getCacheMaxSize(), newCacheConfiguration.getCacheMaxFileSize());
+            return;
+        }
+
         LOG.info("Cache configuration changed during hot reload, flushing");
-        // need to clear
+        // need to clear, the old cache is closed first as it may own the
+        // segment files in the same directory of the new one
         CacheImpl oldCache = this.cache;
-        this.cache = new CaffeineCacheImpl(stats, newCacheConfiguration.getCacheMaxSize(), LOG);
+        oldCache.close();
+        this.cache = buildCache(newCacheConfiguration);
+        index.clear();
         currentConfiguration = newCacheConfiguration;
-        oldCache.clear();
     }
 
     public static final class ContentSender {
 
         private final ContentKey key;
         private final ContentPayload cached;
+        private final boolean stale;
+        private final boolean servable;
 
-        private ContentSender(ContentKey key, ContentPayload cached) {
+        private ContentSender(ContentKey key, ContentPayload cached, long now) {
             this.key = key;
             this.cached = cached;
+            this.stale = !cached.isFresh(now);
+            this.servable = cached.isServable(now);
         }
 
         public ContentKey getKey() {
@@ -261,34 +767,369 @@ public class ContentsCache {
             return cached;
         }
 
+        /**
+         * The content is expired, it has to be revalidated.
+         *
+         * @return
+         */
+        public boolean isStale() {
+            return stale;
+        }
+
+        /**
+         * The content can be sent to the client, if it is stale it must be
+         * revalidated in background.
+         *
+         * @return
+         */
+        public boolean isServable() {
+            return servable;
+        }
+
+        /**
+         * The content can be sent to the client in place of an error of the
+         * backends.
+         *
+         * @return
+         */
+        public boolean isUsableOnError() {
+            return cached.isUsableOnError(System.currentTimeMillis());
+        }
+
+        /**
+         * The headers to be sent to the client. They are shared with the other
+         * hits, unless they have to tell the current age of the content.
+         *
+         * @param response the cached response
+         * @return
+         */
+        public HttpHeaders getResponseHeaders(HttpResponse response) {
+            HttpHeaders headers = response.headers();
+            if (!stale && cached.maxAge < 0) {
+                // the clients rely on the Expires header
+                return headers;
+            }
+            headers = headers.copy();
+            if (cached.maxAge >= 0) {
+                // https://tools.ietf.org/html/rfc7234#section-5.1
+                long age = cached.maxAge - (cached.expiresTs - System.currentTimeMillis());
+                headers.set(HttpHeaderNames.AGE, Math.max(0, age) / 1000);
+            }
+            if (stale) {
+                // https://tools.ietf.org/html/rfc7234#section-5.5.1
+                headers.add(HttpHeaderNames.WARNING, "110 - \"Response is Stale\"");
+            }
+            return headers;
+        }
+
     }
 
+    /**
+     * Looks for the content requested by the client. The content may be
+     * expired, see {@link ContentSender#isServable()}.
+     *
+     * @param handler
+     * @return the content, or null if it is not in cache
+     */
     public ContentSender serveFromCache(RequestHandler handler) {
         if (!isCachable(handler.getRequest(), false)) {
             return null;
         }
-        ContentKey key = new ContentKey(handler.getRequest());
+        ContentKey key = buildKey(handler.getRequest());
+        if (key == null) {
+            return null;
+        }
         ContentPayload cached = cache.get(key);
         if (cached == null) {
             return null;
         }
-        return new ContentSender(key, cached);
+        if (!isContentLengthCachable(cached.heapSize + cached.directSize)) {
+            // cached before the max file size was lowered
+            LOG.log(Level.FINE, "{0} too big for the current max file size, removing it", key);
+            cache.remove(key);
+            return null;
+        }
+        if (cached.isNegative() && cached.isServable(System.currentTimeMillis())) {
+            stats.negativeHit();
+        }
+        return new ContentSender(key, cached, System.currentTimeMillis());
+
+    }
+
+    /**
+     * Reserves the revalidation of an expired content, only one request at a
+     * time sends a conditional request to the backends for the same content.
+     *
+     * @param key
+     * @return false if another request is revalidating the content
+     */
+    public boolean startRevalidation(ContentKey key) {
+        if (!pendingRevalidations.add(key)) {
+            return false;
+        }
+        revalidations.inc();
+        return true;
+    }
+
+    public void revalidationFinished(ContentKey key) {
+        pendingRevalidations.remove(key);
+    }
 
+    /**
+     * The backend confirmed that an expired content has not been modified,
+     * its validity is extended without transferring it again.
+     *
+     * @param key
+     * @param notModified the 304 response of the backend
+     */
+    public void notModified(ContentKey key, HttpResponse notModified) {
+        notModifiedRevalidations.inc();
+        long expiresTs = computeExpiresTs(notModified.headers(), System.currentTimeMillis());
+        if (expiresTs == -1) {
+            expiresTs = computeDefaultExpireDate();
+        } else if (expiresTs < System.currentTimeMillis()) {
+            // still expired
+            return;
+        }
+        if (!cache.refresh(key, expiresTs)) {
+            LOG.log(Level.FINE, "content {0} evicted while revalidating it", key.uri);
+        }
     }
 
+    @VisibleForTesting
+    int getPendingRevalidationsCount() {
+        return pendingRevalidations.size();
+    }
+
+    /**
+     * Reads a directive of the Cache-Control header which has a value in
+     * seconds, like max-age=60.
+     *
+     * @param headers
+     * @param directive
+     * @param defaultValue
+     * @return the value in milliseconds, defaultValue if the directive is not
+     * present
+     */
+    static long getCacheControlMillis(HttpHeaders headers, String directive, long defaultValue) {
+        for (String value : headers.getAll(HttpHeaderNames.CACHE_CONTROL)) {
+            for (String token : value.split(",")) {
+                token = token.trim();
+                if (token.length() <= directive.length() + 1
+                        || token.charAt(directive.length()) != '='
+                        || !token.regionMatches(true, 0, directive, 0, directive.length())) {
+                    continue;
+                }
+                String seconds = token.substring(directive.length() + 1).replace("\"", "").trim();
+                try {
+                    long result = Long.parseLong(seconds);
+                    if (result >= 0) {
+                        return result * 1000;
+                    }
+                } catch (NumberFormatException err) {
+                    LOG.log(Level.FINE, "bad value for Cache-Control directive {0}: {1}", new Object[]{directive, seconds});
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Checks whether the Cache-Control header contains a directive, with or
+     * without a value.
+     *
+     * @param headers
+     * @param directive
+     * @return
+     */
+    public static boolean hasCacheControlDirective(HttpHeaders headers, String directive) {
+        for (String value : headers.getAll(HttpHeaderNames.CACHE_CONTROL)) {
+            for (String token : value.split(",")) {
+                token = token.trim();
+                int equals = token.indexOf('=');
+                String name = equals >= 0 ? token.substring(0, equals).trim() : token;
+                if (name.equalsIgnoreCase(directive)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The freshness lifetime of a response for a shared cache, s-maxage takes
+     * precedence over max-age.
+     *
+     * @param headers
+     * @return the lifetime in milliseconds, -1 if not set
+     */
+    static long getMaxAge(HttpHeaders headers) {
+        return getCacheControlMillis(headers, "s-maxage", getCacheControlMillis(headers, "max-age", -1));
+    }
+
+    /**
+     * The time the response already spent in other caches, from the Age
+     * header.
+     *
+     * @param headers
+     * @return the age in milliseconds
+     */
+    static long getAge(HttpHeaders headers) {
+        String age = headers.get(HttpHeaderNames.AGE);
+        if (age == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(age.trim()) * 1000);
+        } catch (NumberFormatException err) {
+            LOG.log(Level.FINE, "bad value for Age header: {0}", age);
+            return 0;
+        }
+    }
+
+    /**
+     * Computes the expiration time of a response, from its max-age/s-maxage
+     * (net of its Age) or from its Expires header.
+     * https://tools.ietf.org/html/rfc7234#section-4.2.1
+     *
+     * @param headers
+     * @param now the time the response has been received
+     * @return the expiration time, -1 if the backend did not set it
+     */
+    static long computeExpiresTs(HttpHeaders headers, long now) {
+        long maxAge = getMaxAge(headers);
+        if (maxAge >= 0) {
+            return now + maxAge - getAge(headers);
+        }
+        return headers.getTimeMillis(HttpHeaderNames.EXPIRES, -1);
+    }
+
+    /**
+     * Reads the names of the request headers which select the variant of a
+     * response.
+     *
+     * @param headers the headers of the response
+     * @return the lowercase names, sorted, or null for Vary: *
+     */
+    public static List<String> getVaryHeaders(HttpHeaders headers) {
+        List<String> values = headers.getAll(HttpHeaderNames.VARY);
+        if (values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<String> names = new TreeSet<>();
+        for (String value : values) {
+            for (String name : value.split(",")) {
+                name = name.trim().toLowerCase();
+                if (name.equals("*")) {
+                    return null;
+                }
+                if (!name.isEmpty()) {
+                    names.add(name);
+                }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Records the headers which select the variant of a content, so that it
+     * can be looked up.
+     *
+     * @param primaryKey the key of the content, without variant
+     * @param names see {@link #getVaryHeaders(io.netty.handler.codec.http.HttpHeaders)
+     * }
+     */
+    private void registerVariant(ContentKey primaryKey, List<String> names) {
+        if (names.isEmpty() && isCachableByDefault(primaryKey.uri)) {
+            varyHeaders.invalidate(primaryKey);
+        } else {
+            varyHeaders.put(primaryKey, names);
+        }
+    }
+
+    /**
+     * Normalizes the values of the request headers which select the variant
+     * of a response, so that equivalent requests share the same variant, for
+     * instance "gzip, deflate" and "deflate,gzip".
+     *
+     * @param headers the headers of the request
+     * @param names see {@link #getVaryHeaders(io.netty.handler.codec.http.HttpHeaders)
+     * }
+     * @return
+     */
+    static String computeVariant(HttpHeaders headers, List<String> names) {
+        StringBuilder variant = new StringBuilder();
+        List<String> tokens = new ArrayList<>();
+        for (String name : names) {
+            tokens.clear();
+            for (String value : headers.getAll(name)) {
+                for (String token : value.split(",")) {
+                    token = token.replace(" ", "").replace("\t", "");
+                    if (!token.isEmpty()) {
+                        tokens.add(token);
+                    }
+                }
+            }
+            Collections.sort(tokens);
+            variant.append(name).append('=');
+            for (int i = 0; i < tokens.size(); i++) {
+                if (i > 0) {
+                    variant.append(',');
+                }
+                variant.append(tokens.get(i));
+            }
+            variant.append(';');
+        }
+        return variant.toString();
+    }
+
+    /**
+     * A cached response: the headers to be sent to the clients and the whole
+     * body in one contiguous buffer. Once the payload is in the cache the body
+     * is never modified, so hits can share it without copies. The headers are
+     * replaced, not modified, when the payload is revalidated.
+     */
     public static class ContentPayload {
 
-        final List<HttpObject> chunks = new ArrayList<>();
-        final long creationTs = System.currentTimeMillis();
+        private static final AtomicIntegerFieldUpdater<ContentPayload> REF_CNT_UPDATER
+                = AtomicIntegerFieldUpdater.newUpdater(ContentPayload.class, "refCnt");
+        private static final AtomicIntegerFieldUpdater<ContentPayload> CLEARED_UPDATER
+                = AtomicIntegerFieldUpdater.newUpdater(ContentPayload.class, "cleared");
+
+        volatile HttpResponse response;
+        ByteBuf content;
+        HttpHeaders trailingHeaders = EmptyHttpHeaders.INSTANCE;
+        final long creationTs;
         long lastModified;
-        long expiresTs = -1;
+        volatile long expiresTs = -1;
+        // how long the payload can be served after its expiration, while it
+        // is being revalidated or in place of an error
+        long staleWhileRevalidate;
+        long staleIfError;
+        // the freshness lifetime set by the backend, needed in order to tell
+        // the age of the content to the clients
+        long maxAge = -1;
+        String etag;
         long heapSize;
         long directSize;
+        long diskSize;
         int hits;
+        // references to the body: one of the owner of the payload, usually
+        // the cache, and one for every reader which is duplicating the body
+        private volatile int refCnt = 1;
+        private volatile int cleared;
+
+        public ContentPayload() {
+            this(System.currentTimeMillis());
+        }
+
+        ContentPayload(long creationTs) {
+            this.creationTs = creationTs;
+        }
 
         @Override
         public String toString() {
-            return "ContentPayload{" + "chunks_n=" + chunks.size() + ", creationTs=" + new java.sql.Timestamp(creationTs) + ", lastModified=" + new java.sql.Timestamp(lastModified) + ", expiresTs=" + new java.sql.Timestamp(expiresTs) + ", size=" + (heapSize + directSize) + " (heap=" + heapSize + ", direct=" + directSize + ")" + '}';
+            return "ContentPayload{" + "response=" + (response != null ? response.status() : null) + ", creationTs=" + new java.sql.Timestamp(creationTs) + ", lastModified=" + new java.sql.Timestamp(lastModified) + ", expiresTs=" + new java.sql.Timestamp(expiresTs) + ", size=" + (heapSize + directSize) + " (heap=" + heapSize + ", direct=" + directSize + ")" + '}';
         }
 
         public long getLastModified() {
@@ -311,40 +1152,183 @@ public class ContentsCache {
             return directSize;
         }
 
+        public long getDiskSize() {
+            return diskSize;
+        }
+
         public int getHits() {
             return hits;
         }
 
+        public long getStaleWhileRevalidate() {
+            return staleWhileRevalidate;
+        }
+
+        public long getStaleIfError() {
+            return staleIfError;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public long getMaxAge() {
+            return maxAge;
+        }
+
+        boolean isFresh(long now) {
+            return expiresTs >= now;
+        }
+
+        /**
+         * The content is an error response.
+         *
+         * @return
+         */
+        boolean isNegative() {
+            return response != null && response.status().codeClass() != SUCCESS;
+        }
+
+        boolean isServable(long now) {
+            return expiresTs + staleWhileRevalidate >= now;
+        }
+
+        boolean isUsableOnError(long now) {
+            return expiresTs + staleIfError >= now;
+        }
+
+        /**
+         * Time after which the payload is useless, even as a stale content.
+         *
+         * @return
+         */
+        long getRetentionTs() {
+            return expiresTs + Math.max(staleWhileRevalidate, staleIfError);
+        }
+
+        /**
+         * Extends the validity of the payload.
+         *
+         * @param expiresTs
+         */
+        void refresh(long expiresTs) {
+            HttpResponse current = response;
+            if (current != null) {
+                // the current headers may be being sent to the clients
+                HttpHeaders headers = current.headers().copy();
+                headers.set(HttpHeaderNames.EXPIRES, new java.util.Date(expiresTs));
+                response = new DefaultHttpResponse(current.protocolVersion(), current.status(), headers);
+            }
+            this.expiresTs = expiresTs;
+        }
+
         public long getMemUsage() {
             // Just an estimate
-            return chunks.size() * 8
+            return 8 * 4 // references to response, content, trailers and etag
+                    + (etag != null ? sizeof(etag) : 0)
                     + directSize + heapSize
-                    + 8 * 5
+                    + 8 * 8
                     + // other fields
                     4 * 1;
         }
 
-        public List<HttpObject> getChunks() {
-            return chunks;
+        /**
+         * The response to be sent to the clients, its headers must not be
+         * modified.
+         *
+         * @return
+         */
+        public HttpResponse getResponse() {
+            return response;
         }
 
+        /**
+         * The whole body of the response, it must be duplicated in order to
+         * be sent.
+         *
+         * @return the body, null for the contents read from the disk cache
+         * @see #retainedContent()
+         */
+        public ByteBuf getContent() {
+            return content;
+        }
+
+        /**
+         * A duplicate of the body, which the caller must release. The body is
+         * never recycled while the duplicate is alive, even if the payload is
+         * removed from the cache meanwhile.
+         *
+         * @return the duplicate, null if the body has been already released
+         */
+        public ByteBuf retainedContent() {
+            int current;
+            do {
+                current = refCnt;
+                if (current == 0) {
+                    return null;
+                }
+            } while (!REF_CNT_UPDATER.compareAndSet(this, current, current + 1));
+            try {
+                ByteBuf body = content;
+                return body != null ? body.retainedDuplicate() : null;
+            } finally {
+                release();
+            }
+        }
+
+        public HttpHeaders getTrailingHeaders() {
+            return trailingHeaders;
+        }
+
+        /**
+         * A copy of the payload which shares its body, in order to move it to
+         * another cache which will release it on its own.
+         *
+         * @return the copy, null if the body has been already released
+         */
+        ContentPayload retainedCopy() {
+            ByteBuf body = retainedContent();
+            if (body == null) {
+                return null;
+            }
+            ContentPayload copy = new ContentPayload(creationTs);
+            copy.content = body;
+            copy.response = response;
+            copy.trailingHeaders = trailingHeaders;
+            copy.lastModified = lastModified;
+            copy.expiresTs = expiresTs;
+            copy.staleWhileRevalidate = staleWhileRevalidate;
+            copy.staleIfError = staleIfError;
+            copy.maxAge = maxAge;
+            copy.etag = etag;
+            copy.heapSize = heapSize;
+            copy.directSize = directSize;
+            copy.hits = hits;
+            return copy;
+        }
+
+        /**
+         * Releases the reference of the owner, the body is released as soon
+         * as the readers which are duplicating it are done.
+         */
         void clear() {
-            for (HttpObject o : chunks) {
-                ReferenceCountUtil.release(o);
+            if (CLEARED_UPDATER.compareAndSet(this, 0, 1)) {
+                release();
             }
-            chunks.clear();
         }
 
-        private void addChunk(HttpObject msg) {
-            chunks.add(msg);
-            heapSize += getHttpObjectHeapSize(msg);
-            directSize += getHttpObjectDirectSize(msg);
+        private void release() {
+            if (REF_CNT_UPDATER.decrementAndGet(this) == 0) {
+                ByteBuf body = content;
+                content = null;
+                ReferenceCountUtil.release(body);
+            }
         }
 
         @Override
         public int hashCode() {
             int hash = 7;
-            hash = 41 * hash + Objects.hashCode(this.chunks);
+            hash = 41 * hash + Objects.hashCode(this.response);
             hash = 41 * hash + (int) (this.creationTs ^ (this.creationTs >>> 32));
             hash = 41 * hash + (int) (this.lastModified ^ (this.lastModified >>> 32));
             hash = 41 * hash + (int) (this.expiresTs ^ (this.expiresTs >>> 32));
@@ -380,7 +1364,10 @@ public class ContentsCache {
             if (this.directSize != other.directSize) {
                 return false;
             }
-            if (!Objects.equals(this.chunks, other.chunks)) {
+            if (this.response != other.response) {
+                return false;
+            }
+            if (this.content != other.content) {
                 return false;
             }
             return true;
@@ -410,17 +1397,30 @@ public class ContentsCache {
         final String method;
         final String host;
         final String uri;
+        // normalized values of the request headers listed by the Vary header
+        // of the response, null if the response does not vary
+        final String variant;
 
         ContentKey(String method, String host, String uri) {
+            this(method, host, uri, null);
+        }
+
+        ContentKey(String method, String host, String uri, String variant) {
             this.method = method;
             this.host = host;
             this.uri = uri;
+            this.variant = variant;
         }
         
         public ContentKey(HttpRequest request) {
             this.method = request.method().name();
             this.host = request.headers().getAsString(HttpHeaderNames.HOST);
             this.uri = request.uri();
+            this.variant = null;
+        }
+
+        ContentKey withVariant(String variant) {
+            return new ContentKey(method, host, uri, variant);
         }
         
         public long getMemUsage() {
@@ -428,7 +1428,8 @@ public class ContentsCache {
             return 
                 sizeof(method) +
                 sizeof(host) +
-                sizeof(uri);
+                sizeof(uri) +
+                (variant != null ? sizeof(variant) : 0);
         }
 
         public String getMethod() {
@@ -442,14 +1443,21 @@ public class ContentsCache {
         public String getUri() {
             return uri;
         }
+
+        public String getVariant() {
+            return variant;
+        }
         
         public String composeKey() {
+            if (variant != null) {
+                return method + " | " + host + " | " + uri + " | " + variant;
+            }
             return method + " | " + host + " | " + uri;
         }
 
         @Override
         public String toString() {
-            return "ContentKey{" + "method=" + method + ", host=" + host + ", uri=" + uri + '}';
+            return "ContentKey{" + "method=" + method + ", host=" + host + ", uri=" + uri + ", variant=" + variant + '}';
         }
 
         @Override
@@ -458,6 +1466,7 @@ public class ContentsCache {
             hash = 83 * hash + Objects.hashCode(this.method);
             hash = 83 * hash + Objects.hashCode(this.host);
             hash = 83 * hash + Objects.hashCode(this.uri);
+            hash = 83 * hash + Objects.hashCode(this.variant);
             return hash;
         }
 
@@ -482,6 +1491,9 @@ public class ContentsCache {
             if (!Objects.equals(this.uri, other.uri)) {
                 return false;
             }
+            if (!Objects.equals(this.variant, other.variant)) {
+                return false;
+            }
             return true;
         }
     }
@@ -507,124 +1519,331 @@ public class ContentsCache {
         ContentPayload content = receiver.content;
         // Now we have the actual content size
         if (!isContentLengthCachable(content.heapSize + content.directSize)) {
-            cache.remove(receiver.key); // just for make sure
+            cache.remove(receiver.storeKey); // just for make sure
+            content.clear();
             return;
         }
-        cache.put(receiver.key, content);
+        cache.put(receiver.storeKey, content);
+        index.update(receiver.storeKey, cache);
+        if (content.isNegative()) {
+            stats.negativeCached();
+        }
+    }
+
+    /**
+     * A request which is waiting for the response to another request for the
+     * same content.
+     */
+    public interface ContentFollower {
+
+        /**
+         * A part of the response is available. It is called with the lock of
+         * the receiver held, on the thread which is receiving the response.
+         *
+         * @param msg a copy of the part of the response, the follower takes
+         * ownership of it
+         */
+        void chunkAvailable(HttpObject msg);
+
+        /**
+         * The followed response will not be completed, or it turned out to
+         * be not cachable.
+         */
+        void leaderFailed();
+
+        /**
+         * The request of the follower, a response can be followed only if it
+         * is the same variant of the content.
+         *
+         * @return
+         */
+        HttpRequest getRequest();
     }
 
     public class ContentReceiver {
 
+        private final HttpRequest request;
+        // the key of the content as known when the request arrived
         private final ContentKey key;
+        // the key of the variant actually received, known with the response
+        private ContentKey storeKey;
+        private List<String> varyNames = Collections.emptyList();
         private final ContentPayload content;
+        private final long startTs = System.currentTimeMillis();
         private boolean notReallyCachable = false;
-
-        public ContentReceiver(ContentKey key) {
+        // guarded by this
+        private final List<ContentFollower> followers = new ArrayList<>(1);
+        private HttpResponse response;
+        private ByteBuf body;
+        private boolean completed;
+        private boolean failed;
+
+        public ContentReceiver(HttpRequest request, ContentKey key) {
+            this.request = request;
             this.key = key;
+            this.storeKey = key;
             this.content = new ContentPayload();
         }
 
-        public void abort() {
+        public synchronized void abort() {
+            if (completed) {
+                // contents are owned by the cache
+                return;
+            }
             LOG.log(Level.FINEST, "Aborting cache receiver for {0}", key);
+            failed = true;
+            pendingResponses.remove(key, this);
+            releaseBody();
             content.clear();
+            for (ContentFollower follower : followers) {
+                follower.leaderFailed();
+            }
+            followers.clear();
+        }
+
+        private void releaseBody() {
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+        }
+
+        private synchronized boolean follow(ContentFollower follower) {
+            if (completed || failed || (response != null && body == null)) {
+                // not even the first part of the response can be replayed
+                return false;
+            }
+            if (response != null && !isSameVariant(follower)) {
+                return false;
+            }
+            // replay what has already been received
+            if (response != null) {
+                follower.chunkAvailable(duplicateHttpObject(response));
+                if (body.isReadable()) {
+                    follower.chunkAvailable(new DefaultHttpContent(body.copy()));
+                }
+            }
+            followers.add(follower);
+            return true;
+        }
+
+        /**
+         * Detaches a follower, for instance because it has been waiting for
+         * too long.
+         *
+         * @param follower
+         * @return true if the follower was still attached
+         */
+        public synchronized boolean unfollow(ContentFollower follower) {
+            return followers.remove(follower);
         }
 
-        public void receivedFromRemote(HttpObject msg) {
+        /**
+         * Accumulates a part of the response. The receiver does not take
+         * ownership of msg: the body is copied into one buffer, in order not
+         * to retain the (usually bigger) network buffers for the whole life of
+         * the entry.
+         *
+         * @param msg
+         */
+        public synchronized void receivedFromRemote(HttpObject msg) {
+            if (completed || failed) {
+                return;
+            }
             if (msg instanceof HttpResponse) {
-                HttpResponse response = (HttpResponse) msg;
-                if (!isCachable(response)) {
+                HttpResponse httpResponse = (HttpResponse) msg;
+                HttpHeaders headers = httpResponse.headers();
+                if (!isCachable(httpResponse)) {
                     notReallyCachable = true;
                 }
-                long expiresTs = response.headers().getTimeMillis(HttpHeaderNames.EXPIRES, -1);
+                long now = System.currentTimeMillis();
+                // https://tools.ietf.org/html/rfc5861
+                content.staleWhileRevalidate = getCacheControlMillis(headers, "stale-while-revalidate", staleWhileRevalidate);
+                content.staleIfError = getCacheControlMillis(headers, "stale-if-error", staleIfError);
+                long expiresTs = computeExpiresTs(headers, now);
+                long negativeTtl = getNegativeTtl(httpResponse.status());
+                if (negativeTtl > 0) {
+                    // the backend may ask for a shorter time, errors are
+                    // never served stale
+                    content.staleWhileRevalidate = 0;
+                    content.staleIfError = 0;
+                    if (expiresTs == -1 && isCachableByDefault(key.uri) || expiresTs > now + negativeTtl) {
+                        expiresTs = now + negativeTtl;
+                    }
+                }
                 if (expiresTs == -1) {
-                    expiresTs = computeDefaultExpireDate();
-                } else if (expiresTs < System.currentTimeMillis()) {
+                    if (isCachableByDefault(key.uri)) {
+                        expiresTs = computeDefaultExpireDate();
+                    } else {
+                        notReallyCachable = true;
+                    }
+                } else if (expiresTs + content.staleWhileRevalidate <= now) {
                     // already expired ?
                     notReallyCachable = true;
                 }
                 content.expiresTs = expiresTs;
-                long lastModified = response.headers().getTimeMillis(HttpHeaderNames.LAST_MODIFIED, -1);
+                content.maxAge = getMaxAge(headers);
+                long lastModified = headers.getTimeMillis(HttpHeaderNames.LAST_MODIFIED, -1);
                 content.lastModified = lastModified;
+                // kept in order to revalidate the content
+                content.etag = headers.get(HttpHeaderNames.ETAG);
+                if (!notReallyCachable) {
+                    registerVariant(getVaryHeaders(headers));
+                }
             }
             if (notReallyCachable) {
                 LOG.log(Level.FINEST, "{0} rejecting non-cachable response", key);
                 abort();
                 return;
             }
-            msg = cloneHttpObject(msg);
-//            LOG.info(key + " accepting chunk " + msg);
-
-            content.addChunk(msg);
+            if (msg instanceof HttpResponse) {
+                HttpResponse httpResponse = (HttpResponse) msg;
+                // the headers of the original are going to be modified
+                response = new DefaultHttpResponse(httpResponse.protocolVersion(), httpResponse.status(), httpResponse.headers().copy());
+                long contentLength = HttpUtil.getContentLength(httpResponse, -1);
+                body = ByteBufAllocator.DEFAULT.directBuffer(contentLength >= 0
+                        ? (int) Math.min(contentLength, MAX_INITIAL_BODY_CAPACITY) : DEFAULT_INITIAL_BODY_CAPACITY);
+                for (ContentFollower follower : followers) {
+                    follower.chunkAvailable(duplicateHttpObject(response));
+                }
+            }
+            if (msg instanceof HttpContent) {
+                ByteBuf chunk = ((HttpContent) msg).content();
+                if (body != null) {
+                    long maxFileSize = getMaxCachableFileSize();
+                    if (maxFileSize > 0 && body.readableBytes() + chunk.readableBytes() > maxFileSize) {
+                        // keep on streaming to the followers, but do not cache
+                        LOG.log(Level.FINEST, "{0} response too big to be cached", key);
+                        releaseBody();
+                    } else {
+                        body.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+                    }
+                }
+                for (ContentFollower follower : followers) {
+                    // followers do not need a copy, the network buffer is
+                    // released as soon as they have sent it
+                    follower.chunkAvailable(duplicateContent((HttpContent) msg));
+                }
+            }
             if (msg instanceof LastHttpContent) {
+                completed = true;
+                followers.clear();
+                pendingResponses.remove(key, this);
+                if (body == null) {
+                    cache.remove(storeKey); // just for make sure
+                    return;
+                }
+                completePayload(((LastHttpContent) msg).trailingHeaders());
                 cacheContent(this);
             }
         }
-    }
 
-    public static long getHttpObjectHeapSize(HttpObject msg) {
-        if (msg instanceof HttpResponse) {
-            return 0;
-        } else if (msg instanceof DefaultHttpContent) {
-            DefaultHttpContent df = (DefaultHttpContent) msg;
-            ByteBuf content = df.content();
-            if (content.isDirect()) {
-                return 0;
+        /**
+         * Computes the key of the variant which has been received, the
+         * followers which asked for another variant have to fall back to the
+         * backends.
+         *
+         * @param names the Vary header of the response
+         */
+        private void registerVariant(List<String> names) {
+            ContentKey primaryKey = new ContentKey(request);
+            varyNames = names;
+            if (!names.isEmpty()) {
+                storeKey = primaryKey.withVariant(computeVariant(request.headers(), names));
             } else {
-                return content.capacity();
+                storeKey = primaryKey;
+            }
+            ContentsCache.this.registerVariant(primaryKey, names);
+            for (Iterator<ContentFollower> it = followers.iterator(); it.hasNext();) {
+                ContentFollower follower = it.next();
+                if (!isSameVariant(follower)) {
+                    it.remove();
+                    follower.leaderFailed();
+                }
             }
-        } else if (msg instanceof LastHttpContent) {
-            // EmptyLastHttpContent
-            return 0;
-        } else {
-            throw new IllegalStateException("cannot estimate HttpObject " + msg);
         }
-    }
 
-    public static long getHttpObjectDirectSize(HttpObject msg) {
-        if (msg instanceof HttpResponse) {
-            return 0;
-        } else if (msg instanceof DefaultHttpContent) {
-            DefaultHttpContent df = (DefaultHttpContent) msg;
-            ByteBuf content = df.content();
-            if (content.isDirect()) {
-                return content.capacity();
+        private boolean isSameVariant(ContentFollower follower) {
+            if (varyNames.isEmpty()) {
+                return true;
+            }
+            return storeKey.variant.equals(computeVariant(follower.getRequest().headers(), varyNames));
+        }
+
+        private void completePayload(HttpHeaders trailingHeaders) {
+            if (body.capacity() > body.readableBytes()) {
+                // do not waste memory for the whole life of the entry
+                body.capacity(body.readableBytes());
+            }
+            content.content = body;
+            body = null;
+            if (content.content.isDirect()) {
+                content.directSize = content.content.capacity();
             } else {
-                return 0;
+                content.heapSize = content.content.capacity();
             }
-        } else if (msg instanceof LastHttpContent) {
-            // EmptyLastHttpContent
-            return 0;
-        } else {
-            throw new IllegalStateException("cannot estimate HttpObject " + msg);
-        }
-    }
-
-    public static HttpObject cloneHttpObject(HttpObject msg) {
-        if (msg instanceof FullHttpResponse) {
-            FullHttpResponse fr = (FullHttpResponse) msg;
-            return fr.copy();
-        } else if (msg instanceof DefaultHttpResponse) {
-            DefaultHttpResponse fr = (DefaultHttpResponse) msg;
-            return new DefaultHttpResponse(fr.protocolVersion(), fr.status(), fr.headers());
-        } else if (msg instanceof DefaultLastHttpContent) {
-            DefaultLastHttpContent df = (DefaultLastHttpContent) msg;
-            return df.copy();
-        } else if (msg instanceof DefaultHttpContent) {
-            DefaultHttpContent df = (DefaultHttpContent) msg;
-            return df.copy();
-        } else if (msg instanceof LastHttpContent) {
-            return ((LastHttpContent) msg).copy();
+            if (!trailingHeaders.isEmpty()) {
+                content.trailingHeaders = trailingHeaders.copy();
+            }
+            // the headers sent on every hit are computed once
+            HttpHeaders headers = response.headers();
+            headers.remove(HttpHeaderNames.EXPIRES);
+            if (HttpResponseStatus.OK.equals(response.status())) {
+                // ranges are served from the whole cached body
+                headers.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            } else {
+                headers.remove(HttpHeaderNames.ACCEPT_RANGES);
+            }
+            headers.remove(HttpHeaderNames.ETAG);
+            // the age is computed on every hit
+            headers.remove(HttpHeaderNames.AGE);
+            headers.add("X-Cached", "yes; ts=" + content.creationTs);
+            headers.add("Expires", new java.util.Date(content.expiresTs));
+            content.response = response;
+        }
+    }
+
+    /**
+     * Duplicates an HttpObject retaining its contents, the copy shares the
+     * buffers with the original.
+     *
+     * @param msg
+     * @return
+     */
+    public static HttpObject duplicateHttpObject(HttpObject msg) {
+        if (msg instanceof ByteBufHolder) {
+            return (HttpObject) ((ByteBufHolder) msg).retainedDuplicate();
+        } else if (msg instanceof HttpResponse) {
+            HttpResponse fr = (HttpResponse) msg;
+            return new DefaultHttpResponse(fr.protocolVersion(), fr.status(), fr.headers().copy());
         } else {
             LOG.severe("cannot duplicate HttpObject " + msg);
             throw new IllegalStateException("cannot duplicate HttpObject " + msg);
         }
     }
 
+    /**
+     * Duplicates the contents of an HttpObject, which may be a full response,
+     * retaining its buffer.
+     *
+     * @param msg
+     * @return
+     */
+    private static HttpContent duplicateContent(HttpContent msg) {
+        if (msg instanceof LastHttpContent) {
+            LastHttpContent last = new DefaultLastHttpContent(msg.content().retainedDuplicate());
+            last.trailingHeaders().set(((LastHttpContent) msg).trailingHeaders());
+            return last;
+        }
+        return new DefaultHttpContent(msg.content().retainedDuplicate());
+    }
+
     private class Evictor implements Runnable {
 
         @Override
         public void run() {
             cache.evict();
+            evictPendingResponses();
         }
     }
 }
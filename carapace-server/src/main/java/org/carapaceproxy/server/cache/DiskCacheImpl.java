@@ -0,0 +1,694 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.internal.PlatformDependent;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+
+/**
+ * Keeps contents in append-only memory-mapped segment files on local disk.
+ * <p>
+ * Only the index is kept in memory, hits are served by buffers which wrap the
+ * mapped region, without copying the contents on the heap. Segments are
+ * compacted when most of their records are dead, and the oldest segment is
+ * dropped when the disk space is over. A dropped segment is unmapped and
+ * deleted once the bodies served from it have been released.
+ *
+ * @author enrico.olivelli
+ */
+class DiskCacheImpl implements CacheImpl {
+
+    private static final int RECORD_MAGIC = 0xCA4ACE01;
+    private static final String SEGMENT_EXTENSION = ".segment";
+    // a segment is compacted when less than this fraction of it is alive
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    // estimated memory used by an entry of the index, other than the key
+    private static final long INDEX_ENTRY_MEM_USAGE = 100;
+
+    private final CacheStats stats;
+    private final Logger logger;
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long maxFileSize;
+
+    private final ConcurrentHashMap<ContentKey, DiskEntry> index = new ConcurrentHashMap<>();
+    private final AtomicLong memSize = new AtomicLong();
+    // segments still mapped, including the dropped ones which are being served
+    private final AtomicLong mappedSize = new AtomicLong();
+    // guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment activeSegment;
+    private long nextSegmentId = 1;
+    private boolean closed;
+
+    private volatile boolean verbose = false;
+    private volatile RemovedEntriesSink removedEntriesSink;
+
+    public DiskCacheImpl(CacheStats stats, File directory, long maxSize, long segmentSize, long maxFileSize, Logger logger) throws IOException {
+        this.stats = stats;
+        this.logger = logger;
+        this.directory = directory;
+        this.segmentSize = (int) segmentSize;
+        this.maxSegments = (int) Math.max(2, maxSize / segmentSize);
+        this.maxFileSize = maxFileSize;
+        directory.mkdirs();
+        if (!directory.isDirectory()) {
+            throw new IOException("Cannot create cache directory " + directory.getAbsolutePath());
+        }
+        // the index is not persisted, old segments are useless
+        File[] oldSegments = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_EXTENSION));
+        if (oldSegments != null) {
+            for (File file : oldSegments) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    /**
+     * Maximum size of an object which can be stored, headers included.
+     *
+     * @return the size in bytes
+     */
+    long getMaxFileSize() {
+        return maxFileSize > 0 ? Math.min(maxFileSize, segmentSize) : segmentSize;
+    }
+
+    @Override
+    public void setRemovedEntriesSink(RemovedEntriesSink sink) {
+        this.removedEntriesSink = sink;
+    }
+
+    @Override
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    @Override
+    public int getSize() {
+        return index.size();
+    }
+
+    @Override
+    public long getMemSize() {
+        return memSize.get();
+    }
+
+    long getDiskSize() {
+        return stats.getDiskUsed();
+    }
+
+    /**
+     * Disk space taken by the segment files, the ones already dropped are
+     * counted until the bodies served from them are released.
+     *
+     * @return the size in bytes
+     */
+    long getMappedSize() {
+        return mappedSize.get();
+    }
+
+    @Override
+    public void put(ContentKey key, ContentPayload payload) {
+        ByteBuf content = payload.content;
+        if (payload.response == null || content == null) {
+            return;
+        }
+        byte[] header = encodeHeader(payload.response);
+        byte[] method = encodeString(key.method);
+        byte[] host = encodeString(key.host);
+        byte[] uri = encodeString(key.uri);
+        byte[] variant = encodeString(key.variant);
+        byte[] etag = encodeString(payload.etag);
+        long bodyLength = content.readableBytes();
+        long recordLength = 4 + 4 // magic, length
+                + 8 * 6 // timestamps, stale periods and max age
+                + 4 * 5 + lengthOf(method) + lengthOf(host) + lengthOf(uri) + lengthOf(variant) + lengthOf(etag)
+                + 4 + header.length
+                + 4 + bodyLength;
+        if (header.length + bodyLength > getMaxFileSize() || recordLength > segmentSize) {
+            logger.log(Level.FINE, "content {0} too big for disk cache, {1} bytes", new Object[]{key.uri, recordLength});
+            return;
+        }
+        synchronized (this) {
+            Segment segment = allocate((int) recordLength, true);
+            if (segment == null) {
+                return;
+            }
+            int recordOffset = segment.writePosition;
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(recordOffset);
+            buffer.putInt(RECORD_MAGIC);
+            buffer.putInt((int) recordLength);
+            buffer.putLong(payload.creationTs);
+            buffer.putLong(payload.expiresTs);
+            buffer.putLong(payload.lastModified);
+            buffer.putLong(payload.staleWhileRevalidate);
+            buffer.putLong(payload.staleIfError);
+            buffer.putLong(payload.maxAge);
+            putString(buffer, method);
+            putString(buffer, host);
+            putString(buffer, uri);
+            putString(buffer, variant);
+            putString(buffer, etag);
+            buffer.putInt(header.length);
+            buffer.put(header);
+            buffer.putInt((int) bodyLength);
+            int bodyOffset = buffer.position();
+            // do not alter the indexes of the buffer, which may be served
+            // concurrently
+            buffer.limit(bodyOffset + (int) bodyLength);
+            content.getBytes(content.readerIndex(), buffer);
+            segment.writePosition += (int) recordLength;
+            segment.keys.add(key);
+            DiskEntry entry = new DiskEntry(segment, recordOffset, (int) recordLength, header.length,
+                    bodyOffset, (int) bodyLength, payload);
+            segment.liveBytes.addAndGet(recordLength);
+            stats.diskCached(recordLength);
+            memSize.addAndGet(getMemUsage(key, entry));
+            // published while holding the lock, not to be missed by a
+            // concurrent drop of the segment
+            DiskEntry old = index.put(key, entry);
+            if (old != null) {
+                release(key, old);
+            }
+        }
+        if (verbose) {
+            logger.log(Level.FINE, "content {0}: stored on disk, {1} bytes", new Object[]{key.uri, recordLength});
+        }
+    }
+
+    @Override
+    public ContentPayload get(ContentKey key) {
+        DiskEntry entry = index.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.getRetentionTs() < now) {
+            logger.log(Level.FINE, "expiring disk content {0}, expired at {1}", new Object[]{key.uri, new java.util.Date(entry.expiresTs)});
+            if (index.remove(key, entry)) {
+                release(key, entry);
+            }
+            entry = null;
+        }
+        // a content which is usable only in place of an error is a miss
+        boolean hit = entry != null && entry.expiresTs + entry.staleWhileRevalidate >= now;
+        stats.update(hit);
+        if (entry == null) {
+            return null;
+        }
+        if (hit) {
+            stats.diskHit();
+        }
+        entry.hits.incrementAndGet();
+        return entry.toPayload(new DiskPayload(entry), true);
+    }
+
+    @Override
+    public ContentPayload peek(ContentKey key) {
+        DiskEntry entry = index.get(key);
+        return entry != null ? entry.toPayload(new DiskPayload(entry), true) : null;
+    }
+
+    @Override
+    public boolean contains(ContentKey key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public boolean refresh(ContentKey key, long expiresTs) {
+        DiskEntry entry = index.get(key);
+        if (entry == null) {
+            return false;
+        }
+        // the index is authoritative, the record is not rewritten
+        entry.refresh(expiresTs);
+        logger.log(Level.FINE, "disk content {0} revalidated, expires at {1}", new Object[]{key.uri, new java.util.Date(expiresTs)});
+        return true;
+    }
+
+    @Override
+    public void remove(ContentKey key) {
+        DiskEntry entry = index.remove(key);
+        if (entry != null) {
+            release(key, entry);
+        }
+    }
+
+    private void release(ContentKey key, DiskEntry entry) {
+        entry.segment.liveBytes.addAndGet(-entry.recordLength);
+        stats.diskReleased(entry.recordLength);
+        memSize.addAndGet(-getMemUsage(key, entry));
+        RemovedEntriesSink sink = removedEntriesSink;
+        if (sink != null) {
+            sink.removed(key);
+        }
+    }
+
+    private static long getMemUsage(ContentKey key, DiskEntry entry) {
+        // the decoded headers are kept in memory, as chars
+        return key.getMemUsage() + INDEX_ENTRY_MEM_USAGE + 2L * entry.headerLength;
+    }
+
+    @Override
+    public void resize(long maxSize, long maxFileSize) {
+        // the limits of the disk are applied only on a new disk cache
+    }
+
+    @Override
+    public void evict() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<ContentKey, DiskEntry> e : index.entrySet()) {
+            DiskEntry entry = e.getValue();
+            if (entry.getRetentionTs() < now && index.remove(e.getKey(), entry)) {
+                if (verbose) {
+                    logger.log(Level.FINE, "content {0}: expired on disk at {1}", new Object[]{e.getKey().uri, new java.util.Date(entry.expiresTs)});
+                }
+                release(e.getKey(), entry);
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Moves the live records of the sealed segments which are mostly dead to
+     * the active segment, then drops them. Only the records of the compacted
+     * segments are visited, not the whole index.
+     */
+    synchronized void compact() {
+        for (Segment segment : new ArrayList<>(segments)) {
+            if (closed || segment == activeSegment
+                    || segment.liveBytes.get() >= segment.writePosition * COMPACTION_THRESHOLD) {
+                continue;
+            }
+            long available = (activeSegment != null ? segmentSize - activeSegment.writePosition : 0)
+                    + (long) (maxSegments - segments.size()) * segmentSize;
+            if (segment.liveBytes.get() > available) {
+                continue;
+            }
+            logger.log(Level.INFO, "compacting disk cache segment {0}, live {1} of {2} bytes",
+                    new Object[]{segment.file, segment.liveBytes.get(), segment.writePosition});
+            boolean completed = true;
+            for (ContentKey key : segment.keys) {
+                DiskEntry entry = index.get(key);
+                if (entry == null || entry.segment != segment) {
+                    continue;
+                }
+                Segment target = allocate(entry.recordLength, false);
+                if (target == null) {
+                    completed = false;
+                    break;
+                }
+                int recordOffset = target.writePosition;
+                ByteBuffer src = segment.buffer.duplicate();
+                src.position(entry.recordOffset);
+                src.limit(entry.recordOffset + entry.recordLength);
+                ByteBuffer dst = target.buffer.duplicate();
+                dst.position(recordOffset);
+                dst.put(src);
+                target.writePosition += entry.recordLength;
+                target.keys.add(key);
+                DiskEntry moved = new DiskEntry(entry, target, recordOffset);
+                if (index.replace(key, entry, moved)) {
+                    target.liveBytes.addAndGet(entry.recordLength);
+                    segment.liveBytes.addAndGet(-entry.recordLength);
+                }
+            }
+            if (completed) {
+                dropSegment(segment);
+            }
+        }
+    }
+
+    /**
+     * Finds room for a record, rolling to a new segment if needed.
+     *
+     * @param length
+     * @param dropOldest if the oldest segment can be dropped in order to make
+     * room
+     * @return the segment, or null if there is not room for the record
+     */
+    private Segment allocate(int length, boolean dropOldest) {
+        if (closed) {
+            return null;
+        }
+        if (activeSegment != null && segmentSize - activeSegment.writePosition >= length) {
+            return activeSegment;
+        }
+        if (segments.size() >= maxSegments) {
+            if (!dropOldest) {
+                return null;
+            }
+            dropSegment(segments.get(0));
+        }
+        File file = new File(directory, String.format("%020d", nextSegmentId++) + SEGMENT_EXTENSION);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentSize);
+            // the mapping stays valid after closing the file
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            activeSegment = new Segment(file, buffer);
+            segments.add(activeSegment);
+            mappedSize.addAndGet(segmentSize);
+            return activeSegment;
+        } catch (IOException err) {
+            logger.log(Level.SEVERE, "cannot create disk cache segment " + file.getAbsolutePath(), err);
+            deleteFile(file);
+            return null;
+        }
+    }
+
+    private void dropSegment(Segment segment) {
+        for (ContentKey key : segment.keys) {
+            DiskEntry entry = index.get(key);
+            if (entry != null && entry.segment == segment && index.remove(key, entry)) {
+                if (verbose) {
+                    logger.log(Level.FINE, "content {0}: removed from disk due to max size exceeded", new Object[]{key.uri});
+                }
+                release(key, entry);
+            }
+        }
+        segments.remove(segment);
+        if (activeSegment == segment) {
+            activeSegment = null;
+        }
+        // contents which are still being served keep the segment alive
+        releaseSegment(segment);
+    }
+
+    private void releaseSegment(Segment segment) {
+        if (segment.refCnt.decrementAndGet() > 0) {
+            return;
+        }
+        PlatformDependent.freeDirectBuffer(segment.buffer);
+        // the space is given back even if the region could not be unmapped
+        try (RandomAccessFile raf = new RandomAccessFile(segment.file, "rw")) {
+            raf.setLength(0);
+        } catch (IOException err) {
+            logger.log(Level.SEVERE, "cannot truncate disk cache segment " + segment.file.getAbsolutePath(), err);
+        }
+        deleteFile(segment.file);
+        mappedSize.addAndGet(-segmentSize);
+    }
+
+    private void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.log(Level.SEVERE, "cannot delete disk cache segment {0}", file.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public synchronized int clear() {
+        int currentSize = getSize();
+        for (Segment segment : new ArrayList<>(segments)) {
+            dropSegment(segment);
+        }
+        return currentSize;
+    }
+
+    @Override
+    public synchronized void close() {
+        clear();
+        closed = true;
+    }
+
+    @Override
+    public void inspectCache(CacheEntriesSink sink) {
+        index.forEach((key, entry) -> {
+            sink.accept(key, entry.toPayload(new ContentPayload(entry.creationTs), false));
+        });
+    }
+
+    static byte[] encodeHeader(HttpResponse response) {
+        StringBuilder header = new StringBuilder();
+        header.append(response.protocolVersion().text()).append(' ')
+                .append(response.status().code()).append(' ')
+                .append(response.status().reasonPhrase()).append("\r\n");
+        for (Map.Entry<String, String> h : response.headers()) {
+            header.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+        }
+        return header.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static HttpResponse decodeHeader(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        String[] lines = new String(bytes, StandardCharsets.UTF_8).split("\r\n");
+        String statusLine = lines[0];
+        int firstSpace = statusLine.indexOf(' ');
+        int secondSpace = statusLine.indexOf(' ', firstSpace + 1);
+        HttpVersion version = HttpVersion.valueOf(statusLine.substring(0, firstSpace));
+        HttpResponseStatus status = secondSpace > 0
+                ? new HttpResponseStatus(Integer.parseInt(statusLine.substring(firstSpace + 1, secondSpace)), statusLine.substring(secondSpace + 1))
+                : HttpResponseStatus.valueOf(Integer.parseInt(statusLine.substring(firstSpace + 1)));
+        HttpHeaders headers = new DefaultHttpHeaders(false);
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.add(line.substring(0, colon), line.substring(colon + 1).trim());
+            }
+        }
+        return new DefaultHttpResponse(version, status, headers);
+    }
+
+    private static byte[] encodeString(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int lengthOf(byte[] value) {
+        return value != null ? value.length : 0;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+    }
+
+    private static final class Segment {
+
+        private final File file;
+        private final MappedByteBuffer buffer;
+        // guarded by the cache
+        private int writePosition;
+        private final AtomicLong liveBytes = new AtomicLong();
+        // keys of the records written to this segment, some of them may have
+        // been removed or moved to another segment, guarded by the cache
+        private final List<ContentKey> keys = new ArrayList<>();
+        // one reference held by the cache until the segment is dropped, and
+        // one for every body served from it
+        private final AtomicInteger refCnt = new AtomicInteger(1);
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        private boolean tryRetain() {
+            while (true) {
+                int current = refCnt.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (refCnt.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * A content stored on disk, its body is read from the segment only while
+     * it is being served.
+     */
+    private final class DiskPayload extends ContentPayload {
+
+        private final DiskEntry entry;
+
+        private DiskPayload(DiskEntry entry) {
+            super(entry.creationTs);
+            this.entry = entry;
+        }
+
+        @Override
+        public ByteBuf retainedContent() {
+            if (entry.bodyLength == 0) {
+                return Unpooled.EMPTY_BUFFER;
+            }
+            Segment segment = entry.segment;
+            if (!segment.tryRetain()) {
+                // dropped and unmapped in the meantime
+                return null;
+            }
+            ByteBuffer body = segment.buffer.duplicate();
+            body.position(entry.bodyOffset);
+            body.limit(entry.bodyOffset + entry.bodyLength);
+            // the buffer wraps the mapped region, no copy
+            return new SegmentBody(segment, body.slice()).asReadOnly();
+        }
+    }
+
+    /**
+     * A body served from a segment, which holds a reference to the segment
+     * until it is released.
+     */
+    private final class SegmentBody extends UnpooledDirectByteBuf {
+
+        private final Segment segment;
+
+        private SegmentBody(Segment segment, ByteBuffer body) {
+            super(UnpooledByteBufAllocator.DEFAULT, body, body.remaining());
+            this.segment = segment;
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            releaseSegment(segment);
+        }
+    }
+
+    private static final class DiskEntry {
+
+        private final Segment segment;
+        private final int recordOffset;
+        private final int recordLength;
+        private final int headerLength;
+        private final int bodyOffset;
+        private final int bodyLength;
+        private final long creationTs;
+        private final long lastModified;
+        private final long staleWhileRevalidate;
+        private final long staleIfError;
+        private final long maxAge;
+        private final String etag;
+        private volatile long expiresTs;
+        // decoded once, replaced when the entry is revalidated
+        private volatile HttpResponse response;
+        // shared with the moved copies of the entry
+        private final AtomicInteger hits;
+
+        private DiskEntry(Segment segment, int recordOffset, int recordLength, int headerLength,
+                int bodyOffset, int bodyLength, ContentPayload payload) {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.headerLength = headerLength;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+            this.creationTs = payload.creationTs;
+            this.expiresTs = payload.expiresTs;
+            this.lastModified = payload.lastModified;
+            this.staleWhileRevalidate = payload.staleWhileRevalidate;
+            this.staleIfError = payload.staleIfError;
+            this.maxAge = payload.maxAge;
+            this.etag = payload.etag;
+            this.hits = new AtomicInteger();
+            this.response = withExpires(payload.response, expiresTs);
+        }
+
+        /**
+         * The same entry, with its record moved to another position.
+         */
+        private DiskEntry(DiskEntry entry, Segment segment, int recordOffset) {
+            int shift = recordOffset - entry.recordOffset;
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.recordLength = entry.recordLength;
+            this.headerLength = entry.headerLength;
+            this.bodyOffset = entry.bodyOffset + shift;
+            this.bodyLength = entry.bodyLength;
+            this.creationTs = entry.creationTs;
+            this.expiresTs = entry.expiresTs;
+            this.lastModified = entry.lastModified;
+            this.staleWhileRevalidate = entry.staleWhileRevalidate;
+            this.staleIfError = entry.staleIfError;
+            this.maxAge = entry.maxAge;
+            this.etag = entry.etag;
+            this.hits = entry.hits;
+            this.response = entry.response;
+        }
+
+        private void refresh(long expiresTs) {
+            response = withExpires(response, expiresTs);
+            this.expiresTs = expiresTs;
+        }
+
+        /**
+         * A copy of the response, with the Expires header of the entry: the
+         * response may be being sent to the clients, its headers are never
+         * modified.
+         */
+        private static HttpResponse withExpires(HttpResponse response, long expiresTs) {
+            HttpHeaders headers = response.headers().copy();
+            headers.set(HttpHeaderNames.EXPIRES, new java.util.Date(expiresTs));
+            return new DefaultHttpResponse(response.protocolVersion(), response.status(), headers);
+        }
+
+        private long getRetentionTs() {
+            return expiresTs + Math.max(staleWhileRevalidate, staleIfError);
+        }
+
+        private ContentPayload toPayload(ContentPayload payload, boolean withContents) {
+            payload.expiresTs = expiresTs;
+            payload.lastModified = lastModified;
+            payload.staleWhileRevalidate = staleWhileRevalidate;
+            payload.staleIfError = staleIfError;
+            payload.maxAge = maxAge;
+            payload.etag = etag;
+            payload.diskSize = recordLength;
+            payload.hits = hits.get();
+            if (withContents) {
+                // the body is read by retainedContent
+                payload.response = response;
+            }
+            return payload;
+        }
+    }
+
+}
@@ -0,0 +1,289 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+import org.carapaceproxy.server.config.CachePartitionConfiguration;
+import org.carapaceproxy.server.config.HostRequestMatcher;
+
+/**
+ * Cache split in partitions, each one reserved to the contents of some hosts
+ * and bounded by its own quota, so that the contents of an host cannot evict
+ * the contents of the others. The contents of the other hosts are kept in the
+ * shared cache, which receives as well the contents evicted from the
+ * partitions with the overflow eviction policy.
+ *
+ * @author enrico.olivelli
+ */
+class PartitionedCacheImpl implements CacheImpl {
+
+    private final List<Partition> partitions = new ArrayList<>();
+    private final Map<String, Partition> partitionsByHost = new HashMap<>();
+    private final CacheImpl shared;
+    private volatile long memoryMaxFileSize;
+    private final Logger logger;
+
+    private static final class Partition {
+
+        private final CachePartitionConfiguration configuration;
+        private final CacheStats stats;
+        private final CaffeineCacheImpl memory;
+
+        private Partition(CachePartitionConfiguration configuration, CacheStats stats, Logger logger) {
+            this.configuration = configuration;
+            this.stats = stats;
+            this.memory = new CaffeineCacheImpl(stats, configuration.getMaxSize(), logger);
+        }
+    }
+
+    /**
+     * @param configurations
+     * @param shared the cache of the contents which do not belong to any
+     * partition
+     * @param stats the overall stats
+     * @param memoryMaxFileSize contents bigger than this are kept on the disk
+     * tier of the shared cache, 0 if there is no disk tier
+     * @param logger
+     */
+    public PartitionedCacheImpl(List<CachePartitionConfiguration> configurations, CacheImpl shared, CacheStats stats,
+            long memoryMaxFileSize, Logger logger) {
+        this.shared = shared;
+        this.memoryMaxFileSize = memoryMaxFileSize;
+        this.logger = logger;
+        for (CachePartitionConfiguration configuration : configurations) {
+            Partition partition = new Partition(configuration, stats.getPartition(configuration.getId()), logger);
+            if (configuration.isOverflow()) {
+                partition.memory.setRemovalListener((key, payload, cause) -> {
+                    if (cause == RemovalCause.SIZE) {
+                        // the payload is released right after this call
+                        ContentPayload copy = ((ContentPayload) payload).retainedCopy();
+                        if (copy != null) {
+                            shared.put((ContentKey) key, copy);
+                            partition.stats.overflowed();
+                        }
+                    }
+                });
+            }
+            partitions.add(partition);
+            for (String host : configuration.getHosts()) {
+                partitionsByHost.put(host, partition);
+            }
+        }
+    }
+
+    CacheImpl getShared() {
+        return shared;
+    }
+
+    private Partition getPartition(ContentKey key) {
+        String host = key.host;
+        if (host == null) {
+            return null;
+        }
+        Partition partition = partitionsByHost.get(host);
+        if (partition != null) {
+            return partition;
+        }
+        return partitionsByHost.get(normalizeHost(host));
+    }
+
+    /**
+     * The value of a Host header without port, in lower case.
+     *
+     * @param host
+     * @return
+     */
+    static String normalizeHost(String host) {
+        return HostRequestMatcher.normalizeHost(host);
+    }
+
+    @Override
+    public void setRemovedEntriesSink(RemovedEntriesSink sink) {
+        // an element evicted from a partition may be in the shared cache
+        for (Partition partition : partitions) {
+            partition.memory.setRemovedEntriesSink(sink);
+        }
+        shared.setRemovedEntriesSink(sink);
+    }
+
+    @Override
+    public void setVerbose(boolean verbose) {
+        for (Partition partition : partitions) {
+            partition.memory.setVerbose(verbose);
+        }
+        shared.setVerbose(verbose);
+    }
+
+    @Override
+    public int getSize() {
+        int size = shared.getSize();
+        for (Partition partition : partitions) {
+            size += partition.memory.getSize();
+        }
+        return size;
+    }
+
+    @Override
+    public long getMemSize() {
+        long size = shared.getMemSize();
+        for (Partition partition : partitions) {
+            size += partition.memory.getMemSize();
+        }
+        return size;
+    }
+
+    @Override
+    public void put(ContentKey key, ContentPayload payload) {
+        Partition partition = getPartition(key);
+        if (partition == null
+                || memoryMaxFileSize > 0 && payload.heapSize + payload.directSize > memoryMaxFileSize) {
+            if (partition != null) {
+                logger.log(Level.FINE, "content {0} too big for memory, storing it in the shared cache", key.uri);
+                partition.memory.remove(key);
+            }
+            shared.put(key, payload);
+            return;
+        }
+        partition.memory.put(key, payload);
+        shared.remove(key);
+    }
+
+    @Override
+    public ContentPayload get(ContentKey key) {
+        Partition partition = getPartition(key);
+        if (partition == null) {
+            return shared.get(key);
+        }
+        ContentPayload cached = partition.memory.getIfNotExpired(key);
+        if (cached != null) {
+            partition.stats.update(cached.isServable(System.currentTimeMillis()));
+            return cached;
+        }
+        cached = shared.get(key);
+        partition.stats.overflowLookup(cached != null && cached.isServable(System.currentTimeMillis()));
+        return cached;
+    }
+
+    @Override
+    public ContentPayload peek(ContentKey key) {
+        Partition partition = getPartition(key);
+        ContentPayload cached = partition != null ? partition.memory.peek(key) : null;
+        return cached != null ? cached : shared.peek(key);
+    }
+
+    @Override
+    public boolean contains(ContentKey key) {
+        Partition partition = getPartition(key);
+        return partition != null && partition.memory.contains(key) || shared.contains(key);
+    }
+
+    @Override
+    public boolean refresh(ContentKey key, long expiresTs) {
+        Partition partition = getPartition(key);
+        return partition != null && partition.memory.refresh(key, expiresTs) || shared.refresh(key, expiresTs);
+    }
+
+    @Override
+    public void remove(ContentKey key) {
+        Partition partition = getPartition(key);
+        if (partition != null) {
+            partition.memory.remove(key);
+        }
+        shared.remove(key);
+    }
+
+    @Override
+    public void resize(long maxSize, long maxFileSize) {
+        // the quotas of the partitions are not global limits
+        shared.resize(maxSize, maxFileSize);
+        if (shared instanceof TieredCacheImpl) {
+            memoryMaxFileSize = maxFileSize;
+        }
+    }
+
+    @Override
+    public void evict() {
+        for (Partition partition : partitions) {
+            partition.memory.evict();
+        }
+        shared.evict();
+    }
+
+    @Override
+    public int clear() {
+        int size = 0;
+        for (Partition partition : partitions) {
+            size += partition.memory.clear();
+        }
+        return size + shared.clear();
+    }
+
+    @Override
+    public void close() {
+        for (Partition partition : partitions) {
+            partition.memory.close();
+        }
+        shared.close();
+    }
+
+    @Override
+    public void inspectCache(CacheEntriesSink sink) {
+        for (Partition partition : partitions) {
+            partition.memory.inspectCache(sink);
+        }
+        shared.inspectCache(sink);
+    }
+
+    /**
+     * Configuration, occupation and stats of every partition.
+     *
+     * @return the info by partition id
+     */
+    public Map<String, Map<String, Object>> getPartitionsInfo() {
+        Map<String, Map<String, Object>> res = new LinkedHashMap<>();
+        for (Partition partition : partitions) {
+            CachePartitionConfiguration configuration = partition.configuration;
+            CacheStats stats = partition.stats;
+            Map<String, Object> info = new HashMap<>();
+            info.put("hosts", configuration.getHosts());
+            info.put("maxSize", configuration.getMaxSize());
+            info.put("evictionPolicy", configuration.isOverflow() ? "overflow" : "drop");
+            info.put("cachesize", partition.memory.getSize());
+            info.put("hits", stats.getHits());
+            info.put("misses", stats.getMisses());
+            info.put("directMemoryUsed", stats.getDirectMemoryUsed());
+            info.put("heapMemoryUsed", stats.getHeapMemoryUsed());
+            info.put("totalMemoryUsed", stats.getTotalMemoryUsed());
+            info.put("overflows", stats.getOverflows());
+            res.put(configuration.getId(), info);
+        }
+        return res;
+    }
+
+}
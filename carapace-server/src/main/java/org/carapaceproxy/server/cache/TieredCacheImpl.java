@@ -0,0 +1,160 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+
+/**
+ * Two tiers cache: contents are kept in memory, entries evicted from memory
+ * and entries too big for memory are kept on disk.
+ *
+ * @author enrico.olivelli
+ */
+class TieredCacheImpl implements CacheImpl {
+
+    private final CaffeineCacheImpl memory;
+    private final DiskCacheImpl disk;
+    private final CacheStats stats;
+    private volatile long memoryMaxFileSize;
+    private final Logger logger;
+
+    public TieredCacheImpl(CaffeineCacheImpl memory, DiskCacheImpl disk, CacheStats stats, long memoryMaxFileSize, Logger logger) {
+        this.memory = memory;
+        this.disk = disk;
+        this.stats = stats;
+        this.memoryMaxFileSize = memoryMaxFileSize;
+        this.logger = logger;
+        memory.setRemovalListener((key, payload, cause) -> {
+            if (cause == RemovalCause.SIZE) {
+                // the payload is released right after this call
+                disk.put((ContentKey) key, (ContentPayload) payload);
+            }
+        });
+    }
+
+    DiskCacheImpl getDisk() {
+        return disk;
+    }
+
+    @Override
+    public void setRemovedEntriesSink(RemovedEntriesSink sink) {
+        // an element evicted from memory may be still on disk
+        memory.setRemovedEntriesSink(sink);
+        disk.setRemovedEntriesSink(sink);
+    }
+
+    @Override
+    public void setVerbose(boolean verbose) {
+        memory.setVerbose(verbose);
+        disk.setVerbose(verbose);
+    }
+
+    @Override
+    public int getSize() {
+        return memory.getSize() + disk.getSize();
+    }
+
+    @Override
+    public long getMemSize() {
+        return memory.getMemSize() + disk.getMemSize();
+    }
+
+    @Override
+    public void put(ContentKey key, ContentPayload payload) {
+        if (memoryMaxFileSize > 0 && payload.heapSize + payload.directSize > memoryMaxFileSize) {
+            logger.log(Level.FINE, "content {0} too big for memory, storing on disk", key.uri);
+            memory.remove(key);
+            disk.put(key, payload);
+            // the disk keeps its own copy
+            payload.clear();
+            return;
+        }
+        disk.remove(key);
+        memory.put(key, payload);
+    }
+
+    @Override
+    public ContentPayload get(ContentKey key) {
+        ContentPayload cached = memory.getIfNotExpired(key);
+        if (cached != null) {
+            stats.update(cached.isServable(System.currentTimeMillis()));
+            return cached;
+        }
+        return disk.get(key);
+    }
+
+    @Override
+    public ContentPayload peek(ContentKey key) {
+        ContentPayload cached = memory.peek(key);
+        return cached != null ? cached : disk.peek(key);
+    }
+
+    @Override
+    public boolean contains(ContentKey key) {
+        return memory.contains(key) || disk.contains(key);
+    }
+
+    @Override
+    public boolean refresh(ContentKey key, long expiresTs) {
+        return memory.refresh(key, expiresTs) || disk.refresh(key, expiresTs);
+    }
+
+    @Override
+    public void remove(ContentKey key) {
+        memory.remove(key);
+        disk.remove(key);
+    }
+
+    @Override
+    public void resize(long maxSize, long maxFileSize) {
+        // contents evicted from memory are moved to disk, the contents already
+        // in memory are kept there even if bigger than the new limit
+        memory.resize(maxSize, maxFileSize);
+        memoryMaxFileSize = maxFileSize;
+    }
+
+    @Override
+    public void evict() {
+        memory.evict();
+        disk.evict();
+    }
+
+    @Override
+    public int clear() {
+        return memory.clear() + disk.clear();
+    }
+
+    @Override
+    public void close() {
+        memory.close();
+        disk.close();
+    }
+
+    @Override
+    public void inspectCache(CacheEntriesSink sink) {
+        memory.inspectCache(sink);
+        disk.inspectCache(sink);
+    }
+
+}
@@ -28,12 +28,22 @@ public class BackendConfiguration {
     private final String host;
     private final int port;
     private final String probePath;
+    private final String hostPort;
+    private final int weight;
+    private final long slowStartWindow;
 
     public BackendConfiguration(String id, String host, int port, String probePath) {
+        this(id, host, port, probePath, 1, 0);
+    }
+
+    public BackendConfiguration(String id, String host, int port, String probePath, int weight, long slowStartWindow) {
         this.id = id;
         this.host = host;
         this.port = port;
         this.probePath = probePath;
+        this.hostPort = host + ":" + port;
+        this.weight = weight;
+        this.slowStartWindow = slowStartWindow;
     }
 
     public String getId() {
@@ -53,11 +63,32 @@ public class BackendConfiguration {
     }
 
     public String getHostPort() {
-        return host + ":" + port;
+        return hostPort;
+    }
+
+    /**
+     * Share of the traffic of the backend, relative to the other backends of
+     * the director
+     *
+     * @return the weight
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Time, in milliseconds, during which the traffic share of the backend
+     * ramps up to its full weight, after it has been reported as reachable
+     * again. 0 means no slow start.
+     *
+     * @return the window
+     */
+    public long getSlowStartWindow() {
+        return slowStartWindow;
     }
 
     @Override
     public String toString() {
-        return "BackendConfiguration{" + "id=" + id + ", host=" + host + ", port=" + port + ", probePath=" + probePath + '}';
+        return "BackendConfiguration{" + "id=" + id + ", host=" + host + ", port=" + port + ", probePath=" + probePath + ", weight=" + weight + ", slowStartWindow=" + slowStartWindow + '}';
     }
 }
@@ -0,0 +1,116 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.config;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A partition of the cache, reserved to the contents of a set of hosts
+ *
+ * @author enrico.olivelli
+ */
+public class CachePartitionConfiguration {
+
+    private final String id;
+    private final Set<String> hosts;
+    private final long maxSize;
+    private final boolean overflow;
+
+    /**
+     * @param id the name of the partition, used for the stats
+     * @param hosts the values of the Host header, without port
+     * @param maxSize the quota of the partition, in bytes
+     * @param overflow whether the contents evicted from the partition are
+     * moved to the shared cache, instead of being dropped
+     */
+    public CachePartitionConfiguration(String id, Set<String> hosts, long maxSize, boolean overflow) {
+        this.id = id;
+        Set<String> normalized = new LinkedHashSet<>();
+        for (String host : hosts) {
+            normalized.add(host.trim().toLowerCase(Locale.ENGLISH));
+        }
+        this.hosts = Collections.unmodifiableSet(normalized);
+        this.maxSize = maxSize;
+        this.overflow = overflow;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Set<String> getHosts() {
+        return hosts;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isOverflow() {
+        return overflow;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 5;
+        hash = 37 * hash + Objects.hashCode(this.id);
+        hash = 37 * hash + Objects.hashCode(this.hosts);
+        hash = 37 * hash + (int) (this.maxSize ^ (this.maxSize >>> 32));
+        hash = 37 * hash + (this.overflow ? 1 : 0);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final CachePartitionConfiguration other = (CachePartitionConfiguration) obj;
+        if (this.maxSize != other.maxSize) {
+            return false;
+        }
+        if (this.overflow != other.overflow) {
+            return false;
+        }
+        if (!Objects.equals(this.id, other.id)) {
+            return false;
+        }
+        if (!Objects.equals(this.hosts, other.hosts)) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "CachePartitionConfiguration{" + "id=" + id + ", hosts=" + hosts + ", maxSize=" + maxSize + ", overflow=" + overflow + '}';
+    }
+
+}
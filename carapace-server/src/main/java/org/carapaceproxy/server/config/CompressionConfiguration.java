@@ -0,0 +1,109 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.config;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Compression of the responses served on a route
+ *
+ * @author enrico.olivelli
+ */
+public class CompressionConfiguration {
+
+    public static final int DEFAULT_LEVEL = 6;
+    public static final long DEFAULT_MIN_SIZE = 1024;
+    public static final String DEFAULT_MIME_TYPES = "text/html,text/css,text/plain,text/xml,text/javascript,"
+            + "application/javascript,application/json,application/xml,image/svg+xml";
+
+    private final int level;
+    private final Set<String> mimeTypes;
+    private final long minSize;
+
+    public CompressionConfiguration(int level, String mimeTypes, long minSize) {
+        this.level = level;
+        Set<String> types = new HashSet<>();
+        for (String type : mimeTypes.split(",")) {
+            type = type.trim().toLowerCase(Locale.ENGLISH);
+            if (!type.isEmpty()) {
+                types.add(type);
+            }
+        }
+        this.mimeTypes = Collections.unmodifiableSet(types);
+        this.minSize = minSize;
+    }
+
+    public CompressionConfiguration() {
+        this(DEFAULT_LEVEL, DEFAULT_MIME_TYPES, DEFAULT_MIN_SIZE);
+    }
+
+    /**
+     * Gzip compression level, from 1 (fastest) to 9 (best compression).
+     *
+     * @return the level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    public Set<String> getMimeTypes() {
+        return mimeTypes;
+    }
+
+    /**
+     * Responses declaring a smaller Content-Length are not compressed.
+     *
+     * @return the minimum size in bytes
+     */
+    public long getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Checks the Content-Type of a response against the configured types.
+     * Parameters (like charset) are ignored and a type like "text/*" matches
+     * all the subtypes.
+     *
+     * @param contentType the value of the Content-Type header, can be null
+     * @return true if the content can be compressed
+     */
+    public boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType)
+                .trim().toLowerCase(Locale.ENGLISH);
+        if (mimeTypes.contains(type)) {
+            return true;
+        }
+        int slash = type.indexOf('/');
+        return slash > 0 && mimeTypes.contains(type.substring(0, slash) + "/*");
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionConfiguration{" + "level=" + level + ", mimeTypes=" + mimeTypes + ", minSize=" + minSize + '}';
+    }
+
+}
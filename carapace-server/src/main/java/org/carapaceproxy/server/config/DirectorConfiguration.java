@@ -30,14 +30,43 @@ import java.util.List;
 public class DirectorConfiguration {
 
     private final String id;
+    private final String policy;
     private final List<String> backends = new ArrayList<>();
 
     public static final String DEFAULT = "*";
 
     public static final String ALL_BACKENDS = "*";
 
+    /**
+     * Picks a random backend
+     */
+    public static final String POLICY_RANDOM = "random";
+    /**
+     * Picks the backend with the least number of outstanding requests
+     */
+    public static final String POLICY_LEAST_REQUESTS = "leastrequests";
+    /**
+     * Picks two random backends and uses the less loaded one, weighting
+     * outstanding requests with the recent response time
+     */
+    public static final String POLICY_POWER_OF_TWO_CHOICES = "p2c";
+    /**
+     * Sends all the requests of the same user (or session, if the user is not
+     * known) to the same backend
+     */
+    public static final String POLICY_CONSISTENT_HASHING = "consistenthashing";
+    /**
+     * Smooth weighted round robin, with slow start for recovered backends
+     */
+    public static final String POLICY_WEIGHTED = "weighted";
+
     public DirectorConfiguration(String id) {
+        this(id, POLICY_RANDOM);
+    }
+
+    public DirectorConfiguration(String id, String policy) {
         this.id = id;
+        this.policy = policy;
     }
 
     public DirectorConfiguration addBackend(String id) {
@@ -51,6 +80,10 @@ public class DirectorConfiguration {
         return id;
     }
 
+    public String getPolicy() {
+        return policy;
+    }
+
     public List<String> getBackends() {
         // no copy for efficiency, at runtime this bean is immutable
         return backends;
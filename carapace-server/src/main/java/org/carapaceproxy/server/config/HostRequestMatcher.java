@@ -0,0 +1,161 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.config;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Matches the requests to some virtual hosts, by the Host header, and then
+ * applies a matcher to the rest of the request. A host is either exact, like
+ * www.example.com, or a wildcard, like *.example.com, which matches all the
+ * subdomains of example.com but not example.com itself.
+ *
+ * @author enrico.olivelli
+ */
+public class HostRequestMatcher implements RequestMatcher {
+
+    private final Set<String> hosts;
+    private final Set<String> wildcardDomains;
+    private final RequestMatcher matcher;
+
+    /**
+     * @param hosts exact and wildcard hosts, without port
+     * @param matcher the matcher applied to the requests to the hosts
+     */
+    public HostRequestMatcher(Collection<String> hosts, RequestMatcher matcher) {
+        Set<String> exact = new LinkedHashSet<>();
+        Set<String> wildcards = new LinkedHashSet<>();
+        for (String host : hosts) {
+            host = host.trim().toLowerCase(Locale.ENGLISH);
+            if (isWildcard(host)) {
+                wildcards.add(host.substring(2));
+            } else {
+                exact.add(host);
+            }
+        }
+        this.hosts = Collections.unmodifiableSet(exact);
+        this.wildcardDomains = Collections.unmodifiableSet(wildcards);
+        this.matcher = matcher;
+    }
+
+    public static boolean isWildcard(String host) {
+        return host.startsWith("*.");
+    }
+
+    /**
+     * Validates a host of the configuration.
+     *
+     * @param host
+     * @return true if the host is a name, optionally starting with "*."
+     */
+    public static boolean isValidHost(String host) {
+        String name = isWildcard(host) ? host.substring(2) : host;
+        return !name.isEmpty() && name.indexOf('*') < 0 && name.indexOf(':') < 0 && name.indexOf('/') < 0
+                && !name.startsWith(".") && !name.endsWith(".") && !name.contains("..");
+    }
+
+    /**
+     * The value of a Host header without port, in lower case.
+     *
+     * @param host
+     * @return
+     */
+    public static String normalizeHost(String host) {
+        int colon = host.lastIndexOf(':');
+        if (colon > host.lastIndexOf(']')) {
+            host = host.substring(0, colon);
+        }
+        return host.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * The exact hosts
+     *
+     * @return the hosts, in lower case
+     */
+    public Set<String> getHosts() {
+        return hosts;
+    }
+
+    /**
+     * The domains whose subdomains are matched
+     *
+     * @return the domains, in lower case and without the leading "*."
+     */
+    public Set<String> getWildcardDomains() {
+        return wildcardDomains;
+    }
+
+    /**
+     * The matcher of the requests to the hosts
+     *
+     * @return
+     */
+    public RequestMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * @param host a normalized host, see {@link #normalizeHost(java.lang.String)}
+     * @return
+     */
+    public boolean matchesHost(String host) {
+        if (hosts.contains(host)) {
+            return true;
+        }
+        for (String domain : wildcardDomains) {
+            if (isSubdomain(host, domain)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param host a normalized host
+     * @param domain
+     * @return true if the host is a subdomain, at any level, of the domain
+     */
+    public static boolean isSubdomain(String host, String domain) {
+        int dot = host.length() - domain.length() - 1;
+        return dot > 0 && host.charAt(dot) == '.' && host.endsWith(domain);
+    }
+
+    @Override
+    public RoutingKey matches(HttpRequest request) {
+        String host = request.headers().get(HttpHeaderNames.HOST);
+        if (host == null || !matchesHost(normalizeHost(host))) {
+            return null;
+        }
+        return matcher.matches(request);
+    }
+
+    @Override
+    public String toString() {
+        return "HostRequestMatcher{" + "hosts=" + hosts + ", wildcardDomains=" + wildcardDomains + ", matcher=" + matcher + '}';
+    }
+
+}
@@ -34,6 +34,18 @@ public class NetworkListenerConfiguration {
     private final String defaultCertificate;
     private final String sslTrustoreFile;
     private final String sslTrustorePassword;
+    private final int writeBufferLowWaterMark;
+    private final int writeBufferHighWaterMark;
+
+    /**
+     * Default Netty write buffer low water mark, in bytes
+     */
+    public static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+
+    /**
+     * Default Netty write buffer high water mark, in bytes
+     */
+    public static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
 
     public HostPort getKey() {
         return new HostPort(host, port);
@@ -94,18 +106,18 @@ public class NetworkListenerConfiguration {
     }
 
     public NetworkListenerConfiguration(String host, int port) {
-        this.host = host;
-        this.port = port;
-        this.ssl = false;
-        this.sslCiphers = null;
-        this.ocps = false;
-        this.defaultCertificate = null;
-        this.sslTrustoreFile = null;
-        this.sslTrustorePassword = null;
+        this(host, port, false, false, null, null, null, null);
     }
 
     public NetworkListenerConfiguration(String host, int port, boolean ssl,
             boolean ocps, String sslCiphers, String defaultCertificate, String sslTrustoreFile, String sslTrustorePassword) {
+        this(host, port, ssl, ocps, sslCiphers, defaultCertificate, sslTrustoreFile, sslTrustorePassword,
+                DEFAULT_WRITE_BUFFER_LOW_WATER_MARK, DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK);
+    }
+
+    public NetworkListenerConfiguration(String host, int port, boolean ssl,
+            boolean ocps, String sslCiphers, String defaultCertificate, String sslTrustoreFile, String sslTrustorePassword,
+            int writeBufferLowWaterMark, int writeBufferHighWaterMark) {
         this.host = host;
         this.port = port;
         this.ssl = ssl;
@@ -114,6 +126,8 @@ public class NetworkListenerConfiguration {
         this.ocps = ocps;
         this.sslTrustoreFile = sslTrustoreFile;
         this.sslTrustorePassword = sslTrustorePassword;
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
     }
 
     public String getSslTrustoreFile() {
@@ -148,6 +162,26 @@ public class NetworkListenerConfiguration {
         return sslCiphers;
     }
 
+    /**
+     * When the data waiting to be written to a client falls below this
+     * threshold the proxy starts again reading from the backend.
+     *
+     * @return the number of bytes
+     */
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    /**
+     * When the data waiting to be written to a client exceeds this threshold
+     * the proxy stops reading from the backend.
+     *
+     * @return the number of bytes
+     */
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
     @Override
     public int hashCode() {
         int hash = 5;
@@ -159,6 +193,8 @@ public class NetworkListenerConfiguration {
         hash = 29 * hash + Objects.hashCode(this.defaultCertificate);
         hash = 29 * hash + Objects.hashCode(this.sslTrustoreFile);
         hash = 29 * hash + Objects.hashCode(this.sslTrustorePassword);
+        hash = 29 * hash + this.writeBufferLowWaterMark;
+        hash = 29 * hash + this.writeBufferHighWaterMark;
         return hash;
     }
 
@@ -183,6 +219,12 @@ public class NetworkListenerConfiguration {
         if (this.ocps != other.ocps) {
             return false;
         }
+        if (this.writeBufferLowWaterMark != other.writeBufferLowWaterMark) {
+            return false;
+        }
+        if (this.writeBufferHighWaterMark != other.writeBufferHighWaterMark) {
+            return false;
+        }
         if (!Objects.equals(this.host, other.host)) {
             return false;
         }
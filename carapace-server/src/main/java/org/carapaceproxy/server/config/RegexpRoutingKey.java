@@ -0,0 +1,116 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.config;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.MatchResult;
+
+/**
+ * Routing key made of the groups of a regular expression, the attribute "0"
+ * being the whole input and "1", "2"... the groups. The groups are extracted
+ * only when they are read.
+ *
+ * @author enrico.olivelli
+ */
+public final class RegexpRoutingKey implements RoutingKey {
+
+    private final MatchResult result;
+    private final String input;
+    private Map<String, String> attributes;
+
+    /**
+     * @param result a successful match, it must not be modified afterwards
+     */
+    public RegexpRoutingKey(MatchResult result) {
+        this.result = result;
+        this.input = null;
+    }
+
+    /**
+     * Key of an expression without groups which matched the whole input
+     *
+     * @param input
+     */
+    public RegexpRoutingKey(String input) {
+        this.result = null;
+        this.input = input;
+    }
+
+    public int groupCount() {
+        return result != null ? result.groupCount() : 0;
+    }
+
+    /**
+     * @param group
+     * @return the value of the group, null if it did not participate in the
+     * match
+     */
+    public String group(int group) {
+        return result != null ? result.group(group) : input;
+    }
+
+    @Override
+    public String getAttribute(String key) {
+        int group = parseGroup(key);
+        return group >= 0 && group <= groupCount() ? group(group) : null;
+    }
+
+    /**
+     * Parses the number of a group, as written by {@link Integer#toString(int)}
+     *
+     * @return the number, -1 if the key is not a number of a group
+     */
+    private static int parseGroup(String key) {
+        int length = key.length();
+        if (length == 0 || length > 9 || length > 1 && key.charAt(0) == '0') {
+            return -1;
+        }
+        int group = 0;
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            group = group * 10 + c - '0';
+        }
+        return group;
+    }
+
+    @Override
+    public synchronized Map<String, String> getAttributes() {
+        if (attributes == null) {
+            int groups = groupCount();
+            Map<String, String> map = new HashMap<>();
+            for (int i = 0; i <= groups; i++) {
+                map.put(Integer.toString(i), group(i));
+            }
+            attributes = Collections.unmodifiableMap(map);
+        }
+        return attributes;
+    }
+
+    @Override
+    public String toString() {
+        return "{" + getAttributes() + '}';
+    }
+
+}
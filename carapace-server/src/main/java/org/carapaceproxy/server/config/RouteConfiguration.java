@@ -30,12 +30,33 @@ public class RouteConfiguration {
     private final String action;
     private final boolean enabled;
     private final RequestMatcher matcher;
+    private final int stuckRequestTimeout;
+    private final int maxRetries;
+    private final CompressionConfiguration compression;
+
+    public static final int DEFAULT_MAX_RETRIES = 1;
 
     public RouteConfiguration(String id, String action, boolean enabled, RequestMatcher matcher) {
+        this(id, action, enabled, matcher, 0);
+    }
+
+    public RouteConfiguration(String id, String action, boolean enabled, RequestMatcher matcher, int stuckRequestTimeout) {
+        this(id, action, enabled, matcher, stuckRequestTimeout, DEFAULT_MAX_RETRIES);
+    }
+
+    public RouteConfiguration(String id, String action, boolean enabled, RequestMatcher matcher, int stuckRequestTimeout, int maxRetries) {
+        this(id, action, enabled, matcher, stuckRequestTimeout, maxRetries, null);
+    }
+
+    public RouteConfiguration(String id, String action, boolean enabled, RequestMatcher matcher, int stuckRequestTimeout, int maxRetries,
+            CompressionConfiguration compression) {
         this.id = id;
         this.action = action;
         this.enabled = enabled;
         this.matcher = matcher;
+        this.stuckRequestTimeout = stuckRequestTimeout;
+        this.maxRetries = maxRetries;
+        this.compression = compression;
     }
 
     public String getId() {
@@ -54,6 +75,37 @@ public class RouteConfiguration {
         return matcher;
     }
 
+    /**
+     * Timeout after which a request to the backend without any activity is
+     * considered stuck.
+     *
+     * @return the timeout in milliseconds, 0 means
+     * connectionsmanager.stuckrequesttimeout
+     */
+    public int getStuckRequestTimeout() {
+        return stuckRequestTimeout;
+    }
+
+    /**
+     * How many times a request can be sent to another backend when the
+     * chosen one fails before sending back any response.
+     *
+     * @return the maximum number of retries for each request, 0 disables
+     * retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Compression of the responses served on this route.
+     *
+     * @return the configuration, null if compression is disabled
+     */
+    public CompressionConfiguration getCompression() {
+        return compression;
+    }
+
     public RoutingKey matches(HttpRequest request) {
         if (!enabled) {
             return null;
@@ -20,8 +20,6 @@
 package org.carapaceproxy.server.config;
 
 import io.netty.handler.codec.http.HttpRequest;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -29,27 +27,113 @@ import java.util.regex.Pattern;
 public class URIRequestMatcher implements RequestMatcher {
 
     private final Pattern expression;
+    private final String literalPrefix;
+    private final boolean literal;
+    private final boolean prefix;
+    // contained by every matching URI, checked before running the expression
+    private final String requiredLiteral;
 
     public URIRequestMatcher(String expression) {
         this.expression = Pattern.compile(expression);
+        StringBuilder literalPrefix = new StringBuilder();
+        String rest = expression.substring(parseLiteralPrefix(expression, literalPrefix));
+        this.literalPrefix = literalPrefix.toString();
+        this.literal = rest.isEmpty() || rest.equals("$");
+        this.prefix = rest.equals(".*") || rest.equals(".*$");
+        if (this.literalPrefix.isEmpty() && rest.startsWith(".*")) {
+            // like .*/some/path/.*
+            StringBuilder infix = new StringBuilder();
+            parseLiteralPrefix(rest.substring(2), infix);
+            this.requiredLiteral = infix.toString();
+        } else {
+            this.requiredLiteral = this.literalPrefix;
+        }
+    }
+
+    /**
+     * Reads the characters which the URI must start with in order to match
+     * the expression.
+     *
+     * @param expression
+     * @param literalPrefix
+     * @return the position of the first character of the expression which is
+     * not part of the literal prefix
+     */
+    private static int parseLiteralPrefix(String expression, StringBuilder literalPrefix) {
+        if (expression.indexOf('|') >= 0) {
+            // the alternatives may not have a common prefix
+            return 0;
+        }
+        int length = expression.length();
+        int i = expression.startsWith("^") ? 1 : 0;
+        while (i < length) {
+            char c = expression.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                if (next == length || Character.isLetterOrDigit(expression.charAt(next))) {
+                    // classes, anchors, quotes and back references
+                    break;
+                }
+                c = expression.charAt(next++);
+            } else if (".[]{}()*+?^$".indexOf(c) >= 0 || Character.isSurrogate(c)) {
+                break;
+            }
+            if (next < length && "*+?{".indexOf(expression.charAt(next)) >= 0) {
+                // a quantified character may be missing or repeated
+                break;
+            }
+            literalPrefix.append(c);
+            i = next;
+        }
+        return i;
     }
 
     @Override
     public RoutingKey matches(HttpRequest request) {
-        Matcher matcher = expression.matcher(request.uri());
+        String uri = request.uri();
+        if (!uri.contains(requiredLiteral)) {
+            return null;
+        }
+        Matcher matcher = expression.matcher(uri);
         if (matcher.matches()) {
-            int groups = matcher.groupCount();
-            Map<String, String> attributes = new HashMap<>();
-            for (int i = 0; i <= groups; i++) {
-                attributes.put(i + "", matcher.group(i));
-            }
-            return new AttributesRoutingKey(attributes);
+            // the matcher is not used any more, the groups are read lazily
+            return new RegexpRoutingKey(matcher);
         } else {
             return null;
         }
     }
     private static final Logger LOG = Logger.getLogger(URIRequestMatcher.class.getName());
 
+    /**
+     * The characters which every matching URI starts with.
+     *
+     * @return the prefix, it may be empty
+     */
+    public String getLiteralPrefix() {
+        return literalPrefix;
+    }
+
+    /**
+     * The expression matches only the URI which is equal to its
+     * {@link #getLiteralPrefix() literal prefix}.
+     *
+     * @return
+     */
+    public boolean isLiteral() {
+        return literal;
+    }
+
+    /**
+     * The expression matches every URI which starts with its
+     * {@link #getLiteralPrefix() literal prefix}, unless the rest of the URI
+     * contains line terminators.
+     *
+     * @return
+     */
+    public boolean isPrefix() {
+        return prefix;
+    }
+
     @Override
     public String toString() {
         return "URIRequestMatcher{" + "regexp='" + expression + "'}";
@@ -0,0 +1,255 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.carapaceproxy.MapResult;
+import org.carapaceproxy.client.EndpointKey;
+import org.carapaceproxy.server.config.BackendConfiguration;
+
+/**
+ * The backends of a director, with all the possible orderings precomputed,
+ * so that selecting the backends for a request does not allocate memory.
+ *
+ * @author enrico.olivelli
+ */
+final class DirectorBackends {
+
+    private final String[] ids;
+    private final EndpointKey[] keys;
+    private final String[] hostPorts;
+    private final int[] weights;
+    private final long[] slowStartWindows;
+    // state of smooth weighted round robin, one for every event loop
+    private final ThreadLocal<long[]> currentWeights;
+    private final Ordering[] orderings;
+    private final MaglevTable lookupTable;
+
+    /**
+     * The backends starting from one of them. It keeps the results of the
+     * routes which selected it, one for every backend, so that they are
+     * created once.
+     */
+    static final class Ordering extends AbstractList<String> implements RandomAccess {
+
+        private final String[] ids;
+        private final ConcurrentHashMap<String, AtomicReferenceArray<MapResult>> resultsByRoute = new ConcurrentHashMap<>();
+
+        private Ordering(String[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public String get(int index) {
+            return ids[index];
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        /**
+         * The results of a route
+         *
+         * @param routeId
+         * @return the results by position of the backend in this ordering,
+         * null where not created yet
+         */
+        AtomicReferenceArray<MapResult> getResults(String routeId) {
+            AtomicReferenceArray<MapResult> results = resultsByRoute.get(routeId);
+            if (results == null) {
+                results = new AtomicReferenceArray<>(ids.length);
+                AtomicReferenceArray<MapResult> existing = resultsByRoute.putIfAbsent(routeId, results);
+                if (existing != null) {
+                    results = existing;
+                }
+            }
+            return results;
+        }
+    }
+
+    DirectorBackends(List<String> backendIds, Map<String, BackendConfiguration> backends, boolean consistentHashing) {
+        int size = backendIds.size();
+        this.ids = backendIds.toArray(new String[size]);
+        this.keys = new EndpointKey[size];
+        this.hostPorts = new String[size];
+        this.weights = new int[size];
+        this.slowStartWindows = new long[size];
+        this.currentWeights = ThreadLocal.withInitial(() -> new long[size]);
+        this.orderings = new Ordering[size];
+        for (int i = 0; i < size; i++) {
+            BackendConfiguration backend = backends.get(ids[i]);
+            if (backend != null) {
+                keys[i] = EndpointKey.make(backend.getHost(), backend.getPort());
+                hostPorts[i] = backend.getHostPort();
+                weights[i] = backend.getWeight();
+                slowStartWindows[i] = backend.getSlowStartWindow();
+            }
+            String[] ordering = new String[size];
+            for (int j = 0; j < size; j++) {
+                ordering[j] = ids[(i + j) % size];
+            }
+            orderings[i] = new Ordering(ordering);
+        }
+        this.lookupTable = consistentHashing ? new MaglevTable(ids) : null;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    String getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * The endpoint of a backend
+     *
+     * @param index
+     * @return the key, null if the backend is not configured
+     */
+    EndpointKey getKey(int index) {
+        return keys[index];
+    }
+
+    /**
+     * The id of the backend in the {@link org.carapaceproxy.server.backends.BackendHealthManager}
+     *
+     * @param index
+     * @return the host:port of the backend, null if the backend is not
+     * configured
+     */
+    String getHostPort(int index) {
+        return hostPorts[index];
+    }
+
+    int getWeight(int index) {
+        return weights[index];
+    }
+
+    long getSlowStartWindow(int index) {
+        return slowStartWindows[index];
+    }
+
+    /**
+     * Smooth weighted round robin (the same algorithm of nginx): every
+     * backend accumulates its weight, the backend with the highest
+     * accumulated value is chosen and loses the total weight. The sequence is
+     * evenly interleaved, for instance weights 5,1,1 give a,a,b,a,c,a,a.
+     * <p>
+     * Every thread keeps its own sequence, so that the event loops do not
+     * contend on a lock. Each sequence respects the weights, and so does
+     * their union.
+     *
+     * @param effectiveWeights weight of every backend for this round
+     * @return the index of the chosen backend
+     */
+    int nextWeighted(WeightFunction effectiveWeights) {
+        long[] currentWeights = this.currentWeights.get();
+        int best = 0;
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            long weight = effectiveWeights.weight(this, i);
+            currentWeights[i] += weight;
+            total += weight;
+            if (currentWeights[i] > currentWeights[best]) {
+                best = i;
+            }
+        }
+        currentWeights[best] -= total;
+        return best;
+    }
+
+    @FunctionalInterface
+    interface WeightFunction {
+
+        long weight(DirectorBackends directorBackends, int index);
+    }
+
+    /**
+     * The backend which owns the given key, according to consistent hashing
+     *
+     * @param key
+     * @return the index of the backend
+     * @see MaglevTable
+     */
+    int lookup(String key) {
+        return lookupTable.lookup(key);
+    }
+
+    /**
+     * The backend at the given position of the preference order of the key
+     *
+     * @param key
+     * @param probe 0 for the owner of the key
+     * @return the index of the backend
+     * @see MaglevTable#lookup(java.lang.String, int)
+     */
+    int lookup(String key, int probe) {
+        return lookupTable.lookup(key, probe);
+    }
+
+    /**
+     * The ordering which a shared result has been created for, results only
+     * keep a read-only view of it.
+     *
+     * @param result
+     * @return the ordering, null if the result has not been created for an
+     * ordering of this director
+     */
+    Ordering getOrdering(MapResult result) {
+        List<String> candidates = result.getBackendCandidates();
+        if (candidates == null || candidates.isEmpty() || candidates.size() != ids.length) {
+            return null;
+        }
+        String first = candidates.get(0);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i].equals(first)) {
+                AtomicReferenceArray<MapResult> results = orderings[i].resultsByRoute.get(result.routeid);
+                if (results != null && results.get(result.getBackendCandidateIndex()) == result) {
+                    return orderings[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The chosen backend followed by all the others, which will be used as
+     * fallbacks.
+     *
+     * @param index the chosen backend
+     * @return an immutable list
+     */
+    List<String> startingFrom(int index) {
+        if (ids.length == 0) {
+            return Collections.emptyList();
+        }
+        return orderings[index];
+    }
+
+}
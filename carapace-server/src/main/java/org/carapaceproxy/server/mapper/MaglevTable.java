@@ -0,0 +1,121 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Consistent hashing lookup table, as described in "Maglev: A Fast and
+ * Reliable Software Network Load Balancer". Every backend fills the table
+ * following its own permutation, so the table is evenly shared among the
+ * backends and adding or removing a backend moves only a small fraction of
+ * the keys.
+ *
+ * @author enrico.olivelli
+ */
+final class MaglevTable {
+
+    /**
+     * Size of the table, it must be a prime number far greater than the
+     * number of backends
+     */
+    static final int SIZE = 65537;
+
+    private static final HashFunction OFFSET_HASH = Hashing.murmur3_32(0xcafe);
+    private static final HashFunction SKIP_HASH = Hashing.murmur3_32(0xbabe);
+
+    private final int[] entries;
+
+    MaglevTable(String[] backendIds) {
+        this.entries = new int[SIZE];
+        int size = backendIds.length;
+        if (size == 0) {
+            return;
+        }
+        long[] offsets = new long[size];
+        long[] skips = new long[size];
+        long[] next = new long[size];
+        for (int i = 0; i < size; i++) {
+            offsets[i] = Integer.toUnsignedLong(OFFSET_HASH.hashString(backendIds[i], StandardCharsets.UTF_8).asInt()) % SIZE;
+            skips[i] = Integer.toUnsignedLong(SKIP_HASH.hashString(backendIds[i], StandardCharsets.UTF_8).asInt()) % (SIZE - 1) + 1;
+        }
+        Arrays.fill(entries, -1);
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < size; i++) {
+                int candidate = (int) ((offsets[i] + next[i] * skips[i]) % SIZE);
+                while (entries[candidate] >= 0) {
+                    next[i]++;
+                    candidate = (int) ((offsets[i] + next[i] * skips[i]) % SIZE);
+                }
+                entries[candidate] = i;
+                next[i]++;
+                if (++filled == SIZE) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the backend which owns a key.
+     *
+     * @param key
+     * @return the index of the backend
+     */
+    int lookup(String key) {
+        return entries[Math.floorMod(mix(key.hashCode()), SIZE)];
+    }
+
+    /**
+     * The preference order of a key: the owner first, then the backends of
+     * other entries of the table, visited with a step which depends on the
+     * key. The keys of a backend are spread over all the other backends, not
+     * moved to a single neighbour. A backend can appear more than once.
+     *
+     * @param key
+     * @param probe 0 for the owner, see {@link #lookup(java.lang.String)}
+     * @return the index of the backend
+     */
+    int lookup(String key, int probe) {
+        int hash = key.hashCode();
+        long slot = Math.floorMod(mix(hash), SIZE);
+        // SIZE is prime, so every step visits all the entries
+        long step = Math.floorMod(mix(hash ^ 0x9e3779b9), SIZE - 1) + 1;
+        return entries[(int) ((slot + probe * step) % SIZE)];
+    }
+
+    /**
+     * Spreads the bits of {@link String#hashCode()}, which is cached by the
+     * string and so does not cost allocations (murmur3 finalizer)
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import io.netty.handler.codec.http.HttpRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.carapaceproxy.server.config.HostRequestMatcher;
+import org.carapaceproxy.server.config.RegexpRoutingKey;
+import org.carapaceproxy.server.config.RequestMatcher;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.config.RoutingKey;
+import org.carapaceproxy.server.config.URIRequestMatcher;
+
+/**
+ * Index of the enabled routes by the literal prefix of their URI expressions.
+ * The prefixes are kept in a radix trie, so only the routes whose prefix is
+ * a prefix of the URI are evaluated, whatever the number of routes. Literal
+ * and prefix expressions are matched without running the regular expression,
+ * the others are evaluated in route order.
+ *
+ * @author enrico.olivelli
+ */
+final class RouteIndex {
+
+    private static final byte OTHER = 0;
+    private static final byte LITERAL = 1;
+    private static final byte PREFIX = 2;
+
+    private final RouteConfiguration[] routes;
+    private final RequestMatcher[] matchers;
+    private final byte[] kinds;
+    private final int[] prefixLengths;
+    // the keys of the literal routes do not depend on the request
+    private final RoutingKey[] literalKeys;
+    private final Node root = new Node("");
+
+    private static final class Node {
+
+        // the characters from the parent node
+        private String edge;
+        // sorted by first character of their edge
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        // positions of the routes with this literal prefix, in route order
+        private int[] routes = new int[0];
+
+        private Node(String edge) {
+            this.edge = edge;
+        }
+
+        private Node child(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            return index >= 0 ? children[index] : null;
+        }
+
+        private void addChild(Node child) {
+            int index = -Arrays.binarySearch(keys, child.edge.charAt(0)) - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newKeys[index] = child.edge.charAt(0);
+            newChildren[index] = child;
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            keys = newKeys;
+            children = newChildren;
+        }
+
+        private void replaceChild(Node child) {
+            children[Arrays.binarySearch(keys, child.edge.charAt(0))] = child;
+        }
+
+        private void addRoute(int position) {
+            routes = Arrays.copyOf(routes, routes.length + 1);
+            routes[routes.length - 1] = position;
+        }
+
+        /**
+         * The first route after the given position.
+         *
+         * @param from
+         * @return the position of the route, {@link Integer#MAX_VALUE} if there
+         * is no such route
+         */
+        private int firstAfter(int from) {
+            int index = Arrays.binarySearch(routes, from + 1);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index < routes.length ? routes[index] : Integer.MAX_VALUE;
+        }
+    }
+
+    RouteIndex(List<RouteConfiguration> allRoutes) {
+        this(allRoutes, false);
+    }
+
+    /**
+     * @param allRoutes
+     * @param hostMatched true if the routes are the ones of the virtual host
+     * of the requests, so that the hosts of the routes are not checked again
+     */
+    RouteIndex(List<RouteConfiguration> allRoutes, boolean hostMatched) {
+        List<RouteConfiguration> enabled = new ArrayList<>(allRoutes.size());
+        for (RouteConfiguration route : allRoutes) {
+            if (route.isEnabled()) {
+                enabled.add(route);
+            }
+        }
+        this.routes = enabled.toArray(new RouteConfiguration[enabled.size()]);
+        this.matchers = new RequestMatcher[routes.length];
+        this.kinds = new byte[routes.length];
+        this.prefixLengths = new int[routes.length];
+        this.literalKeys = new RoutingKey[routes.length];
+        for (int position = 0; position < routes.length; position++) {
+            RequestMatcher matcher = routes[position].getMatcher();
+            if (hostMatched && matcher instanceof HostRequestMatcher) {
+                matcher = ((HostRequestMatcher) matcher).getMatcher();
+            }
+            matchers[position] = matcher;
+            String prefix = "";
+            if (matcher instanceof URIRequestMatcher) {
+                URIRequestMatcher uriMatcher = (URIRequestMatcher) matcher;
+                prefix = uriMatcher.getLiteralPrefix();
+                if (uriMatcher.isLiteral()) {
+                    kinds[position] = LITERAL;
+                    literalKeys[position] = wholeUriKey(prefix);
+                } else if (uriMatcher.isPrefix()) {
+                    kinds[position] = PREFIX;
+                }
+            }
+            prefixLengths[position] = prefix.length();
+            insert(prefix, position);
+        }
+    }
+
+    private void insert(String prefix, int position) {
+        Node node = root;
+        int depth = 0;
+        while (depth < prefix.length()) {
+            Node child = node.child(prefix.charAt(depth));
+            if (child == null) {
+                child = new Node(prefix.substring(depth));
+                node.addChild(child);
+                child.addRoute(position);
+                return;
+            }
+            int common = 0;
+            int max = Math.min(child.edge.length(), prefix.length() - depth);
+            while (common < max && child.edge.charAt(common) == prefix.charAt(depth + common)) {
+                common++;
+            }
+            if (common < child.edge.length()) {
+                // split the edge, the new node takes the common part
+                Node split = new Node(child.edge.substring(0, common));
+                child.edge = child.edge.substring(common);
+                split.addChild(child);
+                node.replaceChild(split);
+                child = split;
+            }
+            node = child;
+            depth += common;
+        }
+        node.addRoute(position);
+    }
+
+    int size() {
+        return routes.length;
+    }
+
+    RouteConfiguration getRoute(int position) {
+        return routes[position];
+    }
+
+    /**
+     * Finds the next route whose literal prefix is a prefix of the URI.
+     *
+     * @param uri
+     * @param from the position of the last evaluated route, -1 to start from
+     * the first one
+     * @return the position of the route, -1 if there is no other candidate
+     */
+    int nextCandidate(String uri, int from) {
+        int best = Integer.MAX_VALUE;
+        Node node = root;
+        int depth = 0;
+        while (true) {
+            best = Math.min(best, node.firstAfter(from));
+            if (depth == uri.length()) {
+                break;
+            }
+            Node child = node.child(uri.charAt(depth));
+            if (child == null || !uri.startsWith(child.edge, depth)) {
+                break;
+            }
+            depth += child.edge.length();
+            node = child;
+        }
+        return best == Integer.MAX_VALUE ? -1 : best;
+    }
+
+    /**
+     * Applies a candidate route, see {@link #nextCandidate(java.lang.String, int)},
+     * to the request.
+     *
+     * @param position
+     * @param request
+     * @return the routing key, null if the route does not match
+     */
+    RoutingKey matches(int position, HttpRequest request) {
+        String uri = request.uri();
+        switch (kinds[position]) {
+            case LITERAL:
+                return uri.length() == prefixLengths[position] ? literalKeys[position] : null;
+            case PREFIX:
+                if (!hasLineTerminator(uri, prefixLengths[position])) {
+                    return wholeUriKey(uri);
+                }
+                return matchers[position].matches(request);
+            default:
+                return matchers[position].matches(request);
+        }
+    }
+
+    /**
+     * The key of an expression without groups, as built by
+     * {@link URIRequestMatcher}
+     */
+    private static RoutingKey wholeUriKey(String uri) {
+        return new RegexpRoutingKey(uri);
+    }
+
+    /**
+     * Characters which are not matched by the "." of a regular expression
+     */
+    private static boolean hasLineTerminator(String uri, int from) {
+        for (int i = from; i < uri.length(); i++) {
+            switch (uri.charAt(i)) {
+                case '\n':
+                case '\r':
+                case '\u0085':
+                case '\u2028':
+                case '\u2029':
+                    return true;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+}
@@ -27,10 +27,16 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.carapaceproxy.EndpointMapper;
+import org.carapaceproxy.EndpointStats;
 import org.carapaceproxy.MapResult;
+import org.carapaceproxy.client.ConnectionsManagerStats;
+import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.configstore.ConfigurationStore;
 import org.carapaceproxy.server.RequestHandler;
 import static org.carapaceproxy.server.StaticContentsManager.DEFAULT_INTERNAL_SERVER_ERROR;
@@ -40,8 +46,10 @@ import org.carapaceproxy.server.backends.BackendHealthManager;
 import org.carapaceproxy.server.config.ActionConfiguration;
 import org.carapaceproxy.server.config.BackendConfiguration;
 import org.carapaceproxy.server.config.BackendSelector;
+import org.carapaceproxy.server.config.CompressionConfiguration;
 import org.carapaceproxy.server.config.ConfigurationNotValidException;
 import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.carapaceproxy.server.config.HostRequestMatcher;
 import static org.carapaceproxy.server.config.DirectorConfiguration.ALL_BACKENDS;
 import org.carapaceproxy.server.config.MatchAllRequestMatcher;
 import org.carapaceproxy.server.config.RequestMatcher;
@@ -49,6 +57,7 @@ import org.carapaceproxy.server.config.RouteConfiguration;
 import org.carapaceproxy.server.config.RoutingKey;
 import org.carapaceproxy.server.config.URIRequestMatcher;
 import org.carapaceproxy.server.filters.UrlEncodedQueryString;
+import org.carapaceproxy.utils.CoarseClock;
 
 /**
  * Standard Endpoint mapping
@@ -59,14 +68,23 @@ public class StandardEndpointMapper extends EndpointMapper {
     private final Map<String, DirectorConfiguration> directors = new HashMap<>();
     private final List<String> allbackendids = new ArrayList<>();
     private final List<RouteConfiguration> routes = new ArrayList<>();
+    // built lazily, routes can be added after the configuration
+    private volatile VirtualHostIndex virtualHostIndex;
     private final Map<String, ActionConfiguration> actions = new HashMap<>();
     private final BackendSelector backendSelector;
+    // built lazily, backends and directors can be added after the director
+    private final ConcurrentHashMap<String, DirectorBackends> directorBackends = new ConcurrentHashMap<>();
+    private volatile ConnectionsManagerStats connectionsManagerStats;
+    private volatile BackendHealthManager backendHealthManager;
     private String defaultNotFoundAction = "not-found";
     private String defaultInternalErrorAction = "internal-error";
     private String forceDirectorParameter = "x-director";
     private String forceBackendParameter = "x-backend";
 
     private static final int MAX_IDS = 200;
+    private static final double CONSISTENT_HASHING_LOAD_FACTOR = 1.25;
+    // weights are scaled in order to ramp up smoothly during slow start
+    private static final long WEIGHT_SCALE = 1000;
     private static final Logger LOG = Logger.getLogger(StandardEndpointMapper.class.getName());
     private static final String ACME_CHALLENGE_URI_PATTERN = "/\\.well-known/acme-challenge/";
     private DynamicCertificatesManager dynamicCertificateManger;
@@ -121,9 +139,17 @@ public class StandardEndpointMapper extends EndpointMapper {
                 String host = properties.getProperty(prefix + "host", "localhost");
                 int port = Integer.parseInt(properties.getProperty(prefix + "port", "8086"));
                 String probePath = properties.getProperty(prefix + "probePath", null);
-                LOG.info("configured backend " + id + " " + host + ":" + port + " enabled:" + enabled);
+                int weight = Integer.parseInt(properties.getProperty(prefix + "weight", "1"));
+                if (weight < 0) {
+                    throw new ConfigurationNotValidException(prefix + "weight cannot be negative");
+                }
+                long slowStartWindow = Long.parseLong(properties.getProperty(prefix + "slowstartwindow", "0"));
+                if (slowStartWindow < 0) {
+                    throw new ConfigurationNotValidException(prefix + "slowstartwindow cannot be negative");
+                }
+                LOG.info("configured backend " + id + " " + host + ":" + port + " weight:" + weight + " slowstartwindow:" + slowStartWindow + " enabled:" + enabled);
                 if (enabled) {
-                    BackendConfiguration config = new BackendConfiguration(id, host, port, probePath);
+                    BackendConfiguration config = new BackendConfiguration(id, host, port, probePath, weight, slowStartWindow);
                     addBackend(config);
                 }
             }
@@ -135,15 +161,30 @@ public class StandardEndpointMapper extends EndpointMapper {
             if (!id.isEmpty()) {
                 boolean enabled = Boolean.parseBoolean(properties.getProperty(prefix + "enabled", "false"));
                 String backends = properties.getProperty(prefix + "backends", "");
-                LOG.info("configured director " + id + " backends:" + backends + ", enabled:" + enabled);
+                String policy = properties.getProperty(prefix + "policy", DirectorConfiguration.POLICY_RANDOM);
+                switch (policy) {
+                    case DirectorConfiguration.POLICY_RANDOM:
+                    case DirectorConfiguration.POLICY_LEAST_REQUESTS:
+                    case DirectorConfiguration.POLICY_POWER_OF_TWO_CHOICES:
+                    case DirectorConfiguration.POLICY_CONSISTENT_HASHING:
+                    case DirectorConfiguration.POLICY_WEIGHTED:
+                        break;
+                    default:
+                        throw new ConfigurationNotValidException(prefix + "policy can be only '" + DirectorConfiguration.POLICY_RANDOM
+                                + "', '" + DirectorConfiguration.POLICY_LEAST_REQUESTS
+                                + "', '" + DirectorConfiguration.POLICY_POWER_OF_TWO_CHOICES
+                                + "', '" + DirectorConfiguration.POLICY_CONSISTENT_HASHING
+                                + "' and '" + DirectorConfiguration.POLICY_WEIGHTED + "'");
+                }
+                LOG.info("configured director " + id + " backends:" + backends + ", policy:" + policy + ", enabled:" + enabled);
                 if (enabled) {
-                    DirectorConfiguration config = new DirectorConfiguration(id);
+                    DirectorConfiguration config = new DirectorConfiguration(id, policy);
                     String[] backendids = backends.split(",");
                     for (String backendId : backendids) {
                         if (!backendId.equals(DirectorConfiguration.ALL_BACKENDS) && !this.backends.containsKey(backendId)) {
                             throw new ConfigurationNotValidException("while configuring director '" + id + "': backend '" + backendId + "' does not exist");
                         }
-                        config.addBackend(id);
+                        config.addBackend(backendId);
                     }
                     addDirector(config);
                 }
@@ -174,14 +215,59 @@ public class StandardEndpointMapper extends EndpointMapper {
                         throw new ConfigurationNotValidException(prefix + "match can be only 'all' and 'regexp' at the moment");
 
                 }
-                LOG.log(Level.INFO, "configured route {0} action: {1} enabled: {2} matcher: {3}", new Object[]{id, action, enabled, matcher});
-                RouteConfiguration config = new RouteConfiguration(id, action, enabled, matcher);
+                List<String> hosts = new ArrayList<>();
+                for (String host : properties.getProperty(prefix + "hosts", "").split(",")) {
+                    host = host.trim();
+                    if (host.isEmpty()) {
+                        continue;
+                    }
+                    if (!HostRequestMatcher.isValidHost(host)) {
+                        throw new ConfigurationNotValidException("Invalid host '" + host + "' for " + prefix + "hosts, only names like www.example.com or *.example.com are allowed");
+                    }
+                    hosts.add(host);
+                }
+                if (!hosts.isEmpty()) {
+                    matcher = new HostRequestMatcher(hosts, matcher);
+                }
+                int stuckRequestTimeout = Integer.parseInt(properties.getProperty(prefix + "stuckrequesttimeout", "0"));
+                if (stuckRequestTimeout < 0) {
+                    throw new ConfigurationNotValidException(prefix + "stuckrequesttimeout cannot be negative");
+                }
+                int maxRetries = Integer.parseInt(properties.getProperty(prefix + "maxretries", RouteConfiguration.DEFAULT_MAX_RETRIES + ""));
+                if (maxRetries < 0) {
+                    throw new ConfigurationNotValidException(prefix + "maxretries cannot be negative");
+                }
+                CompressionConfiguration compression = null;
+                if (Boolean.parseBoolean(properties.getProperty(prefix + "compression.enabled", "false"))) {
+                    int level = Integer.parseInt(properties.getProperty(prefix + "compression.level", CompressionConfiguration.DEFAULT_LEVEL + ""));
+                    if (level < 1 || level > 9) {
+                        throw new ConfigurationNotValidException(prefix + "compression.level must be between 1 and 9");
+                    }
+                    String mimeTypes = properties.getProperty(prefix + "compression.mimetypes", CompressionConfiguration.DEFAULT_MIME_TYPES);
+                    long minSize = Long.parseLong(properties.getProperty(prefix + "compression.minsize", CompressionConfiguration.DEFAULT_MIN_SIZE + ""));
+                    if (minSize < 0) {
+                        throw new ConfigurationNotValidException(prefix + "compression.minsize cannot be negative");
+                    }
+                    compression = new CompressionConfiguration(level, mimeTypes, minSize);
+                    if (compression.getMimeTypes().isEmpty()) {
+                        throw new ConfigurationNotValidException(prefix + "compression.mimetypes cannot be empty");
+                    }
+                }
+                LOG.log(Level.INFO, "configured route {0} action: {1} enabled: {2} matcher: {3} stuckrequesttimeout: {4} maxretries: {5} compression: {6}", new Object[]{id, action, enabled, matcher, stuckRequestTimeout, maxRetries, compression});
+                RouteConfiguration config = new RouteConfiguration(id, action, enabled, matcher, stuckRequestTimeout, maxRetries, compression);
                 addRoute(config);
             }
         }
     }
 
-    private final class RandomBackendSelector implements BackendSelector {
+    /**
+     * Applies the balancing policy of the director. The state of the
+     * endpoints is read from live stats and the results are precomputed
+     * orderings of the backends, so no memory is allocated per request.
+     */
+    private final class LoadAwareBackendSelector implements BackendSelector {
+
+        private final DirectorBackends.WeightFunction effectiveWeight = this::effectiveWeight;
 
         @Override
         public List<String> selectBackends(String userId, String sessionId, String director, RoutingKey key) {
@@ -190,29 +276,187 @@ public class StandardEndpointMapper extends EndpointMapper {
                 LOG.log(Level.SEVERE, "Director '" + director + "' not configured, while handling request key=" + key + " userId=" + userId + " sessionId=" + sessionId);
                 return Collections.emptyList();
             }
-            if (directorConfig.getBackends().contains(ALL_BACKENDS)) {
-                ArrayList<String> result = new ArrayList<>(allbackendids);
-                Collections.shuffle(result);
-                return result;
-            } else if (directorConfig.getBackends().size() == 1) {
-                return directorConfig.getBackends();
-            } else {
-                ArrayList<String> result = new ArrayList<>(directorConfig.getBackends());
-                Collections.shuffle(result);
-                return result;
+            DirectorBackends directorBackends = getDirectorBackends(directorConfig);
+            int size = directorBackends.size();
+            if (size <= 1) {
+                return directorBackends.startingFrom(0);
+            }
+            switch (directorConfig.getPolicy()) {
+                case DirectorConfiguration.POLICY_LEAST_REQUESTS:
+                    return directorBackends.startingFrom(selectLeastRequests(directorBackends));
+                case DirectorConfiguration.POLICY_POWER_OF_TWO_CHOICES:
+                    return directorBackends.startingFrom(selectPowerOfTwoChoices(directorBackends));
+                case DirectorConfiguration.POLICY_WEIGHTED:
+                    return directorBackends.startingFrom(directorBackends.nextWeighted(effectiveWeight));
+                case DirectorConfiguration.POLICY_CONSISTENT_HASHING: {
+                    String hashKey = userId != null ? userId : sessionId;
+                    if (hashKey == null) {
+                        return directorBackends.startingFrom(selectPowerOfTwoChoices(directorBackends));
+                    }
+                    return directorBackends.startingFrom(selectConsistentHashing(directorBackends, hashKey));
+                }
+                case DirectorConfiguration.POLICY_RANDOM:
+                default:
+                    return directorBackends.startingFrom(ThreadLocalRandom.current().nextInt(size));
             }
         }
 
+        private int selectLeastRequests(DirectorBackends directorBackends) {
+            int size = directorBackends.size();
+            // start from a random backend in order to break ties
+            int start = ThreadLocalRandom.current().nextInt(size);
+            int best = start;
+            long bestLoad = Long.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                int index = (start + i) % size;
+                long load = outstandingRequests(directorBackends.getKey(index));
+                if (load < bestLoad) {
+                    best = index;
+                    bestLoad = load;
+                }
+            }
+            return best;
+        }
+
+        private int selectPowerOfTwoChoices(DirectorBackends directorBackends) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int size = directorBackends.size();
+            int first = random.nextInt(size);
+            int second = random.nextInt(size - 1);
+            if (second >= first) {
+                second++;
+            }
+            return loadCost(directorBackends.getKey(first)) <= loadCost(directorBackends.getKey(second)) ? first : second;
+        }
+
+        /**
+         * Consistent hashing with bounded loads: the owner of the key is
+         * skipped when it is unavailable or serving more than
+         * {@link #CONSISTENT_HASHING_LOAD_FACTOR} times the average load. The
+         * next backends are taken from the preference order of the key, so
+         * only the keys of the owner are moved and they are spread over all
+         * the other backends.
+         */
+        private int selectConsistentHashing(DirectorBackends directorBackends, String hashKey) {
+            int size = directorBackends.size();
+            long totalLoad = 0;
+            for (int i = 0; i < size; i++) {
+                totalLoad += outstandingRequests(directorBackends.getKey(i));
+            }
+            long maxLoad = (long) Math.ceil(CONSISTENT_HASHING_LOAD_FACTOR * (totalLoad + 1) / size);
+            int owner = directorBackends.lookup(hashKey);
+            int fallback = -1;
+            // the probes can repeat a backend, the expected number of probes
+            // is small unless almost all the backends are excluded
+            int maxProbes = 4 * size;
+            for (int probe = 0; probe < maxProbes; probe++) {
+                int index = probe == 0 ? owner : directorBackends.lookup(hashKey, probe);
+                if (!isAvailable(directorBackends, index)) {
+                    continue;
+                }
+                if (outstandingRequests(directorBackends.getKey(index)) < maxLoad) {
+                    return index;
+                }
+                if (fallback < 0) {
+                    fallback = index;
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                int index = (owner + i) % size;
+                if (isAvailable(directorBackends, index)) {
+                    if (outstandingRequests(directorBackends.getKey(index)) < maxLoad) {
+                        return index;
+                    }
+                    if (fallback < 0) {
+                        fallback = index;
+                    }
+                }
+            }
+            return fallback >= 0 ? fallback : owner;
+        }
+
+        private boolean isAvailable(DirectorBackends directorBackends, int index) {
+            BackendHealthManager healthManager = backendHealthManager;
+            return healthManager == null || healthManager.isAvailable(directorBackends.getId(index));
+        }
+
+        /**
+         * The configured weight, during the slow start window of a recovered
+         * backend it grows linearly from almost zero. Unavailable backends
+         * have no weight.
+         */
+        private long effectiveWeight(DirectorBackends directorBackends, int index) {
+            if (!isAvailable(directorBackends, index)) {
+                return 0;
+            }
+            long weight = directorBackends.getWeight(index) * WEIGHT_SCALE;
+            long slowStartWindow = directorBackends.getSlowStartWindow(index);
+            BackendHealthManager healthManager = backendHealthManager;
+            String hostPort = directorBackends.getHostPort(index);
+            if (slowStartWindow <= 0 || healthManager == null || hostPort == null || weight == 0) {
+                return weight;
+            }
+            long reachableSince = healthManager.getReachableSince(hostPort);
+            if (reachableSince <= 0) {
+                return weight;
+            }
+            long elapsed = CoarseClock.currentTimeMillis() - reachableSince;
+            if (elapsed >= slowStartWindow) {
+                return weight;
+            }
+            return Math.max(1, weight * Math.max(0, elapsed) / slowStartWindow);
+        }
+
+        private long outstandingRequests(EndpointKey key) {
+            EndpointStats endpointStats = getEndpointStats(key);
+            return endpointStats == null ? 0 : endpointStats.getActiveConnections().sum();
+        }
+
+        /**
+         * Outstanding requests weighted with the recent response time, a slow
+         * backend is considered more loaded than a fast one.
+         */
+        private long loadCost(EndpointKey key) {
+            EndpointStats endpointStats = getEndpointStats(key);
+            if (endpointStats == null) {
+                return 0;
+            }
+            return (endpointStats.getActiveConnections().sum() + 1) * Math.max(1, endpointStats.getRecentTotalTime());
+        }
+
+        private EndpointStats getEndpointStats(EndpointKey key) {
+            ConnectionsManagerStats stats = connectionsManagerStats;
+            if (stats == null || key == null) {
+                return null;
+            }
+            return stats.getEndpointStats(key);
+        }
+
+    }
+
+    private DirectorBackends getDirectorBackends(DirectorConfiguration directorConfig) {
+        DirectorBackends res = directorBackends.get(directorConfig.getId());
+        if (res != null) {
+            return res;
+        }
+        return directorBackends.computeIfAbsent(directorConfig.getId(), id -> {
+            List<String> backendIds = directorConfig.getBackends().contains(ALL_BACKENDS)
+                    ? allbackendids
+                    : directorConfig.getBackends();
+            return new DirectorBackends(backendIds, backends,
+                    DirectorConfiguration.POLICY_CONSISTENT_HASHING.equals(directorConfig.getPolicy()));
+        });
     }
 
     public StandardEndpointMapper() {
-        this.backendSelector = new RandomBackendSelector();
+        this.backendSelector = new LoadAwareBackendSelector();
     }
 
     public void addDirector(DirectorConfiguration service) throws ConfigurationNotValidException {
         if (directors.put(service.getId(), service) != null) {
             throw new ConfigurationNotValidException("service " + service.getId() + " is already configured");
         }
+        directorBackends.clear();
     }
 
     public void addBackend(BackendConfiguration backend) throws ConfigurationNotValidException {
@@ -220,6 +464,7 @@ public class StandardEndpointMapper extends EndpointMapper {
             throw new ConfigurationNotValidException("backend " + backend.getId() + " is already configured");
         }
         allbackendids.add(backend.getId());
+        directorBackends.clear();
     }
 
     public void addAction(ActionConfiguration action) throws ConfigurationNotValidException {
@@ -233,6 +478,16 @@ public class StandardEndpointMapper extends EndpointMapper {
             throw new ConfigurationNotValidException("route " + route.getId() + " is already configured");
         }
         routes.add(route);
+        virtualHostIndex = null;
+    }
+
+    private VirtualHostIndex getVirtualHostIndex() {
+        VirtualHostIndex index = virtualHostIndex;
+        if (index == null) {
+            index = new VirtualHostIndex(routes);
+            virtualHostIndex = index;
+        }
+        return index;
     }
 
     @Override
@@ -245,14 +500,25 @@ public class StandardEndpointMapper extends EndpointMapper {
         this.dynamicCertificateManger = manager;
     }
 
+    @Override
+    public void setConnectionsManagerStats(ConnectionsManagerStats stats) {
+        this.connectionsManagerStats = stats;
+    }
+
+    @Override
+    public void setBackendHealthManager(BackendHealthManager backendHealthManager) {
+        this.backendHealthManager = backendHealthManager;
+    }
+
     @Override
     public MapResult map(HttpRequest request, String userId, String sessionId, BackendHealthManager backendHealthManager, RequestHandler requestHandler) {
         boolean somethingMatched = false;
-        for (RouteConfiguration route : routes) {
-            if (!route.isEnabled()) {
-                continue;
-            }
-            RoutingKey matchResult = route.matches(request);
+        RouteIndex index = getVirtualHostIndex().getRoutes(request);
+        String uri = request.uri();
+        // the routes which can match the request, in order
+        for (int position = index.nextCandidate(uri, -1); position >= 0; position = index.nextCandidate(uri, position)) {
+            RouteConfiguration route = index.getRoute(position);
+            RoutingKey matchResult = index.matches(position, request);
             if (matchResult != null) {
                 ActionConfiguration action = actions.get(route.getAction());
                 if (action == null) {
@@ -296,20 +562,25 @@ public class StandardEndpointMapper extends EndpointMapper {
                     selectedBackends = backendSelector.selectBackends(userId, sessionId, director, matchResult);
                 }
                 somethingMatched = somethingMatched | !selectedBackends.isEmpty();
-                LOG.log(Level.FINEST, "selected {0} backends for {1}, director is {2}", new Object[]{selectedBackends, request.uri(), director});
-                for (String backendId : selectedBackends) {
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.log(Level.FINEST, "selected {0} backends for {1}, director is {2}", new Object[]{selectedBackends, request.uri(), director});
+                }
+                for (int i = 0; i < selectedBackends.size(); i++) {
+                    String backendId = selectedBackends.get(i);
                     switch (action.getType()) {
                         case ActionConfiguration.TYPE_PROXY: {
                             BackendConfiguration backend = this.backends.get(backendId);
                             if (backend != null && backendHealthManager.isAvailable(backendId)) {
-                                return new MapResult(backend.getHost(), backend.getPort(), MapResult.Action.PROXY, route.getId());
+                                return backendResult(backend, MapResult.Action.PROXY, route.getId(), route.getStuckRequestTimeout(),
+                                        route.getMaxRetries(), route.getCompression(), selectedBackends, i);
                             }
                             break;
                         }
                         case ActionConfiguration.TYPE_CACHE:
                             BackendConfiguration backend = this.backends.get(backendId);
                             if (backend != null && backendHealthManager.isAvailable(backendId)) {
-                                return new MapResult(backend.getHost(), backend.getPort(), MapResult.Action.CACHE, route.getId());
+                                return backendResult(backend, MapResult.Action.CACHE, route.getId(), route.getStuckRequestTimeout(),
+                                        route.getMaxRetries(), route.getCompression(), selectedBackends, i);
                             }
                             break;
                         default:
@@ -325,6 +596,56 @@ public class StandardEndpointMapper extends EndpointMapper {
         }
     }
 
+    @Override
+    public MapResult mapRetry(HttpRequest request, MapResult previous, BackendHealthManager backendHealthManager) {
+        List<String> candidates = previous.getBackendCandidates();
+        if (candidates == null) {
+            return null;
+        }
+        // the results of the orderings are shared by the retries as well
+        List<String> ordering = null;
+        for (DirectorBackends backends : directorBackends.values()) {
+            ordering = backends.getOrdering(previous);
+            if (ordering != null) {
+                break;
+            }
+        }
+        for (int i = previous.getBackendCandidateIndex() + 1; i < candidates.size(); i++) {
+            String backendId = candidates.get(i);
+            BackendConfiguration backend = this.backends.get(backendId);
+            if (backend != null && backendHealthManager.isAvailable(backendId)
+                    && !(backend.getHost().equals(previous.host) && backend.getPort() == previous.port)) {
+                return backendResult(backend, previous.action, previous.routeid, previous.getStuckRequestTimeout(),
+                        previous.getMaxRetries(), previous.getCompression(), ordering != null ? ordering : candidates, i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The result which sends the request to a backend. The results for the
+     * precomputed orderings of the backends are created once and shared by
+     * the requests, the others are created every time.
+     */
+    private static MapResult backendResult(BackendConfiguration backend, MapResult.Action action, String routeId,
+            int stuckRequestTimeout, int maxRetries, CompressionConfiguration compression,
+            List<String> candidates, int index) {
+        AtomicReferenceArray<MapResult> results = null;
+        if (candidates instanceof DirectorBackends.Ordering) {
+            results = ((DirectorBackends.Ordering) candidates).getResults(routeId);
+            MapResult result = results.get(index);
+            if (result != null) {
+                return result;
+            }
+        }
+        MapResult result = new MapResult(backend.getHost(), backend.getPort(), action, routeId,
+                stuckRequestTimeout, maxRetries, compression, candidates, index);
+        if (results != null) {
+            results.set(index, result);
+        }
+        return result;
+    }
+
     public String getDefaultNotFoundAction() {
         return defaultNotFoundAction;
     }
@@ -0,0 +1,127 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.carapaceproxy.server.config.HostRequestMatcher;
+import org.carapaceproxy.server.config.RouteConfiguration;
+
+/**
+ * Dispatches the requests to the routes of their virtual host, by the Host
+ * header, so that the routes of the other hosts are not evaluated. Every
+ * virtual host has its own {@link RouteIndex} with its routes and the routes
+ * without hosts, in route order, so the result is the same as evaluating all
+ * the routes.
+ *
+ * @author enrico.olivelli
+ */
+final class VirtualHostIndex {
+
+    // routes without hosts, for the other hosts
+    private final RouteIndex anyHost;
+    private final Map<String, RouteIndex> byHost = new HashMap<>();
+    // routes of the subdomains of the wildcard domains
+    private final Map<String, RouteIndex> byWildcardDomain = new HashMap<>();
+
+    VirtualHostIndex(List<RouteConfiguration> routes) {
+        Set<String> hosts = new LinkedHashSet<>();
+        Set<String> wildcardDomains = new LinkedHashSet<>();
+        List<RouteConfiguration> anyHostRoutes = new ArrayList<>();
+        for (RouteConfiguration route : routes) {
+            if (!(route.getMatcher() instanceof HostRequestMatcher)) {
+                anyHostRoutes.add(route);
+            } else if (route.isEnabled()) {
+                HostRequestMatcher matcher = (HostRequestMatcher) route.getMatcher();
+                hosts.addAll(matcher.getHosts());
+                wildcardDomains.addAll(matcher.getWildcardDomains());
+            }
+        }
+        this.anyHost = new RouteIndex(anyHostRoutes);
+        for (String host : hosts) {
+            List<RouteConfiguration> hostRoutes = new ArrayList<>();
+            for (RouteConfiguration route : routes) {
+                if (!(route.getMatcher() instanceof HostRequestMatcher)
+                        || ((HostRequestMatcher) route.getMatcher()).matchesHost(host)) {
+                    hostRoutes.add(route);
+                }
+            }
+            byHost.put(host, new RouteIndex(hostRoutes, true));
+        }
+        for (String domain : wildcardDomains) {
+            // a subdomain which is not an exact host
+            List<RouteConfiguration> domainRoutes = new ArrayList<>();
+            for (RouteConfiguration route : routes) {
+                if (!(route.getMatcher() instanceof HostRequestMatcher)
+                        || matchesSubdomains(((HostRequestMatcher) route.getMatcher()), domain)) {
+                    domainRoutes.add(route);
+                }
+            }
+            byWildcardDomain.put(domain, new RouteIndex(domainRoutes, true));
+        }
+    }
+
+    private static boolean matchesSubdomains(HostRequestMatcher matcher, String domain) {
+        for (String wildcardDomain : matcher.getWildcardDomains()) {
+            if (wildcardDomain.equals(domain) || HostRequestMatcher.isSubdomain(domain, wildcardDomain)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The routes which can match the request
+     *
+     * @param request
+     * @return the routes of the virtual host of the request
+     */
+    RouteIndex getRoutes(HttpRequest request) {
+        if (byHost.isEmpty() && byWildcardDomain.isEmpty()) {
+            return anyHost;
+        }
+        String host = request.headers().get(HttpHeaderNames.HOST);
+        if (host == null) {
+            return anyHost;
+        }
+        host = HostRequestMatcher.normalizeHost(host);
+        RouteIndex routes = byHost.get(host);
+        if (routes != null) {
+            return routes;
+        }
+        if (!byWildcardDomain.isEmpty()) {
+            // the most specific domain first
+            for (int dot = host.indexOf('.'); dot > 0; dot = host.indexOf('.', dot + 1)) {
+                routes = byWildcardDomain.get(host.substring(dot + 1));
+                if (routes != null) {
+                    return routes;
+                }
+            }
+        }
+        return anyHost;
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.utils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall clock with a resolution of {@link #TICK_MILLIS}. It is meant for
+ * timestamps which are written on the hot path and compared against timeouts
+ * in the order of seconds, like the last activity on an endpoint.
+ *
+ * @author enrico.olivelli
+ */
+public final class CoarseClock {
+
+    public static final long TICK_MILLIS = 10;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        ScheduledExecutorService updater = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "coarse-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        updater.scheduleAtFixedRate(() -> {
+            now = System.currentTimeMillis();
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private CoarseClock() {
+    }
+
+    public static long currentTimeMillis() {
+        return now;
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.utils;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of latencies, in microseconds. Values are recorded in
+ * log-linear buckets (like HdrHistogram): every power of two is split in
+ * {@link #SUB_BUCKETS} buckets, so the relative error of percentiles is at
+ * most 1/{@link #SUB_BUCKETS}. Every bucket is a {@link LongAdder}, recording
+ * a value never blocks and does not contend on a single memory location.
+ * <p>
+ * The histogram is cumulative, {@link #snapshot()} covers the whole life of
+ * the process. {@link #recentSnapshot()} covers only the values recorded
+ * in the last one or two windows of {@link #RECENT_WINDOW_MILLIS}, which is
+ * what tells about the current tail latency.
+ *
+ * @author enrico.olivelli
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^40 micros is about 12 days, greater values are clamped
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public static final long RECENT_WINDOW_MILLIS = 60_000;
+    // cumulative snapshots taken at the start of the current and of the
+    // previous window, guarded by this
+    private Snapshot currentWindowStart;
+    private Snapshot previousWindowStart;
+    private long currentWindowStartTs;
+
+    public LatencyHistogram() {
+        this(CoarseClock.currentTimeMillis());
+    }
+
+    LatencyHistogram(long now) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        currentWindowStart = snapshot();
+        previousWindowStart = currentWindowStart;
+        currentWindowStartTs = now;
+    }
+
+    public void recordValue(long micros) {
+        long value = micros < 0 ? 0 : Math.min(micros, MAX_VALUE);
+        buckets[bucketIndex(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[NUM_BUCKETS];
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, sum.sum(), max.get());
+    }
+
+    /**
+     * Snapshot of the values recorded since the start of the previous window,
+     * so it always covers at least one whole window.
+     *
+     * @return the snapshot, its max is approximated by the upper bound of
+     * the highest bucket
+     */
+    public Snapshot recentSnapshot() {
+        return recentSnapshot(CoarseClock.currentTimeMillis());
+    }
+
+    synchronized Snapshot recentSnapshot(long now) {
+        Snapshot current = snapshot();
+        if (now - currentWindowStartTs >= RECENT_WINDOW_MILLIS) {
+            // a window without samples leaves the older values out as well
+            previousWindowStart = now - currentWindowStartTs >= 2 * RECENT_WINDOW_MILLIS ? current : currentWindowStart;
+            currentWindowStart = current;
+            currentWindowStartTs = now;
+        }
+        return current.since(previousWindowStart);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        long lowerBound = ((long) SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Point in time copy of the histogram. Values recorded during the
+     * snapshot may be partially reflected.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * The values recorded after an older snapshot
+         */
+        private Snapshot since(Snapshot older) {
+            long[] delta = new long[counts.length];
+            long deltaMax = 0;
+            for (int i = 0; i < counts.length; i++) {
+                delta[i] = counts[i] - older.counts[i];
+                if (delta[i] > 0) {
+                    deltaMax = Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return new Snapshot(delta, count - older.count, sum - older.sum, deltaMax);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns the value under which the given percentage of the recorded
+         * values falls.
+         *
+         * @param percentile a value between 0 and 100
+         * @return the highest equivalent value, in microseconds, 0 if the
+         * histogram is empty
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+    }
+
+}
@@ -28,7 +28,6 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Properties;
-import java.util.concurrent.ScheduledFuture;
 import org.apache.commons.io.IOUtils;
 import org.carapaceproxy.client.impl.ConnectionsManagerImpl;
 import org.carapaceproxy.configstore.PropertiesConfigurationStore;
@@ -44,9 +43,7 @@ import org.carapaceproxy.utils.TestEndpointMapper;
 import org.carapaceproxy.utils.TestUserRealm;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
-import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.BeforeClass;
@@ -299,22 +296,16 @@ public class ApplyConfigurationTest {
                 Properties configuration = new Properties();
                 configuration.put("connectionsmanager.connecttimeout", "9473");
                 configuration.put("connectionsmanager.idletimeout", "1000");
+                configuration.put("connectionsmanager.stuckrequesttimeout", "3000");
                 server.configureAtBoot(new PropertiesConfigurationStore(configuration));
             }
-
-            {
-                ConnectionsManagerImpl cnnManager = (ConnectionsManagerImpl) server.getConnectionsManager();
-                assertNull(cnnManager.getStuckRequestsReaperFuture());
-            }
             server.start();
 
-            ScheduledFuture<?> stuckRequestsReaperFuture;
             {
                 ConnectionsManagerImpl cnnManager = (ConnectionsManagerImpl) server.getConnectionsManager();
                 assertEquals(9473, cnnManager.getConnectTimeout());
                 assertEquals(1000, cnnManager.getIdleTimeout());
-                stuckRequestsReaperFuture = cnnManager.getStuckRequestsReaperFuture();
-                assertNotNull(stuckRequestsReaperFuture);
+                assertEquals(3000, cnnManager.getStuckRequestTimeout());
             }
 
             // change connecttimeout
@@ -322,27 +313,25 @@ public class ApplyConfigurationTest {
                 Properties configuration = new Properties();
                 configuration.put("connectionsmanager.connecttimeout", "9479");
                 configuration.put("connectionsmanager.idletimeout", "1000");
+                configuration.put("connectionsmanager.stuckrequesttimeout", "3000");
                 reloadConfiguration(configuration, server);
 
                 ConnectionsManagerImpl cnnManager = (ConnectionsManagerImpl) server.getConnectionsManager();
                 assertEquals(9479, cnnManager.getConnectTimeout());
                 assertEquals(1000, cnnManager.getIdleTimeout());
-                // this should not change
-                assertSame(stuckRequestsReaperFuture, cnnManager.getStuckRequestsReaperFuture());
+                assertEquals(3000, cnnManager.getStuckRequestTimeout());
             }
 
-            // change idletimeout, this will reschedule stuck request reaper
+            // change idletimeout and stuckrequesttimeout, new requests will use the new timeout
             {
                 Properties configuration = new Properties();
                 configuration.put("connectionsmanager.idletimeout", "2000");
+                configuration.put("connectionsmanager.stuckrequesttimeout", "5000");
                 reloadConfiguration(configuration, server);
 
                 ConnectionsManagerImpl cnnManager = (ConnectionsManagerImpl) server.getConnectionsManager();
                 assertEquals(2000, cnnManager.getIdleTimeout());
-                // this should change
-                assertNotSame(stuckRequestsReaperFuture, cnnManager.getStuckRequestsReaperFuture());
-                // first stuckRequestsReaperFuture should have been cancelled
-                assertTrue(stuckRequestsReaperFuture.isCancelled());
+                assertEquals(5000, cnnManager.getStuckRequestTimeout());
             }
 
         }
@@ -0,0 +1,142 @@
+package org.carapaceproxy;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+
+ */
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.carapaceproxy.client.ConnectionsManagerStats;
+import org.carapaceproxy.client.EndpointKey;
+import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.server.config.NetworkListenerConfiguration;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import org.carapaceproxy.utils.TestUtils;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The backend is fast and the client is very slow at draining the response,
+ * the proxy must stop reading from the backend and resume when the client is
+ * able to receive more data
+ *
+ * @author enrico.olivelli
+ */
+public class BackpressureTest {
+
+    private static final int BODY_SIZE = 4 * 1024 * 1024;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testSlowClient() throws Exception {
+        byte[] body = new byte[BODY_SIZE];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        stubFor(get(urlEqualTo("/big.bin"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/octet-stream")
+                        .withHeader("Content-Length", body.length + "")
+                        .withBody(body)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+        EndpointKey key = new EndpointKey("localhost", wireMockRule.port());
+
+        ConnectionsManagerStats stats;
+        try (HttpProxyServer server = new HttpProxyServer(mapper, tmpDir.newFolder());) {
+            // very small water marks, in order to switch auto-read many times
+            server.addListener(new NetworkListenerConfiguration("localhost", 0,
+                    false, false, null, null, null, null, 1024, 4096));
+            server.start();
+            int port = server.getLocalPort();
+            stats = server.getConnectionsManager().getStats();
+
+            try (Socket socket = new Socket()) {
+                socket.setReceiveBufferSize(4096);
+                socket.connect(new InetSocketAddress("localhost", port));
+                OutputStream out = socket.getOutputStream();
+                out.write("GET /big.bin HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                InputStream in = socket.getInputStream();
+                skipHeaders(in);
+                byte[] received = new byte[BODY_SIZE];
+                int pos = 0;
+                int reads = 0;
+                while (pos < received.length) {
+                    int n = in.read(received, pos, Math.min(8192, received.length - pos));
+                    if (n < 0) {
+                        break;
+                    }
+                    pos += n;
+                    if (++reads % 64 == 0) {
+                        // slow client
+                        Thread.sleep(10);
+                    }
+                }
+                assertEquals(BODY_SIZE, pos);
+                assertArrayEquals(body, received);
+            }
+
+            // the connection to the backend is returned to the pool with
+            // auto-read enabled, so it can be reused
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.get("/big.bin");
+                assertTrue(Arrays.equals(body, resp.getBody()));
+            }
+
+            TestUtils.waitForCondition(TestUtils.NO_ACTIVE_CONNECTION(stats), 100);
+            assertEquals(2, stats.getEndpointStats(key).getTotalRequests().intValue());
+        }
+        TestUtils.waitForCondition(TestUtils.ALL_CONNECTIONS_CLOSED(stats), 100);
+    }
+
+    private static void skipHeaders(InputStream in) throws Exception {
+        int matched = 0;
+        byte[] separator = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        while (matched < separator.length) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IllegalStateException("unexpected end of stream");
+            }
+            matched = b == separator[matched] ? matched + 1 : (b == separator[0] ? 1 : 0);
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+package org.carapaceproxy;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+
+ */
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import com.github.tomakehurst.wiremock.http.Fault;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetectorFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks that buffers relayed between clients, backends and the cache are
+ * always released. Netty leak detector is set to PARANOID and every leak is
+ * recorded.
+ *
+ * Beware that the detector must be configured before any ByteBuf is created,
+ * this works because every test class runs in its own JVM.
+ *
+ * @author enrico.olivelli
+ */
+public class BuffersLeakTest {
+
+    private static final List<String> LEAKS = new CopyOnWriteArrayList<>();
+
+    static {
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+        ResourceLeakDetectorFactory.setResourceLeakDetectorFactory(new ResourceLeakDetectorFactory() {
+            @Override
+            public <T> ResourceLeakDetector<T> newResourceLeakDetector(Class<T> resource, int samplingInterval, long maxActive) {
+                return new ResourceLeakDetector<T>(resource, samplingInterval) {
+                    @Override
+                    protected void reportTracedLeak(String resourceType, String records) {
+                        LEAKS.add(resourceType + " " + records);
+                        super.reportTracedLeak(resourceType, records);
+                    }
+
+                    @Override
+                    protected void reportUntracedLeak(String resourceType) {
+                        LEAKS.add(resourceType);
+                        super.reportUntracedLeak(resourceType);
+                    }
+                };
+            }
+        });
+    }
+
+    private static final String TEST_DATA
+            = "4\r\nWiki\r\n"
+            + "5\r\npedia\r\n"
+            + "E\r\n in\r\n\r\nchunks.\r\n"
+            + "0\r\n" // last content
+            + "\r\n";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Before
+    public void resetLeaks() {
+        LEAKS.clear();
+    }
+
+    @Test
+    public void testProxy() throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withBody("it <b>works</b> !!")));
+        stubFor(get(urlEqualTo("/big.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withBody(new byte[1024 * 1024])));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            int port = server.getLocalPort();
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                for (int i = 0; i < 10; i++) {
+                    assertEquals("it <b>works</b> !!", client.get("/index.html").getBodyString());
+                    assertEquals(1024 * 1024, client.get("/big.html").getBody().length);
+                }
+            }
+        }
+        assertNoLeaks();
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            int port = server.getLocalPort();
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                for (int i = 0; i < 10; i++) {
+                    assertEquals("it <b>works</b> !!", client.get("/index.html").getBodyString());
+                }
+            }
+            assertEquals(1, server.getCache().getCacheSize());
+            // cached buffers are released on flush
+            server.getCache().clear();
+        }
+        assertNoLeaks();
+    }
+
+    @Test
+    public void testChunkedUpload() throws Exception {
+        stubFor(post(urlEqualTo("/index.html"))
+                .withRequestBody(equalTo("Wikipedia in\r\n\r\nchunks."))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            int port = server.getLocalPort();
+            for (int i = 0; i < 10; i++) {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    String s = client
+                            .executeRequest("POST /index.html HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\nConnection: close\r\n\r\n" + TEST_DATA).toString();
+                    assertTrue(s.endsWith("it <b>works</b> !!"));
+                }
+            }
+        }
+        assertNoLeaks();
+    }
+
+    @Test
+    public void testBackendErrors() throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withFault(Fault.RANDOM_DATA_THEN_CLOSE)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            int port = server.getLocalPort();
+            for (int i = 0; i < 10; i++) {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                    assertEquals("HTTP/1.1 500 Internal Server Error\r\n", resp.getStatusLine());
+                }
+            }
+        }
+        assertNoLeaks();
+    }
+
+    private static void assertNoLeaks() throws Exception {
+        // leaks are reported only when the leaked buffers have been garbage
+        // collected and a new buffer is tracked by the detector
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(100);
+            ByteBuf buffer = ByteBufAllocator.DEFAULT.buffer(1);
+            buffer.release();
+        }
+        assertTrue("Found leaks: " + LEAKS, LEAKS.isEmpty());
+    }
+}
@@ -25,24 +25,38 @@ import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import java.net.URL;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.io.IOUtils;
 import org.carapaceproxy.client.ConnectionsManagerStats;
 import org.carapaceproxy.client.EndpointKey;
+import org.carapaceproxy.configstore.PropertiesConfigurationStore;
 import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.server.config.NetworkListenerConfiguration;
 import org.carapaceproxy.utils.RawHttpClient;
 import org.carapaceproxy.utils.TestEndpointMapper;
 import org.carapaceproxy.utils.TestUtils;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class ConnectionPoolTest {
 
     @Rule
     public WireMockRule wireMockRule = new WireMockRule(0);
 
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
     @Test
 //    @Ignore
     public void test() throws Exception {
@@ -97,9 +111,111 @@ public class ConnectionPoolTest {
                 assertEquals(i + 3, epstats.getTotalRequests().intValue());
             }
 
+            assertEquals(1, epstats.getConnectTime().snapshot().getCount());
+            assertEquals(12, epstats.getTimeToFirstByte().snapshot().getCount());
+            assertEquals(12, epstats.getTotalTime().snapshot().getCount());
+            assertTrue(epstats.getTimeToFirstByte().snapshot().getValueAtPercentile(50)
+                    <= epstats.getTotalTime().snapshot().getMax());
+
         }
 
         TestUtils.waitForCondition(TestUtils.ALL_CONNECTIONS_CLOSED(stats), 100);
 
     }
+
+    @Test
+    public void testWaitForConnectionWhenPoolIsExhausted() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+            .willReturn(aResponse()
+                .withStatus(200)
+                .withHeader("Content-Type", "text/html")
+                .withHeader("Content-Length", "2")
+                .withFixedDelay(200)
+                .withBody("ok")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+        EndpointKey key = new EndpointKey("localhost", wireMockRule.port());
+
+        int concurrentClients = 4;
+        ConnectionsManagerStats stats;
+        try (HttpProxyServer server = new HttpProxyServer(mapper, tmpDir.newFolder());) {
+            Properties properties = new Properties();
+            properties.put("connectionsmanager.maxconnectionsperendpoint", "1");
+            server.configureAtBoot(new PropertiesConfigurationStore(properties));
+            server.addListener(new NetworkListenerConfiguration("localhost", 0));
+            server.setMapper(mapper);
+            server.start();
+            int port = server.getLocalPort();
+            stats = server.getConnectionsManager().getStats();
+
+            // every client has to wait for the only connection to the backend
+            ExecutorService threadPool = Executors.newFixedThreadPool(concurrentClients);
+            AtomicReference<Throwable> oneError = new AtomicReference<>();
+            CountDownLatch count = new CountDownLatch(concurrentClients);
+            for (int i = 0; i < concurrentClients; i++) {
+                threadPool.submit(() -> {
+                    try {
+                        assertEquals("ok", IOUtils.toString(new URL("http://localhost:" + port + "/index.html").toURI(), "utf-8"));
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                        oneError.set(t);
+                    }
+                    count.countDown();
+                });
+            }
+            threadPool.shutdown();
+            assertTrue(threadPool.awaitTermination(1, TimeUnit.MINUTES));
+            assertTrue(count.await(1, TimeUnit.MINUTES));
+            if (oneError.get() != null) {
+                fail("error! " + oneError.get());
+            }
+
+            TestUtils.waitForCondition(TestUtils.NO_ACTIVE_CONNECTION(stats), 100);
+            EndpointStats epstats = stats.getEndpointStats(key);
+            assertEquals(1, epstats.getTotalConnections().intValue());
+            assertEquals(concurrentClients, epstats.getTotalRequests().intValue());
+        }
+
+        TestUtils.waitForCondition(TestUtils.ALL_CONNECTIONS_CLOSED(stats), 100);
+    }
+
+    @Test
+    public void testEventLoopAffinity() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+            .willReturn(aResponse()
+                .withStatus(200)
+                .withHeader("Content-Type", "text/html")
+                .withHeader("Content-Length", "2")
+                .withBody("ok")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+        EndpointKey key = new EndpointKey("localhost", wireMockRule.port());
+
+        ConnectionsManagerStats stats;
+        try (HttpProxyServer server = new HttpProxyServer(mapper, tmpDir.newFolder());) {
+            Properties properties = new Properties();
+            properties.put("connectionsmanager.eventloopaffinity", "true");
+            server.configureAtBoot(new PropertiesConfigurationStore(properties));
+            server.addListener(new NetworkListenerConfiguration("localhost", 0));
+            server.setMapper(mapper);
+            server.start();
+            int port = server.getLocalPort();
+            stats = server.getConnectionsManager().getStats();
+
+            // same client connection, same event loop: the connection to the backend is reused
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                for (int i = 0; i < 5; i++) {
+                    assertEquals("ok", client.get("/index.html").getBodyString().trim());
+                    TestUtils.waitForCondition(TestUtils.NO_ACTIVE_CONNECTION(stats), 100);
+                }
+            }
+            EndpointStats epstats = stats.getEndpointStats(key);
+            assertEquals(1, epstats.getTotalConnections().intValue());
+            assertEquals(5, epstats.getTotalRequests().intValue());
+        }
+
+        TestUtils.waitForCondition(TestUtils.ALL_CONNECTIONS_CLOSED(stats), 100);
+    }
 }
@@ -94,7 +94,8 @@ public class StartAPIServerTest extends UseAdminServer {
             RawHttpClient.HttpResponse resp = client.get("/api/cache/info", credentials);
             String s = resp.getBodyString();
             System.out.println("s:" + s);
-            assertThat(s, is("{\"result\":\"ok\",\"hits\":0,\"directMemoryUsed\":0,\"misses\":0,\"heapMemoryUsed\":0,\"totalMemoryUsed\":0,\"cachesize\":0}"));
+            assertThat(s, is("{\"directMemoryUsed\":0,\"partitions\":{},\"negativeCached\":0,\"heapMemoryUsed\":0,\"totalMemoryUsed\":0,"
+                    + "\"indexedContents\":0,\"cachesize\":0,\"result\":\"ok\",\"hits\":0,\"misses\":0,\"diskUsed\":0,\"diskHits\":0,\"negativeHits\":0}"));
         }
 
         try (RawHttpClient client = new RawHttpClient("localhost", 8761)) {
@@ -103,6 +104,28 @@ public class StartAPIServerTest extends UseAdminServer {
             System.out.println("s:" + s);
             assertThat(s, is("{\"result\":\"ok\",\"cachesize\":0}"));
         }
+
+        try (RawHttpClient client = new RawHttpClient("localhost", 8761)) {
+            RawHttpClient.HttpResponse resp = client.get("/api/cache/invalidate?host=localhost&prefix=/static/", credentials);
+            String s = resp.getBodyString();
+            System.out.println("s:" + s);
+            assertThat(s, is("{\"result\":\"ok\",\"removed\":0,\"cachesize\":0}"));
+        }
+
+        try (RawHttpClient client = new RawHttpClient("localhost", 8761)) {
+            String body = "localhost/index.html\nhttp://localhost/static/app.js\n/other.html\n";
+            RawHttpClient.HttpResponse resp = client.executeRequest("POST /api/cache/purge HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "Content-Length: " + body.length() + "\r\n"
+                    + "Authorization: Basic " + credentials.toBase64() + "\r\n"
+                    + "\r\n"
+                    + body);
+            String s = resp.getBodyString();
+            System.out.println("s:" + s);
+            assertThat(s, containsString("\"requested\":3"));
+            assertThat(s, containsString("\"removed\":0"));
+        }
     }
 
     @Test
@@ -0,0 +1,127 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Byte ranges served from cached contents
+ *
+ * @author enrico.olivelli
+ */
+public class ByteRangesTest {
+
+    private static final String BODY = "it <b>works</b> !!";
+
+    @Test
+    public void testParse() {
+        List<long[]> ranges = ByteRanges.parse("bytes=0-4", 18);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[]{0, 4}, ranges.get(0));
+
+        ranges = ByteRanges.parse("bytes=10-, -3, 2-100", 18);
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new long[]{10, 17}, ranges.get(0));
+        assertArrayEquals(new long[]{15, 17}, ranges.get(1));
+        assertArrayEquals(new long[]{2, 17}, ranges.get(2));
+
+        // unsatisfiable ranges are skipped
+        ranges = ByteRanges.parse("bytes=100-, 0-0", 18);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[]{0, 0}, ranges.get(0));
+        assertTrue(ByteRanges.parse("bytes=18-", 18).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=-0", 18).isEmpty());
+
+        // invalid headers are ignored
+        assertNull(ByteRanges.parse("items=0-4", 18));
+        assertNull(ByteRanges.parse("bytes=4-0", 18));
+        assertNull(ByteRanges.parse("bytes=x-", 18));
+        assertNull(ByteRanges.parse("bytes=4", 18));
+        StringBuilder tooMany = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRanges.MAX_RANGES; i++) {
+            tooMany.append(",").append(i).append("-").append(i);
+        }
+        assertNull(ByteRanges.parse(tooMany.toString(), 18));
+    }
+
+    @Test
+    public void testBuildResponse() {
+        HttpResponse cached = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.set(HttpHeaderNames.CONTENT_TYPE, "text/html");
+        headers.set(HttpHeaderNames.CONTENT_LENGTH, BODY.length());
+
+        // single range
+        ByteBuf content = Unpooled.copiedBuffer(BODY, StandardCharsets.UTF_8);
+        FullHttpResponse response = ByteRanges.buildResponse(cached, headers, content.retain(), ByteRanges.parse("bytes=3-7", BODY.length()));
+        assertEquals(HttpResponseStatus.PARTIAL_CONTENT, response.status());
+        assertEquals("bytes 3-7/18", response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+        assertEquals("5", response.headers().get(HttpHeaderNames.CONTENT_LENGTH));
+        assertEquals("text/html", response.headers().get(HttpHeaderNames.CONTENT_TYPE));
+        assertEquals("<b>wo", response.content().toString(StandardCharsets.UTF_8));
+        response.release();
+        assertEquals(1, content.refCnt());
+
+        // multiple ranges
+        response = ByteRanges.buildResponse(cached, headers, content.retain(), ByteRanges.parse("bytes=0-1,-2", BODY.length()));
+        assertEquals(HttpResponseStatus.PARTIAL_CONTENT, response.status());
+        String contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        String body = response.content().toString(StandardCharsets.UTF_8);
+        assertEquals("\r\n--" + boundary + "\r\n"
+                + "content-type: text/html\r\n"
+                + "content-range: bytes 0-1/18\r\n\r\n"
+                + "it"
+                + "\r\n--" + boundary + "\r\n"
+                + "content-type: text/html\r\n"
+                + "content-range: bytes 16-17/18\r\n\r\n"
+                + "!!"
+                + "\r\n--" + boundary + "--\r\n", body);
+        assertEquals(body.length() + "", response.headers().get(HttpHeaderNames.CONTENT_LENGTH));
+        response.release();
+        assertEquals(1, content.refCnt());
+
+        // no satisfiable range
+        response = ByteRanges.buildResponse(cached, headers, content, ByteRanges.parse("bytes=20-", BODY.length()));
+        assertEquals(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.status());
+        assertEquals("bytes */18", response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+        assertEquals(0, response.content().readableBytes());
+        response.release();
+        assertEquals(0, content.refCnt());
+    }
+
+}
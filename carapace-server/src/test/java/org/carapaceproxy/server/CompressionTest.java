@@ -0,0 +1,226 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.IOUtils;
+import org.carapaceproxy.configstore.PropertiesConfigurationStore;
+import org.carapaceproxy.server.config.CompressionConfiguration;
+import org.carapaceproxy.server.config.ConfigurationNotValidException;
+import org.carapaceproxy.server.mapper.StandardEndpointMapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Gzip compression of the responses, configured on the routes
+ *
+ * @author enrico.olivelli
+ */
+public class CompressionTest {
+
+    private static final String BODY = "it <b>works</b> !! it <b>works</b> !!";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testCompressedVariants() throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html; charset=utf-8")
+                        .withHeader("Content-Length", BODY.length() + "")
+                        .withBody(BODY)));
+        stubFor(get(urlEqualTo("/image.png"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "image/png")
+                        .withHeader("Content-Length", BODY.length() + "")
+                        .withBody(BODY)));
+
+        try (HttpProxyServer server = new HttpProxyServer(null, tmpDir.newFolder());) {
+            Properties configuration = new Properties();
+            configuration.put("backend.1.id", "foo");
+            configuration.put("backend.1.host", "localhost");
+            configuration.put("backend.1.port", wireMockRule.port() + "");
+            configuration.put("backend.1.enabled", "true");
+
+            configuration.put("director.1.id", "*");
+            configuration.put("director.1.backends", "*");
+            configuration.put("director.1.enabled", "true");
+
+            configuration.put("listener.1.host", "0.0.0.0");
+            configuration.put("listener.1.port", "1425");
+            configuration.put("listener.1.ssl", "false");
+            configuration.put("listener.1.enabled", "true");
+
+            configuration.put("route.10.id", "default");
+            configuration.put("route.10.enabled", "true");
+            configuration.put("route.10.match", "all");
+            configuration.put("route.10.action", "cache-if-possible");
+            configuration.put("route.10.compression.enabled", "true");
+            configuration.put("route.10.compression.minsize", "10");
+            server.configureAtBoot(new PropertiesConfigurationStore(configuration));
+            server.start();
+            int port = server.getLocalPort();
+
+            HttpURLConnection con = request(port, "/index.html", "gzip, deflate");
+            assertEquals("gzip", con.getHeaderField("Content-Encoding"));
+            assertTrue("accept-encoding".equalsIgnoreCase(con.getHeaderField("Vary")));
+            assertNull(con.getHeaderField("Content-Length"));
+            assertEquals(BODY, readBody(con));
+
+            // the compressed form is served by the cache
+            con = request(port, "/index.html", "deflate,gzip");
+            assertEquals("gzip", con.getHeaderField("Content-Encoding"));
+            assertNotNull(con.getHeaderField("X-Cached"));
+            assertEquals(BODY, readBody(con));
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/index.html")));
+
+            // clients which do not accept gzip get another variant
+            con = request(port, "/index.html", null);
+            assertNull(con.getHeaderField("Content-Encoding"));
+            assertTrue("accept-encoding".equalsIgnoreCase(con.getHeaderField("Vary")));
+            assertEquals(BODY, readBody(con));
+            con = request(port, "/index.html", null);
+            assertNull(con.getHeaderField("Content-Encoding"));
+            assertNotNull(con.getHeaderField("X-Cached"));
+            assertEquals(BODY, readBody(con));
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/index.html")));
+
+            con = request(port, "/image.png", "gzip");
+            assertNull(con.getHeaderField("Content-Encoding"));
+            assertEquals(BODY, readBody(con));
+        }
+    }
+
+    @Test
+    public void testAcceptsGzip() {
+        assertTrue(ResponseCompressor.acceptsGzip(request("gzip")));
+        assertTrue(ResponseCompressor.acceptsGzip(request("deflate, GZIP;q=0.5")));
+        assertTrue(ResponseCompressor.acceptsGzip(request("*")));
+        assertFalse(ResponseCompressor.acceptsGzip(request("gzip;q=0")));
+        assertFalse(ResponseCompressor.acceptsGzip(request("identity")));
+        assertFalse(ResponseCompressor.acceptsGzip(request(null)));
+        HttpRequest http10 = new DefaultHttpRequest(HttpVersion.HTTP_1_0, HttpMethod.GET, "/index.html");
+        http10.headers().add("Accept-Encoding", "gzip");
+        assertFalse(ResponseCompressor.acceptsGzip(http10));
+    }
+
+    @Test
+    public void testIsCompressible() {
+        CompressionConfiguration config = new CompressionConfiguration(6, "text/*, application/json", 100);
+        assertTrue(ResponseCompressor.isCompressible(config, request("gzip"), response("text/html", -1)));
+        assertTrue(ResponseCompressor.isCompressible(config, request("gzip"), response("application/json; charset=utf-8", 100)));
+        assertFalse(ResponseCompressor.isCompressible(null, request("gzip"), response("text/html", -1)));
+        assertFalse(ResponseCompressor.isCompressible(config, request("gzip"), response("image/png", -1)));
+        assertFalse(ResponseCompressor.isCompressible(config, request("gzip"), response("text/html", 99)));
+
+        HttpResponse compressed = response("text/html", -1);
+        compressed.headers().add("Content-Encoding", "br");
+        assertFalse(ResponseCompressor.isCompressible(config, request("gzip"), compressed));
+        HttpResponse noTransform = response("text/html", -1);
+        noTransform.headers().add("Cache-Control", "public, no-transform");
+        assertFalse(ResponseCompressor.isCompressible(config, request("gzip"), noTransform));
+        HttpRequest head = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.HEAD, "/index.html");
+        assertFalse(ResponseCompressor.isCompressible(config, head, response("text/html", -1)));
+    }
+
+    @Test
+    public void testInvalidConfiguration() throws Exception {
+        Properties configuration = new Properties();
+        configuration.put("route.10.id", "default");
+        configuration.put("route.10.enabled", "true");
+        configuration.put("route.10.match", "all");
+        configuration.put("route.10.action", "cache-if-possible");
+        configuration.put("route.10.compression.enabled", "true");
+        configuration.put("route.10.compression.level", "10");
+        try {
+            new StandardEndpointMapper().configure(new PropertiesConfigurationStore(configuration));
+            fail();
+        } catch (ConfigurationNotValidException ok) {
+        }
+    }
+
+    private static HttpRequest request(String acceptEncoding) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/index.html");
+        if (acceptEncoding != null) {
+            request.headers().add("Accept-Encoding", acceptEncoding);
+        }
+        return request;
+    }
+
+    private static HttpResponse response(String contentType, long contentLength) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().add("Content-Type", contentType);
+        if (contentLength >= 0) {
+            response.headers().add("Content-Length", contentLength);
+        }
+        return response;
+    }
+
+    private static HttpURLConnection request(int port, String uri, String acceptEncoding) throws Exception {
+        HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:" + port + uri).openConnection();
+        if (acceptEncoding != null) {
+            con.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        assertEquals(200, con.getResponseCode());
+        return con;
+    }
+
+    private static String readBody(HttpURLConnection con) throws Exception {
+        byte[] raw;
+        try (InputStream in = con.getInputStream()) {
+            raw = IOUtils.toByteArray(in);
+        }
+        if ("gzip".equals(con.getHeaderField("Content-Encoding"))) {
+            raw = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(raw)));
+        }
+        return new String(raw, "utf-8");
+    }
+}
@@ -33,6 +33,7 @@ import org.carapaceproxy.utils.RawHttpClient;
 import org.carapaceproxy.utils.TestEndpointMapper;
 import org.carapaceproxy.utils.TestUtils;
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
@@ -81,6 +82,56 @@ public class CacheContentLengthLimitTest {
         testFileSizeCache(body, true);
     }
 
+    @Test
+    public void testHotReloadOfCacheSizing() throws Exception {
+
+        String body = "01234567890123456789";
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", body.length() + "")
+                        .withBody(body)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        EndpointKey key = new EndpointKey("localhost", wireMockRule.port());
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            ContentsCache cache = server.getCache();
+
+            requestAndTestCached(body, false, key, server, false, 1);
+            requestAndTestCached(body, false, key, server, true, 1);
+
+            // the cache is resized, not flushed
+            server.getCurrentConfiguration().setCacheMaxSize(1024 * 1024);
+            cache.reloadConfiguration(server.getCurrentConfiguration());
+            requestAndTestCached(body, false, key, server, true, 1);
+
+            // the content is dropped when requested
+            server.getCurrentConfiguration().setCacheMaxFileSize(body.length() - 1);
+            cache.reloadConfiguration(server.getCurrentConfiguration());
+            assertThat(cache.getCacheSize(), is(1));
+            try (RawHttpClient client = new RawHttpClient("localhost", server.getLocalPort())) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().endsWith(body));
+                assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+            TestUtils.waitForCondition(() -> cache.getCacheSize() == 0);
+
+            server.getCurrentConfiguration().setCacheMaxFileSize(0);
+            cache.reloadConfiguration(server.getCurrentConfiguration());
+            requestAndTestCached(body, false, key, server, false, 1);
+            requestAndTestCached(body, false, key, server, true, 1);
+
+            // contents exceeding the new size are evicted
+            server.getCurrentConfiguration().setCacheMaxSize(1);
+            cache.reloadConfiguration(server.getCurrentConfiguration());
+            TestUtils.waitForCondition(() -> cache.getCacheSize() == 0);
+        }
+    }
+
     private void requestAndTestCached(
             String body, boolean chunked, EndpointKey key, HttpProxyServer server, boolean cached, int cacheSize) throws IOException {
 
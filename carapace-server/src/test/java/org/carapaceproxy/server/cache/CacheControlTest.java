@@ -0,0 +1,169 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.Arrays;
+import java.util.Collections;
+import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Freshness from Cache-Control and variants selected by Vary
+ *
+ * @author enrico.olivelli
+ */
+public class CacheControlTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Test
+    public void testMaxAge() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html?q=1"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "public, max-age=2")
+                        .withHeader("Age", "1")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+        stubFor(get(urlEqualTo("/private.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "max-age=60, private")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            int port = server.getLocalPort();
+
+            // an explicit expiration makes a query string cachable
+            String response = RawHttpClient.executeGet(port, "/index.html?q=1");
+            assertTrue(response.endsWith("it <b>works</b> !!"));
+            response = RawHttpClient.executeGet(port, "/index.html?q=1");
+            assertTrue(response.contains("X-Cached"));
+            assertTrue(response.contains("age: 1"));
+            assertTrue(response.endsWith("it <b>works</b> !!"));
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/index.html?q=1")));
+
+            // the content spent 1 second in another cache
+            Thread.sleep(1500);
+            RawHttpClient.executeGet(port, "/index.html?q=1");
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/index.html?q=1")));
+
+            RawHttpClient.executeGet(port, "/private.html");
+            RawHttpClient.executeGet(port, "/private.html");
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/private.html")));
+        }
+    }
+
+    @Test
+    public void testVary() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .withHeader("Accept-Encoding", equalTo("gzip, deflate"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Vary", "Accept-Encoding")
+                        .withHeader("Content-Length", "gzip".length() + "")
+                        .withBody("gzip")));
+        stubFor(get(urlEqualTo("/index.html"))
+                .withHeader("Accept-Encoding", equalTo("identity"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Vary", "Accept-Encoding")
+                        .withHeader("Content-Length", "identity".length() + "")
+                        .withBody("identity")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            int port = server.getLocalPort();
+
+            assertTrue(RawHttpClient.executeGet(port, "/index.html", "Accept-Encoding: gzip, deflate").endsWith("gzip"));
+            assertTrue(RawHttpClient.executeGet(port, "/index.html", "Accept-Encoding: identity").endsWith("identity"));
+            assertEquals(2, server.getCache().getCacheSize());
+
+            // equivalent values share the same variant
+            String response = RawHttpClient.executeGet(port, "/index.html", "Accept-Encoding: deflate,gzip");
+            assertTrue(response.contains("X-Cached"));
+            assertTrue(response.endsWith("gzip"));
+            response = RawHttpClient.executeGet(port, "/index.html", "Accept-Encoding: identity");
+            assertTrue(response.contains("X-Cached"));
+            assertTrue(response.endsWith("identity"));
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+    @Test
+    public void testComputeVariant() {
+        HttpHeaders response = new DefaultHttpHeaders();
+        response.add("Vary", "Accept-Encoding, accept-language");
+        response.add("Vary", "Accept-Encoding");
+        assertEquals(Arrays.asList("accept-encoding", "accept-language"), ContentsCache.getVaryHeaders(response));
+        assertEquals(Collections.emptyList(), ContentsCache.getVaryHeaders(new DefaultHttpHeaders()));
+        assertNull(ContentsCache.getVaryHeaders(new DefaultHttpHeaders().add("Vary", "Cookie, *")));
+
+        HttpHeaders request1 = new DefaultHttpHeaders().add("Accept-Encoding", "gzip, deflate");
+        HttpHeaders request2 = new DefaultHttpHeaders().add("accept-encoding", "deflate,gzip");
+        HttpHeaders request3 = new DefaultHttpHeaders().add("Accept-Encoding", "gzip");
+        assertEquals(ContentsCache.computeVariant(request1, ContentsCache.getVaryHeaders(response)),
+                ContentsCache.computeVariant(request2, ContentsCache.getVaryHeaders(response)));
+        assertTrue(!ContentsCache.computeVariant(request1, ContentsCache.getVaryHeaders(response))
+                .equals(ContentsCache.computeVariant(request3, ContentsCache.getVaryHeaders(response))));
+    }
+
+    @Test
+    public void testComputeExpiresTs() {
+        long now = System.currentTimeMillis();
+        assertEquals(-1, ContentsCache.computeExpiresTs(new DefaultHttpHeaders(), now));
+        assertEquals(now + 60_000, ContentsCache.computeExpiresTs(new DefaultHttpHeaders()
+                .add("Cache-Control", "max-age=60"), now));
+        assertEquals(now + 50_000, ContentsCache.computeExpiresTs(new DefaultHttpHeaders()
+                .add("Cache-Control", "max-age=60").add("Age", "10"), now));
+        assertEquals(now + 120_000, ContentsCache.computeExpiresTs(new DefaultHttpHeaders()
+                .add("Cache-Control", "max-age=60, s-maxage=120"), now));
+        // max-age wins over Expires
+        assertEquals(now + 60_000, ContentsCache.computeExpiresTs(new DefaultHttpHeaders()
+                .add("Cache-Control", "max-age=60").add("Expires", new java.util.Date(now + 1000_000)), now));
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.apache.bookkeeper.stats.prometheus.PrometheusMetricsProvider;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+/**
+ * Index of the contents by host and path, used for invalidations
+ *
+ * @author enrico.olivelli
+ */
+public class CacheIndexTest {
+
+    @Test
+    public void testFindContents() throws Exception {
+        CacheStats stats = new CacheStats((new PrometheusMetricsProvider()).getStatsLogger("").scope("cache"));
+        CaffeineCacheImpl cache = new CaffeineCacheImpl(stats, 0, Logger.getLogger(CacheIndexTest.class.getName()));
+        CacheIndex index = new CacheIndex();
+
+        ContentKey[] keys = {
+            new ContentKey("GET", "one", "/a/x.css"),
+            new ContentKey("HEAD", "one", "/a/x.css"),
+            new ContentKey("GET", "one", "/a/x.css", "accept-encoding=gzip;"),
+            new ContentKey("GET", "one", "/a/b/z.js"),
+            new ContentKey("GET", "one", "/ab.html"),
+            new ContentKey("GET", "one", "/q.html?x=1"),
+            new ContentKey("GET", "one", "/q.html?x=2"),
+            new ContentKey("GET", "two", "/a/x.css")
+        };
+        for (ContentKey key : keys) {
+            ContentPayload payload = new ContentPayload();
+            payload.expiresTs = System.currentTimeMillis() + 60_000;
+            cache.put(key, payload);
+            index.update(key, cache);
+        }
+        assertThat(index.size(), is(keys.length));
+
+        assertThat(index.findByHost("one").size(), is(7));
+        assertThat(index.findByHost("three").size(), is(0));
+        assertThat(index.findByUri("one", "/a/x.css").size(), is(3));
+        assertThat(index.findByUri(null, "/a/x.css").size(), is(4));
+        assertThat(index.findByUri("one", "/q.html?x=1").size(), is(1));
+
+        assertThat(index.findByPrefix("one", "/a/").size(), is(4));
+        // the last segment of a prefix can be incomplete
+        assertThat(index.findByPrefix("one", "/a").size(), is(5));
+        assertThat(index.findByPrefix(null, "/a/x").size(), is(4));
+        assertThat(index.findByPrefix("one", "/q.html?x=").size(), is(2));
+        assertThat(index.findByPrefix("one", "/q.html?x=1").size(), is(1));
+        assertThat(index.findByPrefix("one", "/").size(), is(7));
+        assertThat(index.findByPrefix("one", "/c/").size(), is(0));
+
+        assertThat(index.findByPattern("one", Pattern.compile(".*\\.js")).size(), is(1));
+        assertThat(index.findByPattern(null, Pattern.compile("/a/.*")).size(), is(5));
+
+        // removed contents leave the index
+        cache.remove(keys[3]);
+        index.update(keys[3], cache);
+        assertThat(index.size(), is(keys.length - 1));
+        assertThat(index.findByPrefix("one", "/a/b/").size(), is(0));
+        assertThat(index.findByPrefix("one", "/a/").size(), is(3));
+
+        // a key which is not in cache is not indexed
+        index.update(new ContentKey("GET", "one", "/missing.html"), cache);
+        assertThat(index.size(), is(keys.length - 1));
+
+        index.clear();
+        assertThat(index.size(), is(0));
+        assertThat(index.findByHost("one").size(), is(0));
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        CacheStats stats = new CacheStats((new PrometheusMetricsProvider()).getStatsLogger("").scope("cache"));
+        CaffeineCacheImpl cache = new CaffeineCacheImpl(stats, 0, Logger.getLogger(CacheIndexTest.class.getName()));
+        CacheIndex index = new CacheIndex();
+
+        // hosts are emptied and filled again while other threads update them
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 20_000; i++) {
+                    ContentKey key = new ContentKey("GET", "host" + random.nextInt(3), "/" + random.nextInt(4) + ".html");
+                    if (random.nextBoolean()) {
+                        ContentPayload payload = new ContentPayload();
+                        payload.expiresTs = System.currentTimeMillis() + 60_000;
+                        cache.put(key, payload);
+                    } else {
+                        cache.remove(key);
+                    }
+                    index.update(key, cache);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // the last update of every key has seen the final state of the cache
+        int cached = 0;
+        for (int h = 0; h < 3; h++) {
+            for (int u = 0; u < 4; u++) {
+                ContentKey key = new ContentKey("GET", "host" + h, "/" + u + ".html");
+                boolean contains = cache.contains(key);
+                cached += contains ? 1 : 0;
+                assertThat(index.findByUri("host" + h, key.uri).size(), is(contains ? 1 : 0));
+            }
+        }
+        assertThat(index.size(), is(cached));
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import java.io.File;
+import org.apache.bookkeeper.stats.prometheus.PrometheusMetricsProvider;
+import org.carapaceproxy.server.RuntimeServerConfiguration;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+import static org.carapaceproxy.server.cache.CacheTestUtils.BODY;
+import static org.carapaceproxy.server.cache.CacheTestUtils.body;
+import static org.carapaceproxy.server.cache.CacheTestUtils.key;
+import static org.carapaceproxy.server.cache.CacheTestUtils.payload;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author enrico.olivelli
+ */
+public class CacheSnapshotTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        File file = new File(tmpDir.getRoot(), "cache.snapshot");
+        ContentKey key = new ContentKey("GET", "localhost", "/resource?a=b", "accept-encoding=gzip;");
+        ContentPayload original = payload(BODY, 7);
+        original.etag = "\"v1\"";
+        original.maxAge = 60_000;
+        original.staleIfError = 1000;
+        original.trailingHeaders = new DefaultHttpHeaders().add("X-Trailer", "value");
+        try (CacheSnapshot.Writer writer = new CacheSnapshot.Writer(file, 1)) {
+            assertThat(writer.append(key, original), is(true));
+            assertThat(writer.append(key(2), payload("", 0)), is(true));
+            writer.commit();
+            assertThat(writer.getEntries(), is(2));
+        }
+        assertThat(new File(tmpDir.getRoot(), "cache.snapshot.tmp").exists(), is(false));
+
+        try (CacheSnapshot.Reader reader = new CacheSnapshot.Reader(file)) {
+            assertThat(reader.getCreationTs(), is(1L));
+            assertThat(reader.next(), is(true));
+            ContentPayload read = reader.getPayload();
+            assertThat(reader.getKey(), is(key));
+            assertThat(body(read), is(BODY));
+            assertThat(read.getResponse().status().code(), is(200));
+            assertThat(read.getResponse().headers().get("Content-Type"), is("text/plain"));
+            assertThat(read.getTrailingHeaders().get("X-Trailer"), is("value"));
+            assertThat(read.getCreationTs(), is(original.getCreationTs()));
+            assertThat(read.getExpiresTs(), is(original.getExpiresTs()));
+            assertThat(read.getLastModified(), is(1234L));
+            assertThat(read.getEtag(), is("\"v1\""));
+            assertThat(read.getMaxAge(), is(60_000L));
+            assertThat(read.getStaleIfError(), is(1000L));
+            assertThat(read.getHits(), is(7));
+            read.clear();
+
+            assertThat(reader.next(), is(true));
+            assertThat(reader.getKey(), is(key(2)));
+            assertThat(body(reader.getPayload()), is(""));
+            reader.getPayload().clear();
+            assertThat(reader.next(), is(false));
+        }
+        original.clear();
+    }
+
+    @Test
+    public void testSaveHottestContents() throws Exception {
+        RuntimeServerConfiguration configuration = new RuntimeServerConfiguration();
+        configuration.setCacheSnapshotPath(new File(tmpDir.getRoot(), "cache.snapshot").getAbsolutePath());
+        // room for two contents
+        configuration.setCacheSnapshotMaxSize(BODY.length() * 2 + 10);
+
+        ContentsCache cache = new ContentsCache(new PrometheusMetricsProvider().getStatsLogger(""), configuration);
+        cache.getInnerCache().put(key(1), payload(BODY + "1", 1));
+        cache.getInnerCache().put(key(2), payload(BODY + "2", 10));
+        cache.getInnerCache().put(key(3), payload(BODY + "3", 5));
+        ContentPayload expired = payload(BODY + "4", 100);
+        expired.expiresTs = System.currentTimeMillis() - 1000;
+        cache.getInnerCache().put(key(4), expired);
+        assertThat(cache.writeSnapshot(), is(2));
+        cache.close();
+
+        ContentsCache restarted = new ContentsCache(new PrometheusMetricsProvider().getStatsLogger(""), configuration);
+        assertThat(restarted.loadSnapshot(), is(2));
+        assertThat(restarted.getCacheSize(), is(2));
+        assertThat(body(restarted.getInnerCache().get(key(2))), is(BODY + "2"));
+        assertThat(body(restarted.getInnerCache().get(key(3))), is(BODY + "3"));
+        assertThat(restarted.getInnerCache().get(key(1)), is(nullValue()));
+        assertThat(restarted.getInnerCache().get(key(4)), is(nullValue()));
+        assertThat(restarted.getSnapshotInfo().get("lastLoadedEntries"), is(2));
+        restarted.close();
+
+        // the contents have been saved again at close
+        ContentsCache again = new ContentsCache(new PrometheusMetricsProvider().getStatsLogger(""), configuration);
+        assertThat(again.loadSnapshot(), is(2));
+        assertThat(again.getInnerCache().get(key(2)), is(notNullValue()));
+        again.close();
+    }
+}
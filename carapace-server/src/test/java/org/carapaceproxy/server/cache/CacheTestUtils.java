@@ -0,0 +1,99 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+
+/**
+ * Keys and contents for the tests of the cache
+ *
+ * @author enrico.olivelli
+ */
+final class CacheTestUtils {
+
+    static final String BODY = "0123456789abcdefghij0123456789abcdefghij0123456789abcdefghij0123456789abcdefghij";
+
+    private CacheTestUtils() {
+    }
+
+    static ContentKey key(int i) {
+        return new ContentKey("GET", "localhost", "/resource" + i);
+    }
+
+    /**
+     * A cached response, its body is in a pooled direct buffer as the ones
+     * received from the backends.
+     *
+     * @param body
+     * @return the payload, which owns the buffer
+     */
+    static ContentPayload payload(String body) {
+        ContentPayload payload = new ContentPayload();
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().add("Content-Type", "text/plain");
+        response.headers().add("Content-Length", body.length());
+        payload.response = response;
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length);
+        content.writeBytes(bytes);
+        payload.content = content;
+        payload.directSize = content.capacity();
+        payload.expiresTs = System.currentTimeMillis() + ContentsCache.DEFAULT_TTL;
+        payload.lastModified = 1234;
+        return payload;
+    }
+
+    static ContentPayload payload(String body, int hits) {
+        ContentPayload payload = payload(body);
+        payload.hits = hits;
+        return payload;
+    }
+
+    static ContentPayload payload(int size) {
+        char[] body = new char[size];
+        Arrays.fill(body, 'a');
+        return payload(new String(body));
+    }
+
+    /**
+     * Reads the body as a client would do, without keeping it
+     *
+     * @param payload
+     * @return the body, as a string
+     */
+    static String body(ContentPayload payload) {
+        ByteBuf content = payload.retainedContent();
+        try {
+            return content.toString(StandardCharsets.UTF_8);
+        } finally {
+            content.release();
+        }
+    }
+
+}
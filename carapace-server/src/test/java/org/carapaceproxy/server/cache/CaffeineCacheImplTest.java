@@ -110,7 +110,8 @@ public class CaffeineCacheImplTest {
             } else {
                 this.key = key;
                 this.payload = new ContentPayload();
-                this.payload.chunks.addAll(payload.chunks);
+                this.payload.response = payload.response;
+                this.payload.content = payload.content;
                 setFinalField(this.payload, "creationTs", payload.creationTs);
                 this.payload.directSize = payload.directSize;
                 this.payload.expiresTs = payload.expiresTs;
@@ -161,8 +162,6 @@ public class CaffeineCacheImplTest {
     private static CacheEntry genCacheEntry(String resource, int payloadLength, long expireTs) {
         ContentKey key = new ContentKey("", "", resource);
         ContentPayload payload = new ContentPayload();
-        payload.chunks.add(null);
-        payload.chunks.add(null);
         payload.directSize = payloadLength / 2;
         payload.heapSize = payloadLength - payload.directSize;
         if (expireTs > 0) {
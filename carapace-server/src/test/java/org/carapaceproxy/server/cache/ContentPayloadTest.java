@@ -0,0 +1,71 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import java.nio.charset.StandardCharsets;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+import static org.carapaceproxy.server.cache.CacheTestUtils.payload;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+/**
+ * The body of a cached content must not be recycled while it is being served
+ *
+ * @author enrico.olivelli
+ */
+public class ContentPayloadTest {
+
+    @Test
+    public void testReadersKeepTheBody() throws Exception {
+        ContentPayload payload = payload("it works !!");
+        ByteBuf body = payload.getContent();
+        ByteBuf served = payload.retainedContent();
+        assertThat(body.refCnt(), is(2));
+
+        // the cache removes the payload while it is being served
+        payload.clear();
+        payload.clear();
+        assertThat(body.refCnt(), is(1));
+        assertThat(payload.retainedContent(), is(nullValue()));
+        assertThat(payload.retainedCopy(), is(nullValue()));
+        assertThat(served.toString(StandardCharsets.UTF_8), is("it works !!"));
+
+        served.release();
+        assertThat(body.refCnt(), is(0));
+    }
+
+    @Test
+    public void testRetainedCopy() throws Exception {
+        ContentPayload payload = payload("it works !!");
+        ByteBuf body = payload.getContent();
+        ContentPayload copy = payload.retainedCopy();
+        payload.clear();
+        assertThat(body.refCnt(), is(1));
+        ByteBuf served = copy.retainedContent();
+        assertThat(served.toString(StandardCharsets.UTF_8), is("it works !!"));
+        copy.clear();
+        served.release();
+        assertThat(body.refCnt(), is(0));
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpResponse;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.logging.Logger;
+import org.apache.bookkeeper.stats.prometheus.PrometheusMetricsProvider;
+import org.carapaceproxy.configstore.PropertiesConfigurationStore;
+import org.carapaceproxy.server.RuntimeServerConfiguration;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+import org.carapaceproxy.server.config.ConfigurationNotValidException;
+import static org.carapaceproxy.server.cache.CacheTestUtils.BODY;
+import static org.carapaceproxy.server.cache.CacheTestUtils.body;
+import static org.carapaceproxy.server.cache.CacheTestUtils.key;
+import static org.carapaceproxy.server.cache.CacheTestUtils.payload;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author enrico.olivelli
+ */
+public class DiskCacheImplTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private CacheStats stats;
+    private File directory;
+
+    @Before
+    public void setup() throws Exception {
+        stats = new CacheStats((new PrometheusMetricsProvider()).getStatsLogger("").scope("cache"));
+        directory = tmpDir.newFolder("diskcache");
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        DiskCacheImpl cache = new DiskCacheImpl(stats, directory, 1024 * 1024, 64 * 1024, 0, Logger.getLogger("test"));
+        ContentPayload original = payload(BODY);
+        cache.put(key(1), original);
+        original.clear();
+
+        ContentPayload cached = cache.get(key(1));
+        assertThat(cached, is(notNullValue()));
+        HttpResponse response = cached.getResponse();
+        assertThat(response.status().code(), is(200));
+        assertThat(response.headers().get("Content-Type"), is("text/plain"));
+        assertThat(body(cached), is(BODY));
+        assertThat(cached.getLastModified(), is(1234L));
+        assertThat(cached.getCreationTs(), is(original.getCreationTs()));
+        // the headers are decoded once
+        assertThat(cache.peek(key(1)).getResponse() == response, is(true));
+
+        assertThat(cache.get(key(2)), is(nullValue()));
+        assertThat(stats.getHits(), is(1L));
+        assertThat(stats.getDiskHits(), is(1L));
+        assertThat(stats.getMisses(), is(1L));
+
+        // a revalidation replaces the Expires header, not the served one
+        long expiresTs = System.currentTimeMillis() / 1000 * 1000 + 120_000;
+        assertThat(cache.refresh(key(1), expiresTs), is(true));
+        assertThat(cache.peek(key(1)).getResponse().headers().getTimeMillis("Expires"), is(expiresTs));
+        assertThat(response.headers().getTimeMillis("Expires") == expiresTs, is(false));
+
+        cache.remove(key(1));
+        assertThat(cache.get(key(1)), is(nullValue()));
+        assertThat(stats.getDiskUsed(), is(0L));
+        cache.close();
+    }
+
+    @Test
+    public void testDropOldestSegment() throws Exception {
+        // four segments of 1 KB, about 7 entries per segment
+        DiskCacheImpl cache = new DiskCacheImpl(stats, directory, 4096, 1024, 0, Logger.getLogger("test"));
+        for (int i = 0; i < 30; i++) {
+            cache.put(key(i), payload(BODY + i));
+        }
+        assertThat(directory.list().length, is(4));
+        assertThat(cache.get(key(0)), is(nullValue()));
+        assertThat(body(cache.get(key(29))), is(BODY + 29));
+        cache.clear();
+        assertThat(directory.list().length, is(0));
+        assertThat(cache.getSize(), is(0));
+        assertThat(stats.getDiskUsed(), is(0L));
+        assertThat(cache.getMemSize(), is(0L));
+        cache.close();
+    }
+
+    @Test
+    public void testDroppedSegmentServed() throws Exception {
+        DiskCacheImpl cache = new DiskCacheImpl(stats, directory, 4096, 1024, 0, Logger.getLogger("test"));
+        cache.put(key(0), payload(BODY + 0));
+        ByteBuf served = cache.get(key(0)).retainedContent();
+        for (int i = 1; i < 30; i++) {
+            cache.put(key(i), payload(BODY + i));
+        }
+        assertThat(cache.get(key(0)), is(nullValue()));
+        // the first segment is kept until the served body is released
+        assertThat(directory.list().length, is(5));
+        assertThat(cache.getMappedSize(), is(5 * 1024L));
+        assertThat(served.toString(StandardCharsets.UTF_8), is(BODY + 0));
+        served.release();
+        assertThat(directory.list().length, is(4));
+        assertThat(cache.getMappedSize(), is(4 * 1024L));
+
+        served = cache.get(key(29)).retainedContent();
+        cache.close();
+        assertThat(directory.list().length, is(1));
+        assertThat(served.toString(StandardCharsets.UTF_8), is(BODY + 29));
+        served.release();
+        assertThat(directory.list().length, is(0));
+        assertThat(cache.getMappedSize(), is(0L));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        DiskCacheImpl cache = new DiskCacheImpl(stats, directory, 8192, 1024, 0, Logger.getLogger("test"));
+        for (int i = 0; i < 20; i++) {
+            cache.put(key(i), payload(BODY + i));
+        }
+        File firstSegment = new File(directory, String.format("%020d", 1) + ".segment");
+        assertThat(firstSegment.exists(), is(true));
+        long used = stats.getDiskUsed();
+        // most of the entries of the first segment are dead
+        for (int i = 0; i < 3; i++) {
+            cache.remove(key(i));
+        }
+        cache.evict();
+        // live entries have been moved away
+        assertThat(firstSegment.exists(), is(false));
+        assertThat(stats.getDiskUsed() < used, is(true));
+        for (int i = 3; i < 20; i++) {
+            assertThat(body(cache.get(key(i))), is(BODY + i));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void testStaleEntries() throws Exception {
+        DiskCacheImpl cache = new DiskCacheImpl(stats, directory, 1024 * 1024, 64 * 1024, 0, Logger.getLogger("test"));
+        long now = System.currentTimeMillis();
+        ContentPayload original = payload(BODY);
+        original.expiresTs = now - 1000;
+        original.staleWhileRevalidate = 60_000;
+        original.etag = "\"v1\"";
+        cache.put(key(1), original);
+        original.clear();
+
+        // expired, but it can be served while revalidating it
+        ContentPayload cached = cache.get(key(1));
+        assertThat(cached.isFresh(now), is(false));
+        assertThat(cached.isServable(now), is(true));
+        assertThat(cached.getEtag(), is("\"v1\""));
+        assertThat(stats.getHits(), is(1L));
+
+        long expiresTs = now + ContentsCache.DEFAULT_TTL;
+        assertThat(cache.refresh(key(1), expiresTs), is(true));
+        cached = cache.get(key(1));
+        assertThat(cached.isFresh(now), is(true));
+        assertThat(cached.getResponse().headers().getTimeMillis("Expires"), is(expiresTs / 1000 * 1000));
+        assertThat(body(cached), is(BODY));
+        assertThat(cache.refresh(key(2), expiresTs), is(false));
+
+        // usable only in place of an error, it is a miss
+        ContentPayload onError = payload(BODY);
+        onError.expiresTs = now - 1000;
+        onError.staleIfError = 60_000;
+        cache.put(key(3), onError);
+        onError.clear();
+        assertThat(cache.get(key(3)), is(notNullValue()));
+        assertThat(stats.getMisses(), is(1L));
+        cache.close();
+    }
+
+    @Test
+    public void testTooBig() throws Exception {
+        DiskCacheImpl cache = new DiskCacheImpl(stats, directory, 4096, 1024, 100, Logger.getLogger("test"));
+        cache.put(key(1), payload(BODY));
+        assertThat(cache.get(key(1)), is(nullValue()));
+        assertThat(cache.getSize(), is(0));
+        cache.close();
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        Properties properties = new Properties();
+        properties.put("cache.disk.segmentsize", "1000");
+        properties.put("cache.disk.maxsize", "2500");
+        RuntimeServerConfiguration configuration = new RuntimeServerConfiguration();
+        configuration.configure(new PropertiesConfigurationStore(properties));
+        assertThat(configuration.getCacheDiskMaxSize(), is(2500L));
+
+        // the disk cache needs at least two segments
+        properties.put("cache.disk.maxsize", "1999");
+        try {
+            new RuntimeServerConfiguration().configure(new PropertiesConfigurationStore(properties));
+            fail();
+        } catch (ConfigurationNotValidException expected) {
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.server.RuntimeServerConfiguration;
+import org.carapaceproxy.server.config.ConfigurationNotValidException;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import org.carapaceproxy.utils.TestUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Error responses cached for a short time
+ *
+ * @author enrico.olivelli
+ */
+public class NegativeCachingTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+
+        stubFor(get(urlEqualTo("/missing.html"))
+                .willReturn(aResponse()
+                        .withStatus(404)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "not found".length() + "")
+                        .withBody("not found")));
+        stubFor(get(urlEqualTo("/gone.html"))
+                .willReturn(aResponse()
+                        .withStatus(410)
+                        .withHeader("Content-Length", "0")));
+        stubFor(get(urlEqualTo("/error.html"))
+                .willReturn(aResponse()
+                        .withStatus(503)
+                        .withHeader("Content-Length", "0")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.getCurrentConfiguration().setCacheNegativeTtl(404, 60000);
+            server.getCurrentConfiguration().setCacheNegativeTtl(503, 1000);
+            // errors are never served stale
+            server.getCurrentConfiguration().setCacheStaleWhileRevalidate(60000);
+            server.getCache().reloadConfiguration(server.getCurrentConfiguration());
+            server.start();
+            int port = server.getLocalPort();
+            CacheStats stats = server.getCache().getStats();
+
+            String response = RawHttpClient.executeGet(port, "/missing.html");
+            assertTrue(response.startsWith("HTTP/1.1 404"));
+            TestUtils.waitForCondition(() -> server.getCache().getCacheSize() == 1);
+            response = RawHttpClient.executeGet(port, "/missing.html");
+            assertTrue(response.startsWith("HTTP/1.1 404"));
+            assertTrue(response.contains("X-Cached"));
+            assertTrue(response.endsWith("not found"));
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/missing.html")));
+
+            // not configured
+            RawHttpClient.executeGet(port, "/gone.html");
+            response = RawHttpClient.executeGet(port, "/gone.html");
+            assertTrue(response.startsWith("HTTP/1.1 410"));
+            assertFalse(response.contains("X-Cached"));
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/gone.html")));
+
+            response = RawHttpClient.executeGet(port, "/error.html");
+            assertTrue(response.startsWith("HTTP/1.1 503"));
+            TestUtils.waitForCondition(() -> server.getCache().getCacheSize() == 2);
+            response = RawHttpClient.executeGet(port, "/error.html");
+            assertTrue(response.startsWith("HTTP/1.1 503"));
+            assertTrue(response.contains("X-Cached"));
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/error.html")));
+
+            Thread.sleep(1500);
+            response = RawHttpClient.executeGet(port, "/error.html");
+            assertTrue(response.startsWith("HTTP/1.1 503"));
+            assertFalse(response.contains("X-Cached"));
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/error.html")));
+
+            assertEquals(3, stats.getNegativeCached());
+            assertEquals(2, stats.getNegativeHits());
+        }
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        RuntimeServerConfiguration configuration = new RuntimeServerConfiguration();
+        configuration.setCacheNegativeTtl(410, 1000);
+        configuration.setCacheNegativeTtl(500, 1000);
+        configuration.setCacheNegativeTtl(500, 0);
+        assertEquals(1, configuration.getCacheNegativeTtls().size());
+        assertEquals(1000L, (long) configuration.getCacheNegativeTtls().get(410));
+        try {
+            configuration.setCacheNegativeTtl(200, 1000);
+            fail();
+        } catch (ConfigurationNotValidException expected) {
+        }
+        try {
+            configuration.setCacheNegativeTtl(404, -1);
+            fail();
+        } catch (ConfigurationNotValidException expected) {
+        }
+    }
+
+}
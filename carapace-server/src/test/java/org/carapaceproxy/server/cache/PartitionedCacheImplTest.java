@@ -0,0 +1,121 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.apache.bookkeeper.stats.prometheus.PrometheusMetricsProvider;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+import org.carapaceproxy.server.config.CachePartitionConfiguration;
+import org.carapaceproxy.utils.TestUtils;
+import static org.carapaceproxy.server.cache.CacheTestUtils.body;
+import static org.carapaceproxy.server.cache.CacheTestUtils.payload;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Partitions of the cache with their own quota
+ *
+ * @author enrico.olivelli
+ */
+public class PartitionedCacheImplTest {
+
+    @Test
+    public void testPartitionQuotas() throws Exception {
+        Logger logger = Logger.getLogger(PartitionedCacheImplTest.class.getName());
+        CacheStats stats = new CacheStats((new PrometheusMetricsProvider()).getStatsLogger("").scope("cache"));
+        CaffeineCacheImpl shared = new CaffeineCacheImpl(stats, 0, logger);
+        long weight = new ContentKey("GET", "one.example.com", "/0.png").getMemUsage() + payload(1000).getMemUsage();
+        PartitionedCacheImpl cache = new PartitionedCacheImpl(Arrays.asList(
+                new CachePartitionConfiguration("one", new HashSet<>(Arrays.asList("one.example.com")), weight * 2 + weight / 2, true),
+                new CachePartitionConfiguration("two", new HashSet<>(Arrays.asList("Two.example.com")), weight * 2 + weight / 2, false)),
+                shared, stats, 0, logger);
+
+        // other hosts go to the shared cache
+        ContentKey other = new ContentKey("GET", "other.example.com", "/0.png");
+        cache.put(other, payload(1000));
+        assertThat(shared.getSize(), is(1));
+        assertThat(cache.getSize(), is(1));
+
+        // the partitions do not evict the contents of the shared cache
+        for (int i = 0; i < 3; i++) {
+            cache.put(new ContentKey("GET", "one.example.com", "/" + i + ".png"), payload(1000));
+            cache.put(new ContentKey("GET", "two.example.com", "/" + i + ".png"), payload(1000));
+        }
+        // removals are notified asynchronously
+        TestUtils.waitForCondition(() -> shared.getSize() == 2 && cache.getSize() == 6, () -> {
+            cache.evict();
+            return null;
+        }, 10);
+        assertThat(cache.contains(other), is(true));
+        // the content evicted from partition one overflowed to the shared cache
+        assertThat(stats.getPartition("one").getOverflows(), is(1L));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(cache.contains(new ContentKey("GET", "one.example.com", "/" + i + ".png")));
+            ContentPayload payload = cache.get(new ContentKey("GET", "one.example.com", "/" + i + ".png"));
+            assertThat(payload, notNullValue());
+            assertThat(body(payload).length(), is(1000));
+        }
+        // the content evicted from partition two has been dropped
+        int found = 0;
+        for (int i = 0; i < 3; i++) {
+            if (cache.contains(new ContentKey("GET", "two.example.com", "/" + i + ".png"))) {
+                found++;
+            }
+        }
+        assertThat(found, is(2));
+
+        // the port is not taken into account
+        ContentKey withPort = new ContentKey("GET", "TWO.example.com:8080", "/p.png");
+        cache.put(withPort, payload(10));
+        assertThat(shared.contains(withPort), is(false));
+        assertThat(cache.get(withPort), notNullValue());
+        assertThat(cache.get(new ContentKey("GET", "two.example.com", "/missing.png")), nullValue());
+
+        CacheStats one = stats.getPartition("one");
+        assertThat(one.getHits(), is(3L));
+        assertThat(one.getMisses(), is(0L));
+        assertThat(one.getOverflows(), is(1L));
+        CacheStats two = stats.getPartition("two");
+        assertThat(two.getHits(), is(1L));
+        assertThat(two.getMisses(), is(1L));
+        assertThat(two.getOverflows(), is(0L));
+        assertThat(stats.getHits(), is(4L));
+        assertThat(stats.getMisses(), is(1L));
+
+        Map<String, Map<String, Object>> info = cache.getPartitionsInfo();
+        assertThat(info.get("one").get("cachesize"), is(2));
+        assertThat(info.get("two").get("evictionPolicy"), is("drop"));
+
+        cache.clear();
+        TestUtils.waitForCondition(() -> cache.getSize() == 0 && stats.getTotalMemoryUsed() == 0, 10);
+        assertThat(one.getTotalMemoryUsed(), is(0L));
+        assertThat(two.getTotalMemoryUsed(), is(0L));
+        cache.close();
+    }
+
+}
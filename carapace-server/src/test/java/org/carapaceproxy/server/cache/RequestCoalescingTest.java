@@ -0,0 +1,157 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Concurrent misses on the same content
+ *
+ * @author enrico.olivelli
+ */
+public class RequestCoalescingTest {
+
+    private static final int CLIENTS = 5;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Test
+    public void testConcurrentMissesHitTheBackendOnce() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")
+                        .withFixedDelay(2000)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            int port = server.getLocalPort();
+
+            for (String response : executeConcurrently(port)) {
+                assertTrue(response.startsWith("HTTP/1.1 200"));
+                assertTrue(response.endsWith("it <b>works</b> !!"));
+            }
+
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/index.html")));
+            assertEquals(1, server.getCache().getCacheSize());
+            assertEquals(0, server.getCache().getPendingResponsesCount());
+        }
+    }
+
+    @Test
+    public void testFallbackOnNotCachableResponse() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "no-cache")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")
+                        .withFixedDelay(1000)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            int port = server.getLocalPort();
+
+            for (String response : executeConcurrently(port)) {
+                assertTrue(response.startsWith("HTTP/1.1 200"));
+                assertTrue(response.endsWith("it <b>works</b> !!"));
+            }
+
+            // every follower must go to the backend on its own
+            wireMockRule.verify(CLIENTS, getRequestedFor(urlEqualTo("/index.html")));
+            assertEquals(0, server.getCache().getCacheSize());
+            assertEquals(0, server.getCache().getPendingResponsesCount());
+        }
+    }
+
+    @Test
+    public void testFallbackOnTimeout() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")
+                        .withFixedDelay(2000)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.getCurrentConfiguration().setCacheCoalescingTimeout(100);
+            server.getCache().reloadConfiguration(server.getCurrentConfiguration());
+            server.start();
+            int port = server.getLocalPort();
+
+            for (String response : executeConcurrently(port)) {
+                assertTrue(response.startsWith("HTTP/1.1 200"));
+                assertTrue(response.endsWith("it <b>works</b> !!"));
+            }
+
+            // the leader is too slow, followers do not wait for it
+            wireMockRule.verify(CLIENTS, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+    private static List<String> executeConcurrently(int port) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                futures.add(threadPool.submit(() -> {
+                    try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                        return client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").toString();
+                    }
+                }));
+            }
+            List<String> responses = new ArrayList<>();
+            for (Future<String> future : futures) {
+                responses.add(future.get());
+            }
+            return responses;
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.netty.handler.codec.DateFormatter;
+import java.util.Date;
+import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Expired contents served while revalidating them or in place of errors
+ *
+ * @author enrico.olivelli
+ */
+public class StaleContentsTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Expires", DateFormatter.format(new Date(System.currentTimeMillis() + 1000)))
+                        .withHeader("Cache-Control", "stale-while-revalidate=60")
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+        stubFor(get(urlEqualTo("/index.html"))
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                        .withStatus(304)
+                        .withHeader("ETag", "\"v1\"")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            int port = server.getLocalPort();
+
+            String response = RawHttpClient.executeGet(port, "/index.html");
+            assertTrue(response.endsWith("it <b>works</b> !!"));
+            assertEquals(1, server.getCache().getCacheSize());
+
+            Thread.sleep(1500);
+
+            // the expired content is served, then revalidated in background
+            response = RawHttpClient.executeGet(port, "/index.html");
+            assertTrue(response.startsWith("HTTP/1.1 200"));
+            assertTrue(response.contains("110 - \"Response is Stale\""));
+            assertTrue(response.endsWith("it <b>works</b> !!"));
+            for (int i = 0; i < 100 && server.getCache().getPendingRevalidationsCount() > 0; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(0, server.getCache().getPendingRevalidationsCount());
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/index.html")));
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/index.html")).withHeader("If-None-Match", equalTo("\"v1\"")));
+
+            // the 304 extended the validity of the content
+            response = RawHttpClient.executeGet(port, "/index.html");
+            assertFalse(response.contains("Response is Stale"));
+            assertTrue(response.contains("X-Cached"));
+            assertTrue(response.endsWith("it <b>works</b> !!"));
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+    @Test
+    public void testStaleIfError() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Expires", DateFormatter.format(new Date(System.currentTimeMillis() + 1000)))
+                        .withHeader("Cache-Control", "stale-if-error=60")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            int port = server.getLocalPort();
+
+            String response = RawHttpClient.executeGet(port, "/index.html");
+            assertTrue(response.endsWith("it <b>works</b> !!"));
+
+            Thread.sleep(1500);
+            stubFor(get(urlEqualTo("/index.html"))
+                    .willReturn(aResponse()
+                            .withStatus(503)
+                            .withHeader("Content-Length", "0")));
+
+            // the backend is asked for the expired content, its error is not
+            // sent to the client
+            response = RawHttpClient.executeGet(port, "/index.html");
+            assertTrue(response.startsWith("HTTP/1.1 200"));
+            assertTrue(response.contains("110 - \"Response is Stale\""));
+            assertTrue(response.endsWith("it <b>works</b> !!"));
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import io.netty.handler.codec.http.HttpRequest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.carapaceproxy.EndpointStats;
+import org.carapaceproxy.MapResult;
+import org.carapaceproxy.client.EndpointKey;
+import org.carapaceproxy.server.RequestHandler;
+import org.carapaceproxy.server.backends.BackendHealthManager;
+import org.carapaceproxy.server.config.ActionConfiguration;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.carapaceproxy.server.config.MatchAllRequestMatcher;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Balancing policies of the directors
+ *
+ * @author enrico.olivelli
+ */
+public class BackendSelectorTest {
+
+    private final Map<EndpointKey, EndpointStats> endpoints = new HashMap<>();
+
+    private StandardEndpointMapper buildMapper(String policy) throws Exception {
+        StandardEndpointMapper mapper = new StandardEndpointMapper();
+        mapper.addBackend(new BackendConfiguration("backend-a", "localhost", 1001, "/"));
+        mapper.addBackend(new BackendConfiguration("backend-b", "localhost", 1002, "/"));
+        mapper.addBackend(new BackendConfiguration("backend-c", "localhost", 1003, "/"));
+        mapper.addDirector(new DirectorConfiguration("director-1", policy).addBackend("*"));
+        mapper.addAction(new ActionConfiguration("proxy-1", ActionConfiguration.TYPE_PROXY, "director-1", null, -1));
+        mapper.addRoute(new RouteConfiguration("route-1", "proxy-1", true, new MatchAllRequestMatcher()));
+        mapper.setConnectionsManagerStats(() -> endpoints);
+        return mapper;
+    }
+
+    private void setActiveConnections(int port, int activeConnections) {
+        EndpointKey key = EndpointKey.make("localhost", port);
+        EndpointStats stats = new EndpointStats(key);
+        stats.getActiveConnections().add(activeConnections);
+        endpoints.put(key, stats);
+    }
+
+    private static MapResult map(StandardEndpointMapper mapper, String userId, String sessionId) {
+        BackendHealthManager backendHealthManager = mock(BackendHealthManager.class);
+        when(backendHealthManager.isAvailable(anyString())).thenReturn(true);
+        return map(mapper, userId, sessionId, backendHealthManager);
+    }
+
+    private static MapResult map(StandardEndpointMapper mapper, String userId, String sessionId, BackendHealthManager backendHealthManager) {
+        HttpRequest request = mock(HttpRequest.class);
+        when(request.uri()).thenReturn("/index.html");
+        RequestHandler requestHandler = mock(RequestHandler.class);
+        when(requestHandler.getQueryString()).thenReturn(RequestHandler.parseQueryString("/index.html"));
+        return mapper.map(request, userId, sessionId, backendHealthManager, requestHandler);
+    }
+
+    @Test
+    public void testLeastRequests() throws Exception {
+        StandardEndpointMapper mapper = buildMapper(DirectorConfiguration.POLICY_LEAST_REQUESTS);
+        setActiveConnections(1001, 5);
+        setActiveConnections(1002, 0);
+        setActiveConnections(1003, 3);
+        for (int i = 0; i < 100; i++) {
+            MapResult result = map(mapper, null, null);
+            assertEquals(MapResult.Action.PROXY, result.action);
+            assertEquals(1002, result.port);
+        }
+    }
+
+    @Test
+    public void testPowerOfTwoChoices() throws Exception {
+        StandardEndpointMapper mapper = buildMapper(DirectorConfiguration.POLICY_POWER_OF_TWO_CHOICES);
+        setActiveConnections(1001, 10);
+        setActiveConnections(1002, 0);
+        setActiveConnections(1003, 5);
+        for (int i = 0; i < 100; i++) {
+            // the most loaded backend always loses the comparison
+            MapResult result = map(mapper, null, null);
+            assertEquals(MapResult.Action.PROXY, result.action);
+            assertNotEquals(1001, result.port);
+        }
+    }
+
+    @Test
+    public void testConsistentHashing() throws Exception {
+        StandardEndpointMapper mapper = buildMapper(DirectorConfiguration.POLICY_CONSISTENT_HASHING);
+        Map<String, Integer> assignments = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            String userId = "user" + i;
+            MapResult result = map(mapper, userId, null);
+            assertEquals(MapResult.Action.PROXY, result.action);
+            assignments.put(userId, result.port);
+        }
+        // every backend receives some users
+        assertEquals(3, new HashSet<>(assignments.values()).size());
+        // sticky
+        for (int i = 0; i < 100; i++) {
+            String userId = "user" + i;
+            assertEquals(assignments.get(userId).intValue(), map(mapper, userId, "session" + i).port);
+        }
+        // session is used when the user is not known
+        int port = map(mapper, null, "session1").port;
+        assertEquals(port, map(mapper, null, "session1").port);
+
+        // only the users of an unreachable backend are moved
+        BackendHealthManager backendHealthManager = mock(BackendHealthManager.class);
+        when(backendHealthManager.isAvailable(anyString())).thenReturn(true);
+        when(backendHealthManager.isAvailable("backend-a")).thenReturn(false);
+        mapper.setBackendHealthManager(backendHealthManager);
+        Set<Integer> movedTo = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            String userId = "user" + i;
+            int newPort = map(mapper, userId, null, backendHealthManager).port;
+            assertNotEquals(1001, newPort);
+            if (assignments.get(userId) != 1001) {
+                assertEquals(assignments.get(userId).intValue(), newPort);
+            } else {
+                movedTo.add(newPort);
+            }
+        }
+        // the users of the failed backend are spread over all the others
+        assertEquals(2, movedTo.size());
+    }
+
+    @Test
+    public void testConsistentHashingBoundedLoad() throws Exception {
+        StandardEndpointMapper mapper = buildMapper(DirectorConfiguration.POLICY_CONSISTENT_HASHING);
+        int port = map(mapper, "user1", null).port;
+        // the owner of the user is overloaded
+        setActiveConnections(port, 100);
+        assertNotEquals(port, map(mapper, "user1", null).port);
+        setActiveConnections(port, 0);
+        assertEquals(port, map(mapper, "user1", null).port);
+
+        // the users of an overloaded backend are spread over all the others
+        Map<String, Integer> owners = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            owners.put("user" + i, map(mapper, "user" + i, null).port);
+        }
+        setActiveConnections(1001, 100);
+        Set<Integer> movedTo = new HashSet<>();
+        for (Map.Entry<String, Integer> owner : owners.entrySet()) {
+            int newPort = map(mapper, owner.getKey(), null).port;
+            if (owner.getValue() == 1001) {
+                movedTo.add(newPort);
+            } else {
+                assertEquals(owner.getValue().intValue(), newPort);
+            }
+        }
+        assertEquals(new HashSet<>(Arrays.asList(1002, 1003)), movedTo);
+    }
+
+    private static StandardEndpointMapper buildWeightedMapper() throws Exception {
+        StandardEndpointMapper mapper = new StandardEndpointMapper();
+        mapper.addBackend(new BackendConfiguration("backend-a", "localhost", 1001, "/", 5, 0));
+        mapper.addBackend(new BackendConfiguration("backend-b", "localhost", 1002, "/", 1, 0));
+        mapper.addBackend(new BackendConfiguration("backend-c", "localhost", 1003, "/", 1, 60_000));
+        mapper.addDirector(new DirectorConfiguration("director-1", DirectorConfiguration.POLICY_WEIGHTED).addBackend("*"));
+        mapper.addAction(new ActionConfiguration("proxy-1", ActionConfiguration.TYPE_PROXY, "director-1", null, -1));
+        mapper.addRoute(new RouteConfiguration("route-1", "proxy-1", true, new MatchAllRequestMatcher()));
+        return mapper;
+    }
+
+    @Test
+    public void testWeighted() throws Exception {
+        StandardEndpointMapper mapper = buildWeightedMapper();
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 700; i++) {
+            MapResult result = map(mapper, null, null);
+            assertEquals(MapResult.Action.PROXY, result.action);
+            counts.merge(result.port, 1, Integer::sum);
+        }
+        assertEquals(500, counts.get(1001).intValue());
+        assertEquals(100, counts.get(1002).intValue());
+        assertEquals(100, counts.get(1003).intValue());
+    }
+
+    @Test
+    public void testWeightedUnavailable() throws Exception {
+        StandardEndpointMapper mapper = buildWeightedMapper();
+        BackendHealthManager backendHealthManager = mock(BackendHealthManager.class);
+        when(backendHealthManager.isAvailable(anyString())).thenReturn(true);
+        when(backendHealthManager.isAvailable("backend-a")).thenReturn(false);
+        mapper.setBackendHealthManager(backendHealthManager);
+
+        // the share of backend-a is not moved to the next backend
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            counts.merge(map(mapper, null, null, backendHealthManager).port, 1, Integer::sum);
+        }
+        assertEquals(100, counts.get(1002).intValue());
+        assertEquals(100, counts.get(1003).intValue());
+    }
+
+    @Test
+    public void testSlowStart() throws Exception {
+        StandardEndpointMapper mapper = buildWeightedMapper();
+        BackendHealthManager backendHealthManager = mock(BackendHealthManager.class);
+        when(backendHealthManager.isAvailable(anyString())).thenReturn(true);
+        mapper.setBackendHealthManager(backendHealthManager);
+
+        // backend-c has just recovered
+        when(backendHealthManager.getReachableSince("localhost:1003")).thenReturn(System.currentTimeMillis());
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 600; i++) {
+            counts.merge(map(mapper, null, null, backendHealthManager).port, 1, Integer::sum);
+        }
+        assertTrue(counts.getOrDefault(1003, 0) + "", counts.getOrDefault(1003, 0) <= 10);
+
+        // backend-c has recovered long ago
+        when(backendHealthManager.getReachableSince("localhost:1003")).thenReturn(System.currentTimeMillis() - 120_000);
+        counts.clear();
+        for (int i = 0; i < 700; i++) {
+            counts.merge(map(mapper, null, null, backendHealthManager).port, 1, Integer::sum);
+        }
+        assertTrue(counts.get(1003) + "", counts.get(1003) >= 90);
+    }
+
+    @Test
+    public void testResultsAreShared() throws Exception {
+        StandardEndpointMapper mapper = buildMapper(DirectorConfiguration.POLICY_RANDOM);
+        BackendHealthManager backendHealthManager = mock(BackendHealthManager.class);
+        when(backendHealthManager.isAvailable(anyString())).thenReturn(true);
+        Set<MapResult> results = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 300; i++) {
+            results.add(map(mapper, null, null, backendHealthManager));
+        }
+        // one for every backend the balancing can start from
+        assertEquals(3, results.size());
+        for (MapResult result : results) {
+            assertEquals("route-1", result.routeid);
+            String backendId = result.getBackendCandidates().get(result.getBackendCandidateIndex());
+            assertEquals("backend-" + (char) ('a' + result.port - 1001), backendId);
+            MapResult retry = mapper.mapRetry(null, result, backendHealthManager);
+            assertNotEquals(result.port, retry.port);
+            assertSame(retry, mapper.mapRetry(null, result, backendHealthManager));
+        }
+    }
+
+}
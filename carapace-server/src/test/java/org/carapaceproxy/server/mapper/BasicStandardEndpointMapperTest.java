@@ -159,6 +159,38 @@ public class BasicStandardEndpointMapperTest {
 
     }
 
+    @Test
+    public void testRouteStuckRequestTimeout() throws Exception {
+        stubFor(get(urlEqualTo("/slow.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withFixedDelay(5000)
+                        .withBody("it <b>works</b> !!")));
+
+        int backendPort = backend1.port();
+        StandardEndpointMapper mapper = new StandardEndpointMapper();
+        mapper.addBackend(new BackendConfiguration("backend-a", "localhost", backendPort, "/"));
+        mapper.addDirector(new DirectorConfiguration("director-1").addBackend("backend-a"));
+        mapper.addAction(new ActionConfiguration("proxy-1", ActionConfiguration.TYPE_PROXY, "director-1", null, -1));
+        // the default stuck request timeout is far greater than the backend delay
+        mapper.addRoute(new RouteConfiguration("route-slow", "proxy-1", true, new URIRequestMatcher(".*slow.html.*"), 200));
+        ConnectionsManagerStats stats;
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper);) {
+            server.start();
+            int port = server.getLocalPort();
+            stats = server.getConnectionsManager().getStats();
+            long start = System.currentTimeMillis();
+            try {
+                IOUtils.toString(new URL("http://localhost:" + port + "/slow.html").toURI(), "utf-8");
+                fail("expected 500");
+            } catch (IOException ok) {
+            }
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        TestUtils.waitForCondition(TestUtils.ALL_CONNECTIONS_CLOSED(stats), 100);
+    }
+
     @Test
     public void testAlwaysServeStaticContent() throws Exception {
 
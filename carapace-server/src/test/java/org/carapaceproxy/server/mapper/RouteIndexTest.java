@@ -0,0 +1,155 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.carapaceproxy.server.config.MatchAllRequestMatcher;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.config.RoutingKey;
+import org.carapaceproxy.server.config.URIRequestMatcher;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Routes indexed by the literal prefix of their expressions
+ *
+ * @author enrico.olivelli
+ */
+public class RouteIndexTest {
+
+    private static final String[] EXPRESSIONS = {"/", "/a", "/a.*", "/a/b.*", "/a/b/c", "^/x.*$", "/a\\.html", "/ab?c.*",
+        "/a|/b.*", "(?i)/A.*", ".*\\.css", "/api/v[0-9]+/.*", "/a/(.*)", "/ab+.*", "/a\\d.*", "/a.*x", "/b{2}.*", "/a/b",
+        "\\Q/a\\E.*", "/a$", ".*", "/a\\..*", "/b\\.(.*)", "/c.+", "/a/.*/c"};
+
+    private static final String[] URIS = {"", "/", "/a", "/a/b", "/a/b/c", "/a/b/c/d", "/ab", "/abc", "/ac", "/A", "/x",
+        "/a.html", "/a.htm", "/api/v1/x", "/api/v/x", "/a\n", "/a/\n", "/style.css", "/bb", "/bbb", "/b.x", "/cx", "/a/x/c",
+        "/a1", "/abbx", "/b"};
+
+    @Test
+    public void testLiteralPrefix() {
+        assertLiteralPrefix("/a/b", "/a/b", true, false);
+        assertLiteralPrefix("/a\\.html$", "/a.html", true, false);
+        assertLiteralPrefix("^/a/.*", "/a/", false, true);
+        assertLiteralPrefix(".*", "", false, true);
+        // quantified characters are not part of the prefix
+        assertLiteralPrefix("/ab?c.*", "/a", false, false);
+        assertLiteralPrefix("/b{2}", "/", false, false);
+        assertLiteralPrefix("/api/v[0-9]+/.*", "/api/v", false, false);
+        assertLiteralPrefix("/a\\d.*", "/a", false, false);
+        assertLiteralPrefix("/a|/b", "", false, false);
+        assertLiteralPrefix("(?i)/a", "", false, false);
+    }
+
+    private static void assertLiteralPrefix(String expression, String prefix, boolean literal, boolean isPrefix) {
+        URIRequestMatcher matcher = new URIRequestMatcher(expression);
+        assertEquals(prefix, matcher.getLiteralPrefix());
+        assertEquals(literal, matcher.isLiteral());
+        assertEquals(isPrefix, matcher.isPrefix());
+    }
+
+    @Test
+    public void testSameMatchesOfRoutes() {
+        List<RouteConfiguration> routes = new ArrayList<>();
+        for (int i = 0; i < EXPRESSIONS.length; i++) {
+            routes.add(new RouteConfiguration("route-" + i, "proxy-all", i % 4 != 3, new URIRequestMatcher(EXPRESSIONS[i])));
+        }
+        routes.add(new RouteConfiguration("all", "proxy-all", true, new MatchAllRequestMatcher()));
+        for (int i = 0; i < EXPRESSIONS.length; i++) {
+            routes.add(new RouteConfiguration("reversed-" + i, "proxy-all", true, new URIRequestMatcher(EXPRESSIONS[EXPRESSIONS.length - 1 - i])));
+        }
+        RouteIndex index = new RouteIndex(routes);
+        for (String uri : URIS) {
+            HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+            // every route, in order
+            List<String> expected = new ArrayList<>();
+            for (RouteConfiguration route : routes) {
+                RoutingKey key = route.matches(request);
+                if (key != null) {
+                    expected.add(route.getId() + " " + key.getAttributes());
+                }
+            }
+            List<String> actual = new ArrayList<>();
+            int candidates = 0;
+            for (int position = index.nextCandidate(uri, -1); position >= 0; position = index.nextCandidate(uri, position)) {
+                candidates++;
+                RoutingKey key = index.matches(position, request);
+                if (key != null) {
+                    actual.add(index.getRoute(position).getId() + " " + key.getAttributes());
+                }
+            }
+            assertEquals(uri, expected, actual);
+            assertTrue(candidates < index.size());
+        }
+    }
+
+    @Test
+    public void testOnlyCandidatesAreEvaluated() {
+        List<RouteConfiguration> routes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            routes.add(new RouteConfiguration("route-" + i, "proxy-all", true, new URIRequestMatcher("/tenant" + i + "/.*")));
+        }
+        routes.add(new RouteConfiguration("fallback", "proxy-all", true, new MatchAllRequestMatcher()));
+        RouteIndex index = new RouteIndex(routes);
+        List<Integer> candidates = new ArrayList<>();
+        for (int position = index.nextCandidate("/tenant500/index.html", -1); position >= 0;
+                position = index.nextCandidate("/tenant500/index.html", position)) {
+            candidates.add(position);
+        }
+        assertEquals(Arrays.asList(500, 1000), candidates);
+        assertEquals(Arrays.asList(1000), Arrays.asList(index.nextCandidate("/other", -1)));
+        assertFalse(index.nextCandidate("/other", 1000) >= 0);
+    }
+
+    @Test
+    public void testRoutingKey() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/api/v2/users");
+        RoutingKey key = new URIRequestMatcher("/api/v([0-9]+)/(.*)(\\?.*)?").matches(request);
+        assertEquals("/api/v2/users", key.getAttribute("0"));
+        assertEquals("2", key.getAttribute("1"));
+        assertEquals("users", key.getAttribute("2"));
+        assertNull(key.getAttribute("3"));
+        assertNull(key.getAttribute("4"));
+        assertNull(key.getAttribute("01"));
+        assertNull(key.getAttribute("x"));
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("0", "/api/v2/users");
+        attributes.put("1", "2");
+        attributes.put("2", "users");
+        attributes.put("3", null);
+        assertEquals(attributes, key.getAttributes());
+
+        // required literal not in the URI
+        assertNull(new URIRequestMatcher(".*/\\.well-known/acme-challenge/.*").matches(request));
+        assertEquals("/x/.well-known/acme-challenge/t", new URIRequestMatcher(".*/\\.well-known/acme-challenge/.*")
+                .matches(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/x/.well-known/acme-challenge/t"))
+                .getAttribute("0"));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.carapaceproxy.MapResult;
+import org.carapaceproxy.configstore.PropertiesConfigurationStore;
+import org.carapaceproxy.server.RequestHandler;
+import org.carapaceproxy.server.backends.BackendHealthManager;
+import org.carapaceproxy.server.config.ConfigurationNotValidException;
+import org.carapaceproxy.server.config.HostRequestMatcher;
+import org.carapaceproxy.server.config.MatchAllRequestMatcher;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.config.RoutingKey;
+import org.carapaceproxy.server.config.URIRequestMatcher;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Dispatch of the requests on their virtual host
+ *
+ * @author enrico.olivelli
+ */
+public class VirtualHostIndexTest {
+
+    private static final String[] HOSTS = {null, "", "example.com", "www.example.com", "WWW.Example.com:8080", "a.b.example.com",
+        "b.example.com", "x.b.example.com", "example.org", "www.example.org", "static.example.org", "localhost", "localhost:8080",
+        "[::1]:8080", ".example.com", "a..example.com", "com"};
+
+    private static final String[] URIS = {"/", "/index.html", "/static/app.js", "/api/v1/x", "/.well-known/acme-challenge/t"};
+
+    @Test
+    public void testHostRequestMatcher() {
+        HostRequestMatcher matcher = new HostRequestMatcher(Arrays.asList("www.example.com", " *.Example.org"), new MatchAllRequestMatcher());
+        assertTrue(matcher.matchesHost("www.example.com"));
+        assertFalse(matcher.matchesHost("example.com"));
+        assertFalse(matcher.matchesHost("a.www.example.com"));
+        assertTrue(matcher.matchesHost("www.example.org"));
+        assertTrue(matcher.matchesHost("a.b.example.org"));
+        assertFalse(matcher.matchesHost("example.org"));
+        assertFalse(matcher.matchesHost("badexample.org"));
+        assertTrue(matcher.matches(request("WWW.EXAMPLE.COM:8080", "/")) != null);
+        assertTrue(matcher.matches(request(null, "/")) == null);
+
+        assertTrue(HostRequestMatcher.isValidHost("*.example.com"));
+        assertTrue(HostRequestMatcher.isValidHost("localhost"));
+        assertFalse(HostRequestMatcher.isValidHost("*"));
+        assertFalse(HostRequestMatcher.isValidHost("www.*.com"));
+        assertFalse(HostRequestMatcher.isValidHost("example.com:8080"));
+        assertFalse(HostRequestMatcher.isValidHost(".example.com"));
+    }
+
+    @Test
+    public void testSameMatchesOfRoutes() {
+        List<RouteConfiguration> routes = new ArrayList<>();
+        routes.add(new RouteConfiguration("acme", "proxy-all", true, new URIRequestMatcher(".*/\\.well-known/acme-challenge/.*")));
+        routes.add(route("www-static", "/static/.*", "www.example.com"));
+        routes.add(route("example-api", "/api/.*", "*.example.com", "example.com"));
+        routes.add(route("b-all", null, "*.b.example.com"));
+        routes.add(route("disabled", null, "www.example.org"));
+        routes.add(route("org", "/index.html", "*.example.org", "localhost"));
+        routes.add(new RouteConfiguration("static", "proxy-all", true, new URIRequestMatcher("/static/.*")));
+        routes.add(route("www-all", null, "www.example.com", "*.a.example.com"));
+        routes.add(new RouteConfiguration("all", "proxy-all", true, new MatchAllRequestMatcher()));
+        routes.add(route("unreachable", null, "static.example.org"));
+        routes.set(4, new RouteConfiguration("disabled", "proxy-all", false, routes.get(4).getMatcher()));
+
+        VirtualHostIndex index = new VirtualHostIndex(routes);
+        for (String host : HOSTS) {
+            for (String uri : URIS) {
+                HttpRequest request = request(host, uri);
+                List<String> expected = new ArrayList<>();
+                for (RouteConfiguration route : routes) {
+                    RoutingKey key = route.matches(request);
+                    if (key != null) {
+                        expected.add(route.getId() + " " + key.getAttributes());
+                    }
+                }
+                List<String> actual = new ArrayList<>();
+                RouteIndex routeIndex = index.getRoutes(request);
+                for (int position = routeIndex.nextCandidate(uri, -1); position >= 0; position = routeIndex.nextCandidate(uri, position)) {
+                    RoutingKey key = routeIndex.matches(position, request);
+                    if (key != null) {
+                        actual.add(routeIndex.getRoute(position).getId() + " " + key.getAttributes());
+                    }
+                }
+                assertEquals(host + uri, expected, actual);
+            }
+        }
+        // only the routes of the virtual host
+        assertEquals(4, index.getRoutes(request("localhost", "/")).size());
+        assertEquals(3, index.getRoutes(request("unknown.com", "/")).size());
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        Properties properties = new Properties();
+        properties.put("backend.1.id", "backend-a");
+        properties.put("backend.1.enabled", "true");
+        properties.put("backend.1.host", "localhost");
+        properties.put("backend.1.port", "1001");
+        properties.put("director.1.id", "*");
+        properties.put("director.1.backends", "*");
+        properties.put("director.1.enabled", "true");
+        properties.put("route.1.id", "tenant");
+        properties.put("route.1.enabled", "true");
+        properties.put("route.1.match", "regexp /app/.*");
+        properties.put("route.1.action", "proxy-all");
+        properties.put("route.1.hosts", "www.example.com, *.Example.org");
+        StandardEndpointMapper mapper = new StandardEndpointMapper();
+        mapper.configure(new PropertiesConfigurationStore(properties));
+        assertEquals("tenant", map(mapper, "www.example.com", "/app/index.html").routeid);
+        assertEquals("tenant", map(mapper, "static.example.org:8080", "/app/index.html").routeid);
+        assertEquals(MapResult.Action.NOTFOUND, map(mapper, "www.example.com", "/index.html").action);
+        assertEquals(MapResult.Action.NOTFOUND, map(mapper, "example.org", "/app/index.html").action);
+        assertEquals(MapResult.Action.NOTFOUND, map(mapper, null, "/app/index.html").action);
+
+        properties.put("route.1.hosts", "www.*.com");
+        try {
+            new StandardEndpointMapper().configure(new PropertiesConfigurationStore(properties));
+            fail();
+        } catch (ConfigurationNotValidException ok) {
+        }
+    }
+
+    private static MapResult map(StandardEndpointMapper mapper, String host, String uri) {
+        BackendHealthManager backendHealthManager = mock(BackendHealthManager.class);
+        when(backendHealthManager.isAvailable(anyString())).thenReturn(true);
+        RequestHandler requestHandler = mock(RequestHandler.class);
+        when(requestHandler.getQueryString()).thenReturn(RequestHandler.parseQueryString(uri));
+        return mapper.map(request(host, uri), null, null, backendHealthManager, requestHandler);
+    }
+
+    private static RouteConfiguration route(String id, String expression, String... hosts) {
+        return new RouteConfiguration(id, "proxy-all", true, new HostRequestMatcher(Arrays.asList(hosts),
+                expression == null ? new MatchAllRequestMatcher() : new URIRequestMatcher(expression)));
+    }
+
+    private static HttpRequest request(String host, String uri) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        if (host != null) {
+            request.headers().set(HttpHeaderNames.HOST, host);
+        }
+        return request;
+    }
+
+}
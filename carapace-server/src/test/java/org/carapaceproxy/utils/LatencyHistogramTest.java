@@ -0,0 +1,106 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author enrico.olivelli
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 100_000; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            long upperBound = LatencyHistogram.bucketUpperBound(index);
+            assertTrue(value + " > " + upperBound, value <= upperBound);
+            if (index > 0) {
+                assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+            }
+            // relative error
+            assertTrue(upperBound - value <= value / LatencyHistogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().getValueAtPercentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordValue(i);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        assertEquals(1, snapshot.getValueAtPercentile(0));
+        long p50 = snapshot.getValueAtPercentile(50);
+        assertTrue(p50 + "", p50 >= 500 && p50 <= 500 + 500 / LatencyHistogram.SUB_BUCKETS);
+        long p99 = snapshot.getValueAtPercentile(99);
+        assertTrue(p99 + "", p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordValue(-5);
+        histogram.recordValue(Long.MAX_VALUE);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, snapshot.getValueAtPercentile(50));
+        assertEquals(snapshot.getMax(), snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testRecentSnapshot() {
+        long window = LatencyHistogram.RECENT_WINDOW_MILLIS;
+        LatencyHistogram histogram = new LatencyHistogram(0);
+        for (int i = 0; i < 100; i++) {
+            histogram.recordValue(10_000);
+        }
+        assertEquals(100, histogram.recentSnapshot(1).getCount());
+
+        // the slow values are still in the previous window
+        histogram.recentSnapshot(window);
+        for (int i = 0; i < 100; i++) {
+            histogram.recordValue(100);
+        }
+        LatencyHistogram.Snapshot recent = histogram.recentSnapshot(window + 1);
+        assertEquals(200, recent.getCount());
+        assertTrue(recent.getValueAtPercentile(99) >= 10_000);
+
+        // only the fast values are recent
+        recent = histogram.recentSnapshot(2 * window);
+        assertEquals(100, recent.getCount());
+        assertTrue(recent.getMax() + "", recent.getMax() <= 100 + 100 / LatencyHistogram.SUB_BUCKETS);
+        assertTrue(recent.getValueAtPercentile(99) <= 100 + 100 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(200, histogram.snapshot().getCount());
+
+        // nothing recorded in the last two windows
+        assertEquals(0, histogram.recentSnapshot(5 * window).getCount());
+        assertEquals(0, histogram.recentSnapshot(5 * window).getValueAtPercentile(99));
+    }
+
+}
@@ -107,6 +107,26 @@ public final class RawHttpClient implements AutoCloseable {
                 + "\r\n\r\n");
     }
 
+    /**
+     * Sends a GET to localhost on a new connection, which is closed after
+     * the response
+     *
+     * @param port
+     * @param uri
+     * @param headers additional headers, as "Name: value"
+     * @return the whole response
+     * @throws IOException
+     */
+    public static String executeGet(int port, String uri, String... headers) throws IOException {
+        try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+            StringBuilder request = new StringBuilder("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n");
+            for (String header : headers) {
+                request.append(header).append("\r\n");
+            }
+            return client.executeRequest(request.append("\r\n").toString()).toString();
+        }
+    }
+
     public void sendRequest(String request) throws IOException {
         sendRequest(request.getBytes(StandardCharsets.UTF_8));
     }